@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Budgets expressions must fit in to be admitted: node count, depth, estimated nanoseconds per evaluation and
+ *   transcendental calls, see CostModel
+ *
+ * Over budget, an expression is rejected with an IllegalArgumentException, or with Action.FLAG admitted and
+ *   reported, so budgets can be introduced without breaking existing definitions. Check parsed expressions with
+ *   admit(name, expr), or pass the limits to FeatureSet.compile to check every feature after optimization.
+ *
+ *   AdmissionLimits limits = new AdmissionLimits().setMaxNodes(200).setMaxNanos(500);
+ *   FeatureSet featureSet = FeatureSet.compile(version, definitions, MathMode.EXACT, limits);
+ */
+public class AdmissionLimits {
+
+  /**
+   * REJECT: throw an IllegalArgumentException, the default
+   * FLAG:   admit the expression and return the budgets it exceeds
+   */
+  public enum Action {
+    REJECT,
+    FLAG
+  }
+
+  private int _maxNodes = Integer.MAX_VALUE;
+  private int _maxDepth = Integer.MAX_VALUE;
+  private double _maxNanos = Double.POSITIVE_INFINITY;
+  private int _maxTranscendentalCalls = Integer.MAX_VALUE;
+  private Action _action = Action.REJECT;
+  private CostModel _costModel = CostModel.DEFAULT;
+
+  public AdmissionLimits setMaxNodes(int maxNodes) {
+    this._maxNodes = maxNodes;
+    return this;
+  }
+
+  public AdmissionLimits setMaxDepth(int maxDepth) {
+    this._maxDepth = maxDepth;
+    return this;
+  }
+
+  public AdmissionLimits setMaxNanos(double maxNanos) {
+    this._maxNanos = maxNanos;
+    return this;
+  }
+
+  public AdmissionLimits setMaxTranscendentalCalls(int maxTranscendentalCalls) {
+    this._maxTranscendentalCalls = maxTranscendentalCalls;
+    return this;
+  }
+
+  /**
+   * @param action what to do with expressions over budget
+   */
+  public AdmissionLimits setAction(Action action) {
+    this._action = action;
+    return this;
+  }
+
+  /**
+   * @param costModel model estimating the expressions, CostModel.DEFAULT by default
+   */
+  public AdmissionLimits setCostModel(CostModel costModel) {
+    this._costModel = costModel;
+    return this;
+  }
+
+  public CostModel getCostModel() {
+    return _costModel;
+  }
+
+  /**
+   * @return the budgets a cost exceeds, e.g. "depth 40 > 32", empty if within all of them
+   */
+  public List<String> check(CostModel.Cost cost) {
+    List<String> violations = new ArrayList<String>();
+    if (cost.getNodes() > _maxNodes) {
+      violations.add("nodes " + cost.getNodes() + " > " + _maxNodes);
+    }
+    if (cost.getDepth() > _maxDepth) {
+      violations.add("depth " + cost.getDepth() + " > " + _maxDepth);
+    }
+    if (cost.getNanos() > _maxNanos) {
+      violations.add(String.format("nanos %.1f > %.1f", cost.getNanos(), _maxNanos));
+    }
+    if (cost.getTranscendentalCalls() > _maxTranscendentalCalls) {
+      violations.add("transcendental calls " + cost.getTranscendentalCalls() + " > " + _maxTranscendentalCalls);
+    }
+    return violations;
+  }
+
+  /**
+   * Estimate an expression and check it against the budgets
+   * @param name name of the expression, for the error message
+   * @return the budgets exceeded when flagging, empty if within all of them
+   * @throws IllegalArgumentException if over budget and rejecting
+   */
+  public List<String> admit(String name, Expr expr) {
+    List<String> violations = check(_costModel.estimate(expr));
+    if (violations.isEmpty()) {
+      return Collections.emptyList();
+    }
+    if (_action == Action.REJECT) {
+      throw new IllegalArgumentException("feature " + name + " is over budget: " + violations);
+    }
+    return violations;
+  }
+}
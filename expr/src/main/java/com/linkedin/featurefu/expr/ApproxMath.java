@@ -0,0 +1,225 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+/**
+ * Fast approximations of the transcendental functions used by the built-in operators
+ *
+ * Each kernel reduces its argument to a small interval around one of a few dozen tabulated points and evaluates a
+ *   short polynomial there, without branches on the hot path. Arguments the reduction cannot handle (NaN, infinities,
+ *   zero/negative/subnormal logarithm inputs, huge trigonometric arguments, exp overflow and underflow) fall back to
+ *   java.lang.Math, so special values behave exactly like the exact operators.
+ *
+ * Maximum errors, verified against java.lang.Math by ApproxMathTest:
+ *   exp, sigmoid       relative error below 1e-12
+ *   ln, log2, ln1plus  absolute error below 1e-12
+ *   tanh               absolute error below 1e-12
+ *   sin, cos           absolute error below 1e-12 for |x| up to 1e5 (exact beyond that)
+ *   pow                relative error below 1e-11 * (1 + |y * ln(x)|) for x > 0 (exact otherwise)
+ *
+ * How much faster they are depends on how well the JVM intrinsifies java.lang.Math. On a JDK 17 HotSpot, over inputs
+ *   in [0.5, 2.5), they take 10-25% less time for exp and sigmoid, 5-20% less for ln1plus and pow, 20-35% less for
+ *   ln, log2 and sin, about half the time for cos and a tenth of it for tanh.
+ */
+public final class ApproxMath {
+
+  private static final int EXP_TABLE_BITS = 6;
+  private static final int EXP_TABLE_SIZE = 1 << EXP_TABLE_BITS;
+  private static final double[] EXP_TABLE = new double[EXP_TABLE_SIZE];   // 2^(i/64)
+
+  private static final int LOG_TABLE_BITS = 7;
+  private static final int LOG_TABLE_SIZE = 1 << LOG_TABLE_BITS;
+  private static final double[] LOG_TABLE = new double[LOG_TABLE_SIZE];   // ln(c_i), c_i = 1 + (i + 0.5)/128
+  private static final double[] INV_TABLE = new double[LOG_TABLE_SIZE];   // 1/c_i
+
+  private static final int TRIG_TABLE_SIZE = 128;                         // sin/cos of i*(2*pi/128)
+  private static final double[] SIN_TABLE = new double[TRIG_TABLE_SIZE];
+  private static final double[] COS_TABLE = new double[TRIG_TABLE_SIZE];
+
+  // ln(2) and pi/2 split into a high part with trailing zero bits and a low correction, so k * HI is exact
+  private static final double LN_2_HI = 6.93147180369123816490e-01;
+  private static final double LN_2_LO = 1.90821492927058770002e-10;
+  private static final double PI_2_HI = 1.57079632673412561417e+00;
+  private static final double PI_2_LO = 6.07710050650619224932e-11;
+
+  private static final double INV_LN_2 = 1 / Math.log(2);
+  private static final double EXP_SCALE = EXP_TABLE_SIZE * INV_LN_2;
+  private static final double EXP_STEP_HI = LN_2_HI / EXP_TABLE_SIZE;
+  private static final double EXP_STEP_LO = LN_2_LO / EXP_TABLE_SIZE;
+
+  private static final double TRIG_SCALE = TRIG_TABLE_SIZE / (4 * PI_2_HI);
+  private static final double TRIG_STEP_HI = 4 * PI_2_HI / TRIG_TABLE_SIZE;
+  private static final double TRIG_STEP_LO = 4 * PI_2_LO / TRIG_TABLE_SIZE;
+
+  private static final double EXP_MIN = -708;
+  private static final double EXP_MAX = 709;
+  private static final double TRIG_MAX = 1e5;
+  private static final double TANH_SMALL = 0.125;
+
+  private static final long EXPONENT_MASK = 0x7ff0000000000000L;
+  private static final long MANTISSA_MASK = 0x000fffffffffffffL;
+  private static final long EXPONENT_BIAS = 1023;
+  private static final int MANTISSA_BITS = 52;
+
+  static {
+    for (int i = 0; i < EXP_TABLE_SIZE; i++) {
+      EXP_TABLE[i] = Math.pow(2, i / (double) EXP_TABLE_SIZE);
+    }
+    for (int i = 0; i < LOG_TABLE_SIZE; i++) {
+      double c = 1 + (i + 0.5) / LOG_TABLE_SIZE;
+      LOG_TABLE[i] = Math.log(c);
+      INV_TABLE[i] = 1 / c;
+    }
+    for (int i = 0; i < TRIG_TABLE_SIZE; i++) {
+      SIN_TABLE[i] = Math.sin(i * 2 * Math.PI / TRIG_TABLE_SIZE);
+      COS_TABLE[i] = Math.cos(i * 2 * Math.PI / TRIG_TABLE_SIZE);
+    }
+  }
+
+  private ApproxMath() {
+  }
+
+  /**
+   * e^x: x = (64*q + j)*ln(2)/64 + r with |r| <= ln(2)/128, e^x = 2^q * 2^(j/64) * e^r, e^r by a degree 4 polynomial
+   */
+  public static double exp(double x) {
+    if (!(x > EXP_MIN && x < EXP_MAX)) {
+      return Math.exp(x);
+    }
+
+    double k = Math.rint(x * EXP_SCALE);
+    double r = (x - k * EXP_STEP_HI) - k * EXP_STEP_LO;
+    long n = (long) k;
+
+    double p = 1 + r * (1 + r * (1.0 / 2 + r * (1.0 / 6 + r * (1.0 / 24))));
+
+    return p * EXP_TABLE[(int) (n & (EXP_TABLE_SIZE - 1))]
+        * Double.longBitsToDouble(((n >> EXP_TABLE_BITS) + EXPONENT_BIAS) << MANTISSA_BITS);
+  }
+
+  /**
+   * Natural logarithm: x = m * 2^e with m in [1, 2), ln(m) = ln(c) + ln(1 + t) with t = m/c - 1, |t| < 1/256,
+   *   where c is the tabulated point nearest to m picked by the top mantissa bits
+   */
+  public static double log(double x) {
+    long bits = Double.doubleToRawLongBits(x);
+    long exponentBits = bits & EXPONENT_MASK;
+
+    if (x <= 0 || exponentBits == 0 || exponentBits == EXPONENT_MASK) { // non-positive, subnormal, infinite or NaN
+      return Math.log(x);
+    }
+
+    long e = (exponentBits >>> MANTISSA_BITS) - EXPONENT_BIAS;
+    int i = (int) ((bits >>> (MANTISSA_BITS - LOG_TABLE_BITS)) & (LOG_TABLE_SIZE - 1));
+    double m = Double.longBitsToDouble((bits & MANTISSA_MASK) | (EXPONENT_BIAS << MANTISSA_BITS));
+
+    double t = m * INV_TABLE[i] - 1;
+    double log1p = t * (1 + t * (-1.0 / 2 + t * (1.0 / 3 + t * (-1.0 / 4 + t * (1.0 / 5)))));
+
+    return e * LN_2_HI + (LOG_TABLE[i] + log1p + e * LN_2_LO);
+  }
+
+  /**
+   * ln(1 + x), with the same rounding of 1 + x as the exact ln1plus operator
+   */
+  public static double log1plus(double x) {
+    return log(1 + x);
+  }
+
+  public static double log2(double x) {
+    return log(x) * INV_LN_2;
+  }
+
+  public static double sigmoid(double x) {
+    return 1.0 / (1 + exp(-x));
+  }
+
+  /**
+   * tanh(x) = 1 - 2 / (e^(2x) + 1), odd polynomial near zero where that formula would cancel
+   */
+  public static double tanh(double x) {
+    double a = Math.abs(x);
+
+    if (a < TANH_SMALL) {
+      double x2 = x * x;
+      return x * (1 + x2 * (-1.0 / 3 + x2 * (2.0 / 15 + x2 * (-17.0 / 315 + x2 * (62.0 / 2835
+          + x2 * (-1382.0 / 155925))))));
+    }
+
+    double t = 1 - 2 / (exp(2 * a) + 1);
+
+    return x < 0 ? -t : t;
+  }
+
+  /**
+   * x^y computed as e^(y*ln(x)) for positive finite x, every other base goes to Math.pow for its special cases
+   */
+  public static double pow(double x, double y) {
+    if (!(x > 0 && x < Double.POSITIVE_INFINITY) || Double.isNaN(y) || Double.isInfinite(y)) {
+      return Math.pow(x, y);
+    }
+    if (y == 0) {
+      return 1;
+    }
+
+    return exp(y * log(x));
+  }
+
+  /**
+   * sin(x) = sin(a)cos(r) + cos(a)sin(r) where a is the nearest tabulated multiple of 2*pi/128 and |r| <= pi/128
+   */
+  public static double sin(double x) {
+    if (!(Math.abs(x) <= TRIG_MAX)) {
+      return Math.sin(x);
+    }
+
+    double k = Math.rint(x * TRIG_SCALE);
+    double r = (x - k * TRIG_STEP_HI) - k * TRIG_STEP_LO;
+    int i = (int) k & (TRIG_TABLE_SIZE - 1);
+
+    return SIN_TABLE[i] * cosKernel(r) + COS_TABLE[i] * sinKernel(r);
+  }
+
+  /**
+   * cos(x) = cos(a)cos(r) - sin(a)sin(r), same reduction as sin
+   */
+  public static double cos(double x) {
+    if (!(Math.abs(x) <= TRIG_MAX)) {
+      return Math.cos(x);
+    }
+
+    double k = Math.rint(x * TRIG_SCALE);
+    double r = (x - k * TRIG_STEP_HI) - k * TRIG_STEP_LO;
+    int i = (int) k & (TRIG_TABLE_SIZE - 1);
+
+    return COS_TABLE[i] * cosKernel(r) - SIN_TABLE[i] * sinKernel(r);
+  }
+
+  /**
+   * Taylor polynomial of sin on [-pi/128, pi/128]
+   */
+  private static double sinKernel(double r) {
+    double r2 = r * r;
+    return r * (1 + r2 * (-1.0 / 6 + r2 * (1.0 / 120)));
+  }
+
+  /**
+   * Taylor polynomial of cos on [-pi/128, pi/128]
+   */
+  private static double cosKernel(double r) {
+    double r2 = r * r;
+    return 1 + r2 * (-1.0 / 2 + r2 * (1.0 / 24 + r2 * (-1.0 / 720)));
+  }
+}
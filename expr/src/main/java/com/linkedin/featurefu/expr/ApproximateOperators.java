@@ -0,0 +1,217 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Approximate counterparts of the transcendental operators, backed by the polynomial kernels in ApproxMath
+ *
+ * They keep the symbols of the exact operators, so an approximated expression prints and pretty prints the same way.
+ * Use Expression.parse(input, registry, MathMode.APPROXIMATE) to parse straight into approximate operators,
+ *   or approximate(expr) to convert an expression parsed earlier
+ */
+public final class ApproximateOperators {
+
+  /**
+   * exact operator -> approximate operator
+   */
+  private static final Map<Operator, Operator> _approximations = new HashMap<Operator, Operator>();
+
+  private ApproximateOperators() {
+  }
+
+  public static final Operator EXP = new Operator() {
+
+    public int numberOfOperands() {
+      return 1;
+    }
+
+    public double calculate(List<Expr> operands) {
+      return ApproxMath.exp(operands.get(0).evaluate());
+    }
+
+    public String getSymbol() {
+      return "exp";
+    }
+  };
+
+  public static final Operator SIGMOID = new Operator() {
+
+    public int numberOfOperands() {
+      return 1;
+    }
+
+    public double calculate(List<Expr> operands) {
+      return ApproxMath.sigmoid(operands.get(0).evaluate());
+    }
+
+    public String getSymbol() {
+      return "sigmoid";
+    }
+  };
+
+  public static final Operator TANH = new Operator() {
+
+    public int numberOfOperands() {
+      return 1;
+    }
+
+    public double calculate(List<Expr> operands) {
+      return ApproxMath.tanh(operands.get(0).evaluate());
+    }
+
+    public String getSymbol() {
+      return "tanh";
+    }
+  };
+
+  public static final Operator LN = new Operator() {
+
+    public int numberOfOperands() {
+      return 1;
+    }
+
+    public double calculate(List<Expr> operands) {
+      return ApproxMath.log(operands.get(0).evaluate());
+    }
+
+    public String getSymbol() {
+      return "ln";
+    }
+  };
+
+  public static final Operator LN1PLUS = new Operator() {
+
+    public int numberOfOperands() {
+      return 1;
+    }
+
+    public double calculate(List<Expr> operands) {
+      return ApproxMath.log1plus(operands.get(0).evaluate());
+    }
+
+    public String getSymbol() {
+      return "ln1plus";
+    }
+  };
+
+  public static final Operator LOG2 = new Operator() {
+
+    public int numberOfOperands() {
+      return 1;
+    }
+
+    public double calculate(List<Expr> operands) {
+      return ApproxMath.log2(operands.get(0).evaluate());
+    }
+
+    public String getSymbol() {
+      return "log2";
+    }
+  };
+
+  public static final Operator POWER = new Operator() {
+
+    public int numberOfOperands() {
+      return 2;
+    }
+
+    public double calculate(List<Expr> operands) {
+      return ApproxMath.pow(operands.get(0).evaluate(), operands.get(1).evaluate());
+    }
+
+    public String getSymbol() {
+      return "**";
+    }
+  };
+
+  public static final Operator SIN = new Operator() {
+
+    public int numberOfOperands() {
+      return 1;
+    }
+
+    public double calculate(List<Expr> operands) {
+      return ApproxMath.sin(operands.get(0).evaluate());
+    }
+
+    public String getSymbol() {
+      return "sin";
+    }
+  };
+
+  public static final Operator COS = new Operator() {
+
+    public int numberOfOperands() {
+      return 1;
+    }
+
+    public double calculate(List<Expr> operands) {
+      return ApproxMath.cos(operands.get(0).evaluate());
+    }
+
+    public String getSymbol() {
+      return "cos";
+    }
+  };
+
+  static {
+    _approximations.put(Operator.EXP, EXP);
+    _approximations.put(Operator.SIGMOID, SIGMOID);
+    _approximations.put(Operator.TANH, TANH);
+    _approximations.put(Operator.LN, LN);
+    _approximations.put(Operator.LN1PLUS, LN1PLUS);
+    _approximations.put(Operator.LOG2, LOG2);
+    _approximations.put(Operator.POWER, POWER);
+    _approximations.put(Operator.SIN, SIN);
+    _approximations.put(Operator.COS, COS);
+  }
+
+  /**
+   * Find the approximate version of an operator
+   * @param operator exact operator
+   * @return approximate operator, or the operator itself if it has no approximation
+   */
+  public static Operator approximate(Operator operator) {
+    Operator approx = _approximations.get(operator);
+    return approx == null ? operator : approx;
+  }
+
+  /**
+   * Rebuild an expression with every transcendental operator replaced by its approximation
+   *   atoms are shared with the input expression, so variables stay bound to the same registry
+   * @param expr expression to convert
+   * @return approximate expression
+   */
+  public static Expr approximate(Expr expr) {
+    if (!(expr instanceof Expression)) {
+      return expr;
+    }
+
+    Expression expression = (Expression) expr;
+    List<Expr> operands = new ArrayList<Expr>();
+
+    for (Expr operand : expression.getOperands()) {
+      operands.add(approximate(operand));
+    }
+
+    return SpecializedNodes.create(approximate(expression.getOperator()).instantiate(), operands);
+  }
+}
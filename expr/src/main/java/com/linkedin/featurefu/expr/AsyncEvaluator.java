@@ -0,0 +1,308 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+
+/**
+ * Asynchronous evaluation of feature sets for request handlers that score while waiting on I/O
+ *
+ * Every call runs on a request thread: a virtual thread where the runtime has them (JDK 21+), otherwise a thread
+ *   of a daemon cached pool. A request thread waits for one of the feature set's maxConcurrency permits, borrows
+ *   one of its Instances, so no VariableRegistry is shared between tasks, and evaluates a single row or a small batch
+ *   itself. A batch larger than chunkSize rows is split into chunks evaluated on a pool of platform threads, one
+ *   per processor, so long computations don't hold the carriers of the virtual threads; the request thread only
+ *   acquires a permit per chunk and waits.
+ *
+ * Instances are pooled per feature set rather than per thread (FeatureSet.instance()), a pool never holds more than
+ *   maxConcurrency of them, and is dropped with its feature set.
+ *
+ * Feature sets that aren't deterministic (FeatureSet.isDeterministic) get a single permit, so a single instance holds
+ *   the state of their streaming features, calls are evaluated one after the other in the order they were made and
+ *   a large batch is one chunk, evaluated in row order.
+ */
+public class AsyncEvaluator implements Closeable {
+  private final ExecutorService _requestExecutor;
+  private final ExecutorService _computeExecutor;
+  private final boolean _ownsExecutors;
+  private final int _maxConcurrency;
+  private final int _chunkSize;
+  private final Map<FeatureSet, Lane> _lanes = Collections.synchronizedMap(new WeakHashMap<FeatureSet, Lane>());
+
+  /**
+   * Permits and pooled instances of one feature set
+   *   a lane must not reference its feature set, the weak key of _lanes, or the set would never be collected
+   */
+  private static final class Lane {
+    private final Semaphore _permits;
+    private final boolean _ordered;
+    private final Queue<FeatureSet.Instance> _instances = new ConcurrentLinkedQueue<FeatureSet.Instance>();
+    private final AtomicInteger _created = new AtomicInteger();
+    private CompletableFuture<?> _last = CompletableFuture.completedFuture(null);   // guarded by this, ordered only
+
+    Lane(int maxConcurrency, boolean ordered) {
+      this._permits = new Semaphore(ordered ? 1 : maxConcurrency);
+      this._ordered = ordered;
+    }
+
+    FeatureSet.Instance borrow(FeatureSet featureSet) {
+      FeatureSet.Instance instance = _instances.poll();
+      if (instance == null) {
+        _created.incrementAndGet();
+        instance = featureSet.newInstance();
+      }
+      return instance;
+    }
+
+    void giveBack(FeatureSet.Instance instance) {
+      _instances.add(instance);
+    }
+  }
+
+  /**
+   * @param maxConcurrency most tasks (rows or chunks) of one feature set evaluated at the same time
+   * @param chunkSize most rows of a batch evaluated by one task
+   */
+  public AsyncEvaluator(int maxConcurrency, int chunkSize) {
+    this(newRequestExecutor(), Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+        daemonThreads("feature-compute-")), maxConcurrency, chunkSize, true);
+  }
+
+  /**
+   * @param requestExecutor runs each call, may block waiting for permits and chunks
+   * @param computeExecutor evaluates the chunks of large batches, never blocks
+   * @param maxConcurrency most tasks (rows or chunks) of one feature set evaluated at the same time
+   * @param chunkSize most rows of a batch evaluated by one task
+   */
+  public AsyncEvaluator(ExecutorService requestExecutor, ExecutorService computeExecutor, int maxConcurrency,
+      int chunkSize) {
+    this(requestExecutor, computeExecutor, maxConcurrency, chunkSize, false);
+  }
+
+  private AsyncEvaluator(ExecutorService requestExecutor, ExecutorService computeExecutor, int maxConcurrency,
+      int chunkSize, boolean ownsExecutors) {
+    if (maxConcurrency < 1 || chunkSize < 1) {
+      throw new IllegalArgumentException("maxConcurrency and chunkSize must be positive");
+    }
+    this._requestExecutor = requestExecutor;
+    this._computeExecutor = computeExecutor;
+    this._maxConcurrency = maxConcurrency;
+    this._chunkSize = chunkSize;
+    this._ownsExecutors = ownsExecutors;
+  }
+
+  /**
+   * A virtual thread per task if the runtime supports them, otherwise a cached pool of daemon threads
+   */
+  public static ExecutorService newRequestExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newCachedThreadPool(daemonThreads("feature-request-"));
+    }
+  }
+
+  private static ThreadFactory daemonThreads(final String prefix) {
+    final AtomicInteger count = new AtomicInteger();
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  private Lane lane(FeatureSet featureSet) {
+    synchronized (_lanes) {
+      Lane lane = _lanes.get(featureSet);
+      if (lane == null) {
+        lane = new Lane(_maxConcurrency, !featureSet.isDeterministic());
+        _lanes.put(featureSet, lane);
+      }
+      return lane;
+    }
+  }
+
+  /**
+   * @return number of instances created for a feature set, at most maxConcurrency, 1 if it isn't deterministic
+   */
+  int instances(FeatureSet featureSet) {
+    return lane(featureSet)._created.get();
+  }
+
+  /**
+   * Run a call on a request thread, once the previous call has completed if the lane is ordered
+   */
+  private void submit(Lane lane, final CompletableFuture<?> result, final Runnable call) {
+    if (!lane._ordered) {
+      _requestExecutor.execute(call);
+      return;
+    }
+    CompletableFuture<?> previous;
+    synchronized (lane) {
+      previous = lane._last;
+      lane._last = result;
+    }
+    previous.whenComplete(new BiConsumer<Object, Throwable>() {
+      @Override
+      public void accept(Object value, Throwable t) {
+        try {
+          _requestExecutor.execute(call);
+        } catch (RuntimeException e) {
+          result.completeExceptionally(e);   // or the calls queued after this one would never run
+        }
+      }
+    });
+  }
+
+  /**
+   * Evaluate every feature of one row
+   * @param varMap variable name -> value, variables not in the map are 0
+   * @return values in the order of featureSet.getNames(), completed exceptionally if evaluation throws
+   */
+  public CompletableFuture<double[]> evaluate(final FeatureSet featureSet, final Map<String, Double> varMap) {
+    final Lane lane = lane(featureSet);
+    final CompletableFuture<double[]> result = new CompletableFuture<double[]>();
+    submit(lane, result, new Runnable() {
+      @Override
+      public void run() {
+        try {
+          double[] output = new double[featureSet.getNames().size()];
+          lane._permits.acquire();
+          try {
+            FeatureSet.Instance instance = lane.borrow(featureSet);
+            instance.evaluate(varMap, output);
+            lane.giveBack(instance);
+          } finally {
+            lane._permits.release();
+          }
+          result.complete(output);
+        } catch (Throwable t) {
+          result.completeExceptionally(t);
+        }
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Evaluate every feature of a batch, split into chunks of chunkSize rows evaluated in parallel
+   * @param varMaps inputs of each row
+   * @return values of each row in the order of featureSet.getNames(), completed exceptionally if evaluation throws
+   */
+  public CompletableFuture<double[][]> evaluate(final FeatureSet featureSet,
+      final List<Map<String, Double>> varMaps) {
+    final Lane lane = lane(featureSet);
+    final CompletableFuture<double[][]> result = new CompletableFuture<double[][]>();
+    submit(lane, result, new Runnable() {
+      @Override
+      public void run() {
+        try {
+          int rows = varMaps.size();
+          double[][] outputs = new double[rows][featureSet.getNames().size()];
+          if (rows <= _chunkSize) {
+            lane._permits.acquire();
+            try {
+              evaluate(lane, featureSet, varMaps, outputs);
+            } finally {
+              lane._permits.release();
+            }
+            result.complete(outputs);
+            return;
+          }
+
+          int chunkSize = lane._ordered ? rows : _chunkSize;
+          CompletableFuture<?>[] chunks = new CompletableFuture<?>[(rows + chunkSize - 1) / chunkSize];
+          for (int c = 0; c < chunks.length; c++) {
+            lane._permits.acquire();
+            chunks[c] = chunk(lane, featureSet, varMaps, outputs, c * chunkSize,
+                Math.min(rows, (c + 1) * chunkSize));
+          }
+          CompletableFuture.allOf(chunks).join();
+          result.complete(outputs);
+        } catch (Throwable t) {
+          result.completeExceptionally(t instanceof CompletionException && t.getCause() != null
+              ? t.getCause() : t);
+        }
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Evaluate rows [from, to) on the compute pool, the caller holds a permit released when done
+   */
+  private CompletableFuture<Void> chunk(final Lane lane, final FeatureSet featureSet,
+      List<Map<String, Double>> varMaps, double[][] outputs, int from, int to) {
+    final List<Map<String, Double>> rows = varMaps.subList(from, to);
+    final double[][] rowOutputs = Arrays.copyOfRange(outputs, from, to);   // same row arrays
+    final CompletableFuture<Void> done = new CompletableFuture<Void>();
+    try {
+      _computeExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            evaluate(lane, featureSet, rows, rowOutputs);
+            done.complete(null);
+          } catch (Throwable t) {
+            done.completeExceptionally(t);
+          } finally {
+            lane._permits.release();
+          }
+        }
+      });
+    } catch (RuntimeException e) {
+      lane._permits.release();
+      throw e;
+    }
+    return done;
+  }
+
+  private static void evaluate(Lane lane, FeatureSet featureSet, List<Map<String, Double>> varMaps,
+      double[][] outputs) {
+    FeatureSet.Instance instance = lane.borrow(featureSet);
+    instance.evaluate(varMaps, outputs);
+    lane.giveBack(instance);
+  }
+
+  /**
+   * Shut down the executors if this evaluator created them, calls in progress finish
+   */
+  @Override
+  public void close() {
+    if (_ownsExecutors) {
+      _requestExecutor.shutdown();
+      _computeExecutor.shutdown();
+    }
+  }
+}
@@ -46,7 +46,7 @@ public abstract class Atom implements Expr {
       double d = Double.parseDouble(input);
       return new Constant(d);
     } catch (NumberFormatException nfe) {
-      return registry.registerVariable(input);
+      return registry.resolve(input);
     }
   }
 }
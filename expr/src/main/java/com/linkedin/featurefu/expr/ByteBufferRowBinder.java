@@ -0,0 +1,116 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Binds variables to byte offsets within fixed layout rows of doubles, read straight from a (typically direct,
+ *   off-heap) ByteBuffer, without decoding rows into a Map and calling VariableRegistry.refresh
+ *
+ * Only the variables used by the expressions are read, with absolute gets in the buffer's byte order, so binding
+ *   neither copies the row, allocates, nor moves the buffer's position. Rows are located by their byte offset,
+ *   batches by the offset of their first row and a stride, which may be larger than the row layout.
+ *
+ * Create the binder after parsing the expressions, variables registered later are not bound.
+ * Like the variables it binds, a binder is not thread safe, while the buffer may be shared.
+ */
+public class ByteBufferRowBinder {
+  private static final int DOUBLE_BYTES = 8;
+
+  private final Variable[] _variables;
+  private final int[] _offsets;
+
+  /**
+   * Layout of consecutive doubles, column i at byte offset 8 * i of the row
+   * @param registry registry holding the variables of the expressions to evaluate
+   * @param columns variable name of each column
+   */
+  public ByteBufferRowBinder(VariableRegistry registry, List<String> columns) {
+    this(registry, consecutive(columns));
+  }
+
+  /**
+   * @param registry registry holding the variables of the expressions to evaluate
+   * @param byteOffsets variable name -> byte offset of its double within a row, variables not listed are set to 0
+   */
+  public ByteBufferRowBinder(VariableRegistry registry, Map<String, Integer> byteOffsets) {
+    List<Variable> variables = new ArrayList<Variable>();
+    List<Integer> offsets = new ArrayList<Integer>();
+
+    for (Variable variable : registry.values()) {
+      Integer offset = byteOffsets.get(variable.getName());
+      if (offset == null) {
+        variable.setValue(0d);
+      } else {
+        variables.add(variable);
+        offsets.add(offset);
+      }
+    }
+
+    this._variables = variables.toArray(new Variable[variables.size()]);
+    this._offsets = new int[offsets.size()];
+    for (int i = 0; i < _offsets.length; i++) {
+      _offsets[i] = offsets.get(i);
+    }
+  }
+
+  private static Map<String, Integer> consecutive(List<String> columns) {
+    Map<String, Integer> byteOffsets = new LinkedHashMap<String, Integer>();
+    for (int i = 0; i < columns.size(); i++) {
+      byteOffsets.put(columns.get(i), i * DOUBLE_BYTES);
+    }
+    return byteOffsets;
+  }
+
+  /**
+   * Set the variables from the row starting at the given byte offset
+   */
+  public void bind(ByteBuffer buffer, int rowOffset) {
+    for (int i = 0; i < _variables.length; i++) {
+      _variables[i].setValue(buffer.getDouble(rowOffset + _offsets[i]));
+    }
+  }
+
+  /**
+   * Bind a row and evaluate an expression on it
+   */
+  public double evaluate(Expr expr, ByteBuffer buffer, int rowOffset) {
+    bind(buffer, rowOffset);
+    return expr.evaluate();
+  }
+
+  /**
+   * Evaluate an expression for a batch of evenly spaced rows
+   * @param expr expression over the variables of this binder's registry
+   * @param buffer rows
+   * @param firstRowOffset byte offset of the first row
+   * @param stride bytes from the start of a row to the start of the next one
+   * @param numRows number of rows
+   * @param output receives one value per row
+   */
+  public void evaluate(Expr expr, ByteBuffer buffer, int firstRowOffset, int stride, int numRows, double[] output) {
+    int rowOffset = firstRowOffset;
+    for (int r = 0; r < numRows; r++, rowOffset += stride) {
+      bind(buffer, rowOffset);
+      output[r] = expr.evaluate();
+    }
+  }
+}
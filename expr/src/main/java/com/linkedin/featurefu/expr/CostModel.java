@@ -0,0 +1,292 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+
+/**
+ * Static cost estimate of expressions: node count, depth, transcendental calls and nanoseconds per evaluation
+ *
+ * Nanoseconds are the sum of per-operator weights over the tree, counting the costlier branch of an if, so the
+ *   estimate is an upper bound of the tree evaluator's cost, useful to compare expressions and enforce budgets (see
+ *   AdmissionLimits) rather than to predict latency exactly. The same estimate tells which features are worth
+ *   compiling with JavaSourceGenerator or CompactExpression first.
+ *
+ * The weights of built-in and approximate operators were measured with calibrate(), which CostModelBenchmark
+ *   prints; calibrate on the serving machines for weights closer to theirs. Vector, streaming and rand operators
+ *   have fixed weights, vector weights assume 64 dimensions. Operators registered by users default to
+ *   USER_OPERATOR_NANOS unless given a weight with withWeight(symbol, nanos).
+ */
+public final class CostModel {
+  static final double VARIABLE_NANOS = 0.5;
+  static final double CONSTANT_NANOS = 0.3;
+  static final double USER_OPERATOR_NANOS = 20;
+
+  /**
+   * Operators calibrate() measures, with one or two operands each
+   */
+  static final Operator[] MEASURED = {
+      Operator.EQ, Operator.NE, Operator.GT, Operator.GT_EQ, Operator.LT, Operator.LT_EQ, Operator.AND, Operator.OR,
+      Operator.NOT, Operator.ADD, Operator.SUBTRACT, Operator.MULTIPLY, Operator.DIVIDE, Operator.MOD,
+      Operator.UNARY_MINUS, Operator.POWER, Operator.LN, Operator.LN1PLUS, Operator.LOG2, Operator.EXP,
+      Operator.SIGMOID, Operator.TANH, Operator.SIN, Operator.COS, Operator.TAN, Operator.MAX, Operator.MIN,
+      Operator.ABS, Operator.SIGN, Operator.FLOOR, Operator.CEIL, Operator.ROUND, Operator.SQRT,
+      ApproximateOperators.POWER, ApproximateOperators.LN, ApproximateOperators.LN1PLUS, ApproximateOperators.LOG2,
+      ApproximateOperators.EXP, ApproximateOperators.SIGMOID, ApproximateOperators.TANH, ApproximateOperators.SIN,
+      ApproximateOperators.COS
+  };
+
+  /**
+   * Nanoseconds by opcode, CONSTANT, LOAD and CALL unused, medians of CostModelBenchmark on JDK 17, let, if, in and in-set estimated
+   */
+  private static final double[] DEFAULT_WEIGHTS = {
+      0, 0, 0, 2.0,                                        // constant, load, call, let
+      2.5, 2.5, 3.5, 4.0, 3.5, 4.0, 1.5, 2.0, 1.5,         // == != > >= < <= && || !
+      4.0, 4.0, 4.0, 4.5, 10.0, 1.0, 20.0,                 // + - * / % unary- **
+      7.0, 7.5, 7.5, 6.5, 7.5, 96.0, 11.0, 10.5, 17.5,     // ln ln1plus log2 exp sigmoid tanh sin cos tan
+      6.0, 6.0, 3.5, 4.0, 3.5, 4.0, 6.0, 4.0,              // max min abs sign floor ceil round sqrt
+      3.0, 4.0, 8.0,                                       // if in in-set
+      19.0, 6.0, 8.5, 8.5, 7.5, 9.0, 11.0, 8.5, 8.0        // approximate ** ln ln1plus log2 exp sigmoid tanh sin cos
+  };
+
+  private static final Map<String, Double> DEFAULT_SYMBOL_WEIGHTS = new HashMap<String, Double>();
+  private static double _sink;   // keeps the JIT from eliminating the evaluations calibrate() measures
+
+  static {
+    DEFAULT_SYMBOL_WEIGHTS.put("rand", 10.0);
+    DEFAULT_SYMBOL_WEIGHTS.put("rand-in", 12.0);
+    DEFAULT_SYMBOL_WEIGHTS.put("in-set", 30.0);   // not indexed yet
+    DEFAULT_SYMBOL_WEIGHTS.put("dot", 40.0);
+    DEFAULT_SYMBOL_WEIGHTS.put("cosine", 80.0);
+    DEFAULT_SYMBOL_WEIGHTS.put("norm", 40.0);
+    DEFAULT_SYMBOL_WEIGHTS.put("weighted-dot", 60.0);
+    DEFAULT_SYMBOL_WEIGHTS.put("decay-sum", 60.0);
+    DEFAULT_SYMBOL_WEIGHTS.put("window-sum", 30.0);
+    DEFAULT_SYMBOL_WEIGHTS.put("window-mean", 30.0);
+    DEFAULT_SYMBOL_WEIGHTS.put("window-max", 35.0);
+    DEFAULT_SYMBOL_WEIGHTS.put("time-sum", 40.0);
+    DEFAULT_SYMBOL_WEIGHTS.put("time-mean", 40.0);
+    DEFAULT_SYMBOL_WEIGHTS.put("time-max", 45.0);
+  }
+
+  public static final CostModel DEFAULT = new CostModel(DEFAULT_WEIGHTS, DEFAULT_SYMBOL_WEIGHTS);
+
+  private final double[] _weights;
+  private final Map<String, Double> _symbolWeights;
+
+  private CostModel(double[] weights, Map<String, Double> symbolWeights) {
+    this._weights = weights;
+    this._symbolWeights = symbolWeights;
+  }
+
+  /**
+   * Estimated cost of an expression
+   */
+  public static final class Cost {
+    private final int _nodes;
+    private final int _depth;
+    private final double _nanos;
+    private final int _transcendentalCalls;
+
+    Cost(int nodes, int depth, double nanos, int transcendentalCalls) {
+      this._nodes = nodes;
+      this._depth = depth;
+      this._nanos = nanos;
+      this._transcendentalCalls = transcendentalCalls;
+    }
+
+    /**
+     * @return number of operator, variable and constant nodes
+     */
+    public int getNodes() {
+      return _nodes;
+    }
+
+    /**
+     * @return levels of the tree, 1 for a single variable or constant
+     */
+    public int getDepth() {
+      return _depth;
+    }
+
+    /**
+     * @return estimated nanoseconds per evaluation, the costlier branch of every if
+     */
+    public double getNanos() {
+      return _nanos;
+    }
+
+    /**
+     * @return number of exp, log, power, sigmoid and trigonometric nodes, exact or approximate, in every branch
+     */
+    public int getTranscendentalCalls() {
+      return _transcendentalCalls;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("nodes=%d depth=%d nanos=%.1f transcendental=%d", _nodes, _depth, _nanos,
+          _transcendentalCalls);
+    }
+  }
+
+  /**
+   * The same model with the weight of an operator called by symbol, e.g. one registered by the user
+   */
+  public CostModel withWeight(String symbol, double nanos) {
+    Map<String, Double> symbolWeights = new HashMap<String, Double>(_symbolWeights);
+    symbolWeights.put(symbol, nanos);
+    return new CostModel(_weights, symbolWeights);
+  }
+
+  /**
+   * @return estimated nanoseconds of one evaluation of an operator, operands excluded
+   */
+  public double getWeight(Operator operator) {
+    byte opcode = Opcodes.of(operator);
+    if (opcode != Opcodes.CALL) {
+      return _weights[opcode];
+    }
+    Double weight = _symbolWeights.get(operator.getSymbol());
+    return weight == null ? USER_OPERATOR_NANOS : weight;
+  }
+
+  public Cost estimate(Expr expr) {
+    Estimator estimator = new Estimator();
+    double nanos = estimator.visit(expr, 1);
+    return new Cost(estimator._nodes, estimator._depth, nanos, estimator._transcendentalCalls);
+  }
+
+  private static boolean isTranscendental(byte opcode) {
+    return (opcode >= Opcodes.POWER && opcode <= Opcodes.TAN) || opcode >= Opcodes.APPROX_POWER;
+  }
+
+  private final class Estimator {
+    private int _nodes;
+    private int _depth;
+    private int _transcendentalCalls;
+
+    /**
+     * Count a subtree
+     * @return its estimated nanoseconds
+     */
+    double visit(Expr expr, int depth) {
+      _nodes++;
+      _depth = Math.max(_depth, depth);
+      if (expr instanceof Variable || expr instanceof LocalVariable) {
+        return VARIABLE_NANOS;
+      }
+      if (!(expr instanceof Expression)) {
+        return CONSTANT_NANOS;
+      }
+
+      Expression expression = (Expression) expr;
+      Operator operator = expression.getOperator();
+      List<Expr> operands = expression.getOperands();
+      byte opcode = Opcodes.of(operator);
+      double nanos = getWeight(operator);
+      if (isTranscendental(opcode)) {
+        _transcendentalCalls++;
+      }
+
+      if (operator == Operator.LET) {
+        final int last = operands.size() - 1;
+        for (int i = 0; i < last; i += 2) {   // slots are assigned, not evaluated
+          nanos += visit(operands.get(i + 1), depth + 1);
+        }
+        return nanos + visit(operands.get(last), depth + 1);
+      }
+      if (operator == Operator.IF) {
+        return nanos + visit(operands.get(0), depth + 1)
+            + Math.max(visit(operands.get(1), depth + 1), visit(operands.get(2), depth + 1));
+      }
+      if (operator instanceof SetMembership) {   // members are looked up, not evaluated
+        _nodes += operands.size() - 1;
+        _depth = Math.max(_depth, depth + 1);
+        return nanos + visit(operands.get(0), depth + 1);
+      }
+
+      for (Expr operand : operands) {
+        nanos += visit(operand, depth + 1);
+      }
+      return nanos;
+    }
+  }
+
+  /**
+   * Measure the built-in and approximate operators on this machine, with the tree evaluator
+   *   each operator is timed on (op x) or (op x y) over varying inputs in [0.5, 2.5), less the time of x alone
+   * @param iterations evaluations per measurement, the fastest of 5 rounds over all operators is kept
+   * @return model with the measured weights, the others unchanged
+   */
+  public static CostModel calibrate(int iterations) {
+    VariableRegistry registry = new VariableRegistry();
+    Variable x = registry.registerVariable("x");
+    Variable y = registry.registerVariable("y");
+    double[] xs = new double[1024];
+    double[] ys = new double[1024];
+    Random random = new Random(0L);
+    for (int i = 0; i < xs.length; i++) {
+      xs[i] = 0.5 + 2 * random.nextDouble();
+      ys[i] = 0.5 + 2 * random.nextDouble();
+    }
+
+    Expr[] exprs = new Expr[MEASURED.length + 1];
+    exprs[0] = x;   // baseline
+    for (int m = 0; m < MEASURED.length; m++) {
+      List<Expr> operands = new ArrayList<Expr>();
+      operands.add(x);
+      if (MEASURED[m].numberOfOperands() == 2) {
+        operands.add(y);
+      }
+      exprs[m + 1] = SpecializedNodes.create(MEASURED[m], operands);
+    }
+
+    // rounds interleave the operators so a noisy moment doesn't skew one of them
+    double[] best = new double[exprs.length];
+    Arrays.fill(best, Double.POSITIVE_INFINITY);
+    for (int round = 0; round < 5; round++) {
+      for (int e = 0; e < exprs.length; e++) {
+        best[e] = Math.min(best[e], measure(exprs[e], x, y, xs, ys, iterations));
+      }
+    }
+
+    double[] weights = Arrays.copyOf(DEFAULT_WEIGHTS, DEFAULT_WEIGHTS.length);
+    for (int m = 0; m < MEASURED.length; m++) {
+      double nanos = best[m + 1] - best[0] - (MEASURED[m].numberOfOperands() - 1) * VARIABLE_NANOS;
+      weights[Opcodes.of(MEASURED[m])] = Math.max(nanos, VARIABLE_NANOS);
+    }
+    return new CostModel(weights, DEFAULT_SYMBOL_WEIGHTS);
+  }
+
+  private static double measure(Expr expr, Variable x, Variable y, double[] xs, double[] ys, int iterations) {
+    double sink = 0;
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      x.setValue(xs[i & 1023]);
+      y.setValue(ys[i & 1023]);
+      sink += expr.evaluate();
+    }
+    double nanos = (double) (System.nanoTime() - start) / iterations;
+    _sink += sink;
+    return nanos;
+  }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+
+/**
+ * Latency and throughput of feature set evaluation, cheap enough to leave on in production
+ *
+ * Attach to a feature set with FeatureSet.withMetrics. Evaluating threads record into a fixed number of Recorder
+ *   stripes picked by thread id, created on first use and read by snapshot() without locks, so recording rarely
+ *   contends and never allocates, and memory doesn't grow with the number of threads, virtual threads included.
+ *   Calls cost one System.nanoTime pair each, batches one pair for the whole batch.
+ *
+ * Latencies go to log-linear histograms: 4 buckets per power of two, so a reported percentile is the upper bound of
+ *   its bucket, at most 25% above the true value. Snapshots of several sets, or hosts, merge into one.
+ *
+ * Counters: calls and batches, evaluations (one per evaluated row, whatever the number of features), non-finite
+ *   outputs (NaN or infinite feature values), and non-deterministic evaluations
+ *   (values of features using rand or a streaming operator).
+ */
+public class EvaluationMetrics implements EvaluationMetricsMBean {
+  static final int BUCKETS = 248;   // 4 for 0..3 ns, then 4 per power of two up to 2^63
+
+  private static final int CALLS = 0;
+  private static final int BATCHES = 1;
+  private static final int EVALUATIONS = 2;
+  private static final int NON_FINITE = 3;
+  private static final int NON_DETERMINISTIC = 4;
+  private static final int CALL_HISTOGRAM = 5;
+  private static final int BATCH_HISTOGRAM = CALL_HISTOGRAM + BUCKETS;
+  private static final int SIZE = BATCH_HISTOGRAM + BUCKETS;
+
+  static final int STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4);   // power of two
+
+  private final AtomicReferenceArray<Recorder> _recorders = new AtomicReferenceArray<Recorder>(STRIPES);
+
+  /**
+   * The calling thread's stripe, shared with the threads whose id falls in the same one
+   */
+  Recorder recorder() {
+    int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+    Recorder recorder = _recorders.get(stripe);
+    if (recorder == null) {
+      _recorders.compareAndSet(stripe, null, new Recorder());
+      recorder = _recorders.get(stripe);
+    }
+    return recorder;
+  }
+
+  /**
+   * @return number of stripes recorded into so far
+   */
+  int recorders() {
+    int count = 0;
+    for (int i = 0; i < STRIPES; i++) {
+      count += _recorders.get(i) == null ? 0 : 1;
+    }
+    return count;
+  }
+
+  /**
+   * @return totals over every thread so far, recordings in flight may or may not be included
+   */
+  public Snapshot snapshot() {
+    long[] values = new long[SIZE];
+    for (int r = 0; r < STRIPES; r++) {
+      Recorder recorder = _recorders.get(r);
+      if (recorder == null) {
+        continue;
+      }
+      for (int i = 0; i < SIZE; i++) {
+        values[i] += recorder._values.get(i);
+      }
+    }
+    return new Snapshot(values);
+  }
+
+  /**
+   * Register with the platform MBean server as com.linkedin.featurefu:type=EvaluationMetrics,name=(name)
+   * @return the registered name, for unregistering
+   * @throws JMException if the name is taken or invalid
+   */
+  public ObjectName register(String name) throws JMException {
+    ObjectName objectName = new ObjectName("com.linkedin.featurefu:type=EvaluationMetrics,name=" + ObjectName.quote(name));
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+    return objectName;
+  }
+
+  @Override
+  public long getCalls() {
+    return snapshot().getCalls();
+  }
+
+  @Override
+  public long getBatches() {
+    return snapshot().getBatches();
+  }
+
+  @Override
+  public long getEvaluations() {
+    return snapshot().getEvaluations();
+  }
+
+  @Override
+  public long getNonFiniteOutputs() {
+    return snapshot().getNonFiniteOutputs();
+  }
+
+  @Override
+  public long getNonDeterministicEvaluations() {
+    return snapshot().getNonDeterministicEvaluations();
+  }
+
+  @Override
+  public long getCallLatencyMedianNanos() {
+    return snapshot().getCallLatency(0.5);
+  }
+
+  @Override
+  public long getCallLatency99thPercentileNanos() {
+    return snapshot().getCallLatency(0.99);
+  }
+
+  @Override
+  public long getCallLatency999thPercentileNanos() {
+    return snapshot().getCallLatency(0.999);
+  }
+
+  @Override
+  public long getBatchLatencyMedianNanos() {
+    return snapshot().getBatchLatency(0.5);
+  }
+
+  @Override
+  public long getBatchLatency99thPercentileNanos() {
+    return snapshot().getBatchLatency(0.99);
+  }
+
+  /**
+   * Histogram bucket of a latency
+   */
+  static int bucket(long nanos) {
+    if (nanos < 4) {
+      return nanos < 0 ? 0 : (int) nanos;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+    return 4 * (exponent - 1) + (int) ((nanos >>> (exponent - 2)) & 3);
+  }
+
+  /**
+   * Largest latency of a bucket
+   */
+  static long upperBound(int bucket) {
+    if (bucket < 4) {
+      return bucket;
+    }
+    int exponent = bucket / 4 + 1;
+    long next = (long) (4 + bucket % 4 + 1) << (exponent - 2);
+    return next < 0 ? Long.MAX_VALUE : next - 1;
+  }
+
+  /**
+   * Counters and histograms of one stripe, atomic adds as threads may share it
+   */
+  static final class Recorder {
+    private final AtomicLongArray _values = new AtomicLongArray(SIZE);
+
+    private Recorder() {
+    }
+
+    /**
+     * @param nanos latency of the call
+     * @param nonFinite number of NaN or infinite outputs
+     * @param nonDeterministic number of outputs of non-deterministic features (rand, streaming operators)
+     */
+    void recordCall(long nanos, int nonFinite, int nonDeterministic) {
+      add(CALLS, 1);
+      add(EVALUATIONS, 1);
+      add(NON_FINITE, nonFinite);
+      add(NON_DETERMINISTIC, nonDeterministic);
+      add(CALL_HISTOGRAM + bucket(nanos), 1);
+    }
+
+    /**
+     * @param nanos latency of the whole batch
+     * @param rows number of evaluated rows
+     * @param nonFinite number of NaN or infinite outputs
+     * @param nonDeterministic number of outputs of non-deterministic features (rand, streaming operators)
+     */
+    void recordBatch(long nanos, int rows, int nonFinite, int nonDeterministic) {
+      add(BATCHES, 1);
+      add(EVALUATIONS, rows);
+      add(NON_FINITE, nonFinite);
+      add(NON_DETERMINISTIC, nonDeterministic);
+      add(BATCH_HISTOGRAM + bucket(nanos), 1);
+    }
+
+    private void add(int index, long delta) {
+      if (delta != 0) {
+        _values.getAndAdd(index, delta);
+      }
+    }
+  }
+
+  /**
+   * Immutable totals at some point in time
+   */
+  public static final class Snapshot {
+    private final long[] _values;
+
+    private Snapshot(long[] values) {
+      this._values = values;
+    }
+
+    /**
+     * @return totals of both snapshots, for instance of several feature sets or hosts
+     */
+    public Snapshot merge(Snapshot other) {
+      long[] values = new long[SIZE];
+      for (int i = 0; i < SIZE; i++) {
+        values[i] = _values[i] + other._values[i];
+      }
+      return new Snapshot(values);
+    }
+
+    public long getCalls() {
+      return _values[CALLS];
+    }
+
+    public long getBatches() {
+      return _values[BATCHES];
+    }
+
+    public long getEvaluations() {
+      return _values[EVALUATIONS];
+    }
+
+    public long getNonFiniteOutputs() {
+      return _values[NON_FINITE];
+    }
+
+    public long getNonDeterministicEvaluations() {
+      return _values[NON_DETERMINISTIC];
+    }
+
+    /**
+     * @param quantile in [0, 1], 0.99 for the 99th percentile
+     * @return latency of a single call at that quantile in nanoseconds, 0 if there were no calls
+     */
+    public long getCallLatency(double quantile) {
+      return quantile(CALL_HISTOGRAM, quantile);
+    }
+
+    /**
+     * @param quantile in [0, 1], 0.99 for the 99th percentile
+     * @return latency of a whole batch at that quantile in nanoseconds, 0 if there were no batches
+     */
+    public long getBatchLatency(double quantile) {
+      return quantile(BATCH_HISTOGRAM, quantile);
+    }
+
+    private long quantile(int histogram, double quantile) {
+      long count = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        count += _values[histogram + i];
+      }
+      long rank = Math.max(1, (long) Math.ceil(quantile * count));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS && count > 0; i++) {
+        seen += _values[histogram + i];
+        if (seen >= rank) {
+          return upperBound(i);
+        }
+      }
+      return 0;
+    }
+  }
+}
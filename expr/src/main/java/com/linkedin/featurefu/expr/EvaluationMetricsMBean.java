@@ -0,0 +1,40 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+/**
+ * JMX view of EvaluationMetrics, every attribute is read from a fresh snapshot
+ */
+public interface EvaluationMetricsMBean {
+  long getCalls();
+
+  long getBatches();
+
+  long getEvaluations();
+
+  long getNonFiniteOutputs();
+
+  long getNonDeterministicEvaluations();
+
+  long getCallLatencyMedianNanos();
+
+  long getCallLatency99thPercentileNanos();
+
+  long getCallLatency999thPercentileNanos();
+
+  long getBatchLatencyMedianNanos();
+
+  long getBatchLatency99thPercentileNanos();
+}
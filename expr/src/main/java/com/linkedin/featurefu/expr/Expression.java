@@ -14,7 +14,9 @@
 
 package com.linkedin.featurefu.expr;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 /**
  *  Recursively build an expression from s-expression style string input
@@ -44,6 +46,14 @@ public class Expression implements Expr {
     return this._operator.calculate(this._operands);
   }
 
+  public Operator getOperator() {
+    return _operator;
+  }
+
+  public List<Expr> getOperands() {
+    return _operands;
+  }
+
   /**
    * Parse a expression from string, register variables if any
    * @param input    s-expression input string
@@ -71,6 +81,19 @@ public class Expression implements Expr {
     }
   }
 
+  /**
+   * Parse a expression from string with the given precision for transcendental operators
+   * @param input    s-expression input string
+   * @param variableRegistry   registry for variable name -> variable object mapping
+   * @param mathMode  EXACT for java.lang.Math, APPROXIMATE for the faster kernels in ApproxMath
+   * @return Expr object (Atom or a Tree for Expression)
+   */
+  public static Expr parse(String input, VariableRegistry variableRegistry, MathMode mathMode) {
+    Expr expr = parse(input, variableRegistry);
+
+    return mathMode == MathMode.APPROXIMATE ? ApproximateOperators.approximate(expr) : expr;
+  }
+
   /**
    * Convenience function for testing purpose, to evaluate expressions without any variables directly
    * @param input  expression with only constants
@@ -86,23 +109,40 @@ public class Expression implements Expr {
    * @return String as print friendly tree illustration of the s-expression
    */
   public static String prettyTree(Expr expr) {
+    return prettyTree(expr, Collections.<Expr, String>emptyMap());
+  }
+
+  /**
+   * Pretty print with extra information appended to some of the nodes, e.g. profiling statistics
+   * @param expr  expression to print
+   * @param annotations  node -> text to print after the node, nodes without annotation are printed as is
+   * @return String as print friendly tree illustration of the s-expression
+   */
+  public static String prettyTree(Expr expr, Map<Expr, String> annotations) {
     if (expr instanceof Atom) {
-      return expr.toString();
+      return annotate(expr, expr.toString(), annotations);
     } else {
-      return ((Expression) expr).prettyTree("", true);
+      return ((Expression) expr).prettyTree("", true, annotations);
     }
   }
 
+  private static String annotate(Expr expr, String text, Map<Expr, String> annotations) {
+    String annotation = annotations.get(expr);
+    return annotation == null ? text : text + " " + annotation;
+  }
+
   /**
    * Pretty print the expression in hierarchical tree format
      * Reference: http://stackoverflow.com/questions/4965335/how-to-print-binary-tree-diagram/8948691#8948691
      *
    * @param prefix  Indent for this node
    * @param isTail  Is it the last operand
+   * @param annotations  node -> text to print after the node
    * @return String representation of the tree structure
    */
-  private String prettyTree(String prefix, boolean isTail) {
-    StringBuilder sb = new StringBuilder(prefix + (isTail ? "└── " : "├── ") + this._operator.getSymbol() + "\n");
+  private String prettyTree(String prefix, boolean isTail, Map<Expr, String> annotations) {
+    StringBuilder sb = new StringBuilder(prefix + (isTail ? "└── " : "├── ")
+        + annotate(this, this._operator.getSymbol(), annotations) + "\n");
 
     final String tab = isTail ? "    " : "|   ";
 
@@ -110,18 +150,18 @@ public class Expression implements Expr {
 
       Expr child = this._operands.get(i);
       if (child instanceof Atom) {
-        sb.append(prefix + tab + "├── " + child.toString() + "\n");
+        sb.append(prefix + tab + "├── " + annotate(child, child.toString(), annotations) + "\n");
       } else {
-        sb.append(((Expression) child).prettyTree(prefix + tab, false));
+        sb.append(((Expression) child).prettyTree(prefix + tab, false, annotations));
       }
     }
     if (_operands.size() > 0) {
 
       Expr child = this._operands.get(_operands.size() - 1);
       if (child instanceof Atom) {
-        sb.append(prefix + tab + "└── " + child.toString() + "\n");
+        sb.append(prefix + tab + "└── " + annotate(child, child.toString(), annotations) + "\n");
       } else {
-        sb.append(((Expression) child).prettyTree(prefix + tab, true));
+        sb.append(((Expression) child).prettyTree(prefix + tab, true, annotations));
       }
     }
     return sb.toString();
@@ -134,7 +174,14 @@ public class Expression implements Expr {
   public String toString() {
     StringBuilder builder = new StringBuilder();
 
-    if (_operator.numberOfOperands() == 1) {
+    if (_operator == Operator.LET) {
+      final int last = _operands.size() - 1;
+      builder.append("(let (");
+      for (int i = 0; i < last; i += 2) {
+        builder.append(i == 0 ? "(" : " (").append(_operands.get(i)).append(" ").append(_operands.get(i + 1)).append(")");
+      }
+      builder.append(") ").append(_operands.get(last)).append(SExprTokenizer.CLOSE_PAREN);
+    } else if (_operator.numberOfOperands() == 1) {
       builder.append(_operator.toString());
       builder.append(SExprTokenizer.OPEN_PAREN);
       builder.append(_operands.get(0).toString());
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Catalog-wide hash-consing: one shared node per distinct pure subexpression
+ *
+ * Expressions are rebuilt bottom up over the interner's own VariableRegistry. Every constant, variable and
+ *   subtree of deterministic operators gets a canonical node: two subtrees are the same node if they have the same
+ *   operator and the same canonical operands. Operands of commutative operators (+ * == != max min && ||) are put in
+ *   a canonical order first, so (+ x 1) and (+ 1 x) share a node too. Interned trees are DAGs: a shared node is
+ *   evaluated wherever it appears, so this saves memory, not evaluation time.
+ *
+ * Each canonical node also gets a 64-bit structural hash, computed from symbols, variable names and constant bits
+ *   only, so it is the same in every JVM and can be used as a cache key by other layers.
+ *
+ * Subtrees with non-deterministic operators or let bindings are rebuilt rather than shared, their pure parts are
+ *   still interned.
+ */
+public class ExpressionInterner {
+  private static final Set<Operator> COMMUTATIVE = new HashSet<Operator>(Arrays.asList(Operator.ADD, Operator.MULTIPLY,
+      Operator.EQ, Operator.NE, Operator.MAX, Operator.MIN, Operator.AND, Operator.OR));
+
+  private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+  private final VariableRegistry _registry = new VariableRegistry();
+  private final Map<Object, Expr> _nodes = new HashMap<Object, Expr>();
+  private final Map<Expr, Long> _hashes = new IdentityHashMap<Expr, Long>();
+
+  /**
+   * @return registry of the variables of every interned expression, bind inputs here
+   */
+  public VariableRegistry getRegistry() {
+    return _registry;
+  }
+
+  /**
+   * @return number of distinct canonical nodes, variables and constants included
+   */
+  public synchronized int size() {
+    return _hashes.size();
+  }
+
+  /**
+   * Canonical version of an expression, sharing its pure subtrees with every expression interned before
+   * @param expr expression over any registry, left untouched
+   * @return equivalent expression over getRegistry()
+   */
+  public synchronized Expr intern(Expr expr) {
+    return intern(expr, new IdentityHashMap<LocalVariable, LocalVariable>());
+  }
+
+  /**
+   * @param expr an interned node
+   * @return its structural hash, equal for structurally equal expressions in any JVM
+   * @throws IllegalArgumentException if expr is not a canonical node of this interner
+   */
+  public synchronized long structuralHash(Expr expr) {
+    Long hash = _hashes.get(expr);
+    if (hash == null) {
+      throw new IllegalArgumentException("Not an interned pure expression: " + expr);
+    }
+    return hash;
+  }
+
+  private Expr intern(Expr expr, Map<LocalVariable, LocalVariable> locals) {
+    if (expr instanceof VectorVariable) {
+      String name = ((Variable) expr).getName();
+      return canonical(name, _registry.registerVector(name), mix(5, name.hashCode()));
+    }
+    if (expr instanceof Variable) {
+      String name = ((Variable) expr).getName();
+      return canonical(name, _registry.registerVariable(name), mix(1, name.hashCode()));
+    }
+    if (expr instanceof LocalVariable) {
+      LocalVariable local = locals.get(expr);
+      if (local == null) {
+        local = new LocalVariable(((LocalVariable) expr).getName());
+        locals.put((LocalVariable) expr, local);
+      }
+      return local;
+    }
+    if (!(expr instanceof Expression)) {
+      double value = expr.evaluate();
+      long bits = Double.doubleToLongBits(value);
+      return canonical(bits, new Constant(value), mix(2, bits));
+    }
+
+    Expression expression = (Expression) expr;
+    Operator operator = expression.getOperator();
+    List<Expr> operands = new ArrayList<Expr>();
+    boolean pure = operator.isDeterministic() && operator != Operator.LET;
+
+    for (Expr operand : expression.getOperands()) {
+      Expr interned = intern(operand, locals);
+      operands.add(interned);
+      pure &= _hashes.containsKey(interned);
+    }
+
+    if (!pure) {
+      return SpecializedNodes.create(operator.instantiate(), operands);
+    }
+
+    if (COMMUTATIVE.contains(operator) && operands.size() == 2 && before(operands.get(1), operands.get(0))) {
+      operands = Arrays.asList(operands.get(1), operands.get(0));
+    }
+
+    long hash = mix(3, operator.getSymbol().hashCode());
+    if (Opcodes.of(operator) >= Opcodes.APPROX_POWER) {
+      hash = mix(hash, 4);  // approximate operators print like exact ones
+    }
+    for (Expr operand : operands) {
+      hash = mix(hash, _hashes.get(operand));
+    }
+
+    NodeKey key = new NodeKey(operator, operands);
+    Expr node = _nodes.get(key);
+    if (node == null) {
+      node = SpecializedNodes.create(operator.instantiate(), new ArrayList<Expr>(operands));
+      _nodes.put(key, node);
+      _hashes.put(node, hash);
+    }
+    return node;
+  }
+
+  private Expr canonical(Object key, Expr candidate, long hash) {
+    Expr node = _nodes.get(key);
+    if (node == null) {
+      node = candidate;
+      _nodes.put(key, node);
+      _hashes.put(node, hash);
+    }
+    return node;
+  }
+
+  /**
+   * Canonical operand order: by structural hash, then by printed form for the unlikely collisions
+   */
+  private boolean before(Expr a, Expr b) {
+    long ha = _hashes.get(a);
+    long hb = _hashes.get(b);
+    if (ha != hb) {
+      return ha < hb;
+    }
+    return a.toString().compareTo(b.toString()) < 0;
+  }
+
+  private static long mix(long hash, long value) {
+    long h = (hash + value) * MULTIPLIER;
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    return h ^ (h >>> 33);
+  }
+
+  /**
+   * Operator and canonical operands, compared by identity
+   *
+   * Every parse of in-set gets its own operator instance, but its members are canonical constant operands, so in-set
+   *   nodes are the same if their operands are, whichever instance indexed them.
+   */
+  private static class NodeKey {
+    private final Object _operator;
+    private final List<Expr> _operands;
+
+    NodeKey(Operator operator, List<Expr> operands) {
+      this._operator = operator instanceof SetMembership ? SetMembership.class : operator;
+      this._operands = operands;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof NodeKey)) {
+        return false;
+      }
+      NodeKey other = (NodeKey) o;
+      if (_operator != other._operator || _operands.size() != other._operands.size()) {
+        return false;
+      }
+      for (int i = 0; i < _operands.size(); i++) {
+        if (_operands.get(i) != other._operands.get(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = System.identityHashCode(_operator);
+      for (Expr operand : _operands) {
+        hash = 31 * hash + System.identityHashCode(operand);
+      }
+      return hash;
+    }
+  }
+}
@@ -0,0 +1,426 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Rewrites an expression into a cheaper, equivalent one
+ *
+ *  constant folding:    subtrees of deterministic operators over constants are evaluated once, e.g. (/ 15 1000)
+ *                       (if c a b), (&& c x) and (|| c x) with a constant c keep only the branch that can be taken
+ *  strength reduction:  (** x 2) -> (* x x) for atoms x, (** x 1) -> x, (** x 0) -> 1, (** x 0.5) -> (sqrt x)
+ *                       (/ x c) -> (* x 1/c) when 1/c is exact (c is a power of two), (/ x 1) and (* x 1) -> x
+ *                       (- x 0) -> x, (- (- x)) -> x
+ *                       (ln (exp x)) -> x, (log2 (exp x)) -> (* x 1/ln(2))
+ *                       (ln (+ 1 x)) -> (ln1plus x)
+ *  normalization:       comparisons with a constant on the left are mirrored so constants are always on the right,
+ *                       e.g. (< 3 x) -> (> x 3)
+ *  type based:          with the ranges inferred by TypeInference (optionally from declared variable types)
+ *                       (!= b 0) -> b and (== b 0) -> (! b) for boolean b, (!= x 0) as a condition of if, &&, ||, ! -> x
+ *                       (floor x), (ceil x), (round x) -> x for integral x
+ *                       comparisons, min, max and if conditions decided by the operand ranges are folded
+ *  let:                 names bound to constants are replaced by them, a let left without bindings by its body
+ *  specialization:      specialize(expr, bindings) turns variables known ahead of time into constants first
+ *
+ * All rewrites give bit-identical results, except:
+ *   (** x 0.5) -> (sqrt x)   differs for x = -0 (-0 instead of 0) and x = -infinity (NaN instead of infinity)
+ *   (ln (exp x)) -> x, (log2 (exp x)) -> (* x 1/ln(2))
+ *                            change the value: exp rounds, so for ordinary x (e.g. 0.1) the rewritten result differs
+ *                            in the last bits, being the more accurate one, and no longer overflows or underflows
+ *                            when |x| > 709
+ *
+ * Subtrees containing non-deterministic operators (rand, rand-in) are never folded, dropped or duplicated.
+ * Rules match the exact operators, optimize an expression before switching it to MathMode.APPROXIMATE.
+ */
+public final class ExpressionOptimizer {
+  private static final double INV_LN_2 = 1 / Math.log(2);
+  private static final long EXPONENT_MASK = 0x7ff0000000000000L;
+  private static final long MANTISSA_MASK = 0x000fffffffffffffL;
+  private static final double MAX_EXACT_INTEGER = 9007199254740992.0; // 2^53
+
+  private ExpressionOptimizer() {
+  }
+
+  /**
+   * Optimize an expression bottom up
+   * @param expr expression to optimize, left untouched
+   * @return optimized expression, sharing variables with the input but not the state of streaming operators
+   */
+  public static Expr optimize(Expr expr) {
+    return optimize(expr, new TypeInference());
+  }
+
+  /**
+   * Optimize an expression bottom up, using what is known about its variables
+   * @param expr expression to optimize, left untouched
+   * @param variableTypes variable name -> range of values it takes, e.g. ValueType.range(0, 1) for a ratio
+   * @return optimized expression, sharing variables with the input but not the state of streaming operators
+   */
+  public static Expr optimize(Expr expr, Map<String, ValueType> variableTypes) {
+    return optimize(expr, new TypeInference(variableTypes));
+  }
+
+  private static Expr optimize(Expr expr, TypeInference types) {
+    if (!(expr instanceof Expression)) {
+      return expr;
+    }
+
+    Expression expression = (Expression) expr;
+    Operator operator = expression.getOperator();
+
+    List<Expr> operands = new ArrayList<Expr>();
+    boolean allConstants = operator.isDeterministic();
+
+    for (Expr operand : expression.getOperands()) {
+      Expr optimized = optimize(operand, types);
+      operands.add(optimized);
+      allConstants &= optimized instanceof Constant;
+    }
+
+    if (allConstants) {
+      return new Constant(operator.calculate(operands));
+    }
+
+    return reduce(operator, operands, types);
+  }
+
+  /**
+   * Partially evaluate an expression for variables known ahead of time, e.g. per model weights and thresholds,
+   *   then optimize it, so a shared template becomes an expression over the remaining variables only
+   * @param expr expression to specialize, left untouched
+   * @param fixedBindings variable name -> value, these variables become constants
+   * @return specialized expression, sharing the other variables with the input
+   */
+  public static Expr specialize(Expr expr, Map<String, Double> fixedBindings) {
+    return optimize(fix(expr, fixedBindings));
+  }
+
+  private static Expr fix(Expr expr, Map<String, Double> fixedBindings) {
+    if (expr instanceof Variable) {
+      Double value = fixedBindings.get(((Variable) expr).getName());
+      return value == null ? expr : new Constant(value);
+    }
+    if (!(expr instanceof Expression)) {
+      return expr;
+    }
+
+    Expression expression = (Expression) expr;
+    List<Expr> operands = new ArrayList<Expr>();
+    for (Expr operand : expression.getOperands()) {
+      operands.add(fix(operand, fixedBindings));
+    }
+    return SpecializedNodes.create(expression.getOperator().instantiate(), operands);
+  }
+
+  /**
+   * @return true if evaluating expr has no side effects, so it can be dropped or evaluated more than once
+   */
+  public static boolean isDeterministic(Expr expr) {
+    if (!(expr instanceof Expression)) {
+      return true;
+    }
+
+    Expression expression = (Expression) expr;
+    if (!expression.getOperator().isDeterministic()) {
+      return false;
+    }
+
+    for (Expr operand : expression.getOperands()) {
+      if (!isDeterministic(operand)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * (let ((a c) (b x)) body) with a constant c -> (let ((b x)) body[a := c]), a let without bindings -> its body
+   */
+  private static Expr reduceLet(List<Expr> operands, TypeInference types) {
+    final int last = operands.size() - 1;
+    Map<Expr, Expr> constants = new IdentityHashMap<Expr, Expr>();
+    List<Expr> kept = new ArrayList<Expr>();
+
+    for (int i = 0; i < last; i += 2) {
+      Expr value = operands.get(i + 1);
+      if (!constants.isEmpty()) {
+        value = optimize(replace(value, constants), types);
+      }
+      if (value instanceof Constant) {
+        constants.put(operands.get(i), value);
+      } else {
+        kept.add(operands.get(i));
+        kept.add(value);
+      }
+    }
+
+    Expr body = operands.get(last);
+    if (!constants.isEmpty()) {
+      body = optimize(replace(body, constants), types);
+    }
+    if (kept.isEmpty()) {
+      return body;
+    }
+
+    kept.add(body);
+    return SpecializedNodes.create(Operator.LET, kept);
+  }
+
+  /**
+   * Rebuild an expression with some atoms replaced
+   */
+  private static Expr replace(Expr expr, Map<Expr, Expr> replacements) {
+    if (replacements.containsKey(expr)) {
+      return replacements.get(expr);
+    }
+    if (replacements.isEmpty() || !(expr instanceof Expression)) {
+      return expr;
+    }
+
+    Expression expression = (Expression) expr;
+    List<Expr> operands = new ArrayList<Expr>();
+    for (Expr operand : expression.getOperands()) {
+      operands.add(replace(operand, replacements));
+    }
+    return SpecializedNodes.create(expression.getOperator().instantiate(), operands);
+  }
+
+  /**
+   * Apply the first matching rule to a node whose operands are already optimized, rules may cascade
+   */
+  private static Expr reduce(Operator operator, List<Expr> operands, TypeInference types) {
+    Expr left = operands.isEmpty() ? null : operands.get(0);
+    Expr right = operands.size() < 2 ? null : operands.get(1);
+
+    if (operator == Operator.LET) {
+      return reduceLet(operands, types);
+    }
+
+    if (operator == Operator.POWER && right instanceof Constant) {
+      double c = right.evaluate();
+
+      if (c == 2 && left instanceof Atom) {
+        return node(Operator.MULTIPLY, left, left);
+      }
+      if (c == 1) {
+        return left;
+      }
+      if (c == 0 && isDeterministic(left)) {
+        return new Constant(1);
+      }
+      if (c == 0.5) {
+        return node(Operator.SQRT, left);
+      }
+    }
+
+    if (operator == Operator.DIVIDE && right instanceof Constant) {
+      double c = right.evaluate();
+
+      if (hasExactReciprocal(c)) {
+        return reduce(Operator.MULTIPLY, list(left, new Constant(1 / c)), types);
+      }
+    }
+
+    if (operator == Operator.MULTIPLY) {
+      if (isConstant(right, 1)) {
+        return left;
+      }
+      if (isConstant(left, 1)) {
+        return right;
+      }
+    }
+
+    if (operator == Operator.SUBTRACT && isConstant(right, 0)) {
+      return left;
+    }
+
+    if (operator == Operator.UNARY_MINUS && isOperator(left, Operator.UNARY_MINUS)) {
+      return operand(left, 0);
+    }
+
+    if (operator == Operator.LN && isOperator(left, Operator.EXP)) {
+      return operand(left, 0);
+    }
+
+    if (operator == Operator.LOG2 && isOperator(left, Operator.EXP)) {
+      return node(Operator.MULTIPLY, operand(left, 0), new Constant(INV_LN_2));
+    }
+
+    if (operator == Operator.LN && isOperator(left, Operator.ADD)) {
+      if (isConstant(operand(left, 0), 1)) {
+        return node(Operator.LN1PLUS, operand(left, 1));
+      }
+      if (isConstant(operand(left, 1), 1)) {
+        return node(Operator.LN1PLUS, operand(left, 0));
+      }
+    }
+
+    if ((operator == Operator.IF || operator == Operator.AND || operator == Operator.OR) && left instanceof Constant) {
+      boolean check = left.evaluate() != 0;
+
+      if (operator == Operator.IF) {
+        return check ? right : operands.get(2);
+      }
+      if (operator == Operator.AND && !check || operator == Operator.OR && check) {
+        return new Constant(check ? 1 : 0);
+      }
+      return reduce(Operator.NE, list(right, new Constant(0)), types);
+    }
+
+    Operator mirrored = mirror(operator);
+    if (mirrored != null && left instanceof Constant && !(right instanceof Constant)) {
+      return reduce(mirrored, list(right, left), types);
+    }
+
+    return reduceByType(operator, operands, types);
+  }
+
+  /**
+   * Rules relying on the inferred types of the operands
+   */
+  private static Expr reduceByType(Operator operator, List<Expr> operands, TypeInference types) {
+    Expr left = operands.isEmpty() ? null : operands.get(0);
+    Expr right = operands.size() < 2 ? null : operands.get(1);
+
+    ValueType a = left == null ? null : types.infer(left);
+    ValueType b = right == null ? null : types.infer(right);
+
+    // if, &&, || and ! already test their conditions with != 0
+    if (operator == Operator.IF || operator == Operator.NOT) {
+      operands = list(operands.toArray(new Expr[operands.size()]));
+      operands.set(0, unwrapNonZeroTest(left));
+    } else if (operator == Operator.AND || operator == Operator.OR) {
+      operands = list(unwrapNonZeroTest(left), unwrapNonZeroTest(right));
+    }
+
+    if (operator == Operator.IF && a.isNonZero() && isDeterministic(left)) {
+      return right;
+    }
+
+    if (operator == Operator.NE && isConstant(right, 0) && a.isBoolean()) {
+      return left;
+    }
+    if (operator == Operator.EQ && isConstant(right, 0) && a.isBoolean()) {
+      return node(Operator.NOT, left);
+    }
+
+    if ((operator == Operator.FLOOR || operator == Operator.CEIL) && a.isIntegral()) {
+      return left;
+    }
+    if (operator == Operator.ROUND && a.isIntegral() && !a.mayBeNaN()
+        && a.getMin() >= -MAX_EXACT_INTEGER && a.getMax() <= MAX_EXACT_INTEGER) {
+      return left;
+    }
+
+    if (b != null && !a.mayBeNaN() && !b.mayBeNaN() && isDeterministic(left) && isDeterministic(right)) {
+      Double decided = decideComparison(operator, a, b);
+      if (decided != null) {
+        return new Constant(decided);
+      }
+
+      if (operator == Operator.MAX && a.getMin() > b.getMax() || operator == Operator.MIN && a.getMax() < b.getMin()) {
+        return left;
+      }
+      if (operator == Operator.MAX && b.getMin() > a.getMax() || operator == Operator.MIN && b.getMax() < a.getMin()) {
+        return right;
+      }
+    }
+
+    return SpecializedNodes.create(operator.instantiate(), operands);
+  }
+
+  /**
+   * (!= x 0) -> x, for operands that are only ever tested against 0
+   */
+  private static Expr unwrapNonZeroTest(Expr expr) {
+    if (isOperator(expr, Operator.NE) && isConstant(operand(expr, 1), 0)) {
+      return operand(expr, 0);
+    }
+    return expr;
+  }
+
+  /**
+   * @return 1 or 0 if the comparison has the same outcome for every pair of values in the ranges, null otherwise
+   */
+  private static Double decideComparison(Operator operator, ValueType a, ValueType b) {
+    boolean disjoint = a.getMax() < b.getMin() || a.getMin() > b.getMax();
+
+    if (operator == Operator.GT || operator == Operator.LT_EQ) {
+      Boolean greater = a.getMin() > b.getMax() ? Boolean.TRUE : a.getMax() <= b.getMin() ? Boolean.FALSE : null;
+      return greater == null ? null : (greater == (operator == Operator.GT) ? 1.0 : 0.0);
+    } else if (operator == Operator.LT || operator == Operator.GT_EQ) {
+      Boolean less = a.getMax() < b.getMin() ? Boolean.TRUE : a.getMin() >= b.getMax() ? Boolean.FALSE : null;
+      return less == null ? null : (less == (operator == Operator.LT) ? 1.0 : 0.0);
+    } else if ((operator == Operator.EQ || operator == Operator.NE) && disjoint) {
+      return operator == Operator.NE ? 1.0 : 0.0;
+    }
+    return null;
+  }
+
+  /**
+   * @return the comparison with its operands swapped, (op a b) == (mirror(op) b a), or null if not a comparison
+   */
+  private static Operator mirror(Operator operator) {
+    if (operator == Operator.LT) {
+      return Operator.GT;
+    } else if (operator == Operator.GT) {
+      return Operator.LT;
+    } else if (operator == Operator.LT_EQ) {
+      return Operator.GT_EQ;
+    } else if (operator == Operator.GT_EQ) {
+      return Operator.LT_EQ;
+    } else if (operator == Operator.EQ || operator == Operator.NE) {
+      return operator;
+    }
+    return null;
+  }
+
+  /**
+   * x / c == x * (1/c) for every x when 1/c is exactly representable, i.e. c is a power of two with normal 1/c
+   */
+  private static boolean hasExactReciprocal(double c) {
+    long bits = Double.doubleToRawLongBits(c);
+    boolean powerOfTwo = (bits & MANTISSA_MASK) == 0 && (bits & EXPONENT_MASK) != 0 && (bits & EXPONENT_MASK) != EXPONENT_MASK;
+
+    return powerOfTwo && Math.abs(1 / c) >= Double.MIN_NORMAL && !Double.isInfinite(1 / c);
+  }
+
+  private static boolean isConstant(Expr expr, double value) {
+    return expr instanceof Constant && expr.evaluate() == value;
+  }
+
+  private static boolean isOperator(Expr expr, Operator operator) {
+    return expr instanceof Expression && ((Expression) expr).getOperator() == operator;
+  }
+
+  private static Expr operand(Expr expr, int index) {
+    return ((Expression) expr).getOperands().get(index);
+  }
+
+  private static Expression node(Operator operator, Expr... operands) {
+    return SpecializedNodes.create(operator, list(operands));
+  }
+
+  private static List<Expr> list(Expr... operands) {
+    return new ArrayList<Expr>(Arrays.asList(operands));
+  }
+}
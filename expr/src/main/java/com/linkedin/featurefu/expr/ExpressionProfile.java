@@ -0,0 +1,352 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Per node evaluation statistics for an expression, to find out which subexpressions are hot
+ *
+ * Profiling works on an instrumented copy of the expression, the original tree is left untouched, so profiling
+ *   costs nothing unless the instrumented copy is the one being evaluated. A typical use is to evaluate the copy
+ *   for a sample of requests only:
+ *
+ *      ExpressionProfile profile = ExpressionProfile.instrument(expr, 100);
+ *      Expr profiled = profile.getExpr();      // evaluates exactly like expr, shares its variables
+ *      ...
+ *      System.out.println(profile.prettyTree());
+ *
+ * For every operator node the profile keeps
+ *   calls:        number of times the node was evaluated
+ *   sampled time: inclusive and self nanoseconds, measured on one out of every sampleInterval root evaluations
+ *   branch ratio: for if, && and ||, how often the first operand was true
+ *                 (then branch taken for if, second operand evaluated for &&, short-circuited for ||)
+ *
+ * Like the expressions themselves, a profile is not thread safe
+ */
+public class ExpressionProfile {
+  private final Expr _expr;
+  private final int _sampleInterval;
+  private final List<NodeStats> _nodes = new ArrayList<NodeStats>();
+  private final Map<Expr, NodeStats> _statsByNode = new IdentityHashMap<Expr, NodeStats>();
+
+  private long _rootEvaluations = 0;
+  private boolean _timing = false;
+
+  /**
+   * Build an instrumented copy of an expression
+   * @param expr expression to profile, atoms and variables are shared with the copy
+   * @param sampleInterval time one out of every sampleInterval evaluations, 0 to only count calls and branches
+   * @return profile, get the instrumented expression from getExpr()
+   */
+  public static ExpressionProfile instrument(Expr expr, int sampleInterval) {
+    if (sampleInterval < 0) {
+      throw new IllegalArgumentException("sampleInterval must not be negative: " + sampleInterval);
+    }
+    return new ExpressionProfile(expr, sampleInterval);
+  }
+
+  private ExpressionProfile(Expr expr, int sampleInterval) {
+    this._sampleInterval = sampleInterval;
+    this._expr = instrument(expr, null, 0);
+  }
+
+  private Expr instrument(Expr expr, NodeStats parent, int depth) {
+    if (!(expr instanceof Expression)) {
+      return expr;
+    }
+
+    Expression expression = (Expression) expr;
+    NodeStats stats = new NodeStats(expression, parent, depth);
+    _nodes.add(stats);
+    ProfiledOperator operator = new ProfiledOperator(expression.getOperator().instantiate(), stats);
+
+    List<Expr> operands = new ArrayList<Expr>();
+    for (Expr operand : expression.getOperands()) {
+      operands.add(instrument(operand, stats, depth + 1));
+    }
+
+    if (isBranch(expression.getOperator())) {
+      operator._probedOperands = new ArrayList<Expr>(operands);
+      operator._probedOperands.set(0, new BranchProbe(operands.get(0), stats));
+    }
+
+    final Expression source = expression;
+    Expression profiled = new Expression(operator, operands) {
+      @Override
+      public String toString() {
+        return source.toString();   // prints a let with its bindings, which a wrapped operator can't tell
+      }
+    };
+    _statsByNode.put(profiled, stats);
+
+    return profiled;
+  }
+
+  private static boolean isBranch(Operator operator) {
+    return operator == Operator.IF || operator == Operator.AND || operator == Operator.OR;
+  }
+
+  /**
+   * @return the instrumented expression, evaluate it instead of the original one to collect statistics
+   */
+  public Expr getExpr() {
+    return _expr;
+  }
+
+  /**
+   * @return statistics of every operator node, in pre-order (parents before children)
+   */
+  public List<NodeStats> getNodes() {
+    return _nodes;
+  }
+
+  /**
+   * @param node an Expression node of the instrumented tree
+   * @return statistics for that node, null if it's not part of this profile
+   */
+  public NodeStats getStats(Expr node) {
+    return _statsByNode.get(node);
+  }
+
+  /**
+   * Forget everything collected so far
+   */
+  public void reset() {
+    _rootEvaluations = 0;
+    for (NodeStats stats : _nodes) {
+      stats.reset();
+    }
+  }
+
+  /**
+   * @return the expression tree as Expression.prettyTree draws it, each operator annotated with its statistics
+   */
+  public String prettyTree() {
+    Map<Expr, String> annotations = new IdentityHashMap<Expr, String>();
+
+    for (Map.Entry<Expr, NodeStats> entry : _statsByNode.entrySet()) {
+      annotations.put(entry.getKey(), entry.getValue().summary());
+    }
+
+    return Expression.prettyTree(_expr, annotations);
+  }
+
+  /**
+   * Tab separated report, one line per operator node in pre-order, for exporting into spreadsheets or dashboards
+   * @return report with a header line
+   */
+  public String report() {
+    StringBuilder sb = new StringBuilder(
+        "depth\toperator\tcalls\tsampled_calls\tavg_ns\tavg_self_ns\test_total_ns\tfirst_operand_true_ratio\texpression\n");
+
+    for (NodeStats stats : _nodes) {
+      sb.append(stats._depth).append('\t')
+          .append(stats.getSymbol()).append('\t')
+          .append(stats._calls).append('\t')
+          .append(stats._sampledCalls).append('\t')
+          .append(stats.getAverageNanos()).append('\t')
+          .append(stats.getAverageSelfNanos()).append('\t')
+          .append(stats.getEstimatedTotalNanos()).append('\t')
+          .append(stats.isBranch() ? String.valueOf(stats.getTrueRatio()) : "").append('\t')
+          .append(stats._node.toString()).append('\n');
+    }
+
+    return sb.toString();
+  }
+
+  /**
+   * Statistics of a single operator node
+   */
+  public static class NodeStats {
+    private final Expression _node;
+    private final NodeStats _parent;
+    private final int _depth;
+
+    private long _calls;
+    private long _sampledCalls;
+    private long _sampledNanos;
+    private long _sampledChildNanos;
+    private long _trueCount;
+
+    private NodeStats(Expression node, NodeStats parent, int depth) {
+      this._node = node;
+      this._parent = parent;
+      this._depth = depth;
+    }
+
+    private void reset() {
+      _calls = 0;
+      _sampledCalls = 0;
+      _sampledNanos = 0;
+      _sampledChildNanos = 0;
+      _trueCount = 0;
+    }
+
+    public String getSymbol() {
+      return _node.getOperator().getSymbol();
+    }
+
+    /**
+     * @return the original, uninstrumented node
+     */
+    public Expression getNode() {
+      return _node;
+    }
+
+    public int getDepth() {
+      return _depth;
+    }
+
+    public long getCalls() {
+      return _calls;
+    }
+
+    public long getSampledCalls() {
+      return _sampledCalls;
+    }
+
+    public boolean isBranch() {
+      return ExpressionProfile.isBranch(_node.getOperator());
+    }
+
+    /**
+     * @return inclusive time per call over the sampled calls, children included
+     */
+    public double getAverageNanos() {
+      return _sampledCalls == 0 ? 0 : (double) _sampledNanos / _sampledCalls;
+    }
+
+    /**
+     * @return time per call spent in this node itself, excluding operator children
+     */
+    public double getAverageSelfNanos() {
+      return _sampledCalls == 0 ? 0 : (double) Math.max(0, _sampledNanos - _sampledChildNanos) / _sampledCalls;
+    }
+
+    /**
+     * @return sampled inclusive time extrapolated to all calls
+     */
+    public double getEstimatedTotalNanos() {
+      return getAverageNanos() * _calls;
+    }
+
+    /**
+     * @return fraction of calls where the first operand was true, only meaningful for if, && and ||
+     */
+    public double getTrueRatio() {
+      return _calls == 0 ? 0 : (double) _trueCount / _calls;
+    }
+
+    private String summary() {
+      StringBuilder sb = new StringBuilder("[calls=").append(_calls);
+      if (_sampledCalls > 0) {
+        sb.append(String.format(" avg=%.1fns self=%.1fns", getAverageNanos(), getAverageSelfNanos()));
+      }
+      if (isBranch()) {
+        sb.append(String.format(" true=%.3f", getTrueRatio()));
+      }
+      return sb.append(']').toString();
+    }
+  }
+
+  /**
+   * Counts calls and measures sampled time around the operator it wraps
+   */
+  private class ProfiledOperator extends Operator {
+    private final Operator _operator;
+    private final NodeStats _stats;
+    private List<Expr> _probedOperands; // same operands with the first one wrapped in a BranchProbe, for branches
+
+    ProfiledOperator(Operator operator, NodeStats stats) {
+      this._operator = operator;
+      this._stats = stats;
+    }
+
+    public double calculate(List<Expr> operands) {
+      if (_stats._parent == null) {
+        _timing = _sampleInterval > 0 && _rootEvaluations++ % _sampleInterval == 0;
+      }
+
+      _stats._calls++;
+
+      if (_probedOperands != null) {
+        operands = _probedOperands;
+      }
+
+      if (!_timing) {
+        return _operator.calculate(operands);
+      }
+
+      long start = System.nanoTime();
+      double result = _operator.calculate(operands);
+      long elapsed = System.nanoTime() - start;
+
+      _stats._sampledCalls++;
+      _stats._sampledNanos += elapsed;
+      if (_stats._parent != null) {
+        _stats._parent._sampledChildNanos += elapsed;
+      }
+
+      return result;
+    }
+
+    public int numberOfOperands() {
+      return _operator.numberOfOperands();
+    }
+
+    public String getSymbol() {
+      return _operator.getSymbol();
+    }
+
+    public boolean isDeterministic() {
+      return _operator.isDeterministic();
+    }
+
+    public void calculate(float[][] operands, float[] result, int length) {
+      _stats._calls += length;
+      _operator.calculate(operands, result, length);
+    }
+  }
+
+  /**
+   * Records whether the first operand of a branch evaluated to true
+   */
+  private static class BranchProbe implements Expr {
+    private final Expr _operand;
+    private final NodeStats _stats;
+
+    BranchProbe(Expr operand, NodeStats stats) {
+      this._operand = operand;
+      this._stats = stats;
+    }
+
+    public double evaluate() {
+      double value = _operand.evaluate();
+      if (value != 0) {
+        _stats._trueCount++;
+      }
+      return value;
+    }
+
+    public String toString() {
+      return _operand.toString();
+    }
+  }
+}
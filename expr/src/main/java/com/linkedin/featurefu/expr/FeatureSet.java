@@ -0,0 +1,395 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+
+/**
+ * Immutable, versioned set of named feature expressions, compiled (parsed, validated and optimized) once
+ *
+ * Expressions bind their inputs through shared Variable objects, so one parsed tree can't be evaluated by several
+ *   threads at the same time. A feature set keeps the compiled trees as templates and hands every thread its own
+ *   Instance, a copy of the trees over a private VariableRegistry, made without parsing or optimizing again.
+ *
+ * Compile a new version off the request path and publish it with FeatureSetHolder.publish, request threads pick
+ *   the current set once per request and finish on it even if a newer one is published meanwhile. A set, with the
+ *   instances made for it, is garbage collected once no request and no holder references it.
+ *
+ * Publishing retires the replaced set: the instances it cached for threads are released right away, rather than
+ *   staying in the thread-locals of pooled threads until they happen to be cleaned up. A retired set still evaluates,
+ *   but copies its trees on every instance() call, fine for requests finishing on it, not for ongoing use.
+ *
+ * Evaluation is not instrumented unless metrics are attached with withMetrics. Compiling with AdmissionLimits rejects
+ *   or flags features whose estimated cost (CostModel) is over budget.
+ */
+public final class FeatureSet {
+  private final long _version;
+  private final List<String> _names;
+  private final Expr[] _templates;
+  private final int _nonDeterministic;   // number of templates using rand or a streaming operator
+  private final EvaluationMetrics _metrics;
+  private final Map<String, List<String>> _flagged;   // feature name -> budgets exceeded
+  private final ThreadLocal<Slot> _instances = new ThreadLocal<Slot>();
+  private final Set<Slot> _slots = Collections.newSetFromMap(new WeakHashMap<Slot, Boolean>());   // guards retiring
+  private boolean _retired;
+
+  private FeatureSet(long version, List<String> names, Expr[] templates, EvaluationMetrics metrics,
+      Map<String, List<String>> flagged) {
+    this._version = version;
+    this._names = Collections.unmodifiableList(names);
+    this._templates = templates;
+    this._metrics = metrics;
+    this._flagged = Collections.unmodifiableMap(flagged);
+
+    int nonDeterministic = 0;
+    for (Expr template : templates) {
+      if (!ExpressionOptimizer.isDeterministic(template)) {
+        nonDeterministic++;
+      }
+    }
+    this._nonDeterministic = nonDeterministic;
+  }
+
+  /**
+   * Parse and optimize feature definitions
+   * @param version version of the definitions, FeatureSetHolder only publishes increasing versions
+   * @param definitions feature name -> s-expression, in the order of the evaluated values
+   * @param mathMode precision of the transcendental operators
+   * @param limits budgets of the optimized features, null for none
+   * @return compiled feature set, see getFlagged() for the features admitted over budget
+   * @throws IllegalArgumentException if a definition is empty, or over budget with limits rejecting
+   */
+  public static FeatureSet compile(long version, Map<String, String> definitions, MathMode mathMode,
+      AdmissionLimits limits) {
+    VariableRegistry registry = new VariableRegistry();
+    List<String> names = new ArrayList<String>(definitions.keySet());
+    Expr[] templates = new Expr[names.size()];
+    Map<String, List<String>> flagged = new LinkedHashMap<String, List<String>>();
+
+    for (int i = 0; i < templates.length; i++) {
+      Expr expr = Expression.parse(definitions.get(names.get(i)), registry);
+      if (expr == null) {
+        throw new IllegalArgumentException("empty definition for feature " + names.get(i));
+      }
+      expr = ExpressionOptimizer.optimize(expr);
+      templates[i] = mathMode == MathMode.APPROXIMATE ? ApproximateOperators.approximate(expr) : expr;
+
+      if (limits != null) {
+        List<String> violations = limits.admit(names.get(i), templates[i]);
+        if (!violations.isEmpty()) {
+          flagged.put(names.get(i), violations);
+        }
+      }
+    }
+
+    return new FeatureSet(version, names, templates, null, flagged);
+  }
+
+  public static FeatureSet compile(long version, Map<String, String> definitions, MathMode mathMode) {
+    return compile(version, definitions, mathMode, null);
+  }
+
+  public static FeatureSet compile(long version, Map<String, String> definitions) {
+    return compile(version, definitions, MathMode.EXACT);
+  }
+
+  public long getVersion() {
+    return _version;
+  }
+
+  /**
+   * @return false if a feature uses rand or a streaming operator, whose values depend on the order of evaluation
+   */
+  public boolean isDeterministic() {
+    return _nonDeterministic == 0;
+  }
+
+  /**
+   * The same compiled expressions, with evaluation recorded into metrics
+   *   pass the metrics of the previous version when publishing a new one to keep the totals going
+   * @param metrics metrics to record into, null for an uninstrumented set
+   */
+  public FeatureSet withMetrics(EvaluationMetrics metrics) {
+    return new FeatureSet(_version, new ArrayList<String>(_names), _templates, metrics, _flagged);
+  }
+
+  /**
+   * @return metrics evaluation is recorded into, null if not instrumented
+   */
+  public EvaluationMetrics getMetrics() {
+    return _metrics;
+  }
+
+  /**
+   * @return feature name -> budgets exceeded, for the features admitted over budget by limits flagging them
+   */
+  public Map<String, List<String>> getFlagged() {
+    return _flagged;
+  }
+
+  /**
+   * @return feature names, in the order of the evaluated values
+   */
+  public List<String> getNames() {
+    return _names;
+  }
+
+  /**
+   * Copy the compiled expressions over a new registry, for a caller that manages its own instances
+   */
+  public Instance newInstance() {
+    VariableRegistry registry = new VariableRegistry();
+    Expr[] exprs = new Expr[_templates.length];
+    for (int i = 0; i < exprs.length; i++) {
+      exprs[i] = copy(_templates[i], registry, new IdentityHashMap<LocalVariable, LocalVariable>());
+    }
+    return new Instance(registry, exprs, _metrics, _nonDeterministic);
+  }
+
+  /**
+   * The calling thread's instance, created on its first use, a new one on every call once the set is retired
+   */
+  public Instance instance() {
+    Slot slot = _instances.get();
+    Instance instance = slot == null ? null : slot._instance;
+    if (instance != null) {
+      return instance;
+    }
+
+    instance = newInstance();
+    synchronized (_slots) {
+      if (!_retired) {
+        if (slot == null) {
+          slot = new Slot();
+          _instances.set(slot);
+          _slots.add(slot);
+        }
+        slot._instance = instance;
+      }
+    }
+    return instance;
+  }
+
+  /**
+   * Release the instances cached for every thread, called by FeatureSetHolder on the set a publish replaces
+   */
+  void retire() {
+    synchronized (_slots) {
+      _retired = true;
+      for (Slot slot : _slots) {
+        slot._instance = null;
+      }
+      _slots.clear();
+    }
+  }
+
+  /**
+   * Evaluate every feature with the calling thread's instance
+   * @param varMap variable name -> value, variables not in the map are 0
+   * @param output receives the value of each feature, in the order of getNames()
+   */
+  public void evaluate(Map<String, Double> varMap, double[] output) {
+    instance().evaluate(varMap, output);
+  }
+
+  /**
+   * Evaluate every feature for a batch of inputs with the calling thread's instance
+   * @param varMaps inputs of each row
+   * @param outputs outputs[row] receives the values of that row, in the order of getNames()
+   */
+  public void evaluate(List<Map<String, Double>> varMaps, double[][] outputs) {
+    instance().evaluate(varMaps, outputs);
+  }
+
+  /**
+   * Rebuild an expression over the variables of another registry, sharing constants and operators
+   *   let slots are copied too, locals maps the original slots to their copies, stateful operators start afresh
+   */
+  static Expr copy(Expr expr, VariableRegistry registry, Map<LocalVariable, LocalVariable> locals) {
+    if (expr instanceof LocalVariable) {
+      LocalVariable local = locals.get(expr);
+      if (local == null) {
+        local = new LocalVariable(((LocalVariable) expr).getName());
+        locals.put((LocalVariable) expr, local);
+      }
+      return local;
+    }
+    if (expr instanceof VectorVariable) {
+      return registry.registerVector(((Variable) expr).getName());
+    }
+    if (expr instanceof Variable) {
+      return registry.registerVariable(((Variable) expr).getName());
+    }
+    if (!(expr instanceof Expression)) {
+      return expr;
+    }
+
+    Expression expression = (Expression) expr;
+    List<Expr> operands = new ArrayList<Expr>();
+    for (Expr operand : expression.getOperands()) {
+      operands.add(copy(operand, registry, locals));
+    }
+    return SpecializedNodes.create(expression.getOperator().instantiate(), operands);
+  }
+
+  /**
+   * A thread's cached instance, which retire() can clear from another thread
+   */
+  private static final class Slot {
+    private volatile Instance _instance;
+  }
+
+  /**
+   * Compiled expressions bound to a private registry, for use by one thread at a time
+   */
+  public static final class Instance {
+    private final VariableRegistry _registry;
+    private final Expr[] _exprs;
+    private final EvaluationMetrics _metrics;
+    private final int _nonDeterministic;
+
+    private Instance(VariableRegistry registry, Expr[] exprs, EvaluationMetrics metrics, int nonDeterministic) {
+      this._registry = registry;
+      this._exprs = exprs;
+      this._metrics = metrics;
+      this._nonDeterministic = nonDeterministic;
+    }
+
+    public VariableRegistry getRegistry() {
+      return _registry;
+    }
+
+    /**
+     * @param index position of the feature in getNames()
+     */
+    public Expr getExpr(int index) {
+      return _exprs[index];
+    }
+
+    public void evaluate(Map<String, Double> varMap, double[] output) {
+      if (_metrics == null) {
+        compute(varMap, output);
+        return;
+      }
+      long start = System.nanoTime();
+      compute(varMap, output);
+      long nanos = System.nanoTime() - start;
+      _metrics.recorder().recordCall(nanos, nonFinite(output), _nonDeterministic);
+    }
+
+    /**
+     * @param varMaps inputs of each row
+     * @param outputs outputs[row] receives the values of that row
+     */
+    public void evaluate(List<Map<String, Double>> varMaps, double[][] outputs) {
+      final int rows = varMaps.size();
+      if (_metrics == null) {
+        for (int row = 0; row < rows; row++) {
+          compute(varMaps.get(row), outputs[row]);
+        }
+        return;
+      }
+      long start = System.nanoTime();
+      for (int row = 0; row < rows; row++) {
+        compute(varMaps.get(row), outputs[row]);
+      }
+      long nanos = System.nanoTime() - start;
+
+      int nonFinite = 0;
+      for (int row = 0; row < rows; row++) {
+        nonFinite += nonFinite(outputs[row]);
+      }
+      _metrics.recorder().recordBatch(nanos, rows, nonFinite, _nonDeterministic * rows);
+    }
+
+    /**
+     * Evaluate one row bound straight to variables of this instance, without building a Map
+     * @param inputs variables of getRegistry(), from registerVariable, other variables keep their values
+     * @param values values[i] is the value of inputs[i]
+     * @param output receives the value of each feature
+     */
+    public void evaluate(Variable[] inputs, double[] values, double[] output) {
+      if (_metrics == null) {
+        compute(inputs, values, output);
+        return;
+      }
+      long start = System.nanoTime();
+      compute(inputs, values, output);
+      long nanos = System.nanoTime() - start;
+      _metrics.recorder().recordCall(nanos, nonFinite(output), _nonDeterministic);
+    }
+
+    /**
+     * Evaluate a batch of rows bound straight to variables of this instance
+     * @param inputs variables of getRegistry(), from registerVariable, other variables keep their values
+     * @param rows rows[row][i] is the value of inputs[i]
+     * @param outputs outputs[row] receives the values of that row
+     * @param numRows number of rows to evaluate, from the first
+     */
+    public void evaluate(Variable[] inputs, double[][] rows, double[][] outputs, int numRows) {
+      if (_metrics == null) {
+        for (int row = 0; row < numRows; row++) {
+          compute(inputs, rows[row], outputs[row]);
+        }
+        return;
+      }
+      long start = System.nanoTime();
+      for (int row = 0; row < numRows; row++) {
+        compute(inputs, rows[row], outputs[row]);
+      }
+      long nanos = System.nanoTime() - start;
+
+      int nonFinite = 0;
+      for (int row = 0; row < numRows; row++) {
+        nonFinite += nonFinite(outputs[row]);
+      }
+      _metrics.recorder().recordBatch(nanos, numRows, nonFinite, _nonDeterministic * numRows);
+    }
+
+    private void compute(Variable[] inputs, double[] values, double[] output) {
+      for (int i = 0; i < inputs.length; i++) {
+        inputs[i].setValue(values[i]);
+      }
+      for (int i = 0; i < _exprs.length; i++) {
+        output[i] = _exprs[i].evaluate();
+      }
+    }
+
+    private void compute(Map<String, Double> varMap, double[] output) {
+      _registry.refresh(varMap);
+      for (int i = 0; i < _exprs.length; i++) {
+        output[i] = _exprs[i].evaluate();
+      }
+    }
+
+    private int nonFinite(double[] output) {
+      int count = 0;
+      for (int i = 0; i < _exprs.length; i++) {
+        if (Double.isNaN(output[i]) || Double.isInfinite(output[i])) {
+          count++;
+        }
+      }
+      return count;
+    }
+  }
+}
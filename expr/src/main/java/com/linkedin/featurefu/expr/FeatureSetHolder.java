@@ -0,0 +1,61 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * Publishes the current version of a feature set to request threads without locks
+ *
+ * Request threads call current() once per request and evaluate that set, deployments compile the next version off
+ *   the request path and publish it with one atomic reference swap. Versions only move forward, so a delayed
+ *   deployment can't roll back a newer one. The replaced set is retired (see FeatureSet), so threads don't keep its
+ *   instances.
+ */
+public class FeatureSetHolder {
+  private final AtomicReference<FeatureSet> _current;
+
+  public FeatureSetHolder(FeatureSet initial) {
+    this._current = new AtomicReference<FeatureSet>(initial);
+  }
+
+  /**
+   * @return the latest published feature set
+   */
+  public FeatureSet current() {
+    return _current.get();
+  }
+
+  /**
+   * Make a feature set current if its version is newer than the current one
+   * @param next compiled feature set
+   * @return true if published, false if the current version is the same or newer
+   */
+  public boolean publish(FeatureSet next) {
+    while (true) {
+      FeatureSet current = _current.get();
+      if (current != null && current.getVersion() >= next.getVersion()) {
+        return false;
+      }
+      if (_current.compareAndSet(current, next)) {
+        if (current != null) {
+          current.retire();
+        }
+        return true;
+      }
+    }
+  }
+}
@@ -0,0 +1,491 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Pattern;
+
+
+/**
+ * Scores large input files in parallel, for offline backfills
+ *
+ * The input is memory-mapped in ranges split at record boundaries, each range is parsed and evaluated by one of the
+ *   threads with its own Instance (FeatureSet.newInstance(), kept for the whole file) and written to its own output buffer, and the buffers are
+ *   written out in input order. Only a few ranges per thread are in flight, so memory stays bounded whatever the size
+ *   of the file.
+ *
+ * Feature sets that aren't deterministic (FeatureSet.isDeterministic) are scored by a single thread whatever
+ *   setThreads says: streaming operators must see all events of a key, in input order, on one instance, and rand
+ *   values would otherwise depend on which thread got which range.
+ *
+ * Two formats:
+ *   text, a header line naming the columns, then one row per line with the values separated by the delimiter (tab by
+ *   default). Empty lines are skipped, missing and empty values are 0 like in VariableRegistry.refresh, and values are
+ *   parsed straight from the mapped bytes. The output has a header of the feature names and one line per row.
+ *   binary, fixed-width rows of doubles, one per column (see ByteBufferRowBinder), in the configured byte order.
+ *   The output has one row of doubles per input row, one per feature, in the same byte order.
+ */
+public class FileScorer {
+  private static final int SCAN_BYTES = 64 * 1024;
+  private static final double[] POWERS_OF_TEN = new double[23];   // exact as doubles
+
+  static {
+    POWERS_OF_TEN[0] = 1;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+  }
+
+  private final FeatureSet _featureSet;
+  private int _threads = Runtime.getRuntime().availableProcessors();
+  private long _rangeBytes = 8L << 20;
+  private byte _delimiter = '\t';
+  private ByteOrder _byteOrder = ByteOrder.BIG_ENDIAN;
+
+  public FileScorer(FeatureSet featureSet) {
+    this._featureSet = featureSet;
+  }
+
+  /**
+   * @param threads number of threads parsing and evaluating ranges, the number of processors by default, ignored for
+   *   feature sets that aren't deterministic
+   */
+  public FileScorer setThreads(int threads) {
+    this._threads = threads;
+    return this;
+  }
+
+  /**
+   * @param rangeBytes largest input range scored by one task, 8MB by default, smaller if that leaves threads idle
+   */
+  public FileScorer setRangeBytes(long rangeBytes) {
+    this._rangeBytes = rangeBytes;
+    return this;
+  }
+
+  /**
+   * @param delimiter separator of the values of text rows, a tab by default
+   */
+  public FileScorer setDelimiter(char delimiter) {
+    this._delimiter = (byte) delimiter;
+    return this;
+  }
+
+  /**
+   * @param byteOrder byte order of binary input and output, big-endian by default
+   */
+  public FileScorer setByteOrder(ByteOrder byteOrder) {
+    this._byteOrder = byteOrder;
+    return this;
+  }
+
+  /**
+   * Score a text file whose first line names the columns
+   * @return number of rows scored
+   * @throws NumberFormatException if a value isn't a number
+   */
+  public long scoreText(File input, File output) throws IOException {
+    FileChannel channel = new RandomAccessFile(input, "r").getChannel();
+    try {
+      long dataStart = nextLine(channel, 0, channel.size());
+      byte[] header = new byte[(int) dataStart];
+      ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+      while (headerBuffer.hasRemaining() && channel.read(headerBuffer, headerBuffer.position()) > 0) {
+        // a line may take several reads
+      }
+      int length = header.length;
+      while (length > 0 && (header[length - 1] == '\n' || header[length - 1] == '\r')) {
+        length--;
+      }
+      final List<String> columns = Arrays.asList(new String(header, 0, length, "UTF-8")
+          .split(Pattern.quote(String.valueOf((char) _delimiter)), -1));
+
+      List<long[]> ranges = new ArrayList<long[]>();
+      long size = channel.size();
+      long rangeBytes = rangeBytes(size - dataStart);
+      for (long start = dataStart; start < size; ) {
+        long end = start + rangeBytes < size ? nextLine(channel, start + rangeBytes, size) : size;
+        ranges.add(new long[]{start, end});
+        start = end;
+      }
+
+      OutputStream out = new FileOutputStream(output);
+      try {
+        StringBuilder names = new StringBuilder();
+        for (String name : _featureSet.getNames()) {
+          names.append(names.length() > 0 ? (char) _delimiter : "").append(name);
+        }
+        out.write(names.append('\n').toString().getBytes("UTF-8"));
+        return score(channel, ranges, out, new RangeScorer() {
+          @Override
+          public Chunk score(MappedByteBuffer buffer, FeatureSet.Instance instance) {
+            return scoreText(buffer, columns, instance);
+          }
+        });
+      } finally {
+        out.close();
+      }
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Score a binary file of fixed-width rows of doubles
+   * @param columns variable name of each double of a row
+   * @return number of rows scored
+   * @throws IOException if the file size isn't a multiple of the row width
+   */
+  public long scoreBinary(File input, final List<String> columns, File output) throws IOException {
+    FileChannel channel = new RandomAccessFile(input, "r").getChannel();
+    try {
+      long rowBytes = 8L * columns.size();
+      long size = channel.size();
+      if (rowBytes == 0 || size % rowBytes != 0) {
+        throw new IOException(input + " has " + size + " bytes, not a multiple of the row width " + rowBytes);
+      }
+
+      List<long[]> ranges = new ArrayList<long[]>();
+      long maxRows = Integer.MAX_VALUE / 2 / Math.max(8L * _featureSet.getNames().size(), 1);   // output of a range
+      long rangeBytes = Math.max(Math.min(rangeBytes(size) / rowBytes, maxRows), 1) * rowBytes;
+      for (long start = 0; start < size; start += rangeBytes) {
+        ranges.add(new long[]{start, Math.min(start + rangeBytes, size)});
+      }
+
+      OutputStream out = new FileOutputStream(output);
+      try {
+        return score(channel, ranges, out, new RangeScorer() {
+          @Override
+          public Chunk score(MappedByteBuffer buffer, FeatureSet.Instance instance) {
+            return scoreBinary(buffer, columns, instance);
+          }
+        });
+      } finally {
+        out.close();
+      }
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Output of one range
+   */
+  private static final class Chunk {
+    private final byte[] _bytes;
+    private final int _length;
+    private final long _rows;
+
+    Chunk(byte[] bytes, int length, long rows) {
+      this._bytes = bytes;
+      this._length = length;
+      this._rows = rows;
+    }
+  }
+
+  private interface RangeScorer {
+    Chunk score(MappedByteBuffer buffer, FeatureSet.Instance instance);
+  }
+
+  /**
+   * Range size leaving every thread at least one range, below 2GB so a range can be mapped
+   */
+  private long rangeBytes(long size) {
+    long perThread = (size + threads() - 1) / threads();
+    return Math.max(Math.min(Math.min(_rangeBytes, perThread), Integer.MAX_VALUE / 2), 1);
+  }
+
+  /**
+   * Ranges of a feature set that isn't deterministic are scored in order by one thread, on one instance
+   */
+  private int threads() {
+    return _featureSet.isDeterministic() ? _threads : 1;
+  }
+
+  /**
+   * @return offset just after the first line break at or after position - 1, size if there is none
+   */
+  private static long nextLine(FileChannel channel, long position, long size) throws IOException {
+    ByteBuffer scan = ByteBuffer.allocate(SCAN_BYTES);
+    long offset = Math.max(position - 1, 0);
+    while (offset < size) {
+      scan.clear();
+      int read = channel.read(scan, offset);
+      if (read <= 0) {
+        break;
+      }
+      for (int i = 0; i < read; i++) {
+        if (scan.get(i) == '\n') {
+          return offset + i + 1;
+        }
+      }
+      offset += read;
+    }
+    return size;
+  }
+
+  /**
+   * Score the ranges in parallel and write their output in order, with at most two ranges per thread in flight
+   */
+  private long score(FileChannel channel, List<long[]> ranges, OutputStream out, final RangeScorer scorer)
+      throws IOException {
+    final int threads = threads();
+    final ThreadLocal<FeatureSet.Instance> instances = new ThreadLocal<FeatureSet.Instance>() {
+      @Override
+      protected FeatureSet.Instance initialValue() {
+        return _featureSet.newInstance();   // dies with the pool threads
+      }
+    };
+    ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "file-scorer");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    try {
+      Deque<Future<Chunk>> pending = new ArrayDeque<Future<Chunk>>();
+      int next = 0;
+      long rows = 0;
+      while (next < ranges.size() || !pending.isEmpty()) {
+        while (next < ranges.size() && pending.size() < 2 * threads) {
+          long[] range = ranges.get(next++);
+          final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, range[0], range[1] - range[0]);
+          buffer.order(_byteOrder);
+          pending.add(executor.submit(new Callable<Chunk>() {
+            @Override
+            public Chunk call() {
+              return scorer.score(buffer, instances.get());
+            }
+          }));
+        }
+
+        Chunk chunk = pending.poll().get();
+        out.write(chunk._bytes, 0, chunk._length);
+        rows += chunk._rows;
+      }
+      return rows;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted while scoring", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private Chunk scoreText(MappedByteBuffer buffer, List<String> columns, FeatureSet.Instance instance) {
+    VariableRegistry registry = instance.getRegistry();
+    for (Variable variable : registry.values()) {
+      variable.setValue(0d);
+    }
+    Variable[] variables = new Variable[columns.size()];
+    for (int i = 0; i < variables.length; i++) {
+      Variable variable = registry.get(columns.get(i));
+      variables[i] = variable instanceof VectorVariable ? null : variable;
+    }
+
+    int features = _featureSet.getNames().size();
+    StringBuilder out = new StringBuilder(Math.min(buffer.limit(), 1 << 20));
+    long rows = 0;
+    int limit = buffer.limit();
+    int position = 0;
+
+    while (position < limit) {
+      int column = 0;
+      int start = position;
+      int i = position;
+      for (; ; i++) {
+        byte b = i < limit ? buffer.get(i) : (byte) '\n';
+        if (b != _delimiter && b != '\n') {
+          continue;
+        }
+        int end = b == '\n' && i > start && buffer.get(i - 1) == '\r' ? i - 1 : i;
+        if (b == '\n' && column == 0 && end == start) {
+          break;   // empty line
+        }
+        if (column < variables.length && variables[column] != null) {
+          variables[column].setValue(parseDouble(buffer, start, end));
+        }
+        column++;
+        start = i + 1;
+        if (b == '\n') {
+          for (; column < variables.length; column++) {
+            if (variables[column] != null) {
+              variables[column].setValue(0d);
+            }
+          }
+          for (int f = 0; f < features; f++) {
+            out.append(instance.getExpr(f).evaluate()).append(f + 1 < features ? (char) _delimiter : '\n');
+          }
+          rows++;
+          break;
+        }
+      }
+      position = i + 1;
+    }
+
+    byte[] bytes = new byte[out.length()];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) out.charAt(i);   // numbers and the delimiter are ASCII
+    }
+    return new Chunk(bytes, bytes.length, rows);
+  }
+
+  private Chunk scoreBinary(MappedByteBuffer buffer, List<String> columns, FeatureSet.Instance instance) {
+    ByteBufferRowBinder binder = new ByteBufferRowBinder(instance.getRegistry(), columns);
+    int rowBytes = 8 * columns.size();
+    int rows = buffer.limit() / rowBytes;
+    int features = _featureSet.getNames().size();
+
+    ByteBuffer out = ByteBuffer.allocate(rows * features * 8).order(_byteOrder);
+    for (int row = 0, offset = 0; row < rows; row++, offset += rowBytes) {
+      binder.bind(buffer, offset);
+      for (int f = 0; f < features; f++) {
+        out.putDouble(instance.getExpr(f).evaluate());
+      }
+    }
+    return new Chunk(out.array(), out.position(), rows);
+  }
+
+  /**
+   * Parse the ASCII number in [from, to) of a buffer, 0 if empty
+   *   decimals of up to 15 significant digits with a small exponent are computed exactly with one multiplication or
+   *   division, anything else goes through Double.parseDouble
+   * @throws NumberFormatException if it isn't a number
+   */
+  static double parseDouble(ByteBuffer buffer, int from, int to) {
+    if (from == to) {
+      return 0;
+    }
+    int i = from;
+    byte b = buffer.get(i);
+    boolean negative = b == '-';
+    if (b == '-' || b == '+') {
+      i++;
+    }
+
+    long mantissa = 0;
+    int significant = 0;
+    int exponent = 0;
+    boolean digits = false;
+    boolean fraction = false;
+    for (; i < to; i++) {
+      b = buffer.get(i);
+      if (b == '.' && !fraction) {
+        fraction = true;
+        continue;
+      }
+      if (b < '0' || b > '9') {
+        break;
+      }
+      digits = true;
+      if (mantissa != 0 || b != '0') {
+        if (++significant > 15) {
+          return slowParse(buffer, from, to);
+        }
+        mantissa = mantissa * 10 + (b - '0');
+      }
+      if (fraction) {
+        exponent--;
+      }
+    }
+
+    if (digits && i < to && (b == 'e' || b == 'E')) {
+      i++;
+      boolean negativeExponent = i < to && buffer.get(i) == '-';
+      if (i < to && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+        i++;
+      }
+      int value = 0;
+      int start = i;
+      for (; i < to && buffer.get(i) >= '0' && buffer.get(i) <= '9' && value < 1000; i++) {
+        value = value * 10 + (buffer.get(i) - '0');
+      }
+      if (i == start) {
+        return slowParse(buffer, from, to);
+      }
+      exponent += negativeExponent ? -value : value;
+    }
+    if (!digits || i != to || exponent > 22 || exponent < -22) {
+      return slowParse(buffer, from, to);
+    }
+
+    double value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+    return negative ? -value : value;
+  }
+
+  private static double slowParse(ByteBuffer buffer, int from, int to) {
+    char[] chars = new char[to - from];
+    for (int i = 0; i < chars.length; i++) {
+      chars[i] = (char) buffer.get(from + i);
+    }
+    return Double.parseDouble(new String(chars));
+  }
+
+  /**
+   * Score a file with the features of a definitions file (see JavaSourceGenerator.readDefinitions)
+   * @param args definitions file, input, output, and for binary input the comma separated column names
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 3) {
+      System.err.println("Usage: FileScorer definitions input output [binary-columns]");
+      System.exit(1);
+    }
+
+    Map<String, String> definitions;
+    Reader reader = new InputStreamReader(new FileInputStream(args[0]), "UTF-8");
+    try {
+      definitions = JavaSourceGenerator.readDefinitions(reader);
+    } finally {
+      reader.close();
+    }
+    FileScorer scorer = new FileScorer(FeatureSet.compile(1, definitions));
+
+    long start = System.nanoTime();
+    long rows = args.length > 3
+        ? scorer.scoreBinary(new File(args[1]), Arrays.asList(args[3].split(",")), new File(args[2]))
+        : scorer.scoreText(new File(args[1]), new File(args[2]));
+    System.out.println(rows + " rows in " + (System.nanoTime() - start) / 1000000 + " ms");
+  }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Single precision batch evaluation of an expression, for memory bandwidth bound offline scoring
+ *
+ * Inputs and outputs are float[], and the expression is evaluated a block of rows at a time, one operator at a time,
+ *   with the column kernels Operator.calculate(float[][], float[], int). Intermediate results live in a handful of
+ *   small float buffers that are reused as soon as their parent has consumed them, so they stay in cache.
+ *
+ * Values are rounded to float after every operator, see FloatBatchEvaluatorTest for the divergence from evaluate().
+ * Unlike evaluate(), all operands are evaluated for every row, so both branches of an if are computed.
+ *
+ * The evaluator never touches the values of the expression's variables, so it can run while the expression is being
+ *   evaluated elsewhere, but an evaluator instance must be used by one thread at a time.
+ */
+public class FloatBatchEvaluator {
+  public static final int BLOCK_SIZE = 256;
+
+  private final List<String> _inputNames;
+  private final int[] _loadedInputs;       // input column index for each loaded buffer
+  private final float[][] _loadedBuffers;  // buffers receiving input columns, block by block
+  private final Step[] _steps;             // operators in post-order
+  private final float[] _result;
+
+  /**
+   * @param expr expression to evaluate
+   * @param inputNames variable name of each input column, variables not listed evaluate to 0
+   * @throws UnsupportedOperationException if the expression uses vector variables
+   */
+  public FloatBatchEvaluator(Expr expr, List<String> inputNames) {
+    this._inputNames = new ArrayList<String>(inputNames);
+
+    Compiler compiler = new Compiler();
+    this._result = compiler.compile(expr);
+    this._steps = compiler._steps.toArray(new Step[compiler._steps.size()]);
+
+    this._loadedInputs = new int[compiler._loaded.size()];
+    this._loadedBuffers = new float[compiler._loaded.size()][];
+    int k = 0;
+    for (Map.Entry<Integer, float[]> entry : compiler._loaded.entrySet()) {
+      _loadedInputs[k] = entry.getKey();
+      _loadedBuffers[k] = entry.getValue();
+      k++;
+    }
+  }
+
+  public List<String> getInputNames() {
+    return _inputNames;
+  }
+
+  /**
+   * Evaluate column major input
+   * @param columns columns[i][row] is the value of the i-th input for that row
+   * @param numRows number of rows to evaluate
+   * @param output receives one value per row
+   */
+  public void evaluate(float[][] columns, int numRows, float[] output) {
+    for (int start = 0; start < numRows; start += BLOCK_SIZE) {
+      int length = Math.min(BLOCK_SIZE, numRows - start);
+
+      for (int k = 0; k < _loadedInputs.length; k++) {
+        System.arraycopy(columns[_loadedInputs[k]], start, _loadedBuffers[k], 0, length);
+      }
+
+      run(length, output, start);
+    }
+  }
+
+  /**
+   * Evaluate row major input
+   * @param rows rows[row * numInputs + i] is the value of the i-th input for that row
+   * @param numRows number of rows to evaluate
+   * @param output receives one value per row
+   */
+  public void evaluateRows(float[] rows, int numRows, float[] output) {
+    final int stride = _inputNames.size();
+
+    for (int start = 0; start < numRows; start += BLOCK_SIZE) {
+      int length = Math.min(BLOCK_SIZE, numRows - start);
+
+      for (int k = 0; k < _loadedInputs.length; k++) {
+        float[] buffer = _loadedBuffers[k];
+        int offset = start * stride + _loadedInputs[k];
+        for (int i = 0; i < length; i++, offset += stride) {
+          buffer[i] = rows[offset];
+        }
+      }
+
+      run(length, output, start);
+    }
+  }
+
+  private void run(int length, float[] output, int start) {
+    for (Step step : _steps) {
+      step._operator.calculate(step._operands, step._result, length);
+    }
+    System.arraycopy(_result, 0, output, start, length);
+  }
+
+  /**
+   * One operator applied to a block: operand buffers in, result buffer out
+   */
+  private static class Step {
+    private final Operator _operator;
+    private final float[][] _operands;
+    private final float[] _result;
+
+    Step(Operator operator, float[][] operands, float[] result) {
+      this._operator = operator;
+      this._operands = operands;
+      this._result = result;
+    }
+  }
+
+  /**
+   * Assigns buffers to the nodes of the tree in post-order
+   *   constants get a buffer filled once, inputs a buffer loaded per block,
+   *   operators a temporary buffer released to the pool once the parent operator has been scheduled,
+   *   let bindings keep the buffer of their value for every reference in the body
+   */
+  private class Compiler {
+    private final List<Step> _steps = new ArrayList<Step>();
+    private final Map<Integer, float[]> _loaded = new HashMap<Integer, float[]>();
+    private final Map<Float, float[]> _constants = new HashMap<Float, float[]>();
+    private final Map<float[], Boolean> _temporary = new IdentityHashMap<float[], Boolean>();
+    private final Deque<float[]> _pool = new ArrayDeque<float[]>();
+    private final Map<LocalVariable, float[]> _locals = new IdentityHashMap<LocalVariable, float[]>();
+
+    float[] compile(Expr expr) {
+      if (expr instanceof LocalVariable) {
+        return _locals.get(expr);
+      }
+
+      if (expr instanceof VectorVariable) {
+        throw new UnsupportedOperationException("Vector variables can't be input columns: " + expr);
+      }
+
+      if (expr instanceof Variable) {
+        int column = _inputNames.indexOf(((Variable) expr).getName());
+        if (column < 0) {
+          return constant(0);
+        }
+        if (!_loaded.containsKey(column)) {
+          _loaded.put(column, new float[BLOCK_SIZE]);
+        }
+        return _loaded.get(column);
+      }
+
+      if (!(expr instanceof Expression)) {
+        return constant((float) expr.evaluate());
+      }
+
+      Expression expression = (Expression) expr;
+      List<Expr> children = expression.getOperands();
+
+      if (expression.getOperator() == Operator.LET) {
+        final int last = children.size() - 1;
+        for (int k = 0; k < last; k += 2) {
+          float[] value = compile(children.get(k + 1));
+          _temporary.remove(value);   // read by every reference to the name, never reused
+          _locals.put((LocalVariable) children.get(k), value);
+        }
+        return compile(children.get(last));
+      }
+
+      float[][] operands = new float[children.size()][];
+
+      for (int k = 0; k < operands.length; k++) {
+        operands[k] = compile(children.get(k));
+      }
+      for (float[] operand : operands) {
+        if (_temporary.remove(operand) != null) {
+          _pool.push(operand);
+        }
+      }
+
+      float[] result = _pool.isEmpty() ? new float[BLOCK_SIZE] : _pool.pop();
+      _temporary.put(result, Boolean.TRUE);
+      _steps.add(new Step(expression.getOperator(), operands, result));
+
+      return result;
+    }
+
+    private float[] constant(float value) {
+      float[] buffer = _constants.get(value);
+      if (buffer == null) {
+        buffer = new float[BLOCK_SIZE];
+        Arrays.fill(buffer, value);
+        _constants.put(value, buffer);
+      }
+      return buffer;
+    }
+  }
+}
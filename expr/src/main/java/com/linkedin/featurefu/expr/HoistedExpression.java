@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+
+/**
+ * An expression split into request-invariant subtrees, computed once per request, and the per-candidate rest
+ *
+ * In a ranking request, query and member variables are the same for every candidate, so subtrees such as
+ *   (log2 (+ 1 member_connections)) don't need to be evaluated per candidate. Callers tag the request-scoped
+ *   variables; every largest subtree depending only on them (and constants) is replaced by a slot in the per-candidate
+ *   expression. Subtrees with non-deterministic operators or let-bound names are never hoisted.
+ *
+ * Usage: bind the request variables and call prepare(), then for each candidate bind its variables and evaluate().
+ */
+public class HoistedExpression {
+  private final Expr _itemExpr;
+  private final List<Expr> _hoisted = new ArrayList<Expr>();
+  private final List<Slot> _slots = new ArrayList<Slot>();
+
+  /**
+   * @param expr expression to split, left untouched
+   * @param requestVariables names of the variables fixed for a whole request, the others are per candidate
+   */
+  public HoistedExpression(Expr expr, Set<String> requestVariables) {
+    this._itemExpr = hoist(expr, requestVariables);
+  }
+
+  /**
+   * Evaluate the request-invariant subtrees, once the request variables are bound
+   */
+  public void prepare() {
+    for (int i = 0; i < _slots.size(); i++) {
+      _slots.get(i).setValue(_hoisted.get(i).evaluate());
+    }
+  }
+
+  /**
+   * Evaluate for the candidate whose variables are bound, using the values computed by the last prepare()
+   */
+  public double evaluate() {
+    return _itemExpr.evaluate();
+  }
+
+  /**
+   * @return the per-candidate expression, hoisted subtrees print as $0, $1...
+   */
+  public Expr getItemExpression() {
+    return _itemExpr;
+  }
+
+  /**
+   * @return the request-invariant subtrees, in slot order
+   */
+  public List<Expr> getHoisted() {
+    return Collections.unmodifiableList(_hoisted);
+  }
+
+  private Expr hoist(Expr expr, Set<String> requestVariables) {
+    if (!(expr instanceof Expression)) {
+      return expr;
+    }
+    if (isInvariant(expr, requestVariables)) {
+      Slot slot = new Slot("$" + _slots.size());
+      _hoisted.add(expr);
+      _slots.add(slot);
+      return slot;
+    }
+
+    Expression expression = (Expression) expr;
+    List<Expr> operands = new ArrayList<Expr>();
+    for (Expr operand : expression.getOperands()) {
+      operands.add(hoist(operand, requestVariables));
+    }
+    return SpecializedNodes.create(expression.getOperator().instantiate(), operands);
+  }
+
+  private static boolean isInvariant(Expr expr, Set<String> requestVariables) {
+    if (expr instanceof Variable) {
+      return requestVariables.contains(((Variable) expr).getName());
+    }
+    if (expr instanceof LocalVariable) {
+      return false;
+    }
+    if (!(expr instanceof Expression)) {
+      return true;
+    }
+
+    Expression expression = (Expression) expr;
+    if (!expression.getOperator().isDeterministic() || expression.getOperator() == Operator.LET) {
+      return false;
+    }
+    for (Expr operand : expression.getOperands()) {
+      if (!isInvariant(operand, requestVariables)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Value of a hoisted subtree, constant for the candidates of a request
+   */
+  private static class Slot extends Atom {
+    private final String _name;
+
+    Slot(String name) {
+      this._name = name;
+    }
+
+    void setValue(double v) {
+      _value = v;
+    }
+
+    public String toString() {
+      return _name;
+    }
+  }
+}
@@ -0,0 +1,502 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.InputMismatchException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+
+/**
+ * Ahead-of-time compiler from expression definitions to Java source, one class per definition file
+ *
+ * Definition files hold one feature per line, "name = s-expression", continuation lines start with whitespace,
+ *   blank lines and lines starting with # are ignored. Each feature becomes a static method computing it with plain
+ *   Java arithmetic (let bindings become private helper methods), taking an Inputs object with one typed accessor per
+ *   variable, so nothing is parsed or interpreted at runtime.
+ *
+ * Generated code evaluates like the interpreter, operator for operator, after the definitions went through
+ *   ExpressionOptimizer. Approximate operators call ApproxMath, rand and rand-in call the shared Operator objects so
+ *   they draw from the same generator. Operators without a Java translation (custom ones) are rejected.
+ *
+ * The expr build runs it over src/features/expressions (task generateFeatureSources) and packages the classes:
+ *   java com.linkedin.featurefu.expr.JavaSourceGenerator input-dir output-dir package [approximate]
+ */
+public final class JavaSourceGenerator {
+  public static final String DEFINITION_SUFFIX = ".expr";
+
+  private static final Set<String> KEYWORDS = new HashSet<String>(Arrays.asList("abstract", "assert", "boolean",
+      "break", "byte", "case", "catch", "char", "class", "const", "continue", "default", "do", "double", "else", "enum",
+      "extends", "false", "final", "finally", "float", "for", "goto", "if", "implements", "import", "instanceof", "int",
+      "interface", "long", "native", "new", "null", "package", "private", "protected", "public", "return", "short",
+      "static", "strictfp", "super", "switch", "synchronized", "this", "throw", "throws", "transient", "true", "try",
+      "void", "volatile", "while", "in", "evaluate", "set", "get", "FEATURES", "INPUTS"));
+
+  /**
+   * operator -> Java template, %1$s to %3$s are the translated operands
+   */
+  private static final Map<Operator, String> _templates = new IdentityHashMap<Operator, String>();
+
+  static {
+    _templates.put(Operator.EQ, "(%1$s == %2$s ? 1.0 : 0.0)");
+    _templates.put(Operator.NE, "(%1$s != %2$s ? 1.0 : 0.0)");
+    _templates.put(Operator.GT, "(%1$s > %2$s ? 1.0 : 0.0)");
+    _templates.put(Operator.GT_EQ, "(%1$s >= %2$s ? 1.0 : 0.0)");
+    _templates.put(Operator.LT, "(%1$s < %2$s ? 1.0 : 0.0)");
+    _templates.put(Operator.LT_EQ, "(%1$s <= %2$s ? 1.0 : 0.0)");
+    _templates.put(Operator.AND, "(%1$s != 0 && %2$s != 0 ? 1.0 : 0.0)");
+    _templates.put(Operator.OR, "(%1$s != 0 || %2$s != 0 ? 1.0 : 0.0)");
+    _templates.put(Operator.NOT, "(%1$s != 0 ? 0.0 : 1.0)");
+    _templates.put(Operator.ADD, "(%1$s + %2$s)");
+    _templates.put(Operator.SUBTRACT, "(%1$s - %2$s)");
+    _templates.put(Operator.MULTIPLY, "(%1$s * %2$s)");
+    _templates.put(Operator.DIVIDE, "(%1$s / %2$s)");
+    _templates.put(Operator.MOD, "(%1$s %% %2$s)");
+    _templates.put(Operator.UNARY_MINUS, "(-%1$s)");
+    _templates.put(Operator.POWER, "Math.pow(%1$s, %2$s)");
+    _templates.put(Operator.LN, "Math.log(%1$s)");
+    _templates.put(Operator.LN1PLUS, "Math.log(1 + %1$s)");
+    _templates.put(Operator.LOG2, "(Math.log(%1$s) / LN_2)");
+    _templates.put(Operator.EXP, "Math.exp(%1$s)");
+    _templates.put(Operator.SIGMOID, "(1.0 / (1 + Math.exp(-%1$s)))");
+    _templates.put(Operator.TANH, "Math.tanh(%1$s)");
+    _templates.put(Operator.SIN, "Math.sin(%1$s)");
+    _templates.put(Operator.COS, "Math.cos(%1$s)");
+    _templates.put(Operator.TAN, "Math.tan(%1$s)");
+    _templates.put(Operator.MAX, "Math.max(%1$s, %2$s)");
+    _templates.put(Operator.MIN, "Math.min(%1$s, %2$s)");
+    _templates.put(Operator.ABS, "Math.abs(%1$s)");
+    _templates.put(Operator.SIGN, "Math.signum(%1$s)");
+    _templates.put(Operator.FLOOR, "Math.floor(%1$s)");
+    _templates.put(Operator.CEIL, "Math.ceil(%1$s)");
+    _templates.put(Operator.ROUND, "((double) Math.round(%1$s))");
+    _templates.put(Operator.SQRT, "Math.sqrt(%1$s)");
+    _templates.put(Operator.IF, "(%1$s != 0 ? %2$s : %3$s)");
+    _templates.put(Operator.IN, "in(%1$s, %2$s, %3$s)");
+    _templates.put(Operator.RAND, "Operator.RAND.calculate(java.util.Collections.<Expr>emptyList())");
+    _templates.put(Operator.RANDIN, "Operator.RANDIN.calculate(java.util.Arrays.<Expr>asList(new Constant(%1$s), "
+        + "new Constant(%2$s)))");
+    _templates.put(ApproximateOperators.POWER, "ApproxMath.pow(%1$s, %2$s)");
+    _templates.put(ApproximateOperators.LN, "ApproxMath.log(%1$s)");
+    _templates.put(ApproximateOperators.LN1PLUS, "ApproxMath.log1plus(%1$s)");
+    _templates.put(ApproximateOperators.LOG2, "ApproxMath.log2(%1$s)");
+    _templates.put(ApproximateOperators.EXP, "ApproxMath.exp(%1$s)");
+    _templates.put(ApproximateOperators.SIGMOID, "ApproxMath.sigmoid(%1$s)");
+    _templates.put(ApproximateOperators.TANH, "ApproxMath.tanh(%1$s)");
+    _templates.put(ApproximateOperators.SIN, "ApproxMath.sin(%1$s)");
+    _templates.put(ApproximateOperators.COS, "ApproxMath.cos(%1$s)");
+  }
+
+  private JavaSourceGenerator() {
+  }
+
+  /**
+   * Read feature definitions, "name = s-expression" per line
+   * @param reader definition file content
+   * @return feature name -> s-expression, in file order
+   */
+  public static Map<String, String> readDefinitions(Reader reader) throws IOException {
+    Map<String, String> definitions = new LinkedHashMap<String, String>();
+    BufferedReader lines = new BufferedReader(reader);
+    String name = null;
+
+    for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+      if (line.trim().isEmpty() || line.trim().startsWith("#")) {
+        continue;
+      }
+
+      if (Character.isWhitespace(line.charAt(0)) && name != null) {
+        definitions.put(name, definitions.get(name) + " " + line.trim());
+        continue;
+      }
+
+      int equals = line.indexOf('=');
+      if (equals <= 0) {
+        throw new InputMismatchException("Expected name = s-expression, found: " + line);
+      }
+      name = line.substring(0, equals).trim();
+      if (definitions.containsKey(name)) {
+        throw new InputMismatchException("Feature defined twice: " + name);
+      }
+      definitions.put(name, line.substring(equals + 1).trim());
+    }
+
+    return definitions;
+  }
+
+  /**
+   * Generate the source of a class with one static method per feature
+   * @param packageName package of the class, empty for the default package
+   * @param className simple class name
+   * @param definitions feature name -> s-expression
+   * @param mathMode precision of the transcendental operators
+   * @return Java source
+   */
+  public static String generate(String packageName, String className, Map<String, String> definitions,
+      MathMode mathMode) {
+    VariableRegistry registry = new VariableRegistry();
+    Map<String, Expr> features = new LinkedHashMap<String, Expr>();
+
+    for (Map.Entry<String, String> definition : definitions.entrySet()) {
+      Expr expr = Expression.parse(definition.getValue(), registry);
+      if (expr == null) {
+        throw new IllegalArgumentException("empty definition for feature " + definition.getKey());
+      }
+      expr = ExpressionOptimizer.optimize(expr);
+      features.put(definition.getKey(), mathMode == MathMode.APPROXIMATE ? ApproximateOperators.approximate(expr) : expr);
+    }
+
+    return new ClassWriter(packageName, className, registry).write(features);
+  }
+
+  /**
+   * Generate the source of a class computing the given expressions as they are, without optimizing them
+   */
+  public static String generate(String packageName, String className, Map<String, Expr> features,
+      VariableRegistry registry) {
+    return new ClassWriter(packageName, className, registry).write(features);
+  }
+
+  /**
+   * Generate one class per definition file of a directory
+   * @param args input directory, output source directory, package name, and optionally "approximate"
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 3) {
+      System.err.println("Usage: JavaSourceGenerator input-dir output-dir package [approximate]");
+      System.exit(1);
+    }
+
+    File inputDir = new File(args[0]);
+    String packageName = args[2];
+    MathMode mathMode = args.length > 3 && args[3].equalsIgnoreCase("approximate") ? MathMode.APPROXIMATE : MathMode.EXACT;
+    File outputDir = new File(args[1], packageName.replace('.', File.separatorChar));
+
+    File[] files = inputDir.listFiles();
+    if (files == null) {
+      return;
+    }
+
+    Arrays.sort(files);
+    for (File file : files) {
+      if (!file.getName().endsWith(DEFINITION_SUFFIX)) {
+        continue;
+      }
+
+      String baseName = file.getName().substring(0, file.getName().length() - DEFINITION_SUFFIX.length());
+      String className = capitalize(identifier(baseName));
+      Map<String, String> definitions;
+      Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+      try {
+        definitions = readDefinitions(reader);
+      } finally {
+        reader.close();
+      }
+
+      if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+        throw new IOException("Cannot create " + outputDir);
+      }
+      Writer writer = new OutputStreamWriter(new FileOutputStream(new File(outputDir, className + ".java")), "UTF-8");
+      try {
+        writer.write(generate(packageName, className, definitions, mathMode));
+      } finally {
+        writer.close();
+      }
+    }
+  }
+
+  /**
+   * camelCase Java identifier for a feature or variable name, e.g. member.age -> memberAge
+   */
+  static String identifier(String name) {
+    StringBuilder builder = new StringBuilder();
+    boolean upper = false;
+
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if (Character.isLetterOrDigit(c)) {
+        builder.append(upper && builder.length() > 0 ? Character.toUpperCase(c) : c);
+        upper = false;
+      } else {
+        upper = true;
+      }
+    }
+
+    if (builder.length() == 0 || !Character.isJavaIdentifierStart(builder.charAt(0))) {
+      builder.insert(0, '_');
+    }
+    return KEYWORDS.contains(builder.toString()) ? builder + "_" : builder.toString();
+  }
+
+  private static String capitalize(String identifier) {
+    return Character.toUpperCase(identifier.charAt(0)) + identifier.substring(1);
+  }
+
+  private static String literal(double value) {
+    if (Double.isNaN(value)) {
+      return "Double.NaN";
+    }
+    if (Double.isInfinite(value)) {
+      return value > 0 ? "Double.POSITIVE_INFINITY" : "Double.NEGATIVE_INFINITY";
+    }
+    String literal = Double.toString(value);
+    return literal.startsWith("-") ? "(" + literal + ")" : literal;
+  }
+
+  private static String quote(String s) {
+    return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+
+  /**
+   * Writes one class, naming the methods and fields uniquely
+   */
+  private static class ClassWriter {
+    private final String _packageName;
+    private final String _className;
+    private final Map<String, String> _fields = new LinkedHashMap<String, String>();  // variable name -> field
+    private final Set<String> _used = new HashSet<String>();
+    private final StringBuilder _helpers = new StringBuilder();
+    private final StringBuilder _sets = new StringBuilder();   // sorted member arrays of in-set nodes
+    private int _lets = 0;
+    private int _setCount = 0;
+
+    ClassWriter(String packageName, String className, VariableRegistry registry) {
+      this._packageName = packageName;
+      this._className = className;
+
+      List<String> names = new ArrayList<String>(registry.keySet());
+      Collections.sort(names);
+      for (String name : names) {
+        _fields.put(name, unique(identifier(name)));
+      }
+    }
+
+    /**
+     * Accessors capitalize field names, so names only differing in case are made unique too
+     */
+    private String unique(String identifier) {
+      String result = identifier;
+      for (int i = 2; !_used.add(result.toLowerCase()); i++) {
+        result = identifier + i;
+      }
+      return result;
+    }
+
+    String write(Map<String, Expr> features) {
+      Map<String, String> methods = new LinkedHashMap<String, String>();
+      Map<String, String> bodies = new LinkedHashMap<String, String>();
+      for (Map.Entry<String, Expr> feature : features.entrySet()) {
+        String method = unique(identifier(feature.getKey()));
+        methods.put(feature.getKey(), method);
+        bodies.put(method, translate(feature.getValue(), new IdentityHashMap<LocalVariable, String>()));
+      }
+      Map<String, String> comments = new LinkedHashMap<String, String>();
+      for (Map.Entry<String, Expr> feature : features.entrySet()) {
+        comments.put(feature.getKey(), (feature.getKey() + " = " + feature.getValue()).replace("*/", "* /"));
+      }
+
+      StringBuilder out = new StringBuilder();
+      out.append("// Generated by ").append(JavaSourceGenerator.class.getName()).append(", do not edit\n");
+      if (!_packageName.isEmpty()) {
+        out.append("package ").append(_packageName).append(";\n");
+      }
+      out.append("\nimport com.linkedin.featurefu.expr.ApproxMath;\n");
+      out.append("import com.linkedin.featurefu.expr.Constant;\n");
+      out.append("import com.linkedin.featurefu.expr.Expr;\n");
+      out.append("import com.linkedin.featurefu.expr.Operator;\n\n");
+      out.append("public final class ").append(_className).append(" {\n");
+
+      out.append("  public static final String[] FEATURES = {");
+      appendNames(out, methods.keySet());
+      out.append("};\n");
+      out.append("  public static final String[] INPUTS = {");
+      appendNames(out, _fields.keySet());
+      out.append("};\n\n");
+      out.append("  private static final double LN_2 = Math.log(2);\n");
+      out.append(_sets).append("\n");
+      out.append("  private ").append(_className).append("() {\n  }\n\n");
+
+      out.append("  /**\n   * Feature inputs, 0 until set\n   */\n");
+      out.append("  public static final class Inputs {\n");
+      for (String field : _fields.values()) {
+        out.append("    private double ").append(field).append(";\n");
+      }
+      for (String field : _fields.values()) {
+        out.append("\n    public double get").append(capitalize(field)).append("() {\n");
+        out.append("      return ").append(field).append(";\n    }\n");
+        out.append("\n    public Inputs set").append(capitalize(field)).append("(double value) {\n");
+        out.append("      ").append(field).append(" = value;\n      return this;\n    }\n");
+      }
+      out.append("\n    /**\n     * Set an input by its name in the definitions, unknown names are ignored\n     */\n");
+      out.append("    public Inputs set(String name, double value) {\n");
+      for (Map.Entry<String, String> field : _fields.entrySet()) {
+        out.append("      if (name.equals(").append(quote(field.getKey())).append(")) {\n");
+        out.append("        ").append(field.getValue()).append(" = value;\n      }\n");
+      }
+      out.append("      return this;\n    }\n  }\n");
+
+      for (Map.Entry<String, String> method : methods.entrySet()) {
+        out.append("\n  /**\n   * ").append(comments.get(method.getKey())).append("\n   */\n");
+        out.append("  public static double ").append(method.getValue()).append("(Inputs in) {\n");
+        out.append("    return ").append(bodies.get(method.getValue())).append(";\n  }\n");
+      }
+
+      out.append("\n  /**\n   * Evaluate every feature, in the order of FEATURES\n   */\n");
+      out.append("  public static void evaluate(Inputs in, double[] output) {\n");
+      int i = 0;
+      for (String method : methods.values()) {
+        out.append("    output[").append(i++).append("] = ").append(method).append("(in);\n");
+      }
+      out.append("  }\n");
+
+      out.append("\n  private static double in(double check, double low, double high) {\n");
+      out.append("    return check >= low && check < high ? 1.0 : 0.0;\n  }\n");
+      if (_setCount > 0) {
+        out.append("\n  private static double inSet(double x, double[] members) {\n");
+        out.append("    int low = 0;\n    int high = members.length - 1;\n");
+        out.append("    while (low <= high) {\n      int middle = (low + high) >>> 1;\n");
+        out.append("      if (members[middle] < x) {\n        low = middle + 1;\n");
+        out.append("      } else if (members[middle] > x) {\n        high = middle - 1;\n");
+        out.append("      } else {\n        return members[middle] == x ? 1.0 : 0.0;\n      }\n    }\n    return 0.0;\n  }\n");
+      }
+      out.append(_helpers);
+      out.append("}\n");
+
+      return out.toString();
+    }
+
+    private void appendNames(StringBuilder out, Iterable<String> names) {
+      boolean first = true;
+      for (String name : names) {
+        out.append(first ? "" : ", ").append(quote(name));
+        first = false;
+      }
+    }
+
+    /**
+     * @param locals let slots in scope -> parameter name of the enclosing helper method
+     */
+    private String translate(Expr expr, Map<LocalVariable, String> locals) {
+      if (expr instanceof LocalVariable) {
+        return locals.get(expr);
+      }
+      if (expr instanceof Variable) {
+        return "in." + _fields.get(((Variable) expr).getName());
+      }
+      if (!(expr instanceof Expression)) {
+        return literal(expr.evaluate());
+      }
+
+      Expression expression = (Expression) expr;
+      Operator operator = expression.getOperator();
+      List<Expr> operands = expression.getOperands();
+
+      if (operator == Operator.LET) {
+        return let(operands, 0, locals);
+      }
+      if (operator instanceof SetMembership) {
+        return inSet(operands, locals);
+      }
+
+      String template = _templates.get(operator);
+      if (template == null) {
+        throw new UnsupportedOperationException("No Java translation for operator " + operator.getSymbol());
+      }
+
+      Object[] args = new Object[operands.size()];
+      for (int i = 0; i < args.length; i++) {
+        args[i] = translate(operands.get(i), locals);
+      }
+      return String.format(template, args);
+    }
+
+    /**
+     * Members become a sorted array field searched by bisection, NaN dropped and -0.0 folded into 0.0 as the
+     *   interpreter compares them with ==
+     */
+    private String inSet(List<Expr> operands, Map<LocalVariable, String> locals) {
+      TreeSet<Double> members = new TreeSet<Double>();
+      for (Expr member : operands.subList(1, operands.size())) {
+        double value = member.evaluate();
+        if (!Double.isNaN(value)) {
+          members.add(value == 0 ? 0.0 : value);
+        }
+      }
+
+      String field = "SET$" + (_setCount++);
+      _sets.append("  private static final double[] ").append(field).append(" = {");
+      boolean first = true;
+      for (double member : members) {
+        _sets.append(first ? "" : ", ").append(literal(member));
+        first = false;
+      }
+      _sets.append("};\n");
+
+      return "inSet(" + translate(operands.get(0), locals) + ", " + field + ")";
+    }
+
+    /**
+     * Bindings from the first-th on become a helper method taking the value of the first binding, the slots already
+     *   in scope are passed along, so the value is computed once and only when the let is evaluated
+     */
+    private String let(List<Expr> operands, int first, Map<LocalVariable, String> locals) {
+      final int last = operands.size() - 1;
+      if (first == last) {
+        return translate(operands.get(last), locals);
+      }
+
+      String value = translate(operands.get(first + 1), locals);
+      String helper = "let$" + (_lets++);
+
+      StringBuilder parameters = new StringBuilder("Inputs in");
+      StringBuilder arguments = new StringBuilder("in");
+      Map<LocalVariable, String> inner = new IdentityHashMap<LocalVariable, String>();
+      int index = 0;
+      for (Map.Entry<LocalVariable, String> local : locals.entrySet()) {
+        String parameter = "l" + (index++);
+        parameters.append(", double ").append(parameter);
+        arguments.append(", ").append(local.getValue());
+        inner.put(local.getKey(), parameter);
+      }
+      String parameter = "l" + index;
+      parameters.append(", double ").append(parameter);
+      arguments.append(", ").append(value);
+      inner.put((LocalVariable) operands.get(first), parameter);
+
+      String body = let(operands, first + 2, inner);
+      _helpers.append("\n  private static double ").append(helper).append("(").append(parameters).append(") {\n");
+      _helpers.append("    return ").append(body).append(";\n  }\n");
+
+      return helper + "(" + arguments + ")";
+    }
+  }
+}
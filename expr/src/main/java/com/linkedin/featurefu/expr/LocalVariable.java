@@ -0,0 +1,43 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+/**
+ *
+ * Name bound by a let expression, e.g. ctr in (let ((ctr (/ (+ clicks 1) (+ views 10)))) (* ctr (> ctr 0.1)))
+ *
+ * The let sets its value once per evaluation, before evaluating the body. It belongs to the expression tree rather
+ *   than to a VariableRegistry, so it never shadows or leaks into the inputs, and like the rest of the tree it is
+ *   evaluated by one thread at a time (FeatureSet instances get their own copies).
+ */
+public class LocalVariable extends Atom {
+  private final String _name;
+
+  protected LocalVariable(String name) {
+    this._name = name;
+  }
+
+  void setValue(double v) {
+    _value = v;
+  }
+
+  public String getName() {
+    return _name;
+  }
+
+  public String toString() {
+    return _name;
+  }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+/**
+ * Precision of the transcendental operators (exp, sigmoid, tanh, ln, ln1plus, log2, **, sin, cos) of a parsed expression
+ *
+ *  EXACT:       java.lang.Math, the default
+ *  APPROXIMATE: polynomial kernels from ApproxMath, with documented error bounds, measured on a JDK 17 HotSpot to
+ *               take 10-25% less time for exp and sigmoid, a bit more for ln, log2, sin and cos, and a tenth of it for
+ *               tanh (see ApproxMath)
+ */
+public enum MathMode {
+  EXACT,
+  APPROXIMATE
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+
+/**
+ * Numbering of the built-in and approximate operators, for evaluators that dispatch with a switch instead of calling
+ *   Operator.calculate (CompactExpression, SpecializedNodes)
+ */
+final class Opcodes {
+  static final byte CONSTANT = 0;
+  static final byte LOAD = 1;
+  static final byte CALL = 2;
+  static final byte LET = 3;
+  static final byte EQ = 4;
+  static final byte NE = 5;
+  static final byte GT = 6;
+  static final byte GT_EQ = 7;
+  static final byte LT = 8;
+  static final byte LT_EQ = 9;
+  static final byte AND = 10;
+  static final byte OR = 11;
+  static final byte NOT = 12;
+  static final byte ADD = 13;
+  static final byte SUBTRACT = 14;
+  static final byte MULTIPLY = 15;
+  static final byte DIVIDE = 16;
+  static final byte MOD = 17;
+  static final byte UNARY_MINUS = 18;
+  static final byte POWER = 19;
+  static final byte LN = 20;
+  static final byte LN1PLUS = 21;
+  static final byte LOG2 = 22;
+  static final byte EXP = 23;
+  static final byte SIGMOID = 24;
+  static final byte TANH = 25;
+  static final byte SIN = 26;
+  static final byte COS = 27;
+  static final byte TAN = 28;
+  static final byte MAX = 29;
+  static final byte MIN = 30;
+  static final byte ABS = 31;
+  static final byte SIGN = 32;
+  static final byte FLOOR = 33;
+  static final byte CEIL = 34;
+  static final byte ROUND = 35;
+  static final byte SQRT = 36;
+  static final byte IF = 37;
+  static final byte IN = 38;
+  static final byte IN_SET = 39;
+  static final byte APPROX_POWER = 40;
+  static final byte APPROX_LN = 41;
+  static final byte APPROX_LN1PLUS = 42;
+  static final byte APPROX_LOG2 = 43;
+  static final byte APPROX_EXP = 44;
+  static final byte APPROX_SIGMOID = 45;
+  static final byte APPROX_TANH = 46;
+  static final byte APPROX_SIN = 47;
+  static final byte APPROX_COS = 48;
+
+  private static final Map<Operator, Byte> _opcodes = new IdentityHashMap<Operator, Byte>();
+
+  static {
+    _opcodes.put(Operator.LET, LET);
+    _opcodes.put(Operator.EQ, EQ);
+    _opcodes.put(Operator.NE, NE);
+    _opcodes.put(Operator.GT, GT);
+    _opcodes.put(Operator.GT_EQ, GT_EQ);
+    _opcodes.put(Operator.LT, LT);
+    _opcodes.put(Operator.LT_EQ, LT_EQ);
+    _opcodes.put(Operator.AND, AND);
+    _opcodes.put(Operator.OR, OR);
+    _opcodes.put(Operator.NOT, NOT);
+    _opcodes.put(Operator.ADD, ADD);
+    _opcodes.put(Operator.SUBTRACT, SUBTRACT);
+    _opcodes.put(Operator.MULTIPLY, MULTIPLY);
+    _opcodes.put(Operator.DIVIDE, DIVIDE);
+    _opcodes.put(Operator.MOD, MOD);
+    _opcodes.put(Operator.UNARY_MINUS, UNARY_MINUS);
+    _opcodes.put(Operator.POWER, POWER);
+    _opcodes.put(Operator.LN, LN);
+    _opcodes.put(Operator.LN1PLUS, LN1PLUS);
+    _opcodes.put(Operator.LOG2, LOG2);
+    _opcodes.put(Operator.EXP, EXP);
+    _opcodes.put(Operator.SIGMOID, SIGMOID);
+    _opcodes.put(Operator.TANH, TANH);
+    _opcodes.put(Operator.SIN, SIN);
+    _opcodes.put(Operator.COS, COS);
+    _opcodes.put(Operator.TAN, TAN);
+    _opcodes.put(Operator.MAX, MAX);
+    _opcodes.put(Operator.MIN, MIN);
+    _opcodes.put(Operator.ABS, ABS);
+    _opcodes.put(Operator.SIGN, SIGN);
+    _opcodes.put(Operator.FLOOR, FLOOR);
+    _opcodes.put(Operator.CEIL, CEIL);
+    _opcodes.put(Operator.ROUND, ROUND);
+    _opcodes.put(Operator.SQRT, SQRT);
+    _opcodes.put(Operator.IF, IF);
+    _opcodes.put(Operator.IN, IN);
+    _opcodes.put(ApproximateOperators.POWER, APPROX_POWER);
+    _opcodes.put(ApproximateOperators.LN, APPROX_LN);
+    _opcodes.put(ApproximateOperators.LN1PLUS, APPROX_LN1PLUS);
+    _opcodes.put(ApproximateOperators.LOG2, APPROX_LOG2);
+    _opcodes.put(ApproximateOperators.EXP, APPROX_EXP);
+    _opcodes.put(ApproximateOperators.SIGMOID, APPROX_SIGMOID);
+    _opcodes.put(ApproximateOperators.TANH, APPROX_TANH);
+    _opcodes.put(ApproximateOperators.SIN, APPROX_SIN);
+    _opcodes.put(ApproximateOperators.COS, APPROX_COS);
+  }
+
+  private Opcodes() {
+  }
+
+  /**
+   * @return opcode of the operator, CALL if it has none and must be evaluated with Operator.calculate
+   */
+  static byte of(Operator operator) {
+    Byte code = _opcodes.get(operator);
+    if (code == null) {   // in-set has an instance per parsed node
+      return operator instanceof SetMembership && ((SetMembership) operator).isIndexed() ? IN_SET : CALL;
+    }
+    return code;
+  }
+}
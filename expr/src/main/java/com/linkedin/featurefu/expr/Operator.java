@@ -15,7 +15,10 @@
 package com.linkedin.featurefu.expr;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.InputMismatchException;
 import java.util.List;
+import java.util.Map;
 import java.util.MissingFormatArgumentException;
 import java.util.Random;
 
@@ -39,10 +42,15 @@ public abstract class Operator {
    */
   public abstract double calculate(List<Expr> operands);
 
+  /**
+   * numberOfOperands() of an operator taking any number of operands, printed as (symbol operand1 operand2 ...)
+   */
+  public static final int VARIABLE_OPERANDS = -1;
+
   /**
    * Number of operands required for this operator
    * used for parsing and sanity check purpose
-   * @return The number of operands expected
+   * @return The number of operands expected, VARIABLE_OPERANDS if any number is
    */
   public abstract int numberOfOperands();
 
@@ -53,6 +61,48 @@ public abstract class Operator {
    */
   public abstract String getSymbol();
 
+  /**
+   * Whether the operator always returns the same value for the same operand values and has no side effects
+   *   optimizations only fold, drop or duplicate deterministic operators
+   * @return true unless overridden
+   */
+  public boolean isDeterministic() {
+    return true;
+  }
+
+  /**
+   * Operator to put in a newly parsed or copied node
+   *   stateful operators, such as the streaming ones, return a fresh copy so that every node and every copy of a tree
+   *   keeps its own state
+   * @return this unless overridden
+   */
+  public Operator instantiate() {
+    return this;
+  }
+
+  /**
+   * Single precision, column at a time version of calculate, used by FloatBatchEvaluator
+   *   operands[k][i] is the value of the k-th operand in row i, all of them evaluated (no short-circuiting)
+   *   the default implementation calls calculate() row by row, built-in operators override it with plain loops
+   *   the JIT can vectorize, transcendental functions are computed in double precision and rounded to float
+   * @param operands one column per operand
+   * @param result column receiving the results, may be one of the operand columns
+   * @param length number of rows
+   */
+  public void calculate(float[][] operands, float[] result, int length) {
+    List<Expr> values = new ArrayList<Expr>();
+    for (int k = 0; k < operands.length; k++) {
+      values.add(new Variable(getSymbol() + "$" + k));
+    }
+
+    for (int i = 0; i < length; i++) {
+      for (int k = 0; k < operands.length; k++) {
+        ((Variable) values.get(k)).setValue(operands[k][i]);
+      }
+      result[i] = (float) calculate(values);
+    }
+  }
+
   /**
    * Parse an expr given operator string and operands string, the reason it's delegated here is because
    *  an operator knows how many operands it need
@@ -74,10 +124,10 @@ public abstract class Operator {
                 .getSupported());
       }
 
-      op = OperatorsSupported.getOperator(operator);
+      op = OperatorsSupported.getOperator(operator).instantiate();
     }
 
-    return new Expression(op, op.parseOperands(operands, variableRegistry));
+    return SpecializedNodes.create(op, op.parseOperands(operands, variableRegistry));
   }
 
   /**
@@ -89,7 +139,7 @@ public abstract class Operator {
   protected List<Expr> parseOperands(List<String> operands, VariableRegistry variableRegistry) {
     ArrayList<Expr> list = new ArrayList<Expr>();
 
-    final int numOperands = this.numberOfOperands();
+    final int numOperands = this.numberOfOperands() == VARIABLE_OPERANDS ? operands.size() : this.numberOfOperands();
 
     if (operands.size() != numOperands) {
       throw new MissingFormatArgumentException(
@@ -130,6 +180,14 @@ public abstract class Operator {
     public String getSymbol() {
       return "==";
     }
+
+    public void calculate(float[][] operands, float[] result, int length) {
+      float[] a = operands[0];
+      float[] b = operands[1];
+      for (int i = 0; i < length; i++) {
+        result[i] = a[i] == b[i] ? 1 : 0;
+      }
+    }
   };
 
   public static final Operator NE = new Operator() {
@@ -145,6 +203,14 @@ public abstract class Operator {
     public String getSymbol() {
       return "!=";
     }
+
+    public void calculate(float[][] operands, float[] result, int length) {
+      float[] a = operands[0];
+      float[] b = operands[1];
+      for (int i = 0; i < length; i++) {
+        result[i] = a[i] != b[i] ? 1 : 0;
+      }
+    }
   };
 
   public static final Operator GT = new Operator() {
@@ -160,6 +226,14 @@ public abstract class Operator {
     public String getSymbol() {
       return ">";
     }
+
+    public void calculate(float[][] operands, float[] result, int length) {
+      float[] a = operands[0];
+      float[] b = operands[1];
+      for (int i = 0; i < length; i++) {
+        result[i] = a[i] > b[i] ? 1 : 0;
+      }
+    }
   };
 
   public static final Operator GT_EQ = new Operator() {
@@ -175,6 +249,14 @@ public abstract class Operator {
     public String getSymbol() {
       return ">=";
     }
+
+    public void calculate(float[][] operands, float[] result, int length) {
+      float[] a = operands[0];
+      float[] b = operands[1];
+      for (int i = 0; i < length; i++) {
+        result[i] = a[i] >= b[i] ? 1 : 0;
+      }
+    }
   };
 
   public static final Operator LT = new Operator() {
@@ -190,6 +272,14 @@ public abstract class Operator {
     public String getSymbol() {
       return "<";
     }
+
+    public void calculate(float[][] operands, float[] result, int length) {
+      float[] a = operands[0];
+      float[] b = operands[1];
+      for (int i = 0; i < length; i++) {
+        result[i] = a[i] < b[i] ? 1 : 0;
+      }
+    }
   };
 
   public static final Operator LT_EQ = new Operator() {
@@ -205,6 +295,14 @@ public abstract class Operator {
     public String getSymbol() {
       return "<=";
     }
+
+    public void calculate(float[][] operands, float[] result, int length) {
+      float[] a = operands[0];
+      float[] b = operands[1];
+      for (int i = 0; i < length; i++) {
+        result[i] = a[i] <= b[i] ? 1 : 0;
+      }
+    }
   };
 
   public static final Operator AND = new Operator() {
@@ -220,6 +318,14 @@ public abstract class Operator {
     public String getSymbol() {
       return "&&";
     }
+
+    public void calculate(float[][] operands, float[] result, int length) {
+      float[] a = operands[0];
+      float[] b = operands[1];
+      for (int i = 0; i < length; i++) {
+        result[i] = a[i] != 0 && b[i] != 0 ? 1 : 0;
+      }
+    }
   };
 
   public static final Operator OR = new Operator() {
@@ -235,6 +341,14 @@ public abstract class Operator {
     public String getSymbol() {
       return "||";
     }
+
+    public void calculate(float[][] operands, float[] result, int length) {
+      float[] a = operands[0];
+      float[] b = operands[1];
+      for (int i = 0; i < length; i++) {
+        result[i] = a[i] != 0 || b[i] != 0 ? 1 : 0;
+      }
+    }
   };
 
   public static final Operator ADD = new Operator() {
@@ -250,6 +364,14 @@ public abstract class Operator {
     public String getSymbol() {
       return "+";
     }
+
+    public void calculate(float[][] operands, float[] result, int length) {
+      float[] a = operands[0];
+      float[] b = operands[1];
+      for (int i = 0; i < length; i++) {
+        result[i] = a[i] + b[i];
+      }
+    }
   };
 
   public static final Operator SUBTRACT = new Operator() {
@@ -265,6 +387,14 @@ public abstract class Operator {
     public String getSymbol() {
       return "-";
     }
+
+    public void calculate(float[][] operands, float[] result, int length) {
+      float[] a = operands[0];
+      float[] b = operands[1];
+      for (int i = 0; i < length; i++) {
+        result[i] = a[i] - b[i];
+      }
+    }
   };
 
   public static final Operator MULTIPLY = new Operator() {
@@ -280,6 +410,14 @@ public abstract class Operator {
     public String getSymbol() {
       return "*";
     }
+
+    public void calculate(float[][] operands, float[] result, int length) {
+      float[] a = operands[0];
+      float[] b = operands[1];
+      for (int i = 0; i < length; i++) {
+        result[i] = a[i] * b[i];
+      }
+    }
   };
 
   public static final Operator DIVIDE = new Operator() {
@@ -295,6 +433,14 @@ public abstract class Operator {
     public String getSymbol() {
       return "/";
     }
+
+    public void calculate(float[][] operands, float[] result, int length) {
+      float[] a = operands[0];
+      float[] b = operands[1];
+      for (int i = 0; i < length; i++) {
+        result[i] = a[i] / b[i];
+      }
+    }
   };
 
   public static final Operator POWER = new Operator() {
@@ -310,6 +456,14 @@ public abstract class Operator {
     public String getSymbol() {
       return "**";
     }
+
+    public void calculate(float[][] operands, float[] result, int length) {
+      float[] a = operands[0];
+      float[] b = operands[1];
+      for (int i = 0; i < length; i++) {
+        result[i] = (float) Math.pow(a[i], b[i]);
+      }
+    }
   };
 
   public static final Operator LN = new Operator() {
@@ -325,6 +479,13 @@ public abstract class Operator {
     public String getSymbol() {
       return "ln";
     }
+
+    public void calculate(float[][] operands, float[] result, int length) {
+      float[] a = operands[0];
+      for (int i = 0; i < length; i++) {
+        result[i] = (float) Math.log(a[i]);
+      }
+    }
   };
 
   public static final Operator LN1PLUS = new Operator() {
@@ -340,6 +501,13 @@ public abstract class Operator {
     public String getSymbol() {
       return "ln1plus";
     }
+
+    public void calculate(float[][] operands, float[] result, int length) {
+      float[] a = operands[0];
+      for (int i = 0; i < length; i++) {
+        result[i] = (float) Math.log(1.0 + a[i]);
+      }
+    }
   };
 
   public static final Operator LOG2 = new Operator() {
@@ -355,6 +523,13 @@ public abstract class Operator {
     public String getSymbol() {
       return "log2";
     }
+
+    public void calculate(float[][] operands, float[] result, int length) {
+      float[] a = operands[0];
+      for (int i = 0; i < length; i++) {
+        result[i] = (float) (Math.log(a[i]) / LN_2);
+      }
+    }
   };
 
   public static final Operator MAX = new Operator() {
@@ -370,6 +545,14 @@ public abstract class Operator {
     public String getSymbol() {
       return "max";
     }
+
+    public void calculate(float[][] operands, float[] result, int length) {
+      float[] a = operands[0];
+      float[] b = operands[1];
+      for (int i = 0; i < length; i++) {
+        result[i] = Math.max(a[i], b[i]);
+      }
+    }
   };
 
   public static final Operator MIN = new Operator() {
@@ -385,6 +568,14 @@ public abstract class Operator {
     public String getSymbol() {
       return "min";
     }
+
+    public void calculate(float[][] operands, float[] result, int length) {
+      float[] a = operands[0];
+      float[] b = operands[1];
+      for (int i = 0; i < length; i++) {
+        result[i] = Math.min(a[i], b[i]);
+      }
+    }
   };
 
   public static final Operator ABS = new Operator() {
@@ -400,6 +591,13 @@ public abstract class Operator {
     public String getSymbol() {
       return "abs";
     }
+
+    public void calculate(float[][] operands, float[] result, int length) {
+      float[] a = operands[0];
+      for (int i = 0; i < length; i++) {
+        result[i] = Math.abs(a[i]);
+      }
+    }
   };
 
   public static final Operator UNARY_MINUS = new Operator() {
@@ -415,6 +613,13 @@ public abstract class Operator {
     public String getSymbol() {
       return "unaryMinus";
     }
+
+    public void calculate(float[][] operands, float[] result, int length) {
+      float[] a = operands[0];
+      for (int i = 0; i < length; i++) {
+        result[i] = -a[i];
+      }
+    }
   };
 
   public static final Operator MOD = new Operator() {
@@ -430,6 +635,14 @@ public abstract class Operator {
     public String getSymbol() {
       return "%";
     }
+
+    public void calculate(float[][] operands, float[] result, int length) {
+      float[] a = operands[0];
+      float[] b = operands[1];
+      for (int i = 0; i < length; i++) {
+        result[i] = a[i] % b[i];
+      }
+    }
   };
 
   public static final Operator IF = new Operator() {
@@ -448,6 +661,15 @@ public abstract class Operator {
     public String getSymbol() {
       return "if";
     }
+
+    public void calculate(float[][] operands, float[] result, int length) {
+      float[] a = operands[0];
+      float[] b = operands[1];
+      float[] c = operands[2];
+      for (int i = 0; i < length; i++) {
+        result[i] = a[i] != 0 ? b[i] : c[i];
+      }
+    }
   };
 
   /**
@@ -469,6 +691,10 @@ public abstract class Operator {
     public String getSymbol() {
       return "rand";
     }
+
+    public boolean isDeterministic() {
+      return false;
+    }
   };
 
   /**
@@ -492,6 +718,10 @@ public abstract class Operator {
     public String getSymbol() {
       return "rand-in";
     }
+
+    public boolean isDeterministic() {
+      return false;
+    }
   };
 
   public static final Operator SIGN = new Operator() {
@@ -507,6 +737,13 @@ public abstract class Operator {
     public String getSymbol() {
       return "sign";
     }
+
+    public void calculate(float[][] operands, float[] result, int length) {
+      float[] a = operands[0];
+      for (int i = 0; i < length; i++) {
+        result[i] = Math.signum(a[i]);
+      }
+    }
   };
 
   public static final Operator EXP = new Operator() {
@@ -522,6 +759,13 @@ public abstract class Operator {
     public String getSymbol() {
       return "exp";
     }
+
+    public void calculate(float[][] operands, float[] result, int length) {
+      float[] a = operands[0];
+      for (int i = 0; i < length; i++) {
+        result[i] = (float) Math.exp(a[i]);
+      }
+    }
   };
 
   public static final Operator SIGMOID = new Operator() {
@@ -537,6 +781,13 @@ public abstract class Operator {
     public String getSymbol() {
       return "sigmoid";
     }
+
+    public void calculate(float[][] operands, float[] result, int length) {
+      float[] a = operands[0];
+      for (int i = 0; i < length; i++) {
+        result[i] = (float) (1.0 / (1 + Math.exp(-a[i])));
+      }
+    }
   };
 
   public static final Operator ROUND = new Operator() {
@@ -552,6 +803,13 @@ public abstract class Operator {
     public String getSymbol() {
       return "round";
     }
+
+    public void calculate(float[][] operands, float[] result, int length) {
+      float[] a = operands[0];
+      for (int i = 0; i < length; i++) {
+        result[i] = Math.round((double) a[i]);
+      }
+    }
   };
 
   public static final Operator FLOOR = new Operator() {
@@ -567,6 +825,13 @@ public abstract class Operator {
     public String getSymbol() {
       return "floor";
     }
+
+    public void calculate(float[][] operands, float[] result, int length) {
+      float[] a = operands[0];
+      for (int i = 0; i < length; i++) {
+        result[i] = (float) Math.floor(a[i]);
+      }
+    }
   };
 
   public static final Operator CEIL = new Operator() {
@@ -582,6 +847,13 @@ public abstract class Operator {
     public String getSymbol() {
       return "ceil";
     }
+
+    public void calculate(float[][] operands, float[] result, int length) {
+      float[] a = operands[0];
+      for (int i = 0; i < length; i++) {
+        result[i] = (float) Math.ceil(a[i]);
+      }
+    }
   };
 
   public static final Operator SQRT = new Operator() {
@@ -597,6 +869,13 @@ public abstract class Operator {
     public String getSymbol() {
       return "sqrt";
     }
+
+    public void calculate(float[][] operands, float[] result, int length) {
+      float[] a = operands[0];
+      for (int i = 0; i < length; i++) {
+        result[i] = (float) Math.sqrt(a[i]);
+      }
+    }
   };
 
   public static final Operator NOT = new Operator() {
@@ -612,6 +891,13 @@ public abstract class Operator {
     public String getSymbol() {
       return "!";
     }
+
+    public void calculate(float[][] operands, float[] result, int length) {
+      float[] a = operands[0];
+      for (int i = 0; i < length; i++) {
+        result[i] = a[i] != 0 ? 0 : 1;
+      }
+    }
   };
 
   /**
@@ -632,8 +918,130 @@ public abstract class Operator {
     public String getSymbol() {
       return "in";
     }
+
+    public void calculate(float[][] operands, float[] result, int length) {
+      float[] a = operands[0];
+      float[] b = operands[1];
+      float[] c = operands[2];
+      for (int i = 0; i < length; i++) {
+        result[i] = a[i] >= b[i] && a[i] < c[i] ? 1 : 0;
+      }
+    }
+  };
+
+  /**
+   * (in-set x m1 m2 ...) checks if x equals one of the constant members, see SetMembership
+   */
+  public static final Operator IN_SET = new SetMembership();
+
+  /**
+   * (let ((name expr) ...) body): bind each name to the value of its expr, computed once per evaluation, then evaluate
+   *   the body. Bindings are sequential and lexically scoped: an expr sees the names bound before it, an inner let
+   *   shadows an outer one, and none of them are visible outside the let or registered in the VariableRegistry.
+   *   Parsed operands are [name1, expr1, name2, expr2, ..., body] with the names as LocalVariable slots
+   */
+  public static final Operator LET = new Operator() {
+
+    public int numberOfOperands() {
+      return VARIABLE_OPERANDS;
+    }
+
+    public double calculate(List<Expr> operands) {
+      final int last = operands.size() - 1;
+      for (int i = 0; i < last; i += 2) {
+        ((LocalVariable) operands.get(i)).setValue(operands.get(i + 1).evaluate());
+      }
+      return operands.get(last).evaluate();
+    }
+
+    public String getSymbol() {
+      return "let";
+    }
+
+    protected List<Expr> parseOperands(List<String> operands, VariableRegistry variableRegistry) {
+      if (operands.size() != 2 || !operands.get(0).startsWith(SExprTokenizer.OPEN_PAREN)) {
+        throw new MissingFormatArgumentException("let expect a list of bindings and a body, e.g. (let ((a (+ x 1))) (* a a))");
+      }
+
+      ArrayList<Expr> list = new ArrayList<Expr>();
+      String bindings = operands.get(0);
+      LetScope scope = new LetScope(variableRegistry);
+
+      for (String binding : SExprTokenizer.tokenize(bindings.substring(1, bindings.length() - 1))) {
+        List<String> pair = binding.startsWith(SExprTokenizer.OPEN_PAREN)
+            ? SExprTokenizer.tokenize(binding.substring(1, binding.length() - 1)) : null;
+
+        if (pair == null || pair.size() != 2 || !LetScope.isName(pair.get(0))) {
+          throw new InputMismatchException("let binding should be (name expr), found: " + binding);
+        }
+
+        Expr value = Expression.parse(pair.get(1), scope);  // sees the names bound so far
+        list.add(scope.bind(pair.get(0)));
+        list.add(value);
+      }
+
+      list.add(Expression.parse(operands.get(1), scope));
+
+      return list;
+    }
+
+    public void calculate(float[][] operands, float[] result, int length) {
+      System.arraycopy(operands[operands.length - 1], 0, result, 0, length);
+    }
   };
 
+  /**
+   * Registry used while parsing a let: names bound by the let resolve to its slots, other names to the enclosing scope
+   */
+  private static class LetScope extends VariableRegistry {
+    private static final long serialVersionUID = 1L;
+
+    private final VariableRegistry _parent;
+    private final Map<String, LocalVariable> _locals = new HashMap<String, LocalVariable>();
+
+    LetScope(VariableRegistry parent) {
+      this._parent = parent;
+    }
+
+    LocalVariable bind(String name) {
+      LocalVariable local = new LocalVariable(name);
+      _locals.put(name, local);
+      return local;
+    }
+
+    public Variable findVariable(String name) {
+      return _parent.findVariable(name);
+    }
+
+    public Variable registerVariable(String name) {
+      return _parent.registerVariable(name);
+    }
+
+    public VectorVariable registerVector(String name) {
+      if (_locals.containsKey(name)) {
+        throw new InputMismatchException(name + " is bound by let, it can't be a vector");
+      }
+      return _parent.registerVector(name);
+    }
+
+    static boolean isName(String token) {
+      if (token.startsWith(SExprTokenizer.OPEN_PAREN)) {
+        return false;
+      }
+      try {
+        Double.parseDouble(token);
+        return false;
+      } catch (NumberFormatException nfe) {
+        return true;
+      }
+    }
+
+    Atom resolve(String name) {
+      LocalVariable local = _locals.get(name);
+      return local == null ? _parent.resolve(name) : local;
+    }
+  }
+
   public static final Operator COS = new Operator() {
     public int numberOfOperands() {
         return 1;
@@ -646,6 +1054,13 @@ public abstract class Operator {
     public String getSymbol() {
         return "cos";
     }
+
+    public void calculate(float[][] operands, float[] result, int length) {
+        float[] a = operands[0];
+        for (int i = 0; i < length; i++) {
+            result[i] = (float) Math.cos(a[i]);
+        }
+    }
   };
 
 
@@ -661,6 +1076,13 @@ public abstract class Operator {
         public String getSymbol() {
             return "sin";
         }
+
+        public void calculate(float[][] operands, float[] result, int length) {
+            float[] a = operands[0];
+            for (int i = 0; i < length; i++) {
+                result[i] = (float) Math.sin(a[i]);
+            }
+        }
     };
 
     public static final Operator TAN = new Operator() {
@@ -675,6 +1097,13 @@ public abstract class Operator {
         public String getSymbol() {
             return "tan";
         }
+
+        public void calculate(float[][] operands, float[] result, int length) {
+            float[] a = operands[0];
+            for (int i = 0; i < length; i++) {
+                result[i] = (float) Math.tan(a[i]);
+            }
+        }
     };
 
     public static final Operator TANH = new Operator() {
@@ -689,5 +1118,12 @@ public abstract class Operator {
         public String getSymbol() {
             return "tanh";
         }
+
+        public void calculate(float[][] operands, float[] result, int length) {
+            float[] a = operands[0];
+            for (int i = 0; i < length; i++) {
+                result[i] = (float) Math.tanh(a[i]);
+            }
+        }
     };
 }
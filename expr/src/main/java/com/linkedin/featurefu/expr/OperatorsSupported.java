@@ -72,9 +72,22 @@ public class OperatorsSupported extends HashMap<String, Operator> {
     registerOperator(Operator.ROUND);         // round
     registerOperator(Operator.SQRT);          // sqrt
     registerOperator(Operator.IN);            // in
+    registerOperator(Operator.IN_SET);        // in-set x m1 m2 ...
     registerOperator(Operator.COS);            // cos
     registerOperator(Operator.SIN);            // sin
     registerOperator(Operator.TAN);            // tan
+    registerOperator(Operator.LET);           // let ((name expr) ...) body
+    registerOperator(VectorOperators.DOT);              // dot u v
+    registerOperator(VectorOperators.COSINE);           // cosine u v
+    registerOperator(VectorOperators.NORM);             // norm u
+    registerOperator(VectorOperators.WEIGHTED_DOT);     // weighted-dot u v w
+    registerOperator(StreamingOperators.DECAY_SUM);     // decay-sum key value time half-life
+    registerOperator(StreamingOperators.WINDOW_SUM);    // window-sum key value n
+    registerOperator(StreamingOperators.WINDOW_MEAN);   // window-mean key value n
+    registerOperator(StreamingOperators.WINDOW_MAX);    // window-max key value n
+    registerOperator(StreamingOperators.TIME_SUM);      // time-sum key value time length
+    registerOperator(StreamingOperators.TIME_MEAN);     // time-mean key value time length
+    registerOperator(StreamingOperators.TIME_MAX);      // time-max key value time length
   }
 
   public static Operator getOperator(String symbol) {
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.InputMismatchException;
+import java.util.List;
+import java.util.MissingFormatArgumentException;
+
+
+/**
+ * (in-set x m1 m2 ...): 1 if x equals one of the constant members, 0 otherwise, the same as (|| (== x m1) (|| ...))
+ *   without the deep tree and the comparison per member
+ *
+ * Parsing indexes the members once, in a sorted array searched by bisection for small sets and in an open addressing
+ *   hash set of their bits for larger ones. The members stay in the operands, for printing and rewriting, but are not
+ *   evaluated. Every parse gets its own operator instance holding its index, FeatureSet instances share it.
+ */
+final class SetMembership extends Operator {
+  private static final int SORTED_LIMIT = 8;   // members up to which bisection beats hashing
+  private static final long EMPTY = Double.doubleToLongBits(Double.NaN);   // NaN is never a member
+
+  private Index _members;
+  private Index _floatMembers;   // members rounded to float, for the column kernel
+
+  public int numberOfOperands() {
+    return VARIABLE_OPERANDS;
+  }
+
+  public String getSymbol() {
+    return "in-set";
+  }
+
+  /**
+   * @return a new instance for a node being parsed, this once members have been indexed
+   */
+  @Override
+  public Operator instantiate() {
+    return _members == null ? new SetMembership() : this;
+  }
+
+  /**
+   * @return true if parsing has indexed the members, only then operands other than x may be skipped
+   */
+  boolean isIndexed() {
+    return _members != null;
+  }
+
+  boolean contains(double x) {
+    return _members.contains(x);
+  }
+
+  protected List<Expr> parseOperands(List<String> operands, VariableRegistry variableRegistry) {
+    if (operands.size() < 2) {
+      throw new MissingFormatArgumentException("in-set expect a value and at least one member, e.g. (in-set c 3 17)");
+    }
+
+    List<Expr> list = new ArrayList<Expr>();
+    list.add(Expression.parse(operands.get(0), variableRegistry));
+
+    double[] members = new double[operands.size() - 1];
+    double[] floatMembers = new double[members.length];
+    for (int i = 0; i < members.length; i++) {
+      Expr member = Expression.parse(operands.get(i + 1), variableRegistry);
+      if (!(member instanceof Constant)) {
+        throw new InputMismatchException("in-set members should be numbers, found: " + operands.get(i + 1));
+      }
+      list.add(member);
+      members[i] = member.evaluate();
+      floatMembers[i] = (float) members[i];
+    }
+
+    _members = new Index(members);
+    _floatMembers = new Index(floatMembers);
+    return list;
+  }
+
+  public double calculate(List<Expr> operands) {
+    double x = operands.get(0).evaluate();
+    if (_members != null) {
+      return _members.contains(x) ? 1 : 0;
+    }
+    for (int i = 1; i < operands.size(); i++) {   // built without parsing
+      if (x == operands.get(i).evaluate()) {
+        return 1;
+      }
+    }
+    return 0;
+  }
+
+  public void calculate(float[][] operands, float[] result, int length) {
+    if (_floatMembers == null) {
+      super.calculate(operands, result, length);
+      return;
+    }
+    float[] a = operands[0];
+    for (int i = 0; i < length; i++) {
+      result[i] = _floatMembers.contains(a[i]) ? 1 : 0;
+    }
+  }
+
+  /**
+   * Immutable set of doubles compared with ==, so 0.0 and -0.0 are the same member and NaN is none
+   */
+  private static final class Index {
+    private final double[] _sorted;   // small sets
+    private final long[] _table;      // larger sets, linear probing, EMPTY for free slots
+
+    Index(double[] members) {
+      double[] distinct = new double[members.length];
+      int size = 0;
+      for (double member : members) {
+        if (!Double.isNaN(member)) {
+          distinct[size++] = member == 0 ? 0.0 : member;
+        }
+      }
+      Arrays.sort(distinct, 0, size);
+
+      if (size <= SORTED_LIMIT) {
+        _sorted = Arrays.copyOf(distinct, size);
+        _table = null;
+        return;
+      }
+
+      _sorted = null;
+      _table = new long[Integer.highestOneBit(size) * 4];
+      Arrays.fill(_table, EMPTY);
+      final int mask = _table.length - 1;
+      for (int k = 0; k < size; k++) {
+        long key = Double.doubleToLongBits(distinct[k]);
+        int i = slot(key) & mask;
+        while (_table[i] != EMPTY && _table[i] != key) {
+          i = (i + 1) & mask;
+        }
+        _table[i] = key;
+      }
+    }
+
+    boolean contains(double x) {
+      if (_sorted != null) {
+        int low = 0;
+        int high = _sorted.length - 1;
+        while (low <= high) {
+          int middle = (low + high) >>> 1;
+          if (_sorted[middle] < x) {
+            low = middle + 1;
+          } else if (_sorted[middle] > x) {
+            high = middle - 1;
+          } else {
+            return _sorted[middle] == x;   // false for NaN
+          }
+        }
+        return false;
+      }
+
+      if (Double.isNaN(x)) {
+        return false;
+      }
+      final long key = Double.doubleToLongBits(x == 0 ? 0.0 : x);
+      final int mask = _table.length - 1;
+      for (int i = slot(key) & mask; _table[i] != EMPTY; i = (i + 1) & mask) {
+        if (_table[i] == key) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private static int slot(long key) {
+      long h = (key ^ (key >>> 33)) * 0xFF51AFD7ED558CCDL;   // integer valued doubles only differ in the high bits
+      h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+      return (int) (h ^ (h >>> 33));
+    }
+  }
+}
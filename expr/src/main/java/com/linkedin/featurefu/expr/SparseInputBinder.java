@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Binds sparse input vectors to the variables of a registry, with the same implicit zero semantics as
+ *   VariableRegistry.refresh: every variable not present in the input is 0
+ *
+ * The input is given as parallel arrays of layout indices and values, indices strictly increasing (CSR order).
+ * The layout is fixed when the binder is created: layout.get(i) is the name of the variable at index i.
+ *
+ * Cost per input scales with its number of non-zeros, not with the size of the layout or of the registry:
+ *   only the variables set by the previous input are reset, and when the expressions use only a few variables of a
+ *   long input, those few are looked up by binary search instead of scanning every non-zero.
+ *
+ * Create the binder after parsing the expressions, variables registered later are not bound.
+ * Like the variables it binds, a binder is not thread safe.
+ */
+public class SparseInputBinder {
+  private final Variable[] _slots;       // layout index -> variable, null when no expression uses it
+  private final int[] _usedIndices;      // layout indices having a variable, increasing
+  private final Variable[] _bound;       // variables set by the last bind
+  private int _numBound = 0;
+
+  /**
+   * @param registry registry holding the variables of the expressions to evaluate, all of them are set to 0
+   * @param layout variable name of each index of the sparse inputs
+   */
+  public SparseInputBinder(VariableRegistry registry, List<String> layout) {
+    this._slots = new Variable[layout.size()];
+    List<Integer> used = new ArrayList<Integer>();
+
+    for (int i = 0; i < _slots.length; i++) {
+      _slots[i] = registry.findVariable(layout.get(i));
+      if (_slots[i] != null) {
+        used.add(i);
+      }
+    }
+
+    this._usedIndices = new int[used.size()];
+    for (int i = 0; i < _usedIndices.length; i++) {
+      _usedIndices[i] = used.get(i);
+    }
+
+    this._bound = new Variable[_usedIndices.length];
+
+    for (Variable variable : registry.values()) {
+      variable.setValue(0d);
+    }
+  }
+
+  /**
+   * Set the variables from a sparse input, all other variables become 0
+   * @param indices layout indices of the non-zeros, strictly increasing
+   * @param values values of the non-zeros
+   * @param length number of non-zeros
+   */
+  public void bind(int[] indices, double[] values, int length) {
+    bind(indices, values, 0, length);
+  }
+
+  /**
+   * Same as bind(indices, values, length) for the non-zeros in [from, to) of the arrays, e.g. one row of a CSR matrix
+   */
+  public void bind(int[] indices, double[] values, int from, int to) {
+    reset();
+
+    int length = to - from;
+
+    if (_usedIndices.length * (32 - Integer.numberOfLeadingZeros(length)) < length) {
+      for (int index : _usedIndices) {
+        int found = Arrays.binarySearch(indices, from, to, index);
+        if (found >= 0) {
+          set(_slots[index], values[found]);
+        }
+      }
+    } else {
+      for (int k = from; k < to; k++) {
+        Variable variable = _slots[indices[k]];
+        if (variable != null) {
+          set(variable, values[k]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Set every variable bound by the last input back to 0
+   */
+  public void reset() {
+    for (int k = 0; k < _numBound; k++) {
+      _bound[k].setValue(0d);
+      _bound[k] = null;
+    }
+    _numBound = 0;
+  }
+
+  /**
+   * Evaluate an expression for every row of a CSR matrix
+   * @param expr expression over the variables of this binder's registry
+   * @param rowOffsets non-zeros of row r are at [rowOffsets[r], rowOffsets[r + 1]) of indices and values
+   * @param indices layout indices of the non-zeros, strictly increasing within a row
+   * @param values values of the non-zeros
+   * @param numRows number of rows
+   * @param output receives one value per row
+   */
+  public void evaluate(Expr expr, int[] rowOffsets, int[] indices, double[] values, int numRows, double[] output) {
+    for (int r = 0; r < numRows; r++) {
+      bind(indices, values, rowOffsets[r], rowOffsets[r + 1]);
+      output[r] = expr.evaluate();
+    }
+    reset();
+  }
+
+  private void set(Variable variable, double value) {
+    variable.setValue(value);
+    _bound[_numBound++] = variable;
+  }
+}
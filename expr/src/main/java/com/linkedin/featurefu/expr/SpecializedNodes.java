@@ -0,0 +1,218 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import java.util.List;
+
+
+/**
+ * Expression nodes specialized by arity, used for every tree the parser and the rewrites build
+ *
+ * A plain Expression evaluates through Operator.calculate(List), so each node pays for an interface call per
+ *   operand lookup and the calculate call site sees every operator. These nodes keep their operator as an opcode
+ *   and their children in final fields, and compute built-in and approximate operators inline: the only virtual
+ *   calls left are the children's evaluate().
+ *
+ * They are still Expressions (getOperator and getOperands work as before), so analyses and rewrites don't need to
+ *   know about them. Custom operators, rand, rand-in and let keep the generic Expression.
+ */
+final class SpecializedNodes {
+  private static final double LN_2 = Math.log(2);
+
+  private SpecializedNodes() {
+  }
+
+  /**
+   * @return the specialized node for the operator and its operands, or a generic Expression
+   */
+  static Expression create(Operator operator, List<Expr> operands) {
+    final byte code = Opcodes.of(operator);
+
+    if (code == Opcodes.CALL || code == Opcodes.LET || code == Opcodes.IN_SET) {
+      return new Expression(operator, operands);
+    }
+
+    switch (operands.size()) {
+      case 1:
+        return new Unary(operator, operands, code);
+      case 2:
+        return new Binary(operator, operands, code);
+      case 3:
+        return new Ternary(operator, operands, code);
+      default:
+        return new Expression(operator, operands);
+    }
+  }
+
+  static final class Unary extends Expression {
+    private final byte _code;
+    private final Expr _a;
+
+    Unary(Operator operator, List<Expr> operands, byte code) {
+      super(operator, operands);
+      this._code = code;
+      this._a = operands.get(0);
+    }
+
+    public double evaluate() {
+      final double a = _a.evaluate();
+
+      switch (_code) {
+        case Opcodes.NOT:
+          return a != 0 ? 0 : 1;
+        case Opcodes.UNARY_MINUS:
+          return -a;
+        case Opcodes.LN:
+          return Math.log(a);
+        case Opcodes.LN1PLUS:
+          return Math.log(1 + a);
+        case Opcodes.LOG2:
+          return Math.log(a) / LN_2;
+        case Opcodes.EXP:
+          return Math.exp(a);
+        case Opcodes.SIGMOID:
+          return 1.0 / (1 + Math.exp(-a));
+        case Opcodes.TANH:
+          return Math.tanh(a);
+        case Opcodes.SIN:
+          return Math.sin(a);
+        case Opcodes.COS:
+          return Math.cos(a);
+        case Opcodes.TAN:
+          return Math.tan(a);
+        case Opcodes.ABS:
+          return Math.abs(a);
+        case Opcodes.SIGN:
+          return Math.signum(a);
+        case Opcodes.FLOOR:
+          return Math.floor(a);
+        case Opcodes.CEIL:
+          return Math.ceil(a);
+        case Opcodes.ROUND:
+          return Math.round(a);
+        case Opcodes.SQRT:
+          return Math.sqrt(a);
+        case Opcodes.APPROX_LN:
+          return ApproxMath.log(a);
+        case Opcodes.APPROX_LN1PLUS:
+          return ApproxMath.log1plus(a);
+        case Opcodes.APPROX_LOG2:
+          return ApproxMath.log2(a);
+        case Opcodes.APPROX_EXP:
+          return ApproxMath.exp(a);
+        case Opcodes.APPROX_SIGMOID:
+          return ApproxMath.sigmoid(a);
+        case Opcodes.APPROX_TANH:
+          return ApproxMath.tanh(a);
+        case Opcodes.APPROX_SIN:
+          return ApproxMath.sin(a);
+        case Opcodes.APPROX_COS:
+          return ApproxMath.cos(a);
+        default:
+          return getOperator().calculate(getOperands());
+      }
+    }
+  }
+
+  static final class Binary extends Expression {
+    private final byte _code;
+    private final Expr _a;
+    private final Expr _b;
+
+    Binary(Operator operator, List<Expr> operands, byte code) {
+      super(operator, operands);
+      this._code = code;
+      this._a = operands.get(0);
+      this._b = operands.get(1);
+    }
+
+    public double evaluate() {
+      switch (_code) {  // && and || don't evaluate their second operand when the first decides
+        case Opcodes.AND:
+          return _a.evaluate() != 0 && _b.evaluate() != 0 ? 1 : 0;
+        case Opcodes.OR:
+          return _a.evaluate() != 0 || _b.evaluate() != 0 ? 1 : 0;
+        default:
+          break;
+      }
+
+      final double a = _a.evaluate();
+      final double b = _b.evaluate();
+
+      switch (_code) {
+        case Opcodes.EQ:
+          return a == b ? 1 : 0;
+        case Opcodes.NE:
+          return a != b ? 1 : 0;
+        case Opcodes.GT:
+          return a > b ? 1 : 0;
+        case Opcodes.GT_EQ:
+          return a >= b ? 1 : 0;
+        case Opcodes.LT:
+          return a < b ? 1 : 0;
+        case Opcodes.LT_EQ:
+          return a <= b ? 1 : 0;
+        case Opcodes.ADD:
+          return a + b;
+        case Opcodes.SUBTRACT:
+          return a - b;
+        case Opcodes.MULTIPLY:
+          return a * b;
+        case Opcodes.DIVIDE:
+          return a / b;
+        case Opcodes.MOD:
+          return a % b;
+        case Opcodes.POWER:
+          return Math.pow(a, b);
+        case Opcodes.MAX:
+          return Math.max(a, b);
+        case Opcodes.MIN:
+          return Math.min(a, b);
+        case Opcodes.APPROX_POWER:
+          return ApproxMath.pow(a, b);
+        default:
+          return getOperator().calculate(getOperands());
+      }
+    }
+  }
+
+  static final class Ternary extends Expression {
+    private final byte _code;
+    private final Expr _a;
+    private final Expr _b;
+    private final Expr _c;
+
+    Ternary(Operator operator, List<Expr> operands, byte code) {
+      super(operator, operands);
+      this._code = code;
+      this._a = operands.get(0);
+      this._b = operands.get(1);
+      this._c = operands.get(2);
+    }
+
+    public double evaluate() {
+      switch (_code) {
+        case Opcodes.IF:
+          return _a.evaluate() != 0 ? _b.evaluate() : _c.evaluate();
+        case Opcodes.IN: {
+          final double check = _a.evaluate();
+          return check >= _b.evaluate() && check < _c.evaluate() ? 1 : 0;
+        }
+        default:
+          return getOperator().calculate(getOperands());
+      }
+    }
+  }
+}
@@ -0,0 +1,493 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import java.util.InputMismatchException;
+import java.util.List;
+
+
+/**
+ * Stateful operators for rolling statistics over a stream of events, O(1) per event (amortized for the windows)
+ *
+ *   (decay-sum key value time half-life)   exponentially decayed sum, a value loses half its weight every half-life
+ *   (window-sum key value n)               sum of the last n values of the key, window-mean and window-max likewise
+ *   (time-sum key value time length)       sum of the values of the key in (time - length, time], time-mean and
+ *                                          time-max likewise
+ *
+ * Every evaluation of a streaming node is one event: the key, such as a member id, selects the state (a decay
+ *   accumulator or primitive ring buffers), the value is added and the statistic of the key is returned. They compose
+ *   with other operators, so raw events can be turned into features in one pass, e.g. a smoothed click-through rate:
+ *
+ *   (/ (+ (decay-sum member click time 3600) 1) (+ (decay-sum member view time 3600) 10))
+ *
+ * NaN and infinite values are not recorded, so a NaN value reads the statistic at the given time without adding an
+ *   event. Times of a key are expected to increase, an earlier time counts as the latest time seen for the key.
+ *   n, length and half-life must be positive constants.
+ *
+ * State belongs to the parsed node, every node and every FeatureSet instance starts empty: evaluate a streaming
+ *   expression from one thread at a time, and send all events of a key to the same instance. Streaming operators are
+ *   not deterministic, so optimizations never fold, hoist or share them, and JavaSourceGenerator can't translate them.
+ *
+ * Idle keys are dropped as the node's key table fills up: a time window all of whose events are older than its length
+ *   before the latest time of any key, a decayed sum that has lost 64 half-lives since its key's latest time, and a
+ *   count window without events. Dropping them changes no later value as long as all keys share one clock, a late
+ *   event of a dropped key just counts at its own time. Beyond MAX_KEYS keys a node also drops the keys not seen in
+ *   the last MAX_KEYS / 2 events, so memory stays bounded whatever the number of distinct keys, at the cost of
+ *   restarting the statistics of keys seen that rarely.
+ */
+public final class StreamingOperators {
+  private static final int SUM = 0;
+  private static final int MEAN = 1;
+  private static final int MAX = 2;
+
+  static final int MAX_KEYS = 1 << 20;   // per streaming node
+  private static final double IDLE_DECAY = 64 * Math.log(2);
+
+  private StreamingOperators() {
+  }
+
+  public static final Operator DECAY_SUM = new DecaySum();
+  public static final Operator WINDOW_SUM = new CountWindow("window-sum", SUM);
+  public static final Operator WINDOW_MEAN = new CountWindow("window-mean", MEAN);
+  public static final Operator WINDOW_MAX = new CountWindow("window-max", MAX);
+  public static final Operator TIME_SUM = new TimeWindow("time-sum", SUM);
+  public static final Operator TIME_MEAN = new TimeWindow("time-mean", MEAN);
+  public static final Operator TIME_MAX = new TimeWindow("time-max", MAX);
+
+  /**
+   * Per-key state, the last operand is the constant parameter of the statistic
+   */
+  private abstract static class Stream extends Operator implements KeyedStates.Owner {
+    private final String _symbol;
+    private final int _numberOfOperands;
+    private final KeyedStates _states = new KeyedStates(MAX_KEYS);
+
+    Stream(String symbol, int numberOfOperands) {
+      this._symbol = symbol;
+      this._numberOfOperands = numberOfOperands;
+    }
+
+    public int numberOfOperands() {
+      return _numberOfOperands;
+    }
+
+    public String getSymbol() {
+      return _symbol;
+    }
+
+    public boolean isDeterministic() {
+      return false;
+    }
+
+    @Override
+    protected List<Expr> parseOperands(List<String> operands, VariableRegistry variableRegistry) {
+      List<Expr> list = super.parseOperands(operands, variableRegistry);
+      Expr parameter = list.get(list.size() - 1);
+      if (!(parameter instanceof Constant) || !isValid(parameter.evaluate())) {
+        throw new InputMismatchException(_symbol + " expects a positive constant as last operand: " + parameter);
+      }
+      return list;
+    }
+
+    public double calculate(List<Expr> operands) {
+      long key = bits(operands.get(0).evaluate());
+      Object state = _states.get(key);
+      if (state == null) {
+        state = newState(operands.get(_numberOfOperands - 1).evaluate());
+        _states.put(key, state, this);
+      }
+      return update(state, operands);
+    }
+
+    abstract boolean isValid(double parameter);
+
+    abstract Object newState(double parameter);
+
+    abstract double update(Object state, List<Expr> operands);
+  }
+
+  private static final class DecaySum extends Stream {
+    private double _now = Double.NEGATIVE_INFINITY;   // latest time of any key
+
+    DecaySum() {
+      super("decay-sum", 4);
+    }
+
+    @Override
+    public Operator instantiate() {
+      return new DecaySum();
+    }
+
+    boolean isValid(double halfLife) {
+      return halfLife > 0;
+    }
+
+    Object newState(double halfLife) {
+      return new Decay(Math.log(2) / halfLife);
+    }
+
+    double update(Object state, List<Expr> operands) {
+      double time = operands.get(2).evaluate();
+      _now = Math.max(_now, time);   // NaN ignored
+      return ((Decay) state).add(operands.get(1).evaluate(), time);
+    }
+
+    public boolean isIdle(Object state) {
+      Decay decay = (Decay) state;
+      if (decay._time == Double.NEGATIVE_INFINITY) {
+        return decay._sum == 0;   // not decaying without a time
+      }
+      return (_now - decay._time) * decay._rate > IDLE_DECAY;
+    }
+  }
+
+  private static final class CountWindow extends Stream {
+    private final int _aggregate;
+
+    CountWindow(String symbol, int aggregate) {
+      super(symbol, 3);
+      this._aggregate = aggregate;
+    }
+
+    @Override
+    public Operator instantiate() {
+      return new CountWindow(getSymbol(), _aggregate);
+    }
+
+    boolean isValid(double n) {
+      return n >= 1 && n == Math.floor(n);
+    }
+
+    Object newState(double n) {
+      return new Window(n);
+    }
+
+    double update(Object state, List<Expr> operands) {
+      Window window = (Window) state;
+      double value = operands.get(1).evaluate();
+      if (isFinite(value)) {
+        double position = ++window._events;
+        window.add(position, value);
+        window.evict(position - window._length);
+      }
+      return window.get(_aggregate);
+    }
+
+    public boolean isIdle(Object state) {
+      return ((Window) state)._values.isEmpty();
+    }
+  }
+
+  private static final class TimeWindow extends Stream {
+    private final int _aggregate;
+    private double _now = Double.NEGATIVE_INFINITY;   // latest time of any key
+
+    TimeWindow(String symbol, int aggregate) {
+      super(symbol, 4);
+      this._aggregate = aggregate;
+    }
+
+    @Override
+    public Operator instantiate() {
+      return new TimeWindow(getSymbol(), _aggregate);
+    }
+
+    boolean isValid(double length) {
+      return length > 0;
+    }
+
+    Object newState(double length) {
+      return new Window(length);
+    }
+
+    double update(Object state, List<Expr> operands) {
+      Window window = (Window) state;
+      double value = operands.get(1).evaluate();
+      double time = operands.get(2).evaluate();
+      if (Double.isNaN(time)) {
+        return window.get(_aggregate);
+      }
+      window._latest = Math.max(window._latest, time);
+      _now = Math.max(_now, time);
+      window.evict(window._latest - window._length);
+      if (isFinite(value)) {
+        window.add(window._latest, value);
+      }
+      return window.get(_aggregate);
+    }
+
+    public boolean isIdle(Object state) {
+      Window window = (Window) state;
+      return window._latest <= _now - window._length;   // evicted by its next event, whenever it comes
+    }
+  }
+
+  /**
+   * Exponentially decayed sum as of the latest time seen
+   */
+  private static final class Decay {
+    private final double _rate;
+    private double _sum;
+    private double _time = Double.NEGATIVE_INFINITY;
+
+    Decay(double rate) {
+      this._rate = rate;
+    }
+
+    double add(double value, double time) {
+      if (time > _time) {
+        if (_time != Double.NEGATIVE_INFINITY) {
+          _sum *= Math.exp(-(time - _time) * _rate);
+        }
+        _time = time;
+      }
+      if (isFinite(value)) {
+        _sum += value;
+      }
+      return _sum;
+    }
+  }
+
+  /**
+   * Events at increasing positions (event count or time), those at or before a horizon are evicted
+   *   a running sum, and a monotonic deque whose first entry is the max of the window
+   */
+  private static final class Window {
+    private final double _length;
+    private final Ring _values = new Ring();
+    private final Ring _max = new Ring();
+    private double _sum;
+    private long _events;
+    private double _latest = Double.NEGATIVE_INFINITY;
+
+    Window(double length) {
+      this._length = length;
+    }
+
+    void add(double position, double value) {
+      _values.addLast(position, value);
+      _sum += value;
+      while (!_max.isEmpty() && _max.lastValue() <= value) {
+        _max.removeLast();
+      }
+      _max.addLast(position, value);
+    }
+
+    void evict(double horizon) {
+      while (!_values.isEmpty() && _values.firstPosition() <= horizon) {
+        _sum -= _values.firstValue();
+        _values.removeFirst();
+      }
+      if (_values.isEmpty()) {
+        _sum = 0;   // no rounding error carried over
+      }
+      while (!_max.isEmpty() && _max.firstPosition() <= horizon) {
+        _max.removeFirst();
+      }
+    }
+
+    double get(int aggregate) {
+      if (aggregate == SUM) {
+        return _sum;
+      } else if (aggregate == MEAN) {
+        return _values.isEmpty() ? Double.NaN : _sum / _values.size();
+      }
+      return _max.isEmpty() ? Double.NaN : _max.firstValue();
+    }
+  }
+
+  /**
+   * Growable ring buffer of (position, value) pairs
+   */
+  private static final class Ring {
+    private double[] _positions = new double[4];
+    private double[] _values = new double[4];
+    private int _head;
+    private int _size;
+
+    boolean isEmpty() {
+      return _size == 0;
+    }
+
+    int size() {
+      return _size;
+    }
+
+    double firstPosition() {
+      return _positions[_head];
+    }
+
+    double firstValue() {
+      return _values[_head];
+    }
+
+    double lastValue() {
+      return _values[(_head + _size - 1) & (_values.length - 1)];
+    }
+
+    void addLast(double position, double value) {
+      if (_size == _values.length) {
+        grow();
+      }
+      int i = (_head + _size) & (_values.length - 1);
+      _positions[i] = position;
+      _values[i] = value;
+      _size++;
+    }
+
+    void removeFirst() {
+      _head = (_head + 1) & (_values.length - 1);
+      _size--;
+    }
+
+    void removeLast() {
+      _size--;
+    }
+
+    private void grow() {
+      double[] positions = new double[_values.length * 2];
+      double[] values = new double[_values.length * 2];
+      for (int k = 0; k < _size; k++) {
+        int i = (_head + k) & (_values.length - 1);
+        positions[k] = _positions[i];
+        values[k] = _values[i];
+      }
+      _positions = positions;
+      _values = values;
+      _head = 0;
+    }
+  }
+
+  /**
+   * Open addressing map from key bits to state, linear probing
+   *
+   * When half the slots are taken the table is rebuilt without the states its owner reports idle, and beyond maxKeys
+   *   keys without those not looked up in the last maxKeys / 2 lookups, at most a quarter full.
+   */
+  static final class KeyedStates {
+    /**
+     * Decides which states can be dropped
+     */
+    interface Owner {
+      /**
+       * @return true if a new state would give the same values for any later event of the key
+       */
+      boolean isIdle(Object state);
+    }
+
+    private final int _maxKeys;
+    private long[] _keys = new long[16];
+    private Object[] _states = new Object[16];
+    private long[] _used = new long[16];   // lookup count at the last lookup of the key
+    private int _size;
+    private long _lookups;
+
+    KeyedStates(int maxKeys) {
+      this._maxKeys = maxKeys;
+    }
+
+    int size() {
+      return _size;
+    }
+
+    Object get(long key) {
+      _lookups++;
+      final int mask = _keys.length - 1;
+      for (int i = slot(key) & mask; _states[i] != null; i = (i + 1) & mask) {
+        if (_keys[i] == key) {
+          _used[i] = _lookups;
+          return _states[i];
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Add the state of a key get() just didn't find
+     */
+    void put(long key, Object state, Owner owner) {
+      if (2 * (_size + 1) > _keys.length) {
+        rebuild(owner);
+      }
+      insert(key, state, _lookups);
+      _size++;
+    }
+
+    private void rebuild(Owner owner) {
+      final long horizon = _size + 1 > _maxKeys ? _lookups - _maxKeys / 2 : Long.MIN_VALUE;
+      long[] keys = _keys;
+      Object[] states = _states;
+      long[] used = _used;
+
+      int size = 0;
+      for (int i = 0; i < keys.length; i++) {
+        if (states[i] != null && (used[i] <= horizon || owner.isIdle(states[i]))) {
+          states[i] = null;
+        } else if (states[i] != null) {
+          size++;
+        }
+      }
+
+      int length = 16;
+      while (length < 4 * size) {
+        length *= 2;
+      }
+      _keys = new long[length];
+      _states = new Object[length];
+      _used = new long[length];
+      _size = size;
+      for (int i = 0; i < keys.length; i++) {
+        if (states[i] != null) {
+          insert(keys[i], states[i], used[i]);
+        }
+      }
+    }
+
+    private void insert(long key, Object state, long used) {
+      final int mask = _keys.length - 1;
+      int i = slot(key) & mask;
+      while (_states[i] != null) {
+        i = (i + 1) & mask;
+      }
+      _keys[i] = key;
+      _states[i] = state;
+      _used[i] = used;
+    }
+
+    private static int slot(long key) {
+      long h = (key ^ (key >>> 33)) * 0xFF51AFD7ED558CCDL;   // integer valued doubles only differ in the high bits
+      h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+      return (int) (h ^ (h >>> 33));
+    }
+  }
+
+  /**
+   * @return number of keys a streaming node holds state for
+   */
+  static int keys(Expr node) {
+    return ((Stream) ((Expression) node).getOperator())._states.size();
+  }
+
+  /**
+   * Keys equal as doubles have the same bits, 0.0 and -0.0 included
+   */
+  private static long bits(double key) {
+    return key == 0 ? 0L : Double.doubleToLongBits(key);
+  }
+
+  private static boolean isFinite(double value) {
+    return !Double.isNaN(value) && !Double.isInfinite(value);
+  }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Keeps the K best scoring candidates, skipping the full evaluation of candidates that provably can't make it
+ *
+ * Before evaluating a candidate, an upper bound of its score is computed with interval arithmetic (TypeInference
+ *   rules): subtrees without transcendental operators are evaluated exactly, the lowest transcendental subtrees are
+ *   replaced by their static range (from the declared variable types), and everything above them is combined as
+ *   intervals. If that bound can't beat the K-th best score so far, the candidate is dropped. For a score such as
+ *   (* bid (sigmoid ...)), every candidate whose bid is below the K-th score is dropped without computing the sigmoid.
+ *
+ * Usage: bind each candidate's inputs to the expression's variables (VariableRegistry.refresh, SparseInputBinder,
+ *   ByteBufferRowBinder...) and call offer(id). Scores are kept in a primitive min-heap, NaN scores are never kept.
+ * Like the expression it scores, a scorer is used by one thread at a time.
+ */
+public class TopKScorer {
+  private static final Set<String> EXPENSIVE = new HashSet<String>(Arrays.asList(
+      "exp", "sigmoid", "tanh", "ln", "ln1plus", "log2", "**", "sin", "cos", "tan"));
+
+  private final Expr _expr;
+  private final Bound _bound;
+  private final int _k;
+  private final double[] _scores;   // min-heap on scores, _scores[0] is the K-th best once full
+  private final int[] _ids;
+  private int _size = 0;
+  private long _evaluated = 0;
+  private long _pruned = 0;
+
+  /**
+   * @param expr score expression
+   * @param k number of candidates to keep
+   */
+  public TopKScorer(Expr expr, int k) {
+    this(expr, k, Collections.<String, ValueType>emptyMap());
+  }
+
+  /**
+   * @param expr score expression
+   * @param k number of candidates to keep
+   * @param variableTypes what is known about the variables, the tighter the better the pruning
+   */
+  public TopKScorer(Expr expr, int k, Map<String, ValueType> variableTypes) {
+    if (k <= 0) {
+      throw new IllegalArgumentException("k should be positive: " + k);
+    }
+    this._expr = expr;
+    this._bound = plan(expr, new TypeInference(variableTypes));
+    this._k = k;
+    this._scores = new double[k];
+    this._ids = new int[k];
+  }
+
+  /**
+   * Score the candidate whose inputs are currently bound, unless its upper bound rules it out
+   * @param id candidate id, reported by getIds()
+   * @return true if the candidate is among the best K so far
+   */
+  public boolean offer(int id) {
+    if (_size == _k && !(upperBound() > _scores[0])) {
+      _pruned++;
+      return false;
+    }
+
+    _evaluated++;
+    double score = _expr.evaluate();
+    if (Double.isNaN(score)) {
+      return false;
+    }
+
+    if (_size < _k) {
+      _scores[_size] = score;
+      _ids[_size] = id;
+      siftUp(_size++);
+      return true;
+    }
+    if (score > _scores[0]) {
+      _scores[0] = score;
+      _ids[0] = id;
+      siftDown(0);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return upper bound of the score of the candidate whose inputs are currently bound
+   */
+  public double upperBound() {
+    return _bound.evaluate().getMax();
+  }
+
+  public void reset() {
+    _size = 0;
+    _evaluated = 0;
+    _pruned = 0;
+  }
+
+  public int size() {
+    return _size;
+  }
+
+  /**
+   * @return ids of the best candidates, best first
+   */
+  public int[] getIds() {
+    int[] order = order();
+    int[] ids = new int[_size];
+    for (int i = 0; i < _size; i++) {
+      ids[i] = _ids[order[i]];
+    }
+    return ids;
+  }
+
+  /**
+   * @return scores of the best candidates, best first
+   */
+  public double[] getScores() {
+    int[] order = order();
+    double[] scores = new double[_size];
+    for (int i = 0; i < _size; i++) {
+      scores[i] = _scores[order[i]];
+    }
+    return scores;
+  }
+
+  /**
+   * @return number of candidates fully evaluated since the last reset
+   */
+  public long getEvaluated() {
+    return _evaluated;
+  }
+
+  /**
+   * @return number of candidates dropped on their upper bound since the last reset
+   */
+  public long getPruned() {
+    return _pruned;
+  }
+
+  /**
+   * heap positions by decreasing score, ties by increasing id
+   */
+  private int[] order() {
+    int[] order = new int[_size];
+    for (int i = 0; i < _size; i++) {
+      int j = i;
+      for (; j > 0 && before(i, order[j - 1]); j--) {
+        order[j] = order[j - 1];
+      }
+      order[j] = i;
+    }
+    return order;
+  }
+
+  private boolean before(int a, int b) {
+    return _scores[a] > _scores[b] || _scores[a] == _scores[b] && _ids[a] < _ids[b];
+  }
+
+  private void siftUp(int i) {
+    while (i > 0) {
+      int parent = (i - 1) / 2;
+      if (!(_scores[i] < _scores[parent])) {
+        return;
+      }
+      swap(i, parent);
+      i = parent;
+    }
+  }
+
+  private void siftDown(int i) {
+    while (true) {
+      int smallest = i;
+      int left = 2 * i + 1;
+      int right = left + 1;
+      if (left < _size && _scores[left] < _scores[smallest]) {
+        smallest = left;
+      }
+      if (right < _size && _scores[right] < _scores[smallest]) {
+        smallest = right;
+      }
+      if (smallest == i) {
+        return;
+      }
+      swap(i, smallest);
+      i = smallest;
+    }
+  }
+
+  private void swap(int a, int b) {
+    double score = _scores[a];
+    _scores[a] = _scores[b];
+    _scores[b] = score;
+    int id = _ids[a];
+    _ids[a] = _ids[b];
+    _ids[b] = id;
+  }
+
+  /**
+   * Decide how each node is bounded: exactly, by its static range, or by combining the bounds of its operands
+   */
+  private static Bound plan(Expr expr, TypeInference types) {
+    if (!(expr instanceof Expression)) {
+      return expr instanceof LocalVariable ? new Bound(types.infer(expr)) : new Bound(expr);
+    }
+
+    Expression expression = (Expression) expr;
+    Operator operator = expression.getOperator();
+
+    if (isCheap(expr)) {
+      return new Bound(expr);
+    }
+    if (operator == Operator.LET || !operator.isDeterministic() || allCheap(expression.getOperands())) {
+      return new Bound(types.infer(expr));
+    }
+
+    List<Expr> operands = expression.getOperands();
+    Bound[] children = new Bound[operands.size()];
+    for (int i = 0; i < children.length; i++) {
+      children[i] = plan(operands.get(i), types);
+    }
+    return new Bound(operator, children);
+  }
+
+  /**
+   * @return true if the subtree has no transcendental, non deterministic or unknown operator
+   */
+  private static boolean isCheap(Expr expr) {
+    if (!(expr instanceof Expression)) {
+      return true;
+    }
+
+    Expression expression = (Expression) expr;
+    Operator operator = expression.getOperator();
+    if (EXPENSIVE.contains(operator.getSymbol()) || !operator.isDeterministic()
+        || OperatorsSupported.getOperator(operator.getSymbol()) == null) {
+      return false;
+    }
+    return allCheap(expression.getOperands());
+  }
+
+  private static boolean allCheap(List<Expr> exprs) {
+    for (Expr expr : exprs) {
+      if (!isCheap(expr)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Bound of a node: the exact value of a cheap subtree, a static range, or an operator applied to operand bounds
+   */
+  private static class Bound {
+    private final Expr _exact;
+    private final ValueType _range;
+    private final Operator _operator;
+    private final Bound[] _operands;
+
+    Bound(Expr exact) {
+      this(exact, null, null, null);
+    }
+
+    Bound(ValueType range) {
+      this(null, range, null, null);
+    }
+
+    Bound(Operator operator, Bound[] operands) {
+      this(null, null, operator, operands);
+    }
+
+    private Bound(Expr exact, ValueType range, Operator operator, Bound[] operands) {
+      this._exact = exact;
+      this._range = range;
+      this._operator = operator;
+      this._operands = operands;
+    }
+
+    ValueType evaluate() {
+      if (_exact != null) {
+        return ValueType.constant(_exact.evaluate());
+      }
+      if (_range != null) {
+        return _range;
+      }
+      ValueType a = _operands.length > 0 ? _operands[0].evaluate() : null;
+      ValueType b = _operands.length > 1 ? _operands[1].evaluate() : null;
+      ValueType c = _operands.length > 2 ? _operands[2].evaluate() : null;
+      return TypeInference.apply(_operator, a, b, c);
+    }
+  }
+}
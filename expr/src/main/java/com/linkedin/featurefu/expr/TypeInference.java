@@ -0,0 +1,296 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Static analysis inferring which subexpressions are boolean, integral or bounded, see ValueType
+ *
+ * Ranges are computed with interval arithmetic over the operator set, starting from constants and from whatever is
+ *   declared about variables (undeclared variables can be any double). The result is conservative: the value of an
+ *   expression is always within its inferred type, but the type may be wider than necessary.
+ *
+ * Optimizers and evaluation backends use it to treat predicates as plain booleans, drop redundant conversions such as
+ *   (floor x) of an integral x, and decide comparisons whose outcome is known from the ranges alone.
+ *
+ * Results are memoized per node, so one instance should be used for one expression (or a set of expressions
+ *   sharing the same variables) at a time.
+ */
+public class TypeInference {
+  private final Map<String, ValueType> _variableTypes;
+  private final Map<Expr, ValueType> _types = new IdentityHashMap<Expr, ValueType>();
+
+  /**
+   * Analysis where every variable can be any double
+   */
+  public TypeInference() {
+    this(Collections.<String, ValueType>emptyMap());
+  }
+
+  /**
+   * @param variableTypes variable name -> what is known about its values, missing variables can be any double
+   */
+  public TypeInference(Map<String, ValueType> variableTypes) {
+    this._variableTypes = variableTypes;
+  }
+
+  /**
+   * Convenience function to infer the type of an expression with unconstrained variables
+   */
+  public static ValueType typeOf(Expr expr) {
+    return new TypeInference().infer(expr);
+  }
+
+  /**
+   * @param expr expression or atom
+   * @return type of the values expr can evaluate to
+   */
+  public ValueType infer(Expr expr) {
+    ValueType type = _types.get(expr);
+
+    if (type == null) {
+      type = compute(expr);
+      _types.put(expr, type);
+    }
+
+    return type;
+  }
+
+  private ValueType compute(Expr expr) {
+    if (expr instanceof Constant) {
+      return ValueType.constant(expr.evaluate());
+    }
+
+    if (expr instanceof LocalVariable) {
+      return ValueType.REAL;  // unless its let was inferred first
+    }
+
+    if (expr instanceof Variable) {
+      ValueType declared = _variableTypes.get(((Variable) expr).getName());
+      return declared == null ? ValueType.REAL : declared;
+    }
+
+    if (!(expr instanceof Expression)) {
+      return ValueType.REAL;
+    }
+
+    Expression expression = (Expression) expr;
+    List<Expr> operands = expression.getOperands();
+
+    if (expression.getOperator() == Operator.LET) {
+      final int last = operands.size() - 1;
+      for (int i = 0; i < last; i += 2) {
+        if (!_types.containsKey(operands.get(i))) {
+          _types.put(operands.get(i), infer(operands.get(i + 1)));
+        }
+      }
+      return infer(operands.get(last));
+    }
+
+    ValueType a = operands.size() > 0 ? infer(operands.get(0)) : null;
+    ValueType b = operands.size() > 1 ? infer(operands.get(1)) : null;
+    ValueType c = operands.size() > 2 ? infer(operands.get(2)) : null;
+
+    return apply(expression.getOperator(), a, b, c);
+  }
+
+  /**
+   * Interval arithmetic for one operator: the type of its values given the types of its operands
+   * @param operator operator, matched by symbol, unknown operators give REAL
+   * @param a type of the first operand, null if there is none
+   * @param b type of the second operand, null if there is none
+   * @param c type of the third operand, null if there is none
+   */
+  static ValueType apply(Operator operator, ValueType a, ValueType b, ValueType c) {
+    String symbol = operator.getSymbol();
+
+    if (symbol.equals("==") || symbol.equals("!=") || symbol.equals(">") || symbol.equals(">=")
+        || symbol.equals("<") || symbol.equals("<=") || symbol.equals("&&") || symbol.equals("||")
+        || symbol.equals("!") || symbol.equals("in") || symbol.equals("in-set")) {
+      return ValueType.BOOLEAN;
+    } else if (symbol.equals("+")) {
+      return add(a, b);
+    } else if (symbol.equals("-")) {
+      return add(a, negate(b));
+    } else if (symbol.equals("unaryMinus")) {
+      return negate(a);
+    } else if (symbol.equals("*")) {
+      return multiply(a, b);
+    } else if (symbol.equals("/")) {
+      return divide(a, b);
+    } else if (symbol.equals("%")) {
+      return mod(a, b);
+    } else if (symbol.equals("**")) {
+      return power(a, b);
+    } else if (symbol.equals("max")) {
+      return ValueType.of(Math.max(a.getMin(), b.getMin()), Math.max(a.getMax(), b.getMax()),
+          a.isIntegral() && b.isIntegral(), a.mayBeNaN() || b.mayBeNaN());
+    } else if (symbol.equals("min")) {
+      return ValueType.of(Math.min(a.getMin(), b.getMin()), Math.min(a.getMax(), b.getMax()),
+          a.isIntegral() && b.isIntegral(), a.mayBeNaN() || b.mayBeNaN());
+    } else if (symbol.equals("abs")) {
+      return abs(a);
+    } else if (symbol.equals("sign")) {
+      return ValueType.of(Math.signum(a.getMin()), Math.signum(a.getMax()), true, a.mayBeNaN());
+    } else if (symbol.equals("floor")) {
+      return ValueType.of(Math.floor(a.getMin()), Math.floor(a.getMax()), true, a.mayBeNaN());
+    } else if (symbol.equals("ceil")) {
+      return ValueType.of(Math.ceil(a.getMin()), Math.ceil(a.getMax()), true, a.mayBeNaN());
+    } else if (symbol.equals("round")) {
+      ValueType rounded = ValueType.of(Math.round(a.getMin()), Math.round(a.getMax()), true, false);
+      return a.mayBeNaN() ? rounded.union(ValueType.constant(0)) : rounded; // Math.round(NaN) is 0
+    } else if (symbol.equals("exp")) {
+      return ValueType.of(Math.exp(a.getMin()), Math.exp(a.getMax()), false, a.mayBeNaN());
+    } else if (symbol.equals("sigmoid")) {
+      return ValueType.of(sigmoid(a.getMin()), sigmoid(a.getMax()), false, a.mayBeNaN());
+    } else if (symbol.equals("tanh")) {
+      return ValueType.of(Math.tanh(a.getMin()), Math.tanh(a.getMax()), false, a.mayBeNaN());
+    } else if (symbol.equals("sqrt")) {
+      return ValueType.of(Math.sqrt(Math.max(a.getMin(), 0)), Math.sqrt(Math.max(a.getMax(), 0)), false,
+          a.mayBeNaN() || a.getMin() < 0);
+    } else if (symbol.equals("ln")) {
+      return logarithm(a, 0, 1);
+    } else if (symbol.equals("log2")) {
+      return logarithm(a, 0, 1 / Math.log(2));
+    } else if (symbol.equals("ln1plus")) {
+      return logarithm(a, -1, 1);
+    } else if (symbol.equals("sin") || symbol.equals("cos")) {
+      return ValueType.of(-1, 1, false, a.mayBeNaN() || Double.isInfinite(a.getMin()) || Double.isInfinite(a.getMax()));
+    } else if (symbol.equals("if")) {
+      if (a.isNonZero()) {
+        return b;
+      }
+      return a.isConstant() ? c : b.union(c);
+    } else if (symbol.equals("norm")) {
+      return ValueType.of(0, Double.POSITIVE_INFINITY, false, true);
+    } else if (symbol.equals("cosine")) {
+      return ValueType.of(-1, 1, false, true);
+    } else if (symbol.equals("rand")) {
+      return ValueType.range(0, 1);
+    } else if (symbol.equals("rand-in")) {
+      ValueType union = a.union(b);
+      return ValueType.of(union.getMin(), union.getMax(), false,
+          union.mayBeNaN() || Double.isInfinite(union.getMin()) || Double.isInfinite(union.getMax()));
+    }
+
+    return ValueType.REAL;
+  }
+
+  private static ValueType negate(ValueType a) {
+    return ValueType.of(-a.getMax(), -a.getMin(), a.isIntegral(), a.mayBeNaN());
+  }
+
+  private static ValueType add(ValueType a, ValueType b) {
+    double min = a.getMin() + b.getMin();
+    double max = a.getMax() + b.getMax();
+    boolean nan = a.mayBeNaN() || b.mayBeNaN() || Double.isNaN(min) || Double.isNaN(max)
+        || a.getMax() == Double.POSITIVE_INFINITY && b.getMin() == Double.NEGATIVE_INFINITY
+        || a.getMin() == Double.NEGATIVE_INFINITY && b.getMax() == Double.POSITIVE_INFINITY;
+
+    return ValueType.of(Double.isNaN(min) ? Double.NEGATIVE_INFINITY : min,
+        Double.isNaN(max) ? Double.POSITIVE_INFINITY : max, a.isIntegral() && b.isIntegral(), nan);
+  }
+
+  private static ValueType multiply(ValueType a, ValueType b) {
+    return extremes(new double[]{a.getMin() * b.getMin(), a.getMin() * b.getMax(), a.getMax() * b.getMin(),
+        a.getMax() * b.getMax()}, a.isIntegral() && b.isIntegral(), a.mayBeNaN() || b.mayBeNaN());
+  }
+
+  private static ValueType divide(ValueType a, ValueType b) {
+    if (b.getMin() <= 0 && b.getMax() >= 0) {
+      return ValueType.REAL;
+    }
+    return extremes(new double[]{a.getMin() / b.getMin(), a.getMin() / b.getMax(), a.getMax() / b.getMin(),
+        a.getMax() / b.getMax()}, false, a.mayBeNaN() || b.mayBeNaN());
+  }
+
+  /**
+   * Range spanned by the candidate values of a bilinear operation at the corners of its operand ranges,
+   *   NaN candidates (0 * infinity, infinity / infinity) make the result possibly NaN
+   */
+  private static ValueType extremes(double[] candidates, boolean integral, boolean nan) {
+    double min = Double.POSITIVE_INFINITY;
+    double max = Double.NEGATIVE_INFINITY;
+
+    for (double candidate : candidates) {
+      if (Double.isNaN(candidate)) {
+        nan = true;
+        candidate = 0;
+      }
+      min = Math.min(min, candidate);
+      max = Math.max(max, candidate);
+    }
+
+    return ValueType.of(min, max, integral, nan);
+  }
+
+  private static ValueType mod(ValueType a, ValueType b) {
+    double bound = Math.max(Math.abs(b.getMin()), Math.abs(b.getMax()));
+    boolean nan = a.mayBeNaN() || b.mayBeNaN() || b.getMin() <= 0 && b.getMax() >= 0
+        || Double.isInfinite(a.getMin()) || Double.isInfinite(a.getMax());
+    boolean integral = a.isIntegral() && b.isIntegral();
+
+    if (a.getMin() >= 0) {
+      return ValueType.of(0, Math.min(a.getMax(), bound), integral, nan);
+    } else if (a.getMax() <= 0) {
+      return ValueType.of(-Math.min(-a.getMin(), bound), 0, integral, nan);
+    }
+    return ValueType.of(-bound, bound, integral, nan);
+  }
+
+  /**
+   * x^c for non-negative x and a constant exponent c is monotonic in x, anything else is left unconstrained
+   */
+  private static ValueType power(ValueType a, ValueType b) {
+    if (!b.isConstant() || Double.compare(a.getMin(), 0.0) < 0 || a.mayBeNaN()) { // -0 excluded too
+      return ValueType.REAL;
+    }
+
+    double c = b.getMin();
+    double low = Math.pow(a.getMin(), c);
+    double high = Math.pow(a.getMax(), c);
+    boolean integral = a.isIntegral() && c >= 0 && ValueType.isInteger(c);
+
+    return ValueType.of(Math.min(low, high), Math.max(low, high), integral, false);
+  }
+
+  private static ValueType abs(ValueType a) {
+    if (a.getMin() >= 0) {
+      return a;
+    } else if (a.getMax() <= 0) {
+      return negate(a);
+    }
+    return ValueType.of(0, Math.max(-a.getMin(), a.getMax()), a.isIntegral(), a.mayBeNaN());
+  }
+
+  /**
+   * scale * ln(x - domain), monotonic, NaN below the domain
+   */
+  private static ValueType logarithm(ValueType a, double domain, double scale) {
+    double min = Math.log(Math.max(a.getMin() - domain, 0)) * scale;
+    double max = Math.log(Math.max(a.getMax() - domain, 0)) * scale;
+
+    return ValueType.of(min, max, false, a.mayBeNaN() || a.getMin() < domain);
+  }
+
+  private static double sigmoid(double x) {
+    return 1.0 / (1 + Math.exp(-x));
+  }
+}
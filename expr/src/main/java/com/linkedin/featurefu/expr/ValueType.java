@@ -0,0 +1,135 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+/**
+ * Static description of the values an expression can evaluate to:
+ *   a closed range [min, max] (bounds may be infinite), whether every value is an integer, and whether NaN is possible
+ *
+ * Booleans are integers in [0, 1] that are never NaN, which is what comparisons and logical operators produce.
+ * Instances are immutable, see TypeInference for how they are computed.
+ */
+public final class ValueType {
+  /**
+   * Nothing known, any double including NaN
+   */
+  public static final ValueType REAL = new ValueType(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, false, true);
+
+  /**
+   * 0 or 1
+   */
+  public static final ValueType BOOLEAN = new ValueType(0, 1, true, false);
+
+  private final double _min;
+  private final double _max;
+  private final boolean _integral;
+  private final boolean _nan;
+
+  private ValueType(double min, double max, boolean integral, boolean nan) {
+    this._min = min;
+    this._max = max;
+    this._integral = integral;
+    this._nan = nan;
+  }
+
+  /**
+   * @return values within [min, max], never NaN
+   */
+  public static ValueType range(double min, double max) {
+    return of(min, max, false, false);
+  }
+
+  /**
+   * @return integer values within [min, max], never NaN
+   */
+  public static ValueType integral(double min, double max) {
+    return of(min, max, true, false);
+  }
+
+  /**
+   * @return the type of a single known value
+   */
+  public static ValueType constant(double value) {
+    if (Double.isNaN(value)) {
+      return REAL;
+    }
+    return of(value, value, isInteger(value), false);
+  }
+
+  static ValueType of(double min, double max, boolean integral, boolean nan) {
+    if (Double.isNaN(min) || Double.isNaN(max) || min > max) {
+      return REAL;
+    }
+    if (integral && !nan && min == 0 && max == 1) {
+      return BOOLEAN;
+    }
+    return new ValueType(min, max, integral, nan);
+  }
+
+  static boolean isInteger(double value) {
+    return Double.isInfinite(value) || value == Math.rint(value);
+  }
+
+  public double getMin() {
+    return _min;
+  }
+
+  public double getMax() {
+    return _max;
+  }
+
+  /**
+   * @return true if every value is an integer (or an infinity within the range)
+   */
+  public boolean isIntegral() {
+    return _integral;
+  }
+
+  public boolean mayBeNaN() {
+    return _nan;
+  }
+
+  public boolean isBoolean() {
+    return _integral && !_nan && _min >= 0 && _max <= 1;
+  }
+
+  /**
+   * @return true if the range contains a single value and NaN is not possible
+   */
+  public boolean isConstant() {
+    return !_nan && _min == _max;
+  }
+
+  /**
+   * @return true if the value can never be 0, so it always tests as true in if, &&, || and !
+   */
+  public boolean isNonZero() {
+    return _min > 0 || _max < 0;
+  }
+
+  /**
+   * @return smallest type containing the values of both types
+   */
+  public ValueType union(ValueType other) {
+    return of(Math.min(_min, other._min), Math.max(_max, other._max), _integral && other._integral, _nan || other._nan);
+  }
+
+  public String toString() {
+    if (isBoolean()) {
+      return "boolean";
+    }
+    return (_integral ? "integral" : "real") + "[" + _min + "," + _max + "]" + (_nan ? "?" : "");
+  }
+}
@@ -14,6 +14,7 @@
 
 package com.linkedin.featurefu.expr;
 
+import java.util.InputMismatchException;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -63,6 +64,40 @@ public class VariableRegistry extends ConcurrentHashMap<String, Variable> {
     return result;
   }
 
+  /**
+   * Register vector variable by name, try find it first, if not found, create new one and register
+   *
+   * @param name variable name
+   * @return vector variable found or created
+   * @throws InputMismatchException if the name is registered as a scalar variable
+   */
+  public VectorVariable registerVector(String name) {
+    Variable result = findVariable(name);
+
+    if (result == null) {
+      result = new VectorVariable(name);
+      this.put(name, result);
+    } else if (!(result instanceof VectorVariable)) {
+      throw new InputMismatchException(name + " is used both as a scalar and as a vector");
+    }
+
+    return (VectorVariable) result;
+  }
+
+  /**
+   * Resolve a name found while parsing, let expressions resolve the names they bind before registering variables
+   * @param name variable name
+   * @return atom the name refers to
+   * @throws InputMismatchException if the name is a vector
+   */
+  Atom resolve(String name) {
+    Variable variable = registerVariable(name);
+    if (variable instanceof VectorVariable) {
+      throw new InputMismatchException(name + " is used both as a scalar and as a vector");
+    }
+    return variable;
+  }
+
   /***
    * Refresh values for all the variables registered, based on given <varName,value> map
    * @param varMap
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import java.util.ArrayList;
+import java.util.InputMismatchException;
+import java.util.List;
+import java.util.MissingFormatArgumentException;
+
+
+/**
+ * Operators reducing dense vectors (VectorVariable) to scalars, the operands are vector names
+ *
+ *   (dot u v)              sum of u[i] * v[i]
+ *   (cosine u v)           dot(u, v) / (norm(u) * norm(v)), NaN if either is all zeros
+ *   (norm u)               L2 norm, sqrt(dot(u, u))
+ *   (weighted-dot u v w)   sum of w[i] * u[i] * v[i], u and v with each dimension scaled by w
+ *
+ * Vectors of different lengths give NaN. Kernels are plain loops over the arrays with independent accumulators:
+ *   float[] vectors are multiplied in float and summed in double, which keeps the loop as fast as with double[]
+ *   (widening each element before multiplying doesn't), vectors of different precisions are computed in double.
+ */
+public final class VectorOperators {
+  private VectorOperators() {
+  }
+
+  public static final Operator DOT = new VectorOperator("dot", 2) {
+    double calculate(VectorVariable u, VectorVariable v, VectorVariable w) {
+      if (u.length() != v.length()) {
+        return Double.NaN;
+      }
+      if (u.floats() != null && v.floats() != null) {
+        return dot(u.floats(), v.floats());
+      }
+      return dot(u.doubles(), v.doubles());
+    }
+  };
+
+  public static final Operator COSINE = new VectorOperator("cosine", 2) {
+    double calculate(VectorVariable u, VectorVariable v, VectorVariable w) {
+      if (u.length() != v.length()) {
+        return Double.NaN;
+      }
+      if (u.floats() != null && v.floats() != null) {
+        return cosine(u.floats(), v.floats());
+      }
+      return cosine(u.doubles(), v.doubles());
+    }
+  };
+
+  public static final Operator NORM = new VectorOperator("norm", 1) {
+    double calculate(VectorVariable u, VectorVariable v, VectorVariable w) {
+      return Math.sqrt(u.floats() != null ? dot(u.floats(), u.floats()) : dot(u.doubles(), u.doubles()));
+    }
+  };
+
+  public static final Operator WEIGHTED_DOT = new VectorOperator("weighted-dot", 3) {
+    double calculate(VectorVariable u, VectorVariable v, VectorVariable w) {
+      if (u.length() != v.length() || u.length() != w.length()) {
+        return Double.NaN;
+      }
+      if (u.floats() != null && v.floats() != null && w.floats() != null) {
+        return weightedDot(u.floats(), v.floats(), w.floats());
+      }
+      return weightedDot(u.doubles(), v.doubles(), w.doubles());
+    }
+  };
+
+  /**
+   * Operands are vector variables, parsed from their names
+   */
+  private abstract static class VectorOperator extends Operator {
+    private final String _symbol;
+    private final int _vectors;
+
+    VectorOperator(String symbol, int vectors) {
+      this._symbol = symbol;
+      this._vectors = vectors;
+    }
+
+    /**
+     * @return VARIABLE_OPERANDS for two vectors, so that (dot u v) prints in prefix form, parseOperands still
+     *   requires exactly the number of vectors
+     */
+    public int numberOfOperands() {
+      return _vectors == 2 ? VARIABLE_OPERANDS : _vectors;
+    }
+
+    public String getSymbol() {
+      return _symbol;
+    }
+
+    protected List<Expr> parseOperands(List<String> operands, VariableRegistry variableRegistry) {
+      if (operands.size() != _vectors) {
+        throw new MissingFormatArgumentException(
+            _symbol + " expect " + _vectors + " vectors, actual number of operands is: " + operands.size());
+      }
+
+      List<Expr> list = new ArrayList<Expr>();
+      for (String operand : operands) {
+        if (!isName(operand)) {
+          throw new InputMismatchException(_symbol + " operands should be vector names, found: " + operand);
+        }
+        list.add(variableRegistry.registerVector(operand));
+      }
+      return list;
+    }
+
+    public double calculate(List<Expr> operands) {
+      return calculate(vector(operands, 0), vector(operands, 1), vector(operands, 2));
+    }
+
+    abstract double calculate(VectorVariable u, VectorVariable v, VectorVariable w);
+
+    private static VectorVariable vector(List<Expr> operands, int index) {
+      if (index >= operands.size()) {
+        return null;
+      }
+      Expr operand = operands.get(index);
+      if (!(operand instanceof VectorVariable)) {
+        throw new UnsupportedOperationException("vector operand expected, found: " + operand);
+      }
+      return (VectorVariable) operand;
+    }
+
+    private static boolean isName(String token) {
+      if (token.startsWith(SExprTokenizer.OPEN_PAREN)) {
+        return false;
+      }
+      try {
+        Double.parseDouble(token);
+        return false;
+      } catch (NumberFormatException nfe) {
+        return true;
+      }
+    }
+  }
+
+  static double dot(double[] a, double[] b) {
+    final int n = a.length;
+    double s0 = 0;
+    double s1 = 0;
+    double s2 = 0;
+    double s3 = 0;
+    int i = 0;
+    for (; i + 3 < n; i += 4) {
+      s0 += a[i] * b[i];
+      s1 += a[i + 1] * b[i + 1];
+      s2 += a[i + 2] * b[i + 2];
+      s3 += a[i + 3] * b[i + 3];
+    }
+    for (; i < n; i++) {
+      s0 += a[i] * b[i];
+    }
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  static double dot(float[] a, float[] b) {
+    final int n = a.length;
+    double s0 = 0;
+    double s1 = 0;
+    double s2 = 0;
+    double s3 = 0;
+    int i = 0;
+    for (; i + 3 < n; i += 4) {
+      s0 += a[i] * b[i];
+      s1 += a[i + 1] * b[i + 1];
+      s2 += a[i + 2] * b[i + 2];
+      s3 += a[i + 3] * b[i + 3];
+    }
+    for (; i < n; i++) {
+      s0 += a[i] * b[i];
+    }
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  /**
+   * One pass for the dot product and both squared norms, clamped to [-1, 1] against rounding
+   */
+  static double cosine(double[] a, double[] b) {
+    final int n = a.length;
+    double ab0 = 0;
+    double ab1 = 0;
+    double aa0 = 0;
+    double aa1 = 0;
+    double bb0 = 0;
+    double bb1 = 0;
+    int i = 0;
+    for (; i + 1 < n; i += 2) {
+      ab0 += a[i] * b[i];
+      aa0 += a[i] * a[i];
+      bb0 += b[i] * b[i];
+      ab1 += a[i + 1] * b[i + 1];
+      aa1 += a[i + 1] * a[i + 1];
+      bb1 += b[i + 1] * b[i + 1];
+    }
+    for (; i < n; i++) {
+      ab0 += a[i] * b[i];
+      aa0 += a[i] * a[i];
+      bb0 += b[i] * b[i];
+    }
+    return clamp((ab0 + ab1) / Math.sqrt((aa0 + aa1) * (bb0 + bb1)));
+  }
+
+  static double cosine(float[] a, float[] b) {
+    final int n = a.length;
+    double ab0 = 0;
+    double ab1 = 0;
+    double aa0 = 0;
+    double aa1 = 0;
+    double bb0 = 0;
+    double bb1 = 0;
+    int i = 0;
+    for (; i + 1 < n; i += 2) {
+      ab0 += a[i] * b[i];
+      aa0 += a[i] * a[i];
+      bb0 += b[i] * b[i];
+      ab1 += a[i + 1] * b[i + 1];
+      aa1 += a[i + 1] * a[i + 1];
+      bb1 += b[i + 1] * b[i + 1];
+    }
+    for (; i < n; i++) {
+      ab0 += a[i] * b[i];
+      aa0 += a[i] * a[i];
+      bb0 += b[i] * b[i];
+    }
+    return clamp((ab0 + ab1) / Math.sqrt((aa0 + aa1) * (bb0 + bb1)));
+  }
+
+  static double weightedDot(double[] a, double[] b, double[] w) {
+    final int n = a.length;
+    double s0 = 0;
+    double s1 = 0;
+    double s2 = 0;
+    double s3 = 0;
+    int i = 0;
+    for (; i + 3 < n; i += 4) {
+      s0 += w[i] * a[i] * b[i];
+      s1 += w[i + 1] * a[i + 1] * b[i + 1];
+      s2 += w[i + 2] * a[i + 2] * b[i + 2];
+      s3 += w[i + 3] * a[i + 3] * b[i + 3];
+    }
+    for (; i < n; i++) {
+      s0 += w[i] * a[i] * b[i];
+    }
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  static double weightedDot(float[] a, float[] b, float[] w) {
+    final int n = a.length;
+    double s0 = 0;
+    double s1 = 0;
+    double s2 = 0;
+    double s3 = 0;
+    int i = 0;
+    for (; i + 3 < n; i += 4) {
+      s0 += w[i] * a[i] * b[i];
+      s1 += w[i + 1] * a[i + 1] * b[i + 1];
+      s2 += w[i + 2] * a[i + 2] * b[i + 2];
+      s3 += w[i + 3] * a[i + 3] * b[i + 3];
+    }
+    for (; i < n; i++) {
+      s0 += w[i] * a[i] * b[i];
+    }
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  private static double clamp(double cosine) {
+    return cosine > 1 ? 1 : cosine < -1 ? -1 : cosine;   // NaN stays NaN
+  }
+}
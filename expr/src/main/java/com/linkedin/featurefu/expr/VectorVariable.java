@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+/**
+ * Dense vector input, such as an embedding, for the operators of VectorOperators
+ *
+ * The vector is bound by reference to a double[] or a float[], nothing is copied, so the caller must not modify the
+ *   array while an expression using it is evaluated. Unbound vectors are empty. Vectors are not scalars: their names
+ *   can only be operands of vector operators, and VariableRegistry.refresh leaves them alone.
+ */
+public class VectorVariable extends Variable {
+  private double[] _doubles;
+  private float[] _floats;
+  private double[] _widened;   // _floats as doubles, for operators mixing precisions
+
+  protected VectorVariable(String name) {
+    super(name);
+  }
+
+  public void setValue(double[] values) {
+    this._doubles = values;
+    this._floats = null;
+  }
+
+  public void setValue(float[] values) {
+    this._floats = values;
+    this._doubles = null;
+  }
+
+  /**
+   * Scalar values don't apply to vectors and are ignored
+   */
+  @Override
+  public void setValue(double v) {
+  }
+
+  /**
+   * @return number of elements, 0 if unbound
+   */
+  public int length() {
+    return _doubles != null ? _doubles.length : _floats != null ? _floats.length : 0;
+  }
+
+  /**
+   * @return the bound float[], null if bound to a double[] or unbound
+   */
+  float[] floats() {
+    return _floats;
+  }
+
+  /**
+   * @return the elements as doubles: the bound double[], or the bound float[] widened into a reused buffer
+   */
+  double[] doubles() {
+    if (_doubles != null) {
+      return _doubles;
+    }
+    if (_floats == null) {
+      return EMPTY;
+    }
+    if (_widened == null || _widened.length != _floats.length) {
+      _widened = new double[_floats.length];
+    }
+    for (int i = 0; i < _floats.length; i++) {
+      _widened[i] = _floats[i];
+    }
+    return _widened;
+  }
+
+  private static final double[] EMPTY = new double[0];
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Drives a feature set with synthetic inputs until evaluation latency has stabilized, so that a freshly deployed or
+ *   reloaded set doesn't meet production traffic with cold, interpreted code
+ *
+ * Inputs are either random, drawn per variable within the declared ValueType ranges, or replayed from a sample of
+ *   real requests (see readSamples). The feature set is evaluated in rounds of getBatchSize() evaluations, timed with
+ *   one System.nanoTime pair per round. Once at least getMinRounds() rounds have run and the last getStableRounds()
+ *   rounds agree within getTolerance(), latency is stable and the warm-up is ready. If it never stabilizes, the warm-up
+ *   gives up after getMaxRounds() and is ready but not stable, hosts decide whether to join the serving pool anyway.
+ *
+ * Warm up a new version before FeatureSetHolder.publish, the JIT profile is shared by every instance of the set:
+ *
+ *   WarmUp warmUp = new WarmUp(next, ranges, 0L);
+ *   warmUp.start();
+ *   if (warmUp.await(2, TimeUnit.MINUTES)) holder.publish(next);
+ */
+public class WarmUp implements Runnable {
+  private static final double UNBOUNDED = 1e3;   // random inputs of variables without finite bounds stay in [-1e3, 1e3]
+  private static final double NAN_RATE = 0.01;   // share of NaN inputs for variables that may be NaN
+
+  private final FeatureSet _featureSet;
+  private final Map<String, ValueType> _ranges;
+  private final List<Map<String, Double>> _samples;
+  private final Random _random;
+  private final CountDownLatch _done = new CountDownLatch(1);
+
+  private int _batchSize = 1000;
+  private int _minRounds = 20;
+  private int _stableRounds = 5;
+  private int _maxRounds = 2000;
+  private double _tolerance = 0.1;
+
+  private volatile int _rounds;
+  private volatile double _nanosPerEvaluation = Double.NaN;
+  private volatile boolean _stable;
+  private volatile boolean _ready;
+  private double _sink;   // keeps the JIT from eliminating the evaluations
+
+  /**
+   * Warm up with random inputs
+   * @param featureSet feature set to warm up
+   * @param ranges variable name -> values to draw from, other variables are drawn from [-1e3, 1e3]
+   * @param seed seed of the random inputs
+   */
+  public WarmUp(FeatureSet featureSet, Map<String, ValueType> ranges, long seed) {
+    this._featureSet = featureSet;
+    this._ranges = new HashMap<String, ValueType>(ranges);
+    this._samples = null;
+    this._random = new Random(seed);
+  }
+
+  /**
+   * Warm up by replaying sample inputs, in a loop
+   * @param featureSet feature set to warm up
+   * @param samples variable name -> value maps, for instance from readSamples
+   * @throws IllegalArgumentException if there are no samples
+   */
+  public WarmUp(FeatureSet featureSet, List<Map<String, Double>> samples) {
+    if (samples.isEmpty()) {
+      throw new IllegalArgumentException("no warm-up samples");
+    }
+    this._featureSet = featureSet;
+    this._ranges = null;
+    this._samples = new ArrayList<Map<String, Double>>(samples);
+    this._random = null;
+  }
+
+  /**
+   * Read sample inputs from CSV: a header line of variable names, then one line of values per sample
+   *   empty lines and lines starting with # are skipped, empty values leave the variable out of the sample
+   * @throws IOException if the reader fails
+   * @throws IllegalArgumentException if a line has more values than the header has names
+   */
+  public static List<Map<String, Double>> readSamples(Reader reader) throws IOException {
+    BufferedReader lines = new BufferedReader(reader);
+    List<Map<String, Double>> samples = new ArrayList<Map<String, Double>>();
+    String[] names = null;
+
+    for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      String[] fields = line.split(",", -1);
+      if (names == null) {
+        names = fields;
+        for (int i = 0; i < names.length; i++) {
+          names[i] = names[i].trim();
+        }
+        continue;
+      }
+      if (fields.length > names.length) {
+        throw new IllegalArgumentException("more values than variables: " + line);
+      }
+      Map<String, Double> sample = new HashMap<String, Double>();
+      for (int i = 0; i < fields.length; i++) {
+        String field = fields[i].trim();
+        if (!field.isEmpty()) {
+          sample.put(names[i], Double.parseDouble(field));
+        }
+      }
+      samples.add(sample);
+    }
+    return samples;
+  }
+
+  public WarmUp setBatchSize(int batchSize) {
+    this._batchSize = batchSize;
+    return this;
+  }
+
+  /**
+   * @param minRounds rounds to run before latency can be considered stable, enough for the JIT compile thresholds
+   * @param stableRounds number of consecutive rounds that must agree
+   * @param maxRounds rounds after which the warm-up gives up waiting for stable latency
+   * @param tolerance largest relative spread, (slowest - fastest) / fastest, of stable rounds
+   */
+  public WarmUp setRounds(int minRounds, int stableRounds, int maxRounds, double tolerance) {
+    if (stableRounds < 1 || minRounds < stableRounds || maxRounds < minRounds) {
+      throw new IllegalArgumentException("need 1 <= stableRounds <= minRounds <= maxRounds");
+    }
+    this._minRounds = minRounds;
+    this._stableRounds = stableRounds;
+    this._maxRounds = maxRounds;
+    this._tolerance = tolerance;
+    return this;
+  }
+
+  public int getBatchSize() {
+    return _batchSize;
+  }
+
+  public int getMinRounds() {
+    return _minRounds;
+  }
+
+  public int getStableRounds() {
+    return _stableRounds;
+  }
+
+  public int getMaxRounds() {
+    return _maxRounds;
+  }
+
+  public double getTolerance() {
+    return _tolerance;
+  }
+
+  /**
+   * Run the warm-up on a daemon thread
+   * @return the thread, already started
+   */
+  public Thread start() {
+    Thread thread = new Thread(this, "warm-up-" + _featureSet.getVersion());
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  /**
+   * Run the warm-up on the calling thread, until latency is stable or getMaxRounds() rounds have run
+   */
+  @Override
+  public void run() {
+    try {
+      FeatureSet.Instance instance = _featureSet.newInstance();
+      List<String> variables = new ArrayList<String>(instance.getRegistry().keySet());
+      Collections.sort(variables);   // the registry's iteration order isn't reproducible
+      List<Map<String, Double>> inputs = _samples != null ? _samples : randomInputs(variables);
+      double[] output = new double[_featureSet.getNames().size()];
+      double[] window = new double[_stableRounds];
+      int next = 0;
+
+      for (int round = 0; round < _maxRounds && !_stable; round++) {
+        long start = System.nanoTime();
+        for (int i = 0; i < _batchSize; i++) {
+          instance.evaluate(inputs.get(next), output);
+          _sink += output.length > 0 ? output[0] : 0;
+          next = next + 1 < inputs.size() ? next + 1 : 0;
+        }
+        double nanos = (double) (System.nanoTime() - start) / _batchSize;
+
+        window[round % _stableRounds] = nanos;
+        _nanosPerEvaluation = nanos;
+        _rounds = round + 1;
+        _stable = _rounds >= _minRounds && spread(window) <= _tolerance;
+      }
+    } finally {
+      _ready = true;
+      _done.countDown();
+    }
+  }
+
+  /**
+   * @return true once the warm-up has finished, stable or not
+   */
+  public boolean isReady() {
+    return _ready;
+  }
+
+  /**
+   * @return true if the warm-up finished because latency stabilized
+   */
+  public boolean isStable() {
+    return _stable;
+  }
+
+  /**
+   * Wait for the warm-up to finish
+   * @return true if latency stabilized, false if the warm-up gave up or the timeout elapsed first
+   * @throws InterruptedException if the calling thread is interrupted while waiting
+   */
+  public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+    return _done.await(timeout, unit) && _stable;
+  }
+
+  /**
+   * @return rounds run so far
+   */
+  public int getRounds() {
+    return _rounds;
+  }
+
+  /**
+   * @return average evaluation time of the feature set in the last round, NaN before the first round
+   */
+  public double getNanosPerEvaluation() {
+    return _nanosPerEvaluation;
+  }
+
+  /**
+   * One random input per batch slot, drawn up front so that drawing isn't part of the timings
+   */
+  private List<Map<String, Double>> randomInputs(List<String> variables) {
+    List<Map<String, Double>> inputs = new ArrayList<Map<String, Double>>(_batchSize);
+    for (int i = 0; i < _batchSize; i++) {
+      Map<String, Double> input = new HashMap<String, Double>();
+      for (String variable : variables) {
+        ValueType type = _ranges.containsKey(variable) ? _ranges.get(variable) : ValueType.REAL;
+        input.put(variable, draw(type));
+      }
+      inputs.add(input);
+    }
+    return inputs;
+  }
+
+  private double draw(ValueType type) {
+    if (type.mayBeNaN() && _random.nextDouble() < NAN_RATE) {
+      return Double.NaN;
+    }
+    double min = Math.max(type.getMin(), -UNBOUNDED);
+    double max = Math.min(type.getMax(), UNBOUNDED);
+    if (min > max) {   // a range entirely beyond the clamp
+      min = max = Double.isInfinite(type.getMin()) ? type.getMax() : type.getMin();
+    }
+    double value = min + _random.nextDouble() * (max - min);
+    return type.isIntegral() ? Math.min(Math.max(Math.round(value), Math.ceil(min)), Math.floor(max)) : value;
+  }
+
+  private static double spread(double[] window) {
+    double fastest = Double.POSITIVE_INFINITY;
+    double slowest = 0;
+    for (double nanos : window) {
+      fastest = Math.min(fastest, nanos);
+      slowest = Math.max(slowest, nanos);
+    }
+    if (fastest == 0) {   // rounds below the timer resolution
+      return slowest == 0 ? 0 : Double.POSITIVE_INFINITY;
+    }
+    return (slowest - fastest) / fastest;
+  }
+}
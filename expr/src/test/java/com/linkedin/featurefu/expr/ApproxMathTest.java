@@ -0,0 +1,152 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ *
+ * Verify the error bounds documented in ApproxMath against java.lang.Math
+ *
+ */
+public class ApproxMathTest {
+    private static final int SAMPLES = 200000;
+    private static final double BOUND = 1e-12;
+
+    private final Random random = new Random(0L);
+
+    private double uniform(double low, double high) {
+        return low + (high - low) * random.nextDouble();
+    }
+
+    @Test
+    public void exp() {
+        double maxRelative = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            double x = uniform(-700, 700);
+            maxRelative = Math.max(maxRelative, Math.abs(ApproxMath.exp(x) / Math.exp(x) - 1));
+        }
+        Assert.assertTrue(maxRelative < BOUND, "exp relative error " + maxRelative);
+
+        Assert.assertEquals(ApproxMath.exp(0), 1.0, 0);
+        Assert.assertEquals(ApproxMath.exp(1000), Double.POSITIVE_INFINITY, 0);
+        Assert.assertEquals(ApproxMath.exp(-1000), 0.0, 0);
+        Assert.assertTrue(Double.isNaN(ApproxMath.exp(Double.NaN)));
+    }
+
+    @Test
+    public void sigmoid() {
+        double maxRelative = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            double x = uniform(-50, 50);
+            double exact = 1.0 / (1 + Math.exp(-x));
+            maxRelative = Math.max(maxRelative, Math.abs(ApproxMath.sigmoid(x) / exact - 1));
+        }
+        Assert.assertTrue(maxRelative < BOUND, "sigmoid relative error " + maxRelative);
+    }
+
+    @Test
+    public void logarithms() {
+        double maxAbsolute = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            double x = Math.exp(uniform(-700, 700));
+            maxAbsolute = Math.max(maxAbsolute, Math.abs(ApproxMath.log(x) - Math.log(x)));
+            maxAbsolute = Math.max(maxAbsolute, Math.abs(ApproxMath.log2(x) - Math.log(x) / Math.log(2)));
+        }
+        for (int i = 0; i < SAMPLES; i++) {
+            double x = uniform(-0.99, 100);
+            maxAbsolute = Math.max(maxAbsolute, Math.abs(ApproxMath.log1plus(x) - Math.log(1 + x)));
+        }
+        Assert.assertTrue(maxAbsolute < BOUND, "log absolute error " + maxAbsolute);
+
+        Assert.assertEquals(ApproxMath.log(1), 0.0, BOUND);
+        Assert.assertEquals(ApproxMath.log(0), Double.NEGATIVE_INFINITY, 0);
+        Assert.assertTrue(Double.isNaN(ApproxMath.log(-1)));
+        Assert.assertEquals(ApproxMath.log(Double.MIN_VALUE), Math.log(Double.MIN_VALUE), 0);
+    }
+
+    @Test
+    public void tanh() {
+        double maxAbsolute = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            double x = uniform(-20, 20);
+            maxAbsolute = Math.max(maxAbsolute, Math.abs(ApproxMath.tanh(x) - Math.tanh(x)));
+            x = uniform(-0.2, 0.2);
+            maxAbsolute = Math.max(maxAbsolute, Math.abs(ApproxMath.tanh(x) - Math.tanh(x)));
+        }
+        Assert.assertTrue(maxAbsolute < BOUND, "tanh absolute error " + maxAbsolute);
+    }
+
+    @Test
+    public void trigonometric() {
+        double maxAbsolute = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            double x = uniform(-1e5, 1e5);
+            maxAbsolute = Math.max(maxAbsolute, Math.abs(ApproxMath.sin(x) - Math.sin(x)));
+            maxAbsolute = Math.max(maxAbsolute, Math.abs(ApproxMath.cos(x) - Math.cos(x)));
+            x = uniform(-10, 10);
+            maxAbsolute = Math.max(maxAbsolute, Math.abs(ApproxMath.sin(x) - Math.sin(x)));
+            maxAbsolute = Math.max(maxAbsolute, Math.abs(ApproxMath.cos(x) - Math.cos(x)));
+        }
+        Assert.assertTrue(maxAbsolute < BOUND, "sin/cos absolute error " + maxAbsolute);
+
+        Assert.assertEquals(ApproxMath.sin(1e20), Math.sin(1e20), 0);
+    }
+
+    @Test
+    public void pow() {
+        double maxScaled = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            double x = Math.exp(uniform(-20, 20));
+            double y = uniform(-30, 30);
+            double exact = Math.pow(x, y);
+            double scaled = Math.abs(ApproxMath.pow(x, y) / exact - 1) / (1 + Math.abs(y * Math.log(x)));
+            maxScaled = Math.max(maxScaled, scaled);
+        }
+        Assert.assertTrue(maxScaled < 10 * BOUND, "pow scaled relative error " + maxScaled);
+
+        Assert.assertEquals(ApproxMath.pow(-2, 3), -8.0, 0);
+        Assert.assertEquals(ApproxMath.pow(0, 0), 1.0, 0);
+        Assert.assertEquals(ApproxMath.pow(5, 0), 1.0, 0);
+    }
+
+    @Test
+    public void approximateExpression() {
+        String input = "(+ (sigmoid (+ (* a x) b)) (+ (log2 (+ 1 x)) (** x 1.5)))";
+
+        VariableRegistry exactRegistry = new VariableRegistry();
+        Expr exact = Expression.parse(input, exactRegistry);
+
+        VariableRegistry approxRegistry = new VariableRegistry();
+        Expr approx = Expression.parse(input, approxRegistry, MathMode.APPROXIMATE);
+
+        Assert.assertEquals(approx.toString(), exact.toString());
+        Assert.assertEquals(Expression.prettyTree(approx), Expression.prettyTree(exact));
+
+        Map<String, Double> varMap = new HashMap<String, Double>();
+        for (int i = 0; i < 1000; i++) {
+            varMap.put("x", uniform(0, 10));
+            varMap.put("a", uniform(-2, 2));
+            varMap.put("b", uniform(-2, 2));
+            exactRegistry.refresh(varMap);
+            approxRegistry.refresh(varMap);
+            Assert.assertEquals(approx.evaluate(), exact.evaluate(), 1e-7);
+        }
+    }
+}
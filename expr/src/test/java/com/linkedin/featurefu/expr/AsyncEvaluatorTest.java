@@ -0,0 +1,177 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ *
+ * Unit test for asynchronous evaluation with bounded concurrency and chunked batches
+ *
+ */
+public class AsyncEvaluatorTest {
+
+    private static FeatureSet featureSet() {
+        Map<String, String> definitions = new LinkedHashMap<String, String>();
+        definitions.put("score", "(sigmoid (+ (* 0.5 x) y))");
+        definitions.put("ratio", "(/ (+ x 1) (+ y 2))");
+        return FeatureSet.compile(1, definitions);
+    }
+
+    private static Map<String, Double> row(Random random) {
+        Map<String, Double> varMap = new HashMap<String, Double>();
+        varMap.put("x", random.nextDouble() * 10);
+        varMap.put("y", random.nextDouble() * 10);
+        return varMap;
+    }
+
+    @Test
+    public void rows() throws InterruptedException, ExecutionException {
+        FeatureSet featureSet = featureSet();
+        AsyncEvaluator evaluator = new AsyncEvaluator(2, 16);
+        try {
+            Random random = new Random(0L);
+            List<Map<String, Double>> varMaps = new ArrayList<Map<String, Double>>();
+            List<CompletableFuture<double[]>> futures = new ArrayList<CompletableFuture<double[]>>();
+            for (int i = 0; i < 500; i++) {
+                varMaps.add(row(random));
+                futures.add(evaluator.evaluate(featureSet, varMaps.get(i)));
+            }
+
+            double[] expected = new double[2];
+            for (int i = 0; i < futures.size(); i++) {
+                featureSet.evaluate(varMaps.get(i), expected);
+                Assert.assertEquals(futures.get(i).get(), expected);
+            }
+            Assert.assertTrue(evaluator.instances(featureSet) <= 2, "more instances than permits");
+        } finally {
+            evaluator.close();
+        }
+    }
+
+    @Test
+    public void batches() throws InterruptedException, ExecutionException {
+        FeatureSet featureSet = featureSet();
+        AsyncEvaluator evaluator = new AsyncEvaluator(3, 64);
+        try {
+            Random random = new Random(1L);
+            for (int rows : new int[]{0, 10, 64, 1000}) {
+                List<Map<String, Double>> varMaps = new ArrayList<Map<String, Double>>();
+                for (int i = 0; i < rows; i++) {
+                    varMaps.add(row(random));
+                }
+                double[][] outputs = evaluator.evaluate(featureSet, varMaps).get();
+                Assert.assertEquals(outputs.length, rows);
+
+                double[] expected = new double[2];
+                for (int i = 0; i < rows; i++) {
+                    featureSet.evaluate(varMaps.get(i), expected);
+                    Assert.assertEquals(outputs[i], expected);
+                }
+            }
+            Assert.assertTrue(evaluator.instances(featureSet) <= 3, "more instances than permits");
+        } finally {
+            evaluator.close();
+        }
+    }
+
+    @Test
+    public void releasesRetiredSets() throws InterruptedException, ExecutionException {
+        AsyncEvaluator evaluator = new AsyncEvaluator(2, 16);
+        try {
+            FeatureSetHolder holder = new FeatureSetHolder(featureSet());
+            Map<String, Double> varMap = row(new Random(2L));
+            evaluator.evaluate(holder.current(), varMap).get();
+
+            WeakReference<FeatureSet> retired = new WeakReference<FeatureSet>(holder.current());
+            Map<String, String> definitions = new LinkedHashMap<String, String>();
+            definitions.put("score", "(+ x y)");
+            Assert.assertTrue(holder.publish(FeatureSet.compile(2, definitions)));
+            evaluator.evaluate(holder.current(), varMap).get();
+
+            for (int i = 0; i < 50 && retired.get() != null; i++) {
+                System.gc();
+                Thread.sleep(10);
+            }
+            Assert.assertNull(retired.get(), "retired feature set still referenced by the evaluator");
+        } finally {
+            evaluator.close();
+        }
+    }
+
+    @Test
+    public void failure() throws InterruptedException {
+        AsyncEvaluator evaluator = new AsyncEvaluator(1, 4);
+        try {
+            List<Map<String, Double>> varMaps = new ArrayList<Map<String, Double>>();
+            for (int i = 0; i < 10; i++) {
+                varMaps.add(null);   // refresh rejects a missing map
+            }
+            try {
+                evaluator.evaluate(featureSet(), varMaps).get();
+                Assert.fail("failed chunk not reported");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof NullPointerException);
+            }
+        } finally {
+            evaluator.close();
+        }
+    }
+
+    @Test
+    public void streaming() throws InterruptedException, ExecutionException {
+        Map<String, String> definitions = new LinkedHashMap<String, String>();
+        definitions.put("clicks", "(window-sum member click 50)");
+        FeatureSet featureSet = FeatureSet.compile(1, definitions);
+        AsyncEvaluator evaluator = new AsyncEvaluator(4, 8);
+        try {
+            Random random = new Random(3L);
+            List<Map<String, Double>> varMaps = new ArrayList<Map<String, Double>>();
+            for (int i = 0; i < 600; i++) {
+                Map<String, Double> varMap = new HashMap<String, Double>();
+                varMap.put("member", (double) random.nextInt(5));
+                varMap.put("click", (double) random.nextInt(2));
+                varMaps.add(varMap);
+            }
+
+            // single rows then a batch of many chunks, all queued at once
+            List<CompletableFuture<double[]>> futures = new ArrayList<CompletableFuture<double[]>>();
+            for (int i = 0; i < 200; i++) {
+                futures.add(evaluator.evaluate(featureSet, varMaps.get(i)));
+            }
+            CompletableFuture<double[][]> batch = evaluator.evaluate(featureSet, varMaps.subList(200, 600));
+
+            FeatureSet.Instance instance = featureSet.newInstance();
+            double[] expected = new double[1];
+            for (int i = 0; i < 600; i++) {
+                instance.evaluate(varMaps.get(i), expected);
+                Assert.assertEquals(i < 200 ? futures.get(i).get() : batch.get()[i - 200], expected);
+            }
+            Assert.assertEquals(evaluator.instances(featureSet), 1);
+        } finally {
+            evaluator.close();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *
+ * Unit test for evaluating expressions over fixed layout rows in ByteBuffers
+ *
+ */
+public class ByteBufferRowBinderTest {
+    @Test
+    public void consecutiveColumns() {
+        VariableRegistry variableRegistry = new VariableRegistry();
+        Expr expr = Expression.parse("(sigmoid (+ (* a x) b))", variableRegistry);
+        ByteBufferRowBinder binder = new ByteBufferRowBinder(variableRegistry, Arrays.asList("x", "unused", "a", "b"));
+
+        // 3 rows of 4 doubles, after a 16 byte header, little endian off-heap
+        ByteBuffer buffer = ByteBuffer.allocateDirect(16 + 3 * 32).order(ByteOrder.LITTLE_ENDIAN);
+        double[][] rows = {{1, 99, 2, 3}, {0.2, 99, 0.6, 0.8}, {-1, 99, 4, -2}};
+        for (int r = 0; r < rows.length; r++) {
+            for (int c = 0; c < 4; c++) {
+                buffer.putDouble(16 + r * 32 + c * 8, rows[r][c]);
+            }
+        }
+
+        double[] output = new double[3];
+        binder.evaluate(expr, buffer, 16, 32, 3, output);
+
+        for (int r = 0; r < rows.length; r++) {
+            double expected = 1.0 / (1 + Math.exp(-(rows[r][2] * rows[r][0] + rows[r][3])));
+            Assert.assertEquals(output[r], expected, 0);
+            Assert.assertEquals(binder.evaluate(expr, buffer, 16 + r * 32), expected, 0);
+        }
+        Assert.assertEquals(buffer.position(), 0);
+    }
+
+    @Test
+    public void byteOffsets() {
+        VariableRegistry variableRegistry = new VariableRegistry();
+        Expr expr = Expression.parse("(- y (* 2 z))", variableRegistry);
+        variableRegistry.findVariable("z").setValue(42);
+
+        Map<String, Integer> offsets = new HashMap<String, Integer>();
+        offsets.put("y", 4);   // unaligned field after an int
+        ByteBufferRowBinder binder = new ByteBufferRowBinder(variableRegistry, offsets);
+
+        ByteBuffer buffer = ByteBuffer.allocate(12);
+        buffer.putInt(0, 7).putDouble(4, 2.5);
+
+        Assert.assertEquals(binder.evaluate(expr, buffer, 0), 2.5, 0);   // z is not in the layout, so it is 0
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ *
+ * Live heap of a catalog of features as object trees vs. compact expressions
+ *   run with: java -cp <test classes>:<classes> com.linkedin.featurefu.expr.CompactExpressionBenchmark [features]
+ *
+ */
+public class CompactExpressionBenchmark {
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+    private static long usedHeap() {
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            used = Math.min(used, MEMORY.getHeapMemoryUsage().getUsed());
+        }
+        return used;
+    }
+
+    public static void main(String[] args) {
+        int features = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        Random random = new Random(0L);
+
+        List<String> inputs = new ArrayList<String>();
+        long nodes = 0;
+        while (inputs.size() < features) {
+            String input = CompactExpressionTest.randomExpression(random, 9, 0);
+            CompactExpression compact = new CompactExpression(Expression.parse(input, new VariableRegistry()));
+            if (compact.size() >= 300) {
+                inputs.add(input);
+                nodes += compact.size();
+            }
+        }
+
+        long base = usedHeap();
+        List<Expr> trees = new ArrayList<Expr>();
+        for (String input : inputs) {
+            trees.add(Expression.parse(input, new VariableRegistry()));
+        }
+        long treeBytes = usedHeap() - base;
+
+        List<CompactExpression> compacts = new ArrayList<CompactExpression>();
+        for (Expr tree : trees) {
+            compacts.add(new CompactExpression(tree));
+        }
+        trees.clear();
+        long compactBytes = usedHeap() - base;
+
+        System.out.println(String.format("%d features, %.0f nodes each", compacts.size(), nodes / (double) features));
+        System.out.println(String.format("object tree: %8.1f KB/feature %6.1f bytes/node",
+            treeBytes / 1024.0 / features, treeBytes / (double) nodes));
+        System.out.println(String.format("compact:     %8.1f KB/feature %6.1f bytes/node",
+            compactBytes / 1024.0 / features, compactBytes / (double) nodes));
+        System.out.println(String.format("reduction:   %.1fx", treeBytes / (double) compactBytes));
+    }
+}
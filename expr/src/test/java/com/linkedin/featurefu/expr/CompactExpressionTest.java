@@ -0,0 +1,141 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ *
+ * Unit test for the compact encoding, it should evaluate exactly like the object tree
+ *
+ */
+public class CompactExpressionTest {
+    private static final String[] UNARY = {"!", "-", "ln", "ln1plus", "log2", "exp", "sigmoid", "tanh", "sin", "cos",
+        "tan", "abs", "sign", "floor", "ceil", "round", "sqrt"};
+    private static final String[] BINARY = {"==", "!=", ">", ">=", "<", "<=", "&&", "||", "+", "-", "*", "/", "%",
+        "**", "max", "min"};
+    private static final String[] TERNARY = {"if", "in"};
+    private static final String[] VARIABLES = {"x", "y", "z"};
+
+    /**
+     * Random expression over x, y, z and the names bound by enclosing lets
+     */
+    static String randomExpression(Random random, int depth, int locals) {
+        if (depth == 0 || random.nextInt(8) == 0) {
+            int pick = random.nextInt(4 + locals);
+            if (pick == 0) {
+                return String.valueOf(Math.round(random.nextDouble() * 40 - 20) / 4.0);
+            }
+            return pick <= 3 ? VARIABLES[pick - 1] : "l" + (pick - 4);
+        }
+
+        int kind = random.nextInt(10);
+        if (kind < 3) {
+            return "(" + UNARY[random.nextInt(UNARY.length)] + " " + randomExpression(random, depth - 1, locals) + ")";
+        } else if (kind < 8) {
+            return "(" + BINARY[random.nextInt(BINARY.length)] + " " + randomExpression(random, depth - 1, locals) + " "
+                + randomExpression(random, depth - 1, locals) + ")";
+        } else if (kind < 9) {
+            return "(" + TERNARY[random.nextInt(TERNARY.length)] + " " + randomExpression(random, depth - 1, locals) + " "
+                + randomExpression(random, depth - 1, locals) + " " + randomExpression(random, depth - 1, locals) + ")";
+        } else {
+            return "(let ((l" + locals + " " + randomExpression(random, depth - 1, locals) + ")) "
+                + randomExpression(random, depth - 1, locals + 1) + ")";
+        }
+    }
+
+    private static void assertSame(double actual, double expected, String message) {
+        Assert.assertTrue(Double.compare(actual, expected) == 0, message + ": " + actual + " != " + expected);
+    }
+
+    @Test
+    public void randomExpressions() {
+        Random random = new Random(0L);
+
+        for (int e = 0; e < 300; e++) {
+            String input = randomExpression(random, 6, 0);
+            MathMode mathMode = e % 3 == 0 ? MathMode.APPROXIMATE : MathMode.EXACT;
+
+            VariableRegistry variableRegistry = new VariableRegistry();
+            Expr expr = Expression.parse(input, variableRegistry, mathMode);
+            CompactExpression compact = new CompactExpression(expr);
+            double[] frame = new double[compact.getFrameSize()];
+            List<String> names = compact.getVariableNames();
+
+            for (int i = 0; i < 20; i++) {
+                for (String name : VARIABLES) {
+                    variableRegistry.registerVariable(name).setValue(random.nextInt(4) == 0 ? 0 : random.nextDouble() * 10 - 5);
+                }
+                for (int k = 0; k < names.size(); k++) {
+                    frame[k] = variableRegistry.findVariable(names.get(k)).getValue();
+                }
+                assertSame(compact.evaluate(frame), expr.evaluate(), input);
+            }
+        }
+    }
+
+    @Test
+    public void encoding() {
+        VariableRegistry variableRegistry = new VariableRegistry();
+        Expr expr = Expression.parse("(let ((t (* 2 x))) (+ (* t y) (* 2 t)))", variableRegistry);
+        CompactExpression compact = new CompactExpression(expr);
+
+        Assert.assertEquals(compact.size(), 12);
+        Assert.assertEquals(compact.getVariableNames(), Arrays.asList("x", "y"));
+        Assert.assertEquals(compact.getFrameSize(), 3);
+        Assert.assertEquals(compact.evaluate(new double[]{3, 4, 0}), 36.0, 0);
+    }
+
+    @Test
+    public void calledOperators() {
+        Operator cube = new Operator() {
+            public double calculate(List<Expr> operands) {
+                double v = operands.get(0).evaluate();
+                return v * v * v;
+            }
+
+            public int numberOfOperands() {
+                return 1;
+            }
+
+            public String getSymbol() {
+                return "cube";
+            }
+        };
+
+        VariableRegistry variableRegistry = new VariableRegistry();
+        Expr x = variableRegistry.registerVariable("x");
+        CompactExpression compact = new CompactExpression(new Expression(cube, Arrays.asList(x)));
+        Assert.assertEquals(compact.evaluate(new double[]{-2}), -8.0, 0);
+
+        double r = new CompactExpression(Expression.parse("(rand-in 5 10)", variableRegistry)).evaluate(new double[0]);
+        Assert.assertTrue(r >= 5 && r <= 10);
+    }
+
+    @Test
+    public void statefulOperators() {
+        VariableRegistry variableRegistry = new VariableRegistry();
+        try {
+            new CompactExpression(Expression.parse("(+ 1 (window-sum k x 3))", variableRegistry));
+            Assert.fail("streaming operators keep state per node");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ *
+ * Operator weights of the cost model measured on this machine, in the layout of CostModel's default table
+ *   run with: java -cp <test classes>:<classes> com.linkedin.featurefu.expr.CostModelBenchmark [iterations]
+ *
+ */
+public class CostModelBenchmark {
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        CostModel.calibrate(iterations / 10);   // warm up
+        CostModel model = CostModel.calibrate(iterations);
+
+        List<String> lines = new ArrayList<String>();
+        for (Operator operator : CostModel.MEASURED) {
+            byte opcode = Opcodes.of(operator);
+            lines.add(String.format("%2d %-10s %-11s %5.1f  (default %5.1f)", opcode, operator.getSymbol(),
+                opcode >= Opcodes.APPROX_POWER ? "approximate" : "exact", model.getWeight(operator),
+                CostModel.DEFAULT.getWeight(operator)));
+        }
+        Collections.sort(lines);
+        for (String line : lines) {
+            System.out.println(line);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * Unit test for static cost estimates and admission limits
+ *
+ */
+public class CostModelTest {
+
+    private static CostModel.Cost estimate(String input) {
+        return CostModel.DEFAULT.estimate(Expression.parse(input, new VariableRegistry()));
+    }
+
+    private static double weight(Operator operator) {
+        return CostModel.DEFAULT.getWeight(operator);
+    }
+
+    @Test
+    public void estimate() {
+        CostModel.Cost cost = estimate("(+ x 1)");
+        Assert.assertEquals(cost.getNodes(), 3);
+        Assert.assertEquals(cost.getDepth(), 2);
+        Assert.assertEquals(cost.getNanos(), weight(Operator.ADD) + CostModel.VARIABLE_NANOS + CostModel.CONSTANT_NANOS, 1e-9);
+        Assert.assertEquals(cost.getTranscendentalCalls(), 0);
+
+        cost = estimate("x");
+        Assert.assertEquals(cost.getNodes(), 1);
+        Assert.assertEquals(cost.getDepth(), 1);
+
+        // the costlier branch of an if, the transcendental calls of both
+        cost = estimate("(if (> x 0) (exp x) (sigmoid (ln x)))");
+        Assert.assertEquals(cost.getNodes(), 9);
+        Assert.assertEquals(cost.getDepth(), 4);
+        Assert.assertEquals(cost.getTranscendentalCalls(), 3);
+        Assert.assertEquals(cost.getNanos(), weight(Operator.IF) + weight(Operator.GT) + CostModel.VARIABLE_NANOS
+            + CostModel.CONSTANT_NANOS + weight(Operator.SIGMOID) + weight(Operator.LN) + CostModel.VARIABLE_NANOS, 1e-9);
+
+        // a let binding is computed once, however often it's used
+        cost = estimate("(let ((a (exp x))) (* a (+ a a)))");
+        Assert.assertEquals(cost.getTranscendentalCalls(), 1);
+        Assert.assertEquals(cost.getNanos(), weight(Operator.LET) + weight(Operator.EXP) + weight(Operator.MULTIPLY)
+            + weight(Operator.ADD) + 4 * CostModel.VARIABLE_NANOS, 1e-9);
+
+        // set members are looked up, not evaluated
+        Expr inSet = Expression.parse("(in-set x 1 2 3 4)", new VariableRegistry());
+        cost = CostModel.DEFAULT.estimate(inSet);
+        Assert.assertEquals(cost.getNodes(), 6);
+        Assert.assertEquals(cost.getNanos(), weight(((Expression) inSet).getOperator()) + CostModel.VARIABLE_NANOS, 1e-9);
+
+        Expr tanh = Expression.parse("(tanh x)", new VariableRegistry());
+        Assert.assertTrue(CostModel.DEFAULT.estimate(ApproximateOperators.approximate(tanh)).getNanos()
+            < CostModel.DEFAULT.estimate(tanh).getNanos());
+    }
+
+    @Test
+    public void weights() {
+        Assert.assertEquals(weight(Operator.RAND), 10.0, 0);
+        Assert.assertEquals(CostModel.DEFAULT.withWeight("rand", 50).getWeight(Operator.RAND), 50.0, 0);
+        Assert.assertEquals(weight(Operator.RAND), 10.0, 0);
+
+        CostModel calibrated = CostModel.calibrate(20000);
+        for (Operator operator : CostModel.MEASURED) {
+            Assert.assertTrue(calibrated.getWeight(operator) >= CostModel.VARIABLE_NANOS, operator.getSymbol());
+        }
+        Assert.assertEquals(calibrated.getWeight(Operator.IF), weight(Operator.IF), 0);
+    }
+
+    @Test
+    public void admission() {
+        AdmissionLimits limits = new AdmissionLimits().setMaxDepth(3).setMaxTranscendentalCalls(1);
+        Assert.assertTrue(limits.admit("small", Expression.parse("(exp (+ x 1))", new VariableRegistry())).isEmpty());
+        try {
+            limits.admit("deep", Expression.parse("(exp (sigmoid (+ x 1)))", new VariableRegistry()));
+            Assert.fail("over budget admitted");
+        } catch (IllegalArgumentException e) {
+            Assert.assertEquals(e.getMessage(), "feature deep is over budget: [depth 4 > 3, transcendental calls 2 > 1]");
+        }
+
+        List<String> violations = limits.setAction(AdmissionLimits.Action.FLAG).setMaxNanos(1)
+            .admit("deep", Expression.parse("(exp (sigmoid (+ x 1)))", new VariableRegistry()));
+        Assert.assertEquals(violations.size(), 3);
+        Assert.assertTrue(violations.get(1).startsWith("nanos "));
+    }
+
+    @Test
+    public void compile() {
+        Map<String, String> definitions = new LinkedHashMap<String, String>();
+        definitions.put("cheap", "(+ x y)");
+        definitions.put("costly", "(+ (tanh x) (tanh y))");
+        definitions.put("folded", "(tanh (tanh (tanh 1)))");   // constant after optimization
+
+        AdmissionLimits limits = new AdmissionLimits().setMaxTranscendentalCalls(1).setAction(AdmissionLimits.Action.FLAG);
+        FeatureSet featureSet = FeatureSet.compile(1, definitions, MathMode.EXACT, limits);
+        Assert.assertEquals(featureSet.getFlagged().keySet(), Collections.singleton("costly"));
+        Assert.assertEquals(featureSet.getFlagged().get("costly").get(0), "transcendental calls 2 > 1");
+        Assert.assertEquals(featureSet.withMetrics(new EvaluationMetrics()).getFlagged(), featureSet.getFlagged());
+        Assert.assertTrue(FeatureSet.compile(1, definitions).getFlagged().isEmpty());
+
+        try {
+            FeatureSet.compile(1, definitions, MathMode.EXACT, limits.setAction(AdmissionLimits.Action.REJECT));
+            Assert.fail("over budget compiled");
+        } catch (IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage().startsWith("feature costly is over budget"));
+        }
+    }
+}
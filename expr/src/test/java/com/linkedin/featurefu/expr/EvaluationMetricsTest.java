@@ -0,0 +1,137 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ *
+ * Unit test for evaluation metrics
+ *
+ */
+public class EvaluationMetricsTest {
+
+    private static FeatureSet featureSet() {
+        Map<String, String> definitions = new LinkedHashMap<String, String>();
+        definitions.put("log", "(ln x)");
+        definitions.put("noise", "(+ x (rand-in 0 1))");
+        return FeatureSet.compile(1, definitions);
+    }
+
+    private static Map<String, Double> input(double x) {
+        Map<String, Double> input = new HashMap<String, Double>();
+        input.put("x", x);
+        return input;
+    }
+
+    @Test
+    public void counters() throws Exception {
+        EvaluationMetrics metrics = new EvaluationMetrics();
+        final FeatureSet featureSet = featureSet().withMetrics(metrics);
+        double[] output = new double[2];
+
+        featureSet.evaluate(input(1), output);
+        featureSet.evaluate(input(0), output);    // ln(0) is -Infinity
+        featureSet.evaluate(input(-1), output);   // ln(-1) is NaN
+
+        List<Map<String, Double>> batch = new ArrayList<Map<String, Double>>();
+        for (int i = 0; i < 10; i++) {
+            batch.add(input(i));
+        }
+        featureSet.evaluate(batch, new double[batch.size()][2]);
+
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                featureSet.evaluate(input(2), new double[2]);
+            }
+        };
+        other.start();
+        other.join();
+
+        EvaluationMetrics.Snapshot snapshot = metrics.snapshot();
+        Assert.assertEquals(snapshot.getCalls(), 4L);
+        Assert.assertEquals(snapshot.getBatches(), 1L);
+        Assert.assertEquals(snapshot.getEvaluations(), 14L);
+        Assert.assertEquals(snapshot.getNonFiniteOutputs(), 3L);
+        Assert.assertEquals(snapshot.getNonDeterministicEvaluations(), 14L);
+        Assert.assertTrue(snapshot.getCallLatency(0.5) > 0);
+        Assert.assertTrue(snapshot.getCallLatency(1) >= snapshot.getCallLatency(0.5));
+        Assert.assertTrue(snapshot.getBatchLatency(0.99) > 0);
+
+        EvaluationMetrics.Snapshot merged = snapshot.merge(new EvaluationMetrics().snapshot()).merge(snapshot);
+        Assert.assertEquals(merged.getCalls(), 8L);
+        Assert.assertEquals(merged.getCallLatency(1), snapshot.getCallLatency(1));
+
+        Assert.assertNull(featureSet().getMetrics());
+        Assert.assertEquals(new EvaluationMetrics().snapshot().getCallLatency(0.99), 0L);
+    }
+
+    @Test
+    public void manyThreads() throws Exception {
+        EvaluationMetrics metrics = new EvaluationMetrics();
+        final FeatureSet featureSet = featureSet().withMetrics(metrics);
+
+        // a thread per call, like virtual threads, doesn't add a recorder per thread
+        for (int i = 0; i < 2000; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    featureSet.newInstance().evaluate(input(1), new double[2]);
+                }
+            };
+            thread.start();
+            thread.join();
+        }
+        Assert.assertTrue(metrics.recorders() <= EvaluationMetrics.STRIPES);
+        Assert.assertEquals(metrics.snapshot().getCalls(), 2000L);
+    }
+
+    @Test
+    public void buckets() {
+        for (long nanos : new long[] {0, 1, 3, 4, 5, 7, 8, 100, 1000, 123456789, Long.MAX_VALUE}) {
+            int bucket = EvaluationMetrics.bucket(nanos);
+            Assert.assertTrue(bucket >= 0 && bucket < EvaluationMetrics.BUCKETS);
+            Assert.assertTrue(EvaluationMetrics.upperBound(bucket) >= nanos);
+            Assert.assertTrue(EvaluationMetrics.upperBound(bucket) <= nanos * 1.25 + 1, String.valueOf(nanos));
+            Assert.assertTrue(bucket == 0 || EvaluationMetrics.upperBound(bucket - 1) < nanos);
+        }
+    }
+
+    @Test
+    public void jmx() throws Exception {
+        EvaluationMetrics metrics = new EvaluationMetrics();
+        featureSet().withMetrics(metrics).evaluate(input(1), new double[2]);
+
+        ObjectName name = metrics.register("test");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            Assert.assertEquals(server.getAttribute(name, "Calls"), 1L);
+            Assert.assertEquals(server.getAttribute(name, "NonDeterministicEvaluations"), 1L);
+            Assert.assertTrue((Long) server.getAttribute(name, "CallLatency99thPercentileNanos") > 0);
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ *
+ * Unit test for catalog-wide interning of expressions
+ *
+ */
+public class ExpressionInternerTest {
+
+    @Test
+    public void sharing() {
+        ExpressionInterner interner = new ExpressionInterner();
+        Expr a = interner.intern(Expression.parse("(sigmoid (+ (* w x) 1))", new VariableRegistry()));
+        Expr b = interner.intern(Expression.parse("(sigmoid (+ 1 (* x w)))", new VariableRegistry()));
+        Expr c = interner.intern(Expression.parse("(- (sigmoid (+ 1 (* w x))) (* x w))", new VariableRegistry()));
+
+        Assert.assertSame(a, b);
+        Assert.assertSame(((Expression) c).getOperands().get(0), a);
+        Assert.assertSame(((Expression) c).getOperands().get(1), ((Expression) ((Expression) a).getOperands().get(0)).getOperands().get(0));
+        Assert.assertEquals(interner.size(), 7);   // w x 1.0 (*) (+) sigmoid (-)
+
+        // non-commutative operand order is kept
+        Assert.assertNotSame(interner.intern(Expression.parse("(- x w)", new VariableRegistry())),
+            interner.intern(Expression.parse("(- w x)", new VariableRegistry())));
+
+        // random operators and let bindings are not shared, their pure parts are
+        Expr r1 = interner.intern(Expression.parse("(+ (rand-in 0 1) (* w x))", new VariableRegistry()));
+        Expr r2 = interner.intern(Expression.parse("(+ (rand-in 0 1) (* w x))", new VariableRegistry()));
+        Assert.assertNotSame(r1, r2);
+        Assert.assertSame(((Expression) r1).getOperands().get(1), ((Expression) r2).getOperands().get(1));
+        Expr l1 = interner.intern(Expression.parse("(let ((k (* w x))) (+ k k))", new VariableRegistry()));
+        Expr l2 = interner.intern(Expression.parse("(let ((k (* w x))) (+ k k))", new VariableRegistry()));
+        Assert.assertNotSame(l1, l2);
+        Assert.assertNotSame(((Expression) l1).getOperands().get(0), ((Expression) l2).getOperands().get(0));
+        Assert.assertSame(((Expression) l1).getOperands().get(1), ((Expression) l2).getOperands().get(1));
+    }
+
+    @Test
+    public void setMembership() {
+        ExpressionInterner interner = new ExpressionInterner();
+        Expr a = interner.intern(Expression.parse("(+ (in-set c 3 17 42) x)", new VariableRegistry()));
+        Expr b = interner.intern(Expression.parse("(+ x (in-set c 3 17 42))", new VariableRegistry()));
+        Expr c = interner.intern(Expression.parse("(+ x (in-set c 3 17 43))", new VariableRegistry()));
+
+        Assert.assertSame(a, b);
+        Assert.assertNotSame(a, c);
+        Assert.assertTrue(interner.structuralHash(a) != interner.structuralHash(c));
+
+        interner.getRegistry().registerVariable("x").setValue(1);
+        interner.getRegistry().registerVariable("c").setValue(42);
+        Assert.assertEquals(a.evaluate(), 2.0);
+        Assert.assertEquals(c.evaluate(), 1.0);
+    }
+
+    @Test
+    public void structuralHash() {
+        ExpressionInterner first = new ExpressionInterner();
+        ExpressionInterner second = new ExpressionInterner();
+        Expr a = first.intern(Expression.parse("(max (ln x) (* 2 y))", new VariableRegistry()));
+        Expr b = second.intern(Expression.parse("(max (* y 2) (ln x))", new VariableRegistry()));
+
+        Assert.assertEquals(first.structuralHash(a), second.structuralHash(b));
+        Assert.assertEquals(a.toString(), b.toString());
+        Assert.assertTrue(first.structuralHash(a) != first.structuralHash(first.intern(Expression.parse("(min (ln x) (* 2 y))", new VariableRegistry()))));
+        Assert.assertTrue(first.structuralHash(first.intern(Expression.parse("(exp x)", new VariableRegistry())))
+            != first.structuralHash(first.intern(ApproximateOperators.approximate(Expression.parse("(exp x)", new VariableRegistry())))));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void notInterned() {
+        new ExpressionInterner().structuralHash(Expression.parse("(+ x 1)", new VariableRegistry()));
+    }
+
+    @Test
+    public void equivalence() {
+        ExpressionInterner interner = new ExpressionInterner();
+        Random random = new Random(0L);
+        List<VariableRegistry> registries = new ArrayList<VariableRegistry>();
+        List<Expr> originals = new ArrayList<Expr>();
+        List<Expr> interned = new ArrayList<Expr>();
+
+        for (int i = 0; i < 200; i++) {
+            VariableRegistry variableRegistry = new VariableRegistry();
+            Expr expr = Expression.parse(CompactExpressionTest.randomExpression(random, 4, 0), variableRegistry);
+            registries.add(variableRegistry);
+            originals.add(expr);
+            interned.add(interner.intern(expr));
+        }
+
+        for (int n = 0; n < 20; n++) {
+            Map<String, Double> values = new HashMap<String, Double>();
+            for (String name : new String[] {"x", "y", "z"}) {
+                values.put(name, random.nextDouble() * 20 - 10);
+            }
+            interner.getRegistry().refresh(values);
+            for (int i = 0; i < originals.size(); i++) {
+                registries.get(i).refresh(values);
+                double expected = originals.get(i).evaluate();
+                double actual = interned.get(i).evaluate();
+                Assert.assertTrue(Double.compare(actual, expected) == 0, originals.get(i) + ": " + actual + " != " + expected);
+            }
+        }
+    }
+}
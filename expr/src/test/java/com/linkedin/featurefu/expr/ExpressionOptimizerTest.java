@@ -0,0 +1,171 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ *
+ * Unit test for constant folding and strength reduction
+ *
+ */
+public class ExpressionOptimizerTest {
+
+    private static String optimize(String input) {
+        return ExpressionOptimizer.optimize(Expression.parse(input, new VariableRegistry())).toString();
+    }
+
+    @Test
+    public void rules() {
+        Assert.assertEquals(optimize("(+ 0.5 (* (/ 15 1000) (ln (- 55 12))))"), String.valueOf(0.5 + 15.0 / 1000.0 * Math.log(55.0 - 12.0)));
+
+        Assert.assertEquals(optimize("(** x 2)"), "(x*x)");
+        Assert.assertEquals(optimize("(** (+ x 1) 2)"), "((x+1.0)**2.0)");
+        Assert.assertEquals(optimize("(** x 1)"), "x");
+        Assert.assertEquals(optimize("(** x 0)"), "1.0");
+        Assert.assertEquals(optimize("(** (rand-in 0 1) 0)"), "((0.0rand-in1.0)**0.0)");
+        Assert.assertEquals(optimize("(** x 0.5)"), "sqrt(x)");
+
+        Assert.assertEquals(optimize("(/ x 4)"), "(x*0.25)");
+        Assert.assertEquals(optimize("(/ x 1)"), "x");
+        Assert.assertEquals(optimize("(/ x 3)"), "(x/3.0)");
+        Assert.assertEquals(optimize("(/ x 0)"), "(x/0.0)");
+        Assert.assertEquals(optimize("(* 1 (- x 0))"), "x");
+
+        Assert.assertEquals(optimize("(- (- x))"), "x");
+        Assert.assertEquals(optimize("(ln (exp x))"), "x");
+        Assert.assertEquals(optimize("(log2 (exp x))"), "(x*" + (1 / Math.log(2)) + ")");
+        Assert.assertEquals(optimize("(ln (+ 1 x))"), "ln1plus(x)");
+        Assert.assertEquals(optimize("(ln (+ x 1))"), "ln1plus(x)");
+
+        Assert.assertEquals(optimize("(< 3 x)"), "(x>3.0)");
+        Assert.assertEquals(optimize("(>= 3 x)"), "(x<=3.0)");
+        Assert.assertEquals(optimize("(== 3 x)"), "(x==3.0)");
+
+        Assert.assertEquals(optimize("(if (> 2 1) x y)"), "x");
+        Assert.assertEquals(optimize("(&& (> 1 2) x)"), "0.0");
+        Assert.assertEquals(optimize("(|| 1 x)"), "1.0");
+        Assert.assertEquals(optimize("(&& 1 x)"), "(x!=0.0)");
+
+        Assert.assertEquals(optimize("(+ (rand-in 0 1) 1)"), "((0.0rand-in1.0)+1.0)");
+    }
+
+    @Test
+    public void typeBasedRules() {
+        Assert.assertEquals(optimize("(!= (> x 1) 0)"), "(x>1.0)");
+        Assert.assertEquals(optimize("(== (> x 1) 0)"), "!((x>1.0))");
+        Assert.assertEquals(optimize("(if (!= x 0) 1 2)"), "(if x 1.0 2.0)");
+        Assert.assertEquals(optimize("(&& (!= x 0) (!= y 0))"), "(x&&y)");
+        Assert.assertEquals(optimize("(floor (round x))"), "round(x)");
+        Assert.assertEquals(optimize("(> (sigmoid x) 2)"), "(sigmoid(x)>2.0)");   // sigmoid(NaN) is NaN
+        Assert.assertEquals(optimize("(< (abs (> x 1)) 2)"), "1.0");
+        Assert.assertEquals(optimize("(if (+ 1 (abs (> x 1))) x y)"), "x");
+
+        Map<String, ValueType> variableTypes = new HashMap<String, ValueType>();
+        variableTypes.put("ctr", ValueType.range(0, 1));
+        variableTypes.put("clicks", ValueType.integral(0, 1000));
+
+        Expr expr = Expression.parse("(+ (if (<= ctr 1) (max ctr 2) 0) (round clicks))", new VariableRegistry());
+        Assert.assertEquals(ExpressionOptimizer.optimize(expr, variableTypes).toString(), "(2.0+clicks)");
+    }
+
+    @Test
+    public void equivalence() {
+        String[] inputs = {
+            "(+ (** x 2) (/ y 8))",
+            "(if (< 0 x) (log2 (exp y)) (ln (+ 1 (abs x))))",
+            "(- (- (* x (/ 1 y))))",
+            "(&& (|| (> 0 x) (<= 1 y)) (!= 2 x))",
+            "(max (** (+ x 1) 0.5) (% x 3))"
+        };
+
+        Random random = new Random(0L);
+
+        for (String input : inputs) {
+            VariableRegistry variableRegistry = new VariableRegistry();
+            Expr expr = Expression.parse(input, variableRegistry);
+            Expr optimized = ExpressionOptimizer.optimize(expr);
+
+            for (int i = 0; i < 1000; i++) {
+                variableRegistry.registerVariable("x").setValue(random.nextDouble() * 20 - 10);
+                variableRegistry.registerVariable("y").setValue(random.nextDouble() * 20 - 10);
+                Assert.assertEquals(optimized.evaluate(), expr.evaluate(), 1e-12, input);
+            }
+        }
+    }
+
+    @Test
+    public void specialize() {
+        VariableRegistry variableRegistry = new VariableRegistry();
+        Expr template = Expression.parse("(if (> (+ (* a x) b) threshold) (sigmoid (+ (* a x) b)) (** x power))", variableRegistry);
+
+        Map<String, Double> tenant = new HashMap<String, Double>();
+        tenant.put("a", 0.5);
+        tenant.put("b", 2.0);
+        tenant.put("threshold", 1.0);
+        tenant.put("power", 2.0);
+        Expr specialized = ExpressionOptimizer.specialize(template, tenant);
+        Assert.assertEquals(specialized.toString(),
+            "(if (((0.5*x)+2.0)>1.0) sigmoid(((0.5*x)+2.0)) (x*x))");
+
+        Random random = new Random(0L);
+        for (int i = 0; i < 1000; i++) {
+            tenant.put("x", random.nextDouble() * 20 - 10);
+            variableRegistry.refresh(tenant);
+            Assert.assertEquals(specialized.evaluate(), template.evaluate(), 0);
+        }
+        Map<String, Double> fixed = new HashMap<String, Double>();
+        fixed.put("w", 3.0);
+        Assert.assertEquals(ExpressionOptimizer.specialize(Expression.parse("(let ((k (* w 2)) (m (* k x))) (+ m k))",
+            new VariableRegistry()), fixed).toString(), "(let ((m (6.0*x))) (m+6.0))");
+        Assert.assertEquals(ExpressionOptimizer.specialize(Expression.parse("(let ((k (* w 2))) (** k 2))",
+            new VariableRegistry()), fixed).toString(), "36.0");
+    }
+
+    @Test
+    public void streamingState() {
+        String input = "(+ 0 (* 1 (window-sum k x 3)))";
+        VariableRegistry registry = new VariableRegistry();
+        Expr original = Expression.parse(input, registry);
+        Expr[] rebuilt = {ExpressionOptimizer.optimize(original),
+            ExpressionOptimizer.specialize(original, new HashMap<String, Double>()),
+            ApproximateOperators.approximate(original)};
+        ExpressionInterner interner = new ExpressionInterner();
+        Expr interned = interner.intern(original);   // over the interner's registry
+        VariableRegistry referenceRegistry = new VariableRegistry();
+        Expr reference = Expression.parse(input, referenceRegistry);
+
+        // every tree sees each event once, it must not be counted again by a tree sharing its window
+        Random random = new Random(0L);
+        Map<String, Double> varMap = new HashMap<String, Double>();
+        for (int i = 0; i < 200; i++) {
+            varMap.put("k", (double) random.nextInt(3));
+            varMap.put("x", (double) random.nextInt(10));
+            registry.refresh(varMap);
+            referenceRegistry.refresh(varMap);
+            interner.getRegistry().refresh(varMap);
+            double expected = reference.evaluate();
+            Assert.assertEquals(original.evaluate(), expected, 0);
+            for (Expr expr : rebuilt) {
+                Assert.assertEquals(expr.evaluate(), expected, 0, expr.toString());
+            }
+            Assert.assertEquals(interned.evaluate(), expected, 0);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ *
+ * Unit test for per node profiling of expressions
+ *
+ */
+public class ExpressionProfileTest {
+    @Test
+    public void countsAndBranches() {
+        VariableRegistry variableRegistry = new VariableRegistry();
+        Expr expr = Expression.parse("(if (> x 5) (* x 2) (&& (> x 2) (ln x)))", variableRegistry);
+        Variable x = variableRegistry.findVariable("x");
+
+        ExpressionProfile profile = ExpressionProfile.instrument(expr, 1);
+        Expr profiled = profile.getExpr();
+
+        Assert.assertEquals(profiled.toString(), expr.toString());
+        Assert.assertEquals(Expression.prettyTree(profiled), Expression.prettyTree(expr));
+
+        for (int i = 0; i < 10; i++) {
+            x.setValue(i);
+            Assert.assertEquals(profiled.evaluate(), expr.evaluate(), 0);
+        }
+
+        ExpressionProfile.NodeStats root = profile.getStats(profiled);
+        Assert.assertEquals(root.getSymbol(), "if");
+        Assert.assertEquals(root.getCalls(), 10);
+        Assert.assertEquals(root.getSampledCalls(), 10);
+        Assert.assertTrue(root.isBranch());
+        Assert.assertEquals(root.getTrueRatio(), 0.4, 1e-12);   // x = 6..9
+
+        ExpressionProfile.NodeStats and = profile.getNodes().get(3);
+        Assert.assertEquals(and.getSymbol(), "&&");
+        Assert.assertEquals(and.getCalls(), 6);
+        Assert.assertEquals(and.getTrueRatio(), 0.5, 1e-12);    // x = 3..5
+
+        ExpressionProfile.NodeStats ln = profile.getNodes().get(5);
+        Assert.assertEquals(ln.getSymbol(), "ln");
+        Assert.assertEquals(ln.getCalls(), 3);                  // short-circuited for x <= 2
+        Assert.assertTrue(root.getAverageNanos() >= root.getAverageSelfNanos());
+
+        String tree = profile.prettyTree();
+        Assert.assertTrue(tree.startsWith("└── if [calls=10 avg="), tree);
+        Assert.assertTrue(tree.contains("└── ln [calls=3 avg="), tree);
+
+        String[] lines = profile.report().split("\n");
+        Assert.assertEquals(lines.length, 7);                   // header + 6 operator nodes
+        Assert.assertTrue(lines[1].startsWith("0\tif\t10\t10\t"), lines[1]);
+
+        profile.reset();
+        Assert.assertEquals(root.getCalls(), 0);
+    }
+
+    @Test
+    public void sampling() {
+        Expr expr = Expression.parse("(+ (sigmoid 1) 2)", new VariableRegistry());
+        ExpressionProfile profile = ExpressionProfile.instrument(expr, 4);
+
+        for (int i = 0; i < 10; i++) {
+            profile.getExpr().evaluate();
+        }
+
+        for (ExpressionProfile.NodeStats stats : profile.getNodes()) {
+            Assert.assertEquals(stats.getCalls(), 10);
+            Assert.assertEquals(stats.getSampledCalls(), 3);    // evaluations 0, 4 and 8
+        }
+
+        profile = ExpressionProfile.instrument(expr, 0);
+        profile.getExpr().evaluate();
+        Assert.assertEquals(profile.getNodes().get(0).getSampledCalls(), 0);
+        Assert.assertEquals(profile.getNodes().get(0).getCalls(), 1);
+    }
+
+    @Test
+    public void let() {
+        VariableRegistry variableRegistry = new VariableRegistry();
+        Expr expr = Expression.parse("(let ((y (+ x 1))) (* y y))", variableRegistry);
+        Expr profiled = ExpressionProfile.instrument(expr, 1).getExpr();
+        Assert.assertEquals(profiled.toString(), expr.toString());
+
+        variableRegistry.findVariable("x").setValue(2);
+        Assert.assertEquals(profiled.evaluate(), 9.0, 0);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * Unit test for compiling feature sets and swapping them while other threads evaluate
+ *
+ */
+public class FeatureSetTest {
+    private static FeatureSet version(long version, double scale) {
+        Map<String, String> definitions = new LinkedHashMap<String, String>();
+        definitions.put("scaled", "(* " + scale + " x)");
+        definitions.put("shifted", "(+ x y)");
+        return FeatureSet.compile(version, definitions);
+    }
+
+    @Test
+    public void compileAndEvaluate() {
+        FeatureSet featureSet = version(1, 2);
+        Assert.assertEquals(featureSet.getNames().toString(), "[scaled, shifted]");
+
+        Map<String, Double> varMap = new HashMap<String, Double>();
+        varMap.put("x", 3.0);
+        double[] output = new double[2];
+        featureSet.evaluate(varMap, output);
+        Assert.assertEquals(output[0], 6.0, 0);
+        Assert.assertEquals(output[1], 3.0, 0);
+
+        // instances don't share variables
+        FeatureSet.Instance a = featureSet.newInstance();
+        FeatureSet.Instance b = featureSet.newInstance();
+        a.getRegistry().findVariable("x").setValue(1);
+        b.getRegistry().findVariable("x").setValue(5);
+        Assert.assertEquals(a.getExpr(0).evaluate(), 2.0, 0);
+        Assert.assertEquals(b.getExpr(0).evaluate(), 10.0, 0);
+        Assert.assertSame(featureSet.instance(), featureSet.instance());
+    }
+
+    @Test
+    public void publishOnlyNewer() {
+        FeatureSetHolder holder = new FeatureSetHolder(version(2, 1));
+        Assert.assertFalse(holder.publish(version(1, 1)));
+        Assert.assertFalse(holder.publish(version(2, 1)));
+        Assert.assertTrue(holder.publish(version(3, 1)));
+        Assert.assertEquals(holder.current().getVersion(), 3L);
+    }
+
+    @Test
+    public void swapWhileEvaluating() throws Exception {
+        final FeatureSetHolder holder = new FeatureSetHolder(version(0, 0));
+        final AtomicInteger errors = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(4);
+        final int versions = 200;
+
+        for (int t = 0; t < 4; t++) {
+            new Thread(new Runnable() {
+                public void run() {
+                    Map<String, Double> varMap = new HashMap<String, Double>();
+                    varMap.put("x", 1.0);
+                    double[] output = new double[2];
+                    FeatureSet featureSet;
+                    do {
+                        featureSet = holder.current();
+                        featureSet.evaluate(varMap, output);
+                        // every set scales x by its version, so results must match the set they came from
+                        if (output[0] != featureSet.getVersion()) {
+                            errors.incrementAndGet();
+                        }
+                    } while (featureSet.getVersion() < versions);
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        for (int v = 1; v <= versions; v++) {
+            Assert.assertTrue(holder.publish(version(v, v)));
+        }
+        done.await();
+        Assert.assertEquals(errors.get(), 0);
+    }
+
+    @Test
+    public void retireOnPublish() throws Exception {
+        final FeatureSet first = version(1, 1);
+        FeatureSetHolder holder = new FeatureSetHolder(first);
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            WeakReference<FeatureSet.Instance> pooled = pool.submit(new Callable<WeakReference<FeatureSet.Instance>>() {
+                public WeakReference<FeatureSet.Instance> call() {
+                    return new WeakReference<FeatureSet.Instance>(first.instance());
+                }
+            }).get();
+
+            // the pool thread is still alive and first still referenced, but its cached instance is released
+            Assert.assertTrue(holder.publish(version(2, 1)));
+            for (int i = 0; i < 50 && pooled.get() != null; i++) {
+                System.gc();
+                Thread.sleep(10);
+            }
+            Assert.assertNull(pooled.get());
+
+            // a retired set still evaluates, without caching
+            Assert.assertNotSame(first.instance(), first.instance());
+            Map<String, Double> varMap = new HashMap<String, Double>();
+            varMap.put("x", 3.0);
+            double[] output = new double[2];
+            first.evaluate(varMap, output);
+            Assert.assertEquals(output[0], 3.0, 0);
+            Assert.assertSame(holder.current().instance(), holder.current().instance());
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ *
+ * Unit test for parallel scoring of text and binary files
+ *
+ */
+public class FileScorerTest {
+
+    private static FeatureSet featureSet() {
+        Map<String, String> definitions = new LinkedHashMap<String, String>();
+        definitions.put("sum", "(+ x y)");
+        definitions.put("score", "(sigmoid (- (* 2 x) z))");
+        return FeatureSet.compile(1, definitions);
+    }
+
+    private static File write(byte[] bytes) throws IOException {
+        File file = File.createTempFile("file-scorer", ".in");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    private static double parse(String s) {
+        byte[] bytes = s.getBytes();
+        return FileScorer.parseDouble(ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+
+    @Test
+    public void parseDouble() {
+        String[] inputs = {"0", "-0", "+1", "1.", ".5", "3.14159", "-2.5e3", "1E-5", "123456789012345", "1234567890123456789",
+            "0.1000000000000000055511", "1e22", "1e23", "4.9e-324", "NaN", "-Infinity", "0.000001234"};
+        for (String input : inputs) {
+            Assert.assertEquals(Double.doubleToLongBits(parse(input)), Double.doubleToLongBits(Double.parseDouble(input)), input);
+        }
+        Assert.assertEquals(parse(""), 0.0, 0);
+
+        Random random = new Random(0L);
+        for (int i = 0; i < 100000; i++) {
+            double value = i % 2 == 0 ? random.nextGaussian() * Math.pow(10, random.nextInt(20) - 10)
+                : Math.round(random.nextDouble() * 1e6) / 1e3;
+            String input = String.valueOf(value);
+            Assert.assertEquals(parse(input), Double.parseDouble(input), 0, input);
+        }
+
+        for (String invalid : new String[]{"-", ".", "1.2.3", "1e", "abc", "1,5"}) {
+            try {
+                parse(invalid);
+                Assert.fail(invalid + " parsed");
+            } catch (NumberFormatException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void text() throws IOException {
+        FeatureSet featureSet = featureSet();
+        Random random = new Random(1L);
+        StringBuilder input = new StringBuilder("id\tx\ty\tz\r\n");
+        StringBuilder expected = new StringBuilder("sum\tscore\n");
+        double[] output = new double[2];
+        for (int row = 0; row < 2000; row++) {
+            Map<String, Double> varMap = new HashMap<String, Double>();
+            String x = String.valueOf(random.nextInt(1000) / 10.0);
+            String y = row % 7 == 0 ? "" : String.valueOf(random.nextGaussian());
+            varMap.put("x", Double.parseDouble(x));
+            if (!y.isEmpty()) {
+                varMap.put("y", Double.parseDouble(y));
+            }
+            input.append(row).append('\t').append(x).append('\t').append(y);
+            if (row % 5 != 0) {   // z missing
+                String z = String.valueOf(random.nextDouble());
+                varMap.put("z", Double.parseDouble(z));
+                input.append('\t').append(z);
+            }
+            input.append(row % 3 == 0 ? "\r\n" : "\n");
+            if (row % 100 == 0) {
+                input.append('\n');   // empty lines are skipped
+            }
+
+            featureSet.evaluate(varMap, output);
+            expected.append(output[0]).append('\t').append(output[1]).append('\n');
+        }
+        input.setLength(input.length() - 1);   // no line break after the last row
+
+        File in = write(input.toString().getBytes("UTF-8"));
+        for (int threads : new int[]{1, 4}) {
+            File out = File.createTempFile("file-scorer", ".out");
+            out.deleteOnExit();
+            FileScorer scorer = new FileScorer(featureSet).setThreads(threads).setRangeBytes(500);
+            Assert.assertEquals(scorer.scoreText(in, out), 2000L);
+            Assert.assertEquals(new String(read(out), "UTF-8"), expected.toString());
+        }
+    }
+
+    @Test
+    public void streaming() throws IOException {
+        Map<String, String> definitions = new LinkedHashMap<String, String>();
+        definitions.put("clicks", "(window-sum member click 50)");
+        FeatureSet featureSet = FeatureSet.compile(1, definitions);
+        Assert.assertFalse(featureSet.isDeterministic());
+
+        FeatureSet.Instance instance = featureSet.newInstance();
+        double[] output = new double[1];
+        Random random = new Random(3L);
+        StringBuilder input = new StringBuilder("member\tclick\n");
+        StringBuilder expected = new StringBuilder("clicks\n");
+        for (int row = 0; row < 3000; row++) {
+            int member = random.nextInt(5);
+            int click = random.nextInt(2);
+            input.append(member).append('\t').append(click).append('\n');
+
+            Map<String, Double> varMap = new HashMap<String, Double>();
+            varMap.put("member", (double) member);
+            varMap.put("click", (double) click);
+            instance.evaluate(varMap, output);
+            expected.append(output[0]).append('\n');
+        }
+
+        // events of a member span many ranges, they are still scored in input order on one instance
+        File out = File.createTempFile("file-scorer", ".out");
+        out.deleteOnExit();
+        FileScorer scorer = new FileScorer(featureSet).setThreads(4).setRangeBytes(200);
+        Assert.assertEquals(scorer.scoreText(write(input.toString().getBytes("UTF-8")), out), 3000L);
+        Assert.assertEquals(new String(read(out), "UTF-8"), expected.toString());
+    }
+
+    @Test
+    public void binary() throws IOException {
+        FeatureSet featureSet = featureSet();
+        Random random = new Random(2L);
+        int rows = 1000;
+        ByteBuffer input = ByteBuffer.allocate(rows * 3 * 8).order(ByteOrder.LITTLE_ENDIAN);
+        double[][] expected = new double[rows][2];
+        for (int row = 0; row < rows; row++) {
+            Map<String, Double> varMap = new HashMap<String, Double>();
+            for (String column : new String[]{"z", "x", "unused"}) {
+                double value = random.nextGaussian();
+                varMap.put(column, value);
+                input.putDouble(value);
+            }
+            featureSet.evaluate(varMap, expected[row]);
+        }
+
+        File in = write(input.array());
+        File out = File.createTempFile("file-scorer", ".out");
+        out.deleteOnExit();
+        FileScorer scorer = new FileScorer(featureSet).setThreads(3).setRangeBytes(1000).setByteOrder(ByteOrder.LITTLE_ENDIAN);
+        Assert.assertEquals(scorer.scoreBinary(in, Arrays.asList("z", "x", "unused"), out), (long) rows);
+
+        ByteBuffer output = ByteBuffer.wrap(read(out)).order(ByteOrder.LITTLE_ENDIAN);
+        Assert.assertEquals(output.remaining(), rows * 2 * 8);
+        for (int row = 0; row < rows; row++) {
+            Assert.assertEquals(output.getDouble(), expected[row][0], 0);
+            Assert.assertEquals(output.getDouble(), expected[row][1], 0);
+        }
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void partialRow() throws IOException {
+        File out = File.createTempFile("file-scorer", ".out");
+        out.deleteOnExit();
+        new FileScorer(featureSet()).scoreBinary(write(new byte[20]), Arrays.asList("x", "y"), out);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ *
+ * Unit test for single precision batch evaluation, and its divergence from double precision evaluate()
+ *
+ */
+public class FloatBatchEvaluatorTest {
+    private static final List<String> INPUTS = Arrays.asList("x", "a", "b", "clicks", "impressions");
+    private static final int ROWS = 10000;   // not a multiple of the block size on purpose
+
+    private final Random random = new Random(0L);
+
+    private float[][] columns() {
+        float[][] columns = new float[INPUTS.size()][ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            columns[0][i] = (float) (random.nextDouble() * 4 - 2);
+            columns[1][i] = (float) (random.nextDouble() * 2 - 1);
+            columns[2][i] = (float) (random.nextDouble() * 2 - 1);
+            columns[3][i] = random.nextInt(100);
+            columns[4][i] = random.nextInt(10000);
+        }
+        return columns;
+    }
+
+    /**
+     * Evaluate with both paths, check they agree within maxError, return the largest error seen
+     * error is absolute for values below 1 and relative above, as cancellation makes relative errors meaningless near 0
+     */
+    private double divergence(String input, double maxError) {
+        VariableRegistry variableRegistry = new VariableRegistry();
+        Expr expr = Expression.parse(input, variableRegistry);
+        float[][] columns = columns();
+
+        float[] output = new float[ROWS];
+        new FloatBatchEvaluator(expr, INPUTS).evaluate(columns, ROWS, output);
+
+        float[] rows = new float[ROWS * INPUTS.size()];
+        for (int i = 0; i < ROWS; i++) {
+            for (int k = 0; k < INPUTS.size(); k++) {
+                rows[i * INPUTS.size() + k] = columns[k][i];
+            }
+        }
+        float[] rowOutput = new float[ROWS];
+        new FloatBatchEvaluator(expr, INPUTS).evaluateRows(rows, ROWS, rowOutput);
+
+        double max = 0;
+        for (int i = 0; i < ROWS; i++) {
+            for (int k = 0; k < INPUTS.size(); k++) {
+                Variable variable = variableRegistry.findVariable(INPUTS.get(k));
+                if (variable != null) {
+                    variable.setValue(columns[k][i]);
+                }
+            }
+            double exact = expr.evaluate();
+            double error = Math.abs(output[i] - exact) / Math.max(Math.abs(exact), 1);
+            max = Math.max(max, error);
+
+            Assert.assertEquals(rowOutput[i], output[i], 0, input);
+            Assert.assertTrue(error <= maxError, input + " row " + i + ": " + output[i] + " vs " + exact);
+        }
+        return max;
+    }
+
+    @Test
+    public void divergenceFromDouble() {
+        // float has a 24 bit mantissa, one rounding costs up to 6e-8 relative error and it adds up along the tree
+        // largest errors measured over these inputs are in the comments
+        Assert.assertTrue(divergence("(sigmoid (+ (* a x) b))", 1e-7) > 0);                        // 4.8e-8
+        divergence("(- (log2 (+ 5 impressions)) (log2 (+ 1 clicks)))", 1e-6);                   // 4.1e-7
+        divergence("(min 1 (max (+ (* a x) b) 0))", 1e-7);                                       // 8.9e-8
+        divergence("(+ (* (tanh x) (exp a)) (** (abs b) 1.5))", 1e-6);                          // 2.0e-7
+        divergence("(/ (ln1plus clicks) (sqrt (+ 1 impressions)))", 1e-7);                      // 8.8e-8
+
+        // predicates and integer arithmetic on small integers are exact
+        Assert.assertEquals(divergence("(if (&& (> clicks 10) (! (< x 0))) (% impressions 7) (round (* 10 a)))", 0), 0.0, 0);
+        Assert.assertEquals(divergence("(+ (in clicks 10 50) (floor (* 3 x)))", 0), 0.0, 0);
+
+        // atoms, missing inputs and constant folding opportunities
+        divergence("x", 0);
+        divergence("(+ missing 1)", 0);
+        divergence("(* 2 (+ 3 4))", 0);
+    }
+
+    @Test
+    public void customOperator() {
+        Operator cube = new Operator() {
+            public double calculate(List<Expr> operands) {
+                double v = operands.get(0).evaluate();
+                return v * v * v;
+            }
+
+            public int numberOfOperands() {
+                return 1;
+            }
+
+            public String getSymbol() {
+                return "cube";
+            }
+        };
+
+        VariableRegistry variableRegistry = new VariableRegistry();
+        Expr x = variableRegistry.registerVariable("x");
+        Expr expr = new Expression(cube, Arrays.asList(x));
+
+        float[] output = new float[3];
+        new FloatBatchEvaluator(expr, Arrays.asList("x")).evaluate(new float[][]{{1, 2, -3}}, 3, output);
+        Assert.assertEquals(output[0], 1f, 0);
+        Assert.assertEquals(output[1], 8f, 0);
+        Assert.assertEquals(output[2], -27f, 0);
+    }
+}
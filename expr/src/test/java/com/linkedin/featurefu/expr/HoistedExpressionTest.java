@@ -0,0 +1,69 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ *
+ * Unit test for hoisting request-invariant subtrees
+ *
+ */
+public class HoistedExpressionTest {
+    private static final Set<String> REQUEST = new HashSet<String>(Arrays.asList("member_connections", "query_length"));
+
+    @Test
+    public void split() {
+        VariableRegistry variableRegistry = new VariableRegistry();
+        Expr expr = Expression.parse("(+ (* (log2 (+ 1 member_connections)) item_ctr) (if (> query_length 3) "
+            + "(sigmoid (* 0.5 query_length)) (rand-in 0 query_length)))", variableRegistry);
+        HoistedExpression hoisted = new HoistedExpression(expr, REQUEST);
+
+        Assert.assertEquals(hoisted.getItemExpression().toString(),
+            "(($0*item_ctr)+(if $1 $2 (0.0rand-inquery_length)))");
+        Assert.assertEquals(hoisted.getHoisted().size(), 3);
+        Assert.assertEquals(hoisted.getHoisted().get(0).toString(), "log2((1.0+member_connections))");
+    }
+
+    @Test
+    public void matchesExpression() {
+        VariableRegistry variableRegistry = new VariableRegistry();
+        Expr expr = Expression.parse("(let ((c (ln1plus member_connections))) (+ (* c (log2 (+ 1 member_connections)))"
+            + " (max item_ctr (/ query_length (+ 1 (sqrt member_connections))))))", variableRegistry);
+        HoistedExpression hoisted = new HoistedExpression(expr, REQUEST);
+        Assert.assertEquals(hoisted.getHoisted().size(), 3);
+
+        Random random = new Random(0L);
+        Map<String, Double> varMap = new HashMap<String, Double>();
+        for (int request = 0; request < 10; request++) {
+            varMap.put("member_connections", (double) random.nextInt(1000));
+            varMap.put("query_length", (double) random.nextInt(10));
+            variableRegistry.refresh(varMap);
+            hoisted.prepare();
+
+            for (int candidate = 0; candidate < 100; candidate++) {
+                variableRegistry.findVariable("item_ctr").setValue(random.nextDouble());
+                Assert.assertEquals(hoisted.evaluate(), expr.evaluate(), 0);
+            }
+        }
+    }
+}
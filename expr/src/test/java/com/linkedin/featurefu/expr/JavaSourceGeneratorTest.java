@@ -0,0 +1,178 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+/**
+ *
+ * Compile generated sources with the system Java compiler and check them against the interpreter
+ *
+ */
+public class JavaSourceGeneratorTest {
+    private static final String[] VARIABLES = {"x", "y", "z"};
+
+    /**
+     * Compile a generated class, null when running without a JDK compiler
+     */
+    private static Class<?> compile(String className, String source) throws Exception {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            return null;
+        }
+
+        File dir = File.createTempFile("generated", "");
+        Assert.assertTrue(dir.delete() && dir.mkdir());
+        File file = new File(dir, className + ".java");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        writer.write(source);
+        writer.close();
+
+        int status = compiler.run(null, null, null, "-nowarn", "-encoding", "UTF-8",
+            "-cp", System.getProperty("java.class.path"), "-d", dir.getPath(), file.getPath());
+        Assert.assertEquals(status, 0, source);
+
+        return new URLClassLoader(new URL[]{dir.toURI().toURL()}, JavaSourceGeneratorTest.class.getClassLoader())
+            .loadClass(className);
+    }
+
+    private static void assertSame(double actual, double expected, String message) {
+        Assert.assertTrue(Double.compare(actual, expected) == 0, message + ": " + actual + " != " + expected);
+    }
+
+    @Test
+    public void matchesInterpreter() throws Exception {
+        Random random = new Random(0L);
+
+        for (MathMode mathMode : MathMode.values()) {
+            VariableRegistry variableRegistry = new VariableRegistry();
+            Map<String, Expr> features = new LinkedHashMap<String, Expr>();
+            for (int i = 0; i < 100; i++) {
+                features.put("feature." + i, Expression.parse(CompactExpressionTest.randomExpression(random, 6, 0),
+                    variableRegistry, mathMode));
+            }
+
+            String className = "Generated" + mathMode;
+            Class<?> generated = compile(className, JavaSourceGenerator.generate("", className, features, variableRegistry));
+            if (generated == null) {
+                return;
+            }
+            Class<?> inputsClass = generated.getClassLoader().loadClass(className + "$Inputs");
+            Object inputs = inputsClass.getDeclaredConstructor().newInstance();
+            Method set = inputsClass.getMethod("set", String.class, double.class);
+            Method evaluate = generated.getMethod("evaluate", inputsClass, double[].class);
+            double[] output = new double[features.size()];
+
+            for (int r = 0; r < 50; r++) {
+                for (String name : VARIABLES) {
+                    double value = random.nextInt(4) == 0 ? 0 : random.nextDouble() * 10 - 5;
+                    variableRegistry.registerVariable(name).setValue(value);
+                    set.invoke(inputs, name, value);
+                }
+                evaluate.invoke(null, inputs, output);
+
+                int i = 0;
+                for (Expr expr : features.values()) {
+                    assertSame(output[i++], expr.evaluate(), expr.toString());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void setMembership() throws Exception {
+        VariableRegistry variableRegistry = new VariableRegistry();
+        Map<String, Expr> features = new LinkedHashMap<String, Expr>();
+        features.put("small", Expression.parse("(in-set x 3 -1 0 17)", variableRegistry));
+        features.put("large", Expression.parse("(+ (in-set (* x 2) 1 2 3 4 5 6 7 8 9 10 11 12 -0 34) y)",
+            variableRegistry));
+
+        Class<?> generated = compile("GeneratedSets", JavaSourceGenerator.generate("", "GeneratedSets", features,
+            variableRegistry));
+        if (generated == null) {
+            return;
+        }
+        Class<?> inputsClass = generated.getClassLoader().loadClass("GeneratedSets$Inputs");
+        Object inputs = inputsClass.getDeclaredConstructor().newInstance();
+        Method set = inputsClass.getMethod("set", String.class, double.class);
+        Method evaluate = generated.getMethod("evaluate", inputsClass, double[].class);
+        double[] output = new double[features.size()];
+
+        double[] values = {3, -1, 0, -0.0, 17, 2, 6, 17.5, -3, Double.NaN, Double.POSITIVE_INFINITY};
+        for (double value : values) {
+            variableRegistry.registerVariable("x").setValue(value);
+            variableRegistry.registerVariable("y").setValue(0.5);
+            set.invoke(inputs, "x", value);
+            set.invoke(inputs, "y", 0.5);
+            evaluate.invoke(null, inputs, output);
+
+            int i = 0;
+            for (Expr expr : features.values()) {
+                assertSame(output[i++], expr.evaluate(), expr + " at " + value);
+            }
+        }
+    }
+
+    @Test
+    public void definitions() throws Exception {
+        String file = "# click features\n"
+            + "smoothed.ctr = (/ (+ member.clicks 1)\n"
+            + "                  (+ member.views 10))\n"
+            + "\n"
+            + "score = (let ((ctr (/ (+ member.clicks 1) (+ member.views 10)))) (if (> ctr 0.05) (* ctr 100) (- ctr)))\n"
+            + "if = (** member.views 2)\n";
+
+        Map<String, String> definitions = JavaSourceGenerator.readDefinitions(new StringReader(file));
+        Assert.assertEquals(definitions.keySet().toString(), "[smoothed.ctr, score, if]");
+        Assert.assertEquals(definitions.get("smoothed.ctr"), "(/ (+ member.clicks 1) (+ member.views 10))");
+
+        Class<?> generated = compile("ClickFeatures", JavaSourceGenerator.generate("", "ClickFeatures", definitions,
+            MathMode.EXACT));
+        if (generated == null) {
+            return;
+        }
+        Class<?> inputsClass = generated.getClassLoader().loadClass("ClickFeatures$Inputs");
+        Object inputs = inputsClass.getDeclaredConstructor().newInstance();
+        inputsClass.getMethod("setMemberClicks", double.class).invoke(inputs, 9.0);
+        inputsClass.getMethod("setMemberViews", double.class).invoke(inputs, 90.0);
+
+        Assert.assertEquals((Double) generated.getMethod("smoothedCtr", inputsClass).invoke(null, inputs), 0.1, 1e-15);
+        Assert.assertEquals((Double) generated.getMethod("score", inputsClass).invoke(null, inputs), 10.0, 1e-12);
+        Assert.assertEquals((Double) generated.getMethod("if_", inputsClass).invoke(null, inputs), 8100.0, 0);
+        Assert.assertEquals(((String[]) generated.getField("INPUTS").get(null)).length, 2);
+    }
+
+    @Test
+    public void identifiers() {
+        Assert.assertEquals(JavaSourceGenerator.identifier("member.age"), "memberAge");
+        Assert.assertEquals(JavaSourceGenerator.identifier("2nd-degree"), "_2ndDegree");
+        Assert.assertEquals(JavaSourceGenerator.identifier("class"), "class_");
+        Assert.assertEquals(JavaSourceGenerator.identifier("$$"), "_");
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.InputMismatchException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ *
+ * Unit test for let bindings
+ *
+ */
+public class LetTest {
+    private static final String SMOOTHED_CTR =
+        "(let ((ctr (/ (+ clicks 1) (+ views 10)))) (if (> ctr 0.05) (* ctr 100) (- ctr)))";
+
+    @Test
+    public void evaluate() {
+        VariableRegistry variableRegistry = new VariableRegistry();
+        Expr expr = Expression.parse(SMOOTHED_CTR, variableRegistry);
+
+        Assert.assertEquals(variableRegistry.keySet().size(), 2);   // clicks and views, not ctr
+        Assert.assertTrue(variableRegistry.containsKey("clicks") && variableRegistry.containsKey("views"));
+
+        Map<String, Double> varMap = new HashMap<String, Double>();
+        varMap.put("clicks", 9.0);
+        varMap.put("views", 90.0);
+        variableRegistry.refresh(varMap);
+        Assert.assertEquals(expr.evaluate(), 10.0, 1e-12);
+
+        varMap.put("clicks", 0.0);
+        variableRegistry.refresh(varMap);
+        Assert.assertEquals(expr.evaluate(), -0.01, 1e-12);
+
+        Assert.assertEquals(expr.toString(), "(let ((ctr ((clicks+1.0)/(views+10.0)))) (if (ctr>0.05) (ctr*100.0) unaryMinus(ctr)))");
+    }
+
+    @Test
+    public void scoping() {
+        // sequential bindings, inner lets shadow outer ones and inputs
+        Assert.assertEquals(Expression.evaluate("(let ((a 2) (b (* a 3))) (+ a b))"), 8.0, 0);
+        Assert.assertEquals(Expression.evaluate("(let ((a 2)) (+ (let ((a 10)) a) a))"), 12.0, 0);
+        Assert.assertEquals(Expression.evaluate("(let ((a 2)) (let ((b (+ a 1)) (a 5)) (* a b)))"), 15.0, 0);
+        Assert.assertEquals(Expression.evaluate("(let () 7)"), 7.0, 0);
+
+        VariableRegistry variableRegistry = new VariableRegistry();
+        Expr expr = Expression.parse("(+ x (let ((x (* x 10))) x))", variableRegistry);
+        variableRegistry.findVariable("x").setValue(2);
+        Assert.assertEquals(expr.evaluate(), 22.0, 0);
+        Assert.assertEquals(variableRegistry.findVariable("x").getValue(), 2.0, 0);
+
+        // computed once per evaluation
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(Expression.evaluate("(let ((r (rand-in 0 1))) (- r r))"), 0.0, 0);
+        }
+    }
+
+    @Test(expectedExceptions = InputMismatchException.class)
+    public void badBinding() {
+        Expression.parse("(let ((3 x)) 1)", new VariableRegistry());
+    }
+
+    @Test
+    public void otherEvaluators() {
+        VariableRegistry variableRegistry = new VariableRegistry();
+        Expr expr = Expression.parse(SMOOTHED_CTR, variableRegistry);
+        Expr optimized = ExpressionOptimizer.optimize(expr);
+
+        FloatBatchEvaluator evaluator = new FloatBatchEvaluator(expr, Arrays.asList("clicks", "views"));
+        float[][] columns = {{0, 9, 3, 50}, {90, 90, 10, 100}};
+        float[] output = new float[4];
+        evaluator.evaluate(columns, 4, output);
+
+        Map<String, String> definitions = new LinkedHashMap<String, String>();
+        definitions.put("ctr", SMOOTHED_CTR);
+        FeatureSet featureSet = FeatureSet.compile(1, definitions);
+        FeatureSet.Instance other = featureSet.newInstance();
+        double[] featureOutput = new double[1];
+
+        Map<String, Double> varMap = new HashMap<String, Double>();
+        for (int i = 0; i < 4; i++) {
+            varMap.put("clicks", (double) columns[0][i]);
+            varMap.put("views", (double) columns[1][i]);
+            variableRegistry.refresh(varMap);
+            double exact = expr.evaluate();
+
+            Assert.assertEquals(optimized.evaluate(), exact, 0);
+            Assert.assertEquals(output[i], exact, 1e-5);
+
+            featureSet.evaluate(varMap, featureOutput);
+            Assert.assertEquals(featureOutput[0], exact, 0);
+            other.evaluate(new HashMap<String, Double>(), featureOutput);   // separate slots and variables
+            Assert.assertEquals(featureSet.instance().getExpr(0).evaluate(), exact, 0);
+        }
+    }
+}
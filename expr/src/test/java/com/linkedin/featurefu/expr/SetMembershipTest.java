@@ -0,0 +1,120 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import java.util.Arrays;
+import java.util.InputMismatchException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.MissingFormatArgumentException;
+import java.util.Random;
+
+/**
+ *
+ * Unit test for the in-set operator
+ *
+ */
+public class SetMembershipTest {
+
+    /**
+     * in-set against the equivalent chain of == and ||, for small (sorted) and large (hashed) sets
+     */
+    @Test
+    public void equivalence() {
+        Random random = new Random(0L);
+
+        for (int members : new int[] {1, 3, 8, 9, 300}) {
+            StringBuilder set = new StringBuilder("(in-set c");
+            StringBuilder chain = new StringBuilder();
+            for (int i = 0; i < members; i++) {
+                String member = String.valueOf(random.nextInt(1000) - 500);
+                set.append(' ').append(member);
+                chain.append(i + 1 < members ? "(|| (== c " + member + ") " : "(== c " + member + ")");
+            }
+            set.append(')');
+            for (int i = 1; i < members; i++) {
+                chain.append(')');
+            }
+
+            VariableRegistry registry = new VariableRegistry();
+            Expr inSet = Expression.parse(set.toString(), registry);
+            Expr expected = Expression.parse(chain.toString(), registry);
+            CompactExpression compact = new CompactExpression(inSet);
+            FloatBatchEvaluator batch = new FloatBatchEvaluator(inSet, Arrays.asList("c"));
+            float[] column = new float[1000];
+            float[] output = new float[1000];
+
+            for (int i = 0; i < 1000; i++) {
+                double c = i % 100 == 0 ? Double.NaN : random.nextInt(1000) - 500 + (i % 7 == 0 ? 0.5 : 0);
+                registry.registerVariable("c").setValue(c);
+                column[i] = (float) c;
+                Assert.assertEquals(inSet.evaluate(), expected.evaluate(), 0, set + " " + c);
+                Assert.assertEquals(compact.evaluate(new double[] {c}), expected.evaluate(), 0);
+            }
+            batch.evaluate(new float[][] {column}, column.length, output);
+            for (int i = 0; i < column.length; i++) {
+                registry.registerVariable("c").setValue(column[i]);
+                Assert.assertEquals((double) output[i], expected.evaluate(), 0);
+            }
+        }
+    }
+
+    @Test
+    public void members() {
+        VariableRegistry registry = new VariableRegistry();
+        Expr expr = Expression.parse("(in-set x -0 0.1 1e300 NaN 7 7)", registry);
+        Assert.assertEquals(expr.toString(), "(in-set x -0.0 0.1 1.0E300 NaN 7.0 7.0)");
+
+        double[] members = {0.0, -0.0, 0.1, 1e300, 7};
+        double[] others = {Double.NaN, 0.1f, 1, Double.POSITIVE_INFINITY};
+        for (double x : members) {
+            registry.registerVariable("x").setValue(x);
+            Assert.assertEquals(expr.evaluate(), 1.0, 0, String.valueOf(x));
+        }
+        for (double x : others) {
+            registry.registerVariable("x").setValue(x);
+            Assert.assertEquals(expr.evaluate(), 0.0, 0, String.valueOf(x));
+        }
+
+        Assert.assertEquals(ExpressionOptimizer.optimize(Expression.parse("(in-set 3 1 2 3)", registry)).toString(), "1.0");
+        Assert.assertEquals(ExpressionOptimizer.optimize(Expression.parse("(!= (in-set x 1 2) 0)", registry)).toString(),
+            "(in-set x 1.0 2.0)");
+        Assert.assertTrue(TypeInference.typeOf(expr).isBoolean());
+
+        // feature set instances share the index of the template
+        Map<String, String> definitions = new LinkedHashMap<String, String>();
+        definitions.put("targeted", "(in-set industry 4 8 15 16 23 42 108 815 4815 162342)");
+        FeatureSet featureSet = FeatureSet.compile(1, definitions);
+        Map<String, Double> input = new LinkedHashMap<String, Double>();
+        input.put("industry", 815.0);
+        double[] output = new double[1];
+        featureSet.newInstance().evaluate(input, output);
+        Assert.assertEquals(output[0], 1.0, 0);
+        Assert.assertSame(((Expression) featureSet.newInstance().getExpr(0)).getOperator(),
+            ((Expression) featureSet.newInstance().getExpr(0)).getOperator());
+    }
+
+    @Test(expectedExceptions = InputMismatchException.class)
+    public void variableMember() {
+        Expression.parse("(in-set x 1 y)", new VariableRegistry());
+    }
+
+    @Test(expectedExceptions = MissingFormatArgumentException.class)
+    public void noMembers() {
+        Expression.parse("(in-set x)", new VariableRegistry());
+    }
+}
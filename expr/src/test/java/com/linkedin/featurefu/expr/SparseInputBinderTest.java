@@ -0,0 +1,105 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ *
+ * Unit test for binding sparse inputs to variables
+ *
+ */
+public class SparseInputBinderTest {
+    private static final int LAYOUT_SIZE = 5000;
+
+    private static List<String> layout() {
+        List<String> layout = new ArrayList<String>();
+        for (int i = 0; i < LAYOUT_SIZE; i++) {
+            layout.add("f" + i);
+        }
+        return layout;
+    }
+
+    @Test
+    public void matchesRefresh() {
+        String input = "(+ (* f3 f17) (- (log2 (+ 1 f4000)) (if (> f250 0) f251 f4999)))";
+
+        VariableRegistry sparseRegistry = new VariableRegistry();
+        Expr sparse = Expression.parse(input, sparseRegistry);
+        SparseInputBinder binder = new SparseInputBinder(sparseRegistry, layout());
+
+        VariableRegistry denseRegistry = new VariableRegistry();
+        Expr dense = Expression.parse(input, denseRegistry);
+
+        Random random = new Random(0L);
+        int[] interesting = {3, 17, 250, 251, 4000, 4999};
+
+        for (int round = 0; round < 2000; round++) {
+            // a few dozen non-zeros, sometimes hitting the features used by the expression
+            int nnz = random.nextInt(round % 2 == 0 ? 40 : 3000);
+            TreeMap<Integer, Double> row = new TreeMap<Integer, Double>();
+            while (row.size() < nnz) {
+                int index = random.nextInt(4) == 0 ? interesting[random.nextInt(interesting.length)] : random.nextInt(LAYOUT_SIZE);
+                row.put(index, random.nextDouble() * 10 - 2);
+            }
+
+            int[] indices = new int[nnz];
+            double[] values = new double[nnz];
+            Map<String, Double> varMap = new HashMap<String, Double>();
+            int k = 0;
+            for (Map.Entry<Integer, Double> entry : row.entrySet()) {
+                indices[k] = entry.getKey();
+                values[k] = entry.getValue();
+                varMap.put("f" + entry.getKey(), entry.getValue());
+                k++;
+            }
+
+            binder.bind(indices, values, nnz);
+            denseRegistry.refresh(varMap);
+
+            Assert.assertEquals(sparse.evaluate(), dense.evaluate(), 0);
+        }
+
+        binder.reset();
+        for (Variable variable : sparseRegistry.values()) {
+            Assert.assertEquals(variable.getValue(), 0.0, 0);
+        }
+    }
+
+    @Test
+    public void csrBatch() {
+        VariableRegistry variableRegistry = new VariableRegistry();
+        Expr expr = Expression.parse("(+ f1 (* 2 f3))", variableRegistry);
+        SparseInputBinder binder = new SparseInputBinder(variableRegistry, layout());
+
+        int[] rowOffsets = {0, 2, 2, 5};
+        int[] indices = {1, 3, 0, 3, 7};
+        double[] values = {1, 10, 5, 20, 9};
+        double[] output = new double[3];
+
+        binder.evaluate(expr, rowOffsets, indices, values, 3, output);
+
+        Assert.assertEquals(output[0], 21.0, 0);
+        Assert.assertEquals(output[1], 0.0, 0);
+        Assert.assertEquals(output[2], 40.0, 0);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ *
+ * Tree walking speed of arity specialized nodes vs. generic Expressions, over a catalog of random expressions so
+ *   call sites see as many operators as in production
+ *   run with: java -cp <test classes>:<classes> com.linkedin.featurefu.expr.SpecializedNodesBenchmark [generic|specialized]
+ *
+ */
+public class SpecializedNodesBenchmark {
+    private static final String[] UNARY = {"!", "-", "abs", "floor", "sqrt", "sigmoid", "ln1plus"};
+    private static final String[] BINARY = {">", "<=", "&&", "+", "+", "+", "-", "*", "*", "*", "/", "max", "min"};
+    private static final int EXPRESSIONS = 500;
+    private static final int ROWS = 400;
+
+    private static String randomExpression(Random random, int depth) {
+        if (depth == 0 || random.nextInt(6) == 0) {
+            int pick = random.nextInt(5);
+            return pick == 0 ? String.valueOf(random.nextInt(10) / 4.0) : "v" + pick;
+        }
+        int kind = random.nextInt(10);
+        if (kind < 2) {
+            return "(" + UNARY[random.nextInt(UNARY.length)] + " " + randomExpression(random, depth - 1) + ")";
+        } else if (kind < 9) {
+            return "(" + BINARY[random.nextInt(BINARY.length)] + " " + randomExpression(random, depth - 1) + " "
+                + randomExpression(random, depth - 1) + ")";
+        }
+        return "(if " + randomExpression(random, depth - 1) + " " + randomExpression(random, depth - 1) + " "
+            + randomExpression(random, depth - 1) + ")";
+    }
+
+    public static void main(String[] args) {
+        boolean generic = args.length > 0 && args[0].equals("generic");   // run each mode in its own JVM
+        Random random = new Random(1L);
+        VariableRegistry variableRegistry = new VariableRegistry();
+
+        List<Expr> exprs = new ArrayList<Expr>();
+        long nodes = 0;
+        for (int i = 0; i < EXPRESSIONS; i++) {
+            Expr expr = Expression.parse(randomExpression(random, 7), variableRegistry);
+            exprs.add(generic ? SpecializedNodesTest.generic(expr) : expr);
+            nodes += new CompactExpression(expr).size();
+        }
+        Variable[] variables = variableRegistry.values().toArray(new Variable[0]);
+
+        for (int round = 0; round < 10; round++) {
+            double sum = 0;
+            long start = System.nanoTime();
+            for (int row = 0; row < ROWS; row++) {
+                for (Variable variable : variables) {
+                    variable.setValue(random.nextDouble() * 4 - 1);
+                }
+                for (Expr expr : exprs) {
+                    double value = expr.evaluate();
+                    sum += Double.isNaN(value) ? 0 : value;
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.println(String.format("%s: %.2f ns/node (%d nodes, checksum %s)", generic ? "generic" : "specialized",
+                elapsed / (double) (ROWS * nodes), nodes, sum));
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ *
+ * Unit test for arity specialized nodes, they should evaluate exactly like generic Expressions
+ *
+ */
+public class SpecializedNodesTest {
+
+    /**
+     * Same tree built from generic Expressions only
+     */
+    static Expr generic(Expr expr) {
+        if (!(expr instanceof Expression)) {
+            return expr;
+        }
+        Expression expression = (Expression) expr;
+        List<Expr> operands = new ArrayList<Expr>();
+        for (Expr operand : expression.getOperands()) {
+            operands.add(generic(operand));
+        }
+        return new Expression(expression.getOperator(), operands);
+    }
+
+    @Test
+    public void parsedNodes() {
+        VariableRegistry variableRegistry = new VariableRegistry();
+        Assert.assertTrue(Expression.parse("(sigmoid x)", variableRegistry) instanceof SpecializedNodes.Unary);
+        Assert.assertTrue(Expression.parse("(+ x 1)", variableRegistry) instanceof SpecializedNodes.Binary);
+        Assert.assertTrue(Expression.parse("(if x 1 2)", variableRegistry) instanceof SpecializedNodes.Ternary);
+        Assert.assertEquals(Expression.parse("(rand-in x 1)", variableRegistry).getClass(), Expression.class);
+        Assert.assertEquals(Expression.parse("(let ((a x)) a)", variableRegistry).getClass(), Expression.class);
+        Assert.assertTrue(Expression.parse("(exp x)", variableRegistry, MathMode.APPROXIMATE) instanceof SpecializedNodes.Unary);
+    }
+
+    @Test
+    public void matchesGeneric() {
+        Random random = new Random(0L);
+
+        for (int e = 0; e < 300; e++) {
+            String input = CompactExpressionTest.randomExpression(random, 6, 0);
+            VariableRegistry variableRegistry = new VariableRegistry();
+            Expr expr = Expression.parse(input, variableRegistry, e % 3 == 0 ? MathMode.APPROXIMATE : MathMode.EXACT);
+            Expr generic = generic(expr);
+
+            for (int i = 0; i < 20; i++) {
+                for (String name : new String[]{"x", "y", "z"}) {
+                    variableRegistry.registerVariable(name).setValue(random.nextInt(4) == 0 ? 0 : random.nextDouble() * 10 - 5);
+                }
+                double expected = generic.evaluate();
+                Assert.assertTrue(Double.compare(expr.evaluate(), expected) == 0, input);
+            }
+        }
+    }
+}
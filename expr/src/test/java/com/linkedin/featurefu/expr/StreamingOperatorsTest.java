@@ -0,0 +1,215 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.InputMismatchException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.MissingFormatArgumentException;
+import java.util.Random;
+
+/**
+ *
+ * Unit test for streaming operators
+ *
+ */
+public class StreamingOperatorsTest {
+
+    private static double event(Expr expr, VariableRegistry registry, double key, double value, double time) {
+        registry.registerVariable("key").setValue(key);
+        registry.registerVariable("value").setValue(value);
+        registry.registerVariable("time").setValue(time);
+        return expr.evaluate();
+    }
+
+    @Test
+    public void decay() {
+        VariableRegistry registry = new VariableRegistry();
+        Expr expr = Expression.parse("(decay-sum key value time 10)", registry);
+
+        Assert.assertEquals(event(expr, registry, 1, 1, 0), 1.0, 1e-12);
+        Assert.assertEquals(event(expr, registry, 1, 1, 10), 1.5, 1e-12);
+        Assert.assertEquals(event(expr, registry, 2, 4, 15), 4.0, 1e-12);
+        Assert.assertEquals(event(expr, registry, 1, Double.NaN, 20), 0.75, 1e-12);
+        Assert.assertEquals(event(expr, registry, 1, 2, 5), 2.75, 1e-12);   // late event counts at time 20
+        Assert.assertEquals(event(expr, registry, -0.0, 3, 0), 3.0, 1e-12);
+        Assert.assertEquals(event(expr, registry, 0.0, 3, 0), 6.0, 1e-12);
+    }
+
+    @Test
+    public void windows() {
+        VariableRegistry registry = new VariableRegistry();
+        Expr sum = Expression.parse("(window-sum key value 3)", registry);
+        Expr mean = Expression.parse("(window-mean key value 3)", registry);
+        Expr max = Expression.parse("(window-max key value 3)", registry);
+        double[] values = {5, 2, 3, 1, Double.NaN};
+        double[][] expected = {{5, 5, 5}, {7, 3.5, 5}, {10, 10 / 3.0, 5}, {6, 2, 3}, {6, 2, 3}};
+
+        for (int i = 0; i < values.length; i++) {
+            Assert.assertEquals(event(sum, registry, 7, values[i], 0), expected[i][0], 1e-12);
+            Assert.assertEquals(event(mean, registry, 7, values[i], 0), expected[i][1], 1e-12);
+            Assert.assertEquals(event(max, registry, 7, values[i], 0), expected[i][2], 1e-12);
+        }
+        Assert.assertEquals(event(sum, registry, 8, Double.NaN, 0), 0.0, 0);
+        Assert.assertTrue(Double.isNaN(event(mean, registry, 8, Double.NaN, 0)));
+        Assert.assertTrue(Double.isNaN(event(max, registry, 8, Double.NaN, 0)));
+    }
+
+    /**
+     * Streaming statistics against recomputing them from every past event
+     */
+    @Test
+    public void bruteForce() {
+        String[] symbols = {"window-sum", "window-mean", "window-max", "time-sum", "time-mean", "time-max"};
+        Random random = new Random(0L);
+
+        for (String symbol : symbols) {
+            boolean timed = symbol.startsWith("time");
+            VariableRegistry registry = new VariableRegistry();
+            Expr expr = Expression.parse(timed ? "(" + symbol + " key value time 7.5)" : "(" + symbol + " key value 5)", registry);
+            Map<Double, List<double[]>> history = new HashMap<Double, List<double[]>>();
+            double time = 0;
+
+            for (int i = 0; i < 3000; i++) {
+                double key = random.nextInt(20) + i / 100 * 5;   // keys come and go
+                double value = random.nextInt(10) == 0 ? Double.NaN : Math.round(random.nextGaussian() * 100) / 10.0;
+                time += random.nextInt(3);
+
+                if (!history.containsKey(key)) {
+                    history.put(key, new ArrayList<double[]>());
+                }
+                List<double[]> events = history.get(key);
+                if (!Double.isNaN(value)) {
+                    events.add(new double[] {time, value});
+                }
+
+                double sum = 0;
+                double max = Double.NaN;
+                int count = 0;
+                for (int k = events.size() - 1; k >= 0; k--) {
+                    double[] e = events.get(k);
+                    if (timed ? e[0] <= time - 7.5 : count == 5) {
+                        break;
+                    }
+                    sum += e[1];
+                    max = count == 0 ? e[1] : Math.max(max, e[1]);
+                    count++;
+                }
+                double expected = symbol.endsWith("sum") ? sum : symbol.endsWith("mean") ? sum / count : max;
+
+                double actual = event(expr, registry, key, value, time);
+                if (Double.isNaN(expected)) {
+                    Assert.assertTrue(Double.isNaN(actual), symbol);
+                } else {
+                    Assert.assertEquals(actual, expected, 1e-9, symbol);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void idleKeys() {
+        VariableRegistry registry = new VariableRegistry();
+        Expr decay = Expression.parse("(decay-sum key value time 10)", registry);
+        Expr window = Expression.parse("(time-sum key value time 60)", registry);
+        Expr count = Expression.parse("(window-sum key value 3)", registry);
+
+        for (int i = 0; i < 100000; i++) {
+            double key = i % 1000 + i / 1000 * 100;   // a new batch of keys every 1000 events
+            Assert.assertEquals(event(decay, registry, key, 1, i), 1.0, 0);
+            event(window, registry, key, 1, i);
+            event(count, registry, key, 1, i);
+        }
+        // keys idle for 640 or 60 time units are dropped, count windows never go idle
+        Assert.assertTrue(StreamingOperators.keys(decay) < 4096, String.valueOf(StreamingOperators.keys(decay)));
+        Assert.assertTrue(StreamingOperators.keys(window) < 4096, String.valueOf(StreamingOperators.keys(window)));
+        Assert.assertTrue(StreamingOperators.keys(count) > 10000);
+
+        // recent keys are kept
+        Assert.assertEquals(event(decay, registry, 99999 % 1000 + 99 * 100, 0, 99999), 1.0, 0);
+        Assert.assertEquals(event(window, registry, 99999 % 1000 + 99 * 100, 0, 99999), 1.0, 0);
+    }
+
+    @Test
+    public void maxKeys() {
+        StreamingOperators.KeyedStates states = new StreamingOperators.KeyedStates(64);
+        StreamingOperators.KeyedStates.Owner never = new StreamingOperators.KeyedStates.Owner() {
+            @Override
+            public boolean isIdle(Object state) {
+                return false;
+            }
+        };
+
+        states.get(7L);
+        states.put(7L, 7L, never);
+        for (long key = 0; key < 10000; key++) {
+            if (states.get(key) == null) {
+                states.put(key, key, never);
+            }
+            Assert.assertTrue(states.size() <= 64);
+            Assert.assertEquals(states.get(7L), 7L);   // looked up every time, so never dropped
+        }
+        Assert.assertNotNull(states.get(9999L));
+        Assert.assertNull(states.get(100L));
+    }
+
+    @Test
+    public void composition() {
+        VariableRegistry registry = new VariableRegistry();
+        Expr ctr = Expression.parse("(/ (+ (window-sum member click 100) 1) (+ (window-sum member 1 100) 10))", registry);
+        Assert.assertEquals(ExpressionOptimizer.optimize(ctr).toString(),
+            "(((window-sum member click 100.0)+1.0)/((window-sum member 1.0 100.0)+10.0))");
+
+        registry.registerVariable("member").setValue(42);
+        double result = 0;
+        for (int i = 0; i < 10; i++) {
+            registry.registerVariable("click").setValue(i % 2);
+            result = ctr.evaluate();
+        }
+        Assert.assertEquals(result, 6 / 20.0, 1e-12);
+
+        // every feature set instance has its own state
+        Map<String, String> definitions = new LinkedHashMap<String, String>();
+        definitions.put("count", "(window-sum 0 1 1000)");
+        FeatureSet featureSet = FeatureSet.compile(1, definitions);
+        double[] output = new double[1];
+        FeatureSet.Instance first = featureSet.newInstance();
+        first.evaluate(new HashMap<String, Double>(), output);
+        first.evaluate(new HashMap<String, Double>(), output);
+        Assert.assertEquals(output[0], 2.0, 0);
+        featureSet.newInstance().evaluate(new HashMap<String, Double>(), output);
+        Assert.assertEquals(output[0], 1.0, 0);
+    }
+
+    @Test(expectedExceptions = InputMismatchException.class)
+    public void variableLength() {
+        Expression.parse("(window-sum key value n)", new VariableRegistry());
+    }
+
+    @Test(expectedExceptions = InputMismatchException.class)
+    public void fractionalCount() {
+        Expression.parse("(window-max key value 2.5)", new VariableRegistry());
+    }
+
+    @Test(expectedExceptions = MissingFormatArgumentException.class)
+    public void missingTime() {
+        Expression.parse("(time-sum key value 60)", new VariableRegistry());
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ *
+ * Unit test for top K scoring, pruning must never change the result
+ *
+ */
+public class TopKScorerTest {
+    private static final String SCORE =
+        "(* bid (sigmoid (+ (* 0.8 (ln1plus clicks)) (- (* 0.3 (tanh age)) 2))))";
+
+    private static void checkTopK(String input, Map<String, ValueType> types, int n, int k, long minPruned) {
+        Random random = new Random(0L);
+        VariableRegistry variableRegistry = new VariableRegistry();
+        Expr expr = Expression.parse(input, variableRegistry);
+        TopKScorer scorer = new TopKScorer(expr, k, types);
+
+        double[] all = new double[n];
+        Map<String, Double> varMap = new HashMap<String, Double>();
+        for (int i = 0; i < n; i++) {
+            varMap.put("bid", random.nextDouble() * 10);
+            varMap.put("clicks", (double) random.nextInt(100));
+            varMap.put("age", random.nextDouble() * 50);
+            variableRegistry.refresh(varMap);
+
+            Assert.assertTrue(scorer.upperBound() >= expr.evaluate());
+            all[i] = expr.evaluate();
+            scorer.offer(i);
+        }
+
+        double[] sorted = all.clone();
+        Arrays.sort(sorted);
+        double[] scores = scorer.getScores();
+        int[] ids = scorer.getIds();
+        Assert.assertEquals(scores.length, Math.min(k, n));
+        for (int i = 0; i < scores.length; i++) {
+            Assert.assertEquals(scores[i], sorted[n - 1 - i], 0);
+            Assert.assertEquals(all[ids[i]], scores[i], 0);
+        }
+        Assert.assertEquals(scorer.getEvaluated() + scorer.getPruned(), (long) n);
+        Assert.assertTrue(scorer.getPruned() >= minPruned, "pruned " + scorer.getPruned());
+    }
+
+    @Test
+    public void pruning() {
+        Map<String, ValueType> types = new HashMap<String, ValueType>();
+        checkTopK(SCORE, types, 5000, 25, 4000);
+        checkTopK(SCORE, types, 10, 25, 0);
+
+        // ranges bound the transcendental subtrees, here ln1plus(clicks) <= ln(100)
+        types.put("clicks", ValueType.range(0, 99));
+        checkTopK("(+ (* 0.01 bid) (ln1plus clicks))", types, 5000, 25, 0);
+        checkTopK("(if (> bid 9) (sigmoid age) (* 0.1 bid))", types, 5000, 25, 4000);
+    }
+
+    @Test
+    public void bounds() {
+        VariableRegistry variableRegistry = new VariableRegistry();
+        Expr expr = Expression.parse(SCORE, variableRegistry);
+        TopKScorer scorer = new TopKScorer(expr, 1);
+
+        variableRegistry.findVariable("bid").setValue(2);
+        Assert.assertEquals(scorer.upperBound(), 2.0, 0);   // sigmoid <= 1
+        variableRegistry.findVariable("bid").setValue(-2);
+        Assert.assertEquals(scorer.upperBound(), 0.0, 0);
+
+        variableRegistry.findVariable("bid").setValue(2);
+        Assert.assertTrue(scorer.offer(7));                 // about 2 * sigmoid(-2) = 0.24
+        variableRegistry.findVariable("bid").setValue(0.1);
+        Assert.assertFalse(scorer.offer(8));                // bound 0.1 can't beat it
+        Assert.assertEquals(scorer.getPruned(), 1L);
+        Assert.assertEquals(scorer.getIds()[0], 7);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ *
+ * Unit test for type and range inference
+ *
+ */
+public class TypeInferenceTest {
+
+    private static ValueType typeOf(String input, Map<String, ValueType> variableTypes) {
+        return new TypeInference(variableTypes).infer(Expression.parse(input, new VariableRegistry()));
+    }
+
+    @Test
+    public void types() {
+        Map<String, ValueType> none = new HashMap<String, ValueType>();
+
+        Assert.assertTrue(typeOf("(&& (> x 1) (! y))", none).isBoolean());
+        Assert.assertTrue(typeOf("(if (> x 1) 0 1)", none).isBoolean());
+        Assert.assertTrue(typeOf("(* (> x 1) (< y 2))", none).isBoolean());
+        Assert.assertFalse(typeOf("(+ (> x 1) (< y 2))", none).isBoolean());
+        Assert.assertTrue(typeOf("(+ (> x 1) (< y 2))", none).isIntegral());
+        Assert.assertTrue(typeOf("(floor x)", none).isIntegral());
+        Assert.assertFalse(typeOf("x", none).isIntegral());
+
+        ValueType sigmoid = typeOf("(sigmoid x)", none);
+        Assert.assertEquals(sigmoid.getMin(), 0.0, 0);
+        Assert.assertEquals(sigmoid.getMax(), 1.0, 0);
+        Assert.assertTrue(sigmoid.mayBeNaN());
+
+        Map<String, ValueType> declared = new HashMap<String, ValueType>();
+        declared.put("clicks", ValueType.integral(0, Double.POSITIVE_INFINITY));
+        declared.put("ctr", ValueType.range(0, 1));
+
+        ValueType log = typeOf("(log2 (+ 1 clicks))", declared);
+        Assert.assertEquals(log.getMin(), 0.0, 0);
+        Assert.assertFalse(log.mayBeNaN());
+
+        ValueType scaled = typeOf("(- (* 4 ctr) 1)", declared);
+        Assert.assertEquals(scaled.getMin(), -1.0, 0);
+        Assert.assertEquals(scaled.getMax(), 3.0, 0);
+
+        Assert.assertTrue(typeOf("(sqrt ctr)", declared).getMax() == 1.0);
+        Assert.assertTrue(typeOf("(/ 1 ctr)", declared).mayBeNaN());
+        Assert.assertTrue(typeOf("(% clicks 7)", declared).isIntegral());
+    }
+
+    @Test
+    public void soundness() {
+        String[] inputs = {
+            "(+ (* a b) (/ a (+ 2 (abs b))))",
+            "(if (> a 0) (ln1plus (abs a)) (sigmoid b))",
+            "(- (% (floor a) 3) (max (tanh b) (sign a)))",
+            "(** (abs a) 3)",
+            "(round (* 1000 (sin a)))",
+            "(min (exp b) (sqrt (abs a)))"
+        };
+
+        Map<String, ValueType> declared = new HashMap<String, ValueType>();
+        declared.put("a", ValueType.range(-5, 5));
+        declared.put("b", ValueType.range(-3, 7));
+
+        Random random = new Random(0L);
+
+        for (String input : inputs) {
+            VariableRegistry variableRegistry = new VariableRegistry();
+            Expr expr = Expression.parse(input, variableRegistry);
+            ValueType type = new TypeInference(declared).infer(expr);
+
+            for (int i = 0; i < 10000; i++) {
+                variableRegistry.registerVariable("a").setValue(random.nextDouble() * 10 - 5);
+                variableRegistry.registerVariable("b").setValue(random.nextDouble() * 10 - 3);
+                double value = expr.evaluate();
+
+                if (Double.isNaN(value)) {
+                    Assert.assertTrue(type.mayBeNaN(), input);
+                } else {
+                    Assert.assertTrue(value >= type.getMin() && value <= type.getMax(), input + " = " + value + " " + type);
+                    Assert.assertTrue(!type.isIntegral() || value == Math.rint(value), input);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.InputMismatchException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.MissingFormatArgumentException;
+import java.util.Random;
+
+/**
+ *
+ * Unit test for vector variables and operators
+ *
+ */
+public class VectorOperatorsTest {
+
+    @Test
+    public void kernels() {
+        Random random = new Random(0L);
+        VariableRegistry registry = new VariableRegistry();
+        Expr dot = Expression.parse("(dot u v)", registry);
+        Expr cosine = Expression.parse("(cosine u v)", registry);
+        Expr norm = Expression.parse("(norm u)", registry);
+        Expr weighted = Expression.parse("(weighted-dot u v w)", registry);
+
+        for (int n : new int[] {0, 1, 3, 4, 7, 256, 1001}) {
+            double[] u = new double[n];
+            double[] v = new double[n];
+            double[] w = new double[n];
+            float[] uf = new float[n];
+            float[] vf = new float[n];
+            float[] wf = new float[n];
+            double expectedDot = 0;
+            double uu = 0;
+            double vv = 0;
+            double expectedWeighted = 0;
+            for (int i = 0; i < n; i++) {
+                uf[i] = (float) random.nextGaussian();
+                vf[i] = (float) random.nextGaussian();
+                wf[i] = random.nextFloat();
+                u[i] = uf[i];
+                v[i] = vf[i];
+                w[i] = wf[i];
+                expectedDot += u[i] * v[i];
+                uu += u[i] * u[i];
+                vv += v[i] * v[i];
+                expectedWeighted += w[i] * u[i] * v[i];
+            }
+            double expectedCosine = expectedDot / Math.sqrt(uu * vv);
+
+            // double, float and mixed precision bindings of the same values
+            for (int binding = 0; binding < 3; binding++) {
+                if (binding == 0) {
+                    registry.registerVector("u").setValue(u);
+                    registry.registerVector("v").setValue(v);
+                    registry.registerVector("w").setValue(w);
+                } else if (binding == 1) {
+                    registry.registerVector("u").setValue(uf);
+                    registry.registerVector("v").setValue(vf);
+                    registry.registerVector("w").setValue(wf);
+                } else {
+                    registry.registerVector("v").setValue(v);
+                }
+                String message = n + " " + binding;
+                double delta = binding == 0 ? 1e-9 : 1e-5;   // products of two floats are rounded to float
+                Assert.assertEquals(dot.evaluate(), expectedDot, delta, message);
+                Assert.assertEquals(norm.evaluate(), Math.sqrt(uu), delta, message);
+                Assert.assertEquals(weighted.evaluate(), expectedWeighted, delta, message);
+                if (n == 0) {
+                    Assert.assertTrue(Double.isNaN(cosine.evaluate()), message);
+                } else {
+                    Assert.assertEquals(cosine.evaluate(), expectedCosine, delta, message);
+                }
+            }
+        }
+
+        registry.registerVector("u").setValue(new double[] {1, 2});
+        registry.registerVector("v").setValue(new float[] {1, 2, 3});
+        Assert.assertTrue(Double.isNaN(dot.evaluate()));
+        registry.registerVector("v").setValue(new double[] {2, 4});
+        Assert.assertEquals(cosine.evaluate(), 1.0, 0);
+    }
+
+    @Test
+    public void expressions() {
+        VariableRegistry registry = new VariableRegistry();
+        Expr expr = Expression.parse("(sigmoid (+ (* 2 (cosine member job)) (* 0.1 (norm job))))", registry);
+        Assert.assertEquals(ExpressionOptimizer.optimize(expr).toString(), "sigmoid(((2.0*(cosine member job))+(0.1*norm(job))))");
+        Assert.assertEquals(TypeInference.typeOf(Expression.parse("(cosine member job)", registry)).getMin(), -1.0, 0);
+
+        registry.registerVector("member").setValue(new float[] {3, 4});
+        registry.registerVector("job").setValue(new float[] {3, 4});
+        Map<String, Double> scalars = new HashMap<String, Double>();
+        registry.refresh(scalars);   // vectors are left alone
+        Assert.assertEquals(expr.evaluate(), 1 / (1 + Math.exp(-2.5)), 1e-12);
+
+        // feature set instances bind their own vectors
+        Map<String, String> definitions = new LinkedHashMap<String, String>();
+        definitions.put("similarity", "(dot member job)");
+        FeatureSet featureSet = FeatureSet.compile(1, definitions);
+        FeatureSet.Instance instance = featureSet.newInstance();
+        instance.getRegistry().registerVector("member").setValue(new double[] {1, 2});
+        instance.getRegistry().registerVector("job").setValue(new double[] {3, 4});
+        double[] output = new double[1];
+        instance.evaluate(scalars, output);
+        Assert.assertEquals(output[0], 11.0, 0);
+
+        ExpressionInterner interner = new ExpressionInterner();
+        Assert.assertSame(interner.intern(Expression.parse("(dot a b)", new VariableRegistry())),
+            interner.intern(Expression.parse("(dot a b)", new VariableRegistry())));
+    }
+
+    @Test(expectedExceptions = InputMismatchException.class)
+    public void scalarAsVector() {
+        Expression.parse("(+ u (norm u))", new VariableRegistry());
+    }
+
+    @Test(expectedExceptions = InputMismatchException.class)
+    public void vectorAsScalar() {
+        Expression.parse("(+ (norm u) u)", new VariableRegistry());
+    }
+
+    @Test(expectedExceptions = InputMismatchException.class)
+    public void expressionOperand() {
+        Expression.parse("(norm (+ u 1))", new VariableRegistry());
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void compact() {
+        new CompactExpression(Expression.parse("(norm u)", new VariableRegistry()));
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void floatBatch() {
+        new FloatBatchEvaluator(Expression.parse("(norm u)", new VariableRegistry()), Arrays.asList("u"));
+    }
+
+    @Test(expectedExceptions = MissingFormatArgumentException.class)
+    public void vectorCount() {
+        Expression.parse("(dot u v w)", new VariableRegistry());
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.expr;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * Unit test for warm-up and the readiness signal
+ *
+ */
+public class WarmUpTest {
+
+    private static FeatureSet featureSet() {
+        Map<String, String> definitions = new LinkedHashMap<String, String>();
+        definitions.put("score", "(sigmoid (+ (* 0.5 ctr) (ln1plus clicks)))");
+        definitions.put("bucket", "(if (in age 18 30) 1 (floor (/ age 10)))");
+        return FeatureSet.compile(1, definitions);
+    }
+
+    @Test
+    public void random() throws Exception {
+        Map<String, ValueType> ranges = new HashMap<String, ValueType>();
+        ranges.put("ctr", ValueType.range(0, 1));
+        ranges.put("clicks", ValueType.integral(0, 1000));
+        WarmUp warmUp = new WarmUp(featureSet(), ranges, 0L).setBatchSize(200).setRounds(10, 3, 200, 100.0);
+        Assert.assertFalse(warmUp.isReady());
+        Assert.assertTrue(Double.isNaN(warmUp.getNanosPerEvaluation()));
+
+        warmUp.start();
+        Assert.assertTrue(warmUp.await(1, TimeUnit.MINUTES));
+        Assert.assertTrue(warmUp.isReady());
+        Assert.assertTrue(warmUp.isStable());
+        Assert.assertEquals(warmUp.getRounds(), 10);
+        Assert.assertTrue(warmUp.getNanosPerEvaluation() > 0);
+    }
+
+    @Test
+    public void givesUp() throws Exception {
+        WarmUp warmUp = new WarmUp(featureSet(), new HashMap<String, ValueType>(), 0L).setBatchSize(10).setRounds(5, 5, 8, -1);
+        warmUp.run();
+        Assert.assertTrue(warmUp.isReady());
+        Assert.assertFalse(warmUp.isStable());
+        Assert.assertEquals(warmUp.getRounds(), 8);
+        Assert.assertFalse(warmUp.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void samples() throws Exception {
+        List<Map<String, Double>> samples = WarmUp.readSamples(new StringReader(
+            "# replayed requests\nctr, clicks ,age\n0.1,3,25\n\n0.2,,41\n"));
+        Assert.assertEquals(samples.size(), 2);
+        Assert.assertEquals(samples.get(0).get("clicks"), 3.0);
+        Assert.assertEquals(samples.get(1).keySet().size(), 2);
+        Assert.assertFalse(samples.get(1).containsKey("clicks"));
+
+        WarmUp warmUp = new WarmUp(featureSet(), samples).setBatchSize(50).setRounds(4, 2, 100, 100.0);
+        warmUp.run();
+        Assert.assertTrue(warmUp.isStable());
+        Assert.assertEquals(warmUp.getRounds(), 4);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void badRounds() {
+        new WarmUp(featureSet(), Arrays.<Map<String, Double>>asList(new HashMap<String, Double>())).setRounds(2, 3, 10, 0.1);
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Load generator for the scoring server: a thread per connection keeps a number of requests in flight with random
+ *   inputs for a fixed duration, then throughput and latency percentiles are reported
+ */
+public class LoadGenerator {
+
+  /**
+   * Throughput and latency of a run
+   */
+  public static final class Result {
+    private final long _requests;
+    private final long _errors;
+    private final long _nanos;
+    private final long[] _latencies;   // sorted
+
+    Result(long requests, long errors, long nanos, long[] latencies) {
+      this._requests = requests;
+      this._errors = errors;
+      this._nanos = nanos;
+      this._latencies = latencies;
+    }
+
+    public long getRequests() {
+      return _requests;
+    }
+
+    public long getErrors() {
+      return _errors;
+    }
+
+    public double getRequestsPerSecond() {
+      return _requests * 1e9 / _nanos;
+    }
+
+    /**
+     * @param quantile in [0, 1]
+     * @return latency in nanoseconds at the quantile, 0 if nothing was measured
+     */
+    public long getLatency(double quantile) {
+      if (_latencies.length == 0) {
+        return 0;
+      }
+      return _latencies[Math.min((int) (quantile * _latencies.length), _latencies.length - 1)];
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d requests (%d errors) %.0f/s latency us p50 %.1f p99 %.1f p99.9 %.1f max %.1f",
+          _requests, _errors, getRequestsPerSecond(), getLatency(0.5) / 1e3, getLatency(0.99) / 1e3,
+          getLatency(0.999) / 1e3, getLatency(1) / 1e3);
+    }
+  }
+
+  private LoadGenerator() {
+  }
+
+  /**
+   * @param address server address
+   * @param numInputs number of inputs per request, as expected by the server
+   * @param connections number of connections, each with its own thread
+   * @param inFlight requests outstanding per connection
+   * @param durationMillis how long to send requests
+   */
+  public static Result run(final InetSocketAddress address, final int numInputs, int connections, final int inFlight,
+      final long durationMillis) throws IOException, InterruptedException {
+    final long[][] latencies = new long[connections][];
+    final long[] errors = new long[connections];
+    final IOException[] failures = new IOException[connections];
+    List<Thread> threads = new ArrayList<Thread>();
+
+    long start = System.nanoTime();
+    for (int c = 0; c < connections; c++) {
+      final int index = c;
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            latencies[index] = connection(address, numInputs, inFlight, durationMillis, index, errors);
+          } catch (IOException e) {
+            failures[index] = e;
+          }
+        }
+      }, "load-generator-" + c);
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long nanos = System.nanoTime() - start;
+
+    int total = 0;
+    long errorTotal = 0;
+    for (int c = 0; c < connections; c++) {
+      if (failures[c] != null) {
+        throw failures[c];
+      }
+      total += latencies[c].length;
+      errorTotal += errors[c];
+    }
+    long[] all = new long[total];
+    int offset = 0;
+    for (long[] l : latencies) {
+      System.arraycopy(l, 0, all, offset, l.length);
+      offset += l.length;
+    }
+    Arrays.sort(all);
+    return new Result(total, errorTotal, nanos, all);
+  }
+
+  private static long[] connection(InetSocketAddress address, int numInputs, int inFlight, long durationMillis,
+      int index, long[] errors) throws IOException {
+    ScoringClient client = ScoringClient.connect(address);
+    try {
+      Random random = new Random(index);
+      double[] inputs = new double[numInputs];
+      double[] output = new double[Protocol.MAX_VALUES];
+      long[] sent = new long[inFlight];   // send times, responses come back in order
+      long[] latencies = new long[1024];
+      int received = 0;
+      long id = 0;
+      long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+
+      for (; id < inFlight; id++) {
+        send(client, random, inputs, id);
+        sent[(int) id] = System.nanoTime();
+      }
+      client.flush();
+
+      while (received < id) {
+        long responseId = client.receive(output);
+        long now = System.nanoTime();
+        int slot = (int) (responseId % inFlight);
+        if (received == latencies.length) {
+          latencies = Arrays.copyOf(latencies, received * 2);
+        }
+        latencies[received++] = now - sent[slot];
+        if (client.lastCount() == Protocol.ERROR) {
+          errors[index]++;
+        }
+        if (now < end) {
+          send(client, random, inputs, id);
+          sent[(int) (id % inFlight)] = System.nanoTime();
+          id++;
+          client.flush();
+        }
+      }
+      return Arrays.copyOf(latencies, received);
+    } finally {
+      client.close();
+    }
+  }
+
+  private static void send(ScoringClient client, Random random, double[] inputs, long id) throws IOException {
+    for (int i = 0; i < inputs.length; i++) {
+      inputs[i] = random.nextDouble();
+    }
+    client.send(id, inputs);
+  }
+
+  /**
+   * @param args host, port, number of inputs, optionally connections (default 4), requests in flight per connection
+   *             (8) and duration in seconds (10)
+   */
+  public static void main(String[] args) throws IOException, InterruptedException {
+    if (args.length < 3) {
+      System.out.println("usage: LoadGenerator host port inputs [connections [inFlight [seconds]]]");
+      return;
+    }
+    InetSocketAddress address = new InetSocketAddress(args[0], Integer.parseInt(args[1]));
+    Result result = run(address, Integer.parseInt(args[2]), args.length > 3 ? Integer.parseInt(args[3]) : 4,
+        args.length > 4 ? Integer.parseInt(args[4]) : 8, args.length > 5 ? Long.parseLong(args[5]) * 1000 : 10000);
+    System.out.println(result);
+  }
+}
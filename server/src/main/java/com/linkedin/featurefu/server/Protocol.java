@@ -0,0 +1,73 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.server;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Binary frames of the scoring server, big-endian, one frame per request and per response:
+ *
+ *   int length | long id | int count | count doubles
+ *
+ * length is the number of bytes after itself. A request carries the inputs in the order of the server's input names,
+ *   its response the features in the order of the feature set, under the same id. Responses of a connection come back
+ *   in request order. A request with the wrong number of inputs, or whose evaluation failed, is answered with count -1
+ *   and no values.
+ */
+public final class Protocol {
+  /**
+   * Bytes of a frame before its values
+   */
+  public static final int HEADER_SIZE = 4 + 8 + 4;
+
+  /**
+   * Largest number of values in a frame, longer frames are rejected
+   */
+  public static final int MAX_VALUES = 1 << 16;
+
+  public static final int ERROR = -1;
+
+  private Protocol() {
+  }
+
+  /**
+   * @return bytes of a frame with count values, length included
+   */
+  public static int frameSize(int count) {
+    return HEADER_SIZE + 8 * Math.max(count, 0);
+  }
+
+  /**
+   * Append a frame with the first count values
+   */
+  public static void putFrame(ByteBuffer buffer, long id, double[] values, int count) {
+    buffer.putInt(frameSize(count) - 4);
+    buffer.putLong(id);
+    buffer.putInt(count);
+    for (int i = 0; i < count; i++) {
+      buffer.putDouble(values[i]);
+    }
+  }
+
+  /**
+   * Append a response with count -1
+   */
+  public static void putError(ByteBuffer buffer, long id) {
+    buffer.putInt(frameSize(ERROR) - 4);
+    buffer.putLong(id);
+    buffer.putInt(ERROR);
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.server;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+
+/**
+ * Blocking client of the scoring server, one per thread
+ *
+ * score() sends one request and waits for its response. To pipeline, call send() for several requests, flush(),
+ *   then receive() their responses, which come back in the same order.
+ */
+public class ScoringClient implements Closeable {
+  private final SocketChannel _channel;
+  private final ByteBuffer _out = ByteBuffer.allocate(64 * 1024);
+  private ByteBuffer _in = ByteBuffer.allocate(64 * 1024);
+  private long _nextId;
+  private int _lastCount;
+
+  public ScoringClient(SocketChannel channel) throws IOException {
+    this._channel = channel;
+    _channel.configureBlocking(true);
+    if (_channel.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY)) {
+      _channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    }
+    _in.flip();
+  }
+
+  public static ScoringClient connect(InetSocketAddress address) throws IOException {
+    return new ScoringClient(SocketChannel.open(address));
+  }
+
+  /**
+   * Buffer a request, written when the buffer fills or on flush()
+   */
+  public void send(long id, double[] inputs) throws IOException {
+    if (_out.remaining() < Protocol.frameSize(inputs.length)) {
+      flush();
+    }
+    Protocol.putFrame(_out, id, inputs, inputs.length);
+  }
+
+  /**
+   * Write the buffered requests
+   */
+  public void flush() throws IOException {
+    _out.flip();
+    while (_out.hasRemaining()) {
+      _channel.write(_out);
+    }
+    _out.clear();
+  }
+
+  /**
+   * Wait for the next response
+   * @param output receives the features, must be long enough for all of them
+   * @return id of the response, whose count is available from lastCount()
+   */
+  public long receive(double[] output) throws IOException {
+    fill(4);
+    int length = _in.getInt();
+    fill(length);
+    long id = _in.getLong();
+    _lastCount = _in.getInt();
+    for (int i = 0; i < _lastCount; i++) {
+      output[i] = _in.getDouble();
+    }
+    return id;
+  }
+
+  /**
+   * @return number of features in the last response received, Protocol.ERROR if the request was rejected
+   */
+  public int lastCount() {
+    return _lastCount;
+  }
+
+  /**
+   * Score one request
+   * @return number of features written to output
+   * @throws IllegalArgumentException if the server rejected the inputs or failed to evaluate them
+   */
+  public int score(double[] inputs, double[] output) throws IOException {
+    long id = _nextId++;
+    send(id, inputs);
+    flush();
+    long received = receive(output);
+    if (received != id) {
+      throw new IllegalStateException("expected response " + id + ", received " + received);
+    }
+    if (_lastCount == Protocol.ERROR) {
+      throw new IllegalArgumentException("server rejected request " + id + " with " + inputs.length + " inputs");
+    }
+    return _lastCount;
+  }
+
+  private void fill(int bytes) throws IOException {
+    if (_in.remaining() >= bytes) {
+      return;
+    }
+    if (_in.capacity() < bytes) {
+      ByteBuffer larger = ByteBuffer.allocate(bytes);
+      larger.put(_in);
+      _in = larger;
+    } else {
+      _in.compact();
+    }
+    while (_in.position() < bytes) {
+      if (_channel.read(_in) < 0) {
+        throw new EOFException("connection closed by the server");
+      }
+    }
+    _in.flip();
+  }
+
+  @Override
+  public void close() throws IOException {
+    _channel.close();
+  }
+}
@@ -0,0 +1,648 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.server;
+
+import com.linkedin.featurefu.expr.FeatureSet;
+import com.linkedin.featurefu.expr.FeatureSetHolder;
+import com.linkedin.featurefu.expr.JavaSourceGenerator;
+import com.linkedin.featurefu.expr.Variable;
+import java.io.Closeable;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Non-blocking socket server evaluating a feature set for clients in any language, see Protocol for the frames
+ *
+ * One selector thread reads requests from every connection and writes the responses back. One evaluation thread
+ *   coalesces the requests into micro-batches: a batch is dispatched once it has maxBatchSize requests or its oldest
+ *   request has waited maxDelayMicros. The wait adapts to the load: the selector thread keeps a moving average of the
+ *   time between reads bringing requests, across all connections, and the evaluation thread stops waiting once the
+ *   queue is empty and either every open connection has a request unanswered, as clients waiting for their answers
+ *   won't send more, or the next read isn't expected before the deadline. A lone sequential client is answered right
+ *   away and a busy server fills its batches. The responses of a batch are written with one buffer per connection.
+ *
+ * Memory is bounded: once maxQueuedRequests wait for evaluation, or a connection has maxPendingBytes of responses
+ *   its client hasn't read yet, the server stops reading from the connection until there is room again. A request
+ *   whose evaluation throws is answered with an error frame. A connection that can't be accepted or set up is closed
+ *   and the server keeps serving the others, but if the selector itself fails both threads stop as on close().
+ *   Evaluation goes through FeatureSet.Instance, so metrics attached with FeatureSet.withMetrics record served traffic.
+ *
+ * The feature set is read from a FeatureSetHolder once per batch, so publishing a new version hot swaps it.
+ *   The channel can be any bound ServerSocketChannel: bind() opens a TCP one, on JDK 16+ a Unix domain socket
+ *   channel (ServerSocketChannel.open(StandardProtocolFamily.UNIX)) works the same way.
+ */
+public class ScoringServer implements Closeable {
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+  private final FeatureSetHolder _holder;
+  private final List<String> _inputNames;
+  private final ServerSocketChannel _channel;
+  private final int _maxBatchSize;
+  private final long _maxDelayNanos;
+  private final Selector _selector;
+  private final long _maxPendingBytes;
+  private final BlockingQueue<Request> _requests;
+  private final Queue<Connection> _writable = new ConcurrentLinkedQueue<Connection>();
+  private final List<Connection> _paused = new ArrayList<Connection>();   // selector thread only
+  private final AtomicLong _batches = new AtomicLong();
+  private final AtomicLong _evaluated = new AtomicLong();
+  private final AtomicLong _open = new AtomicLong();   // open connections
+  private final AtomicLong _busy = new AtomicLong();   // open connections with requests read but not answered yet
+  private volatile long _lastArrival;   // written by the selector thread only
+  private volatile long _gapNanos;      // moving average of the time between reads bringing requests, likewise
+  private final Thread _selectorThread;
+  private final Thread _evaluatorThread;
+  private volatile boolean _closed;
+
+  // evaluation thread only
+  private FeatureSet _featureSet;
+  private FeatureSet.Instance _instance;
+  private Variable[] _inputs;
+  private final double[][] _rows;
+  private double[][] _outputs;
+  private final boolean[] _failed;
+
+  /**
+   * Server queuing up to 16 batches of requests and 1MB of responses per connection
+   * @param holder current feature set, read once per batch
+   * @param inputNames variable names of the request values, in order, variables not listed are 0
+   * @param channel bound server channel, closed with the server
+   * @param maxBatchSize most requests evaluated in one batch
+   * @param maxDelayMicros longest time a request waits for its batch to fill
+   * @throws IOException if the selector can't be opened
+   */
+  public ScoringServer(FeatureSetHolder holder, List<String> inputNames, ServerSocketChannel channel, int maxBatchSize,
+      long maxDelayMicros) throws IOException {
+    this(holder, inputNames, channel, maxBatchSize, maxDelayMicros, 16 * maxBatchSize, 1 << 20);
+  }
+
+  /**
+   * @param maxQueuedRequests most requests read and waiting for evaluation
+   * @param maxPendingBytes response bytes of a connection not written yet above which it isn't read from
+   */
+  public ScoringServer(FeatureSetHolder holder, List<String> inputNames, ServerSocketChannel channel, int maxBatchSize,
+      long maxDelayMicros, int maxQueuedRequests, long maxPendingBytes) throws IOException {
+    this._holder = holder;
+    this._inputNames = Collections.unmodifiableList(new ArrayList<String>(inputNames));
+    this._channel = channel;
+    this._maxBatchSize = maxBatchSize;
+    this._maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+    this._gapNanos = _maxDelayNanos;   // no waiting until concurrent arrivals are seen
+    this._maxPendingBytes = maxPendingBytes;
+    this._requests = new LinkedBlockingQueue<Request>(maxQueuedRequests);
+    this._rows = new double[maxBatchSize][];
+    this._failed = new boolean[maxBatchSize];
+    this._selector = Selector.open();
+
+    this._selectorThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        select();
+      }
+    }, "scoring-server-selector");
+    this._evaluatorThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        evaluate();
+      }
+    }, "scoring-server-evaluator");
+  }
+
+  /**
+   * Open a TCP server channel
+   * @param address address to listen on, port 0 for any free port
+   */
+  public static ServerSocketChannel bind(InetSocketAddress address) throws IOException {
+    ServerSocketChannel channel = ServerSocketChannel.open();
+    channel.bind(address);
+    return channel;
+  }
+
+  public List<String> getInputNames() {
+    return _inputNames;
+  }
+
+  public SocketAddress getLocalAddress() throws IOException {
+    return _channel.getLocalAddress();
+  }
+
+  /**
+   * @return number of batches evaluated so far
+   */
+  public long getBatches() {
+    return _batches.get();
+  }
+
+  /**
+   * @return number of requests evaluated so far
+   */
+  public long getEvaluated() {
+    return _evaluated.get();
+  }
+
+  /**
+   * Start accepting connections
+   */
+  public void start() throws IOException {
+    _channel.configureBlocking(false);
+    _channel.register(_selector, SelectionKey.OP_ACCEPT);
+    _selectorThread.start();
+    _evaluatorThread.start();
+  }
+
+  /**
+   * Stop both threads and close every connection, requests not evaluated yet are dropped
+   */
+  @Override
+  public void close() throws IOException {
+    _closed = true;
+    _selector.wakeup();
+    _evaluatorThread.interrupt();
+    try {
+      _selectorThread.join();
+      _evaluatorThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void select() {
+    try {
+      while (!_closed) {
+        _selector.select(_paused.isEmpty() ? 0 : 1);   // poll paused connections until they have room
+
+        for (Connection connection = _writable.poll(); connection != null; connection = _writable.poll()) {
+          connection.flush();
+        }
+
+        Iterator<SelectionKey> keys = _selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept();
+            continue;
+          }
+          Connection connection = (Connection) key.attachment();
+          if (key.isReadable()) {
+            connection.read();
+          }
+          if (key.isValid() && key.isWritable()) {
+            connection.flush();
+          }
+        }
+
+        if (!_paused.isEmpty()) {
+          List<Connection> paused = new ArrayList<Connection>(_paused);
+          _paused.clear();
+          for (Connection connection : paused) {
+            connection.resume();
+          }
+        }
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("scoring server selector failed", e);
+    } finally {
+      // whatever stopped the selector, requests can no longer be read nor answered: stop evaluating too
+      _closed = true;
+      _evaluatorThread.interrupt();
+      for (SelectionKey key : _selector.keys()) {
+        if (key.attachment() instanceof Connection) {
+          ((Connection) key.attachment()).close();
+        }
+      }
+      closeQuietly(_channel);
+      closeQuietly(_selector);
+    }
+  }
+
+  /**
+   * Selector thread: failing to accept or set up one connection, e.g. out of file descriptors or reset by the
+   *   client, drops that connection only
+   */
+  private void accept() {
+    SocketChannel channel;
+    try {
+      channel = _channel.accept();
+    } catch (IOException e) {
+      return;
+    }
+    if (channel == null) {
+      return;
+    }
+    try {
+      channel.configureBlocking(false);
+      if (channel.supportedOptions().contains(StandardSocketOptions.TCP_NODELAY)) {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      }
+      Connection connection = new Connection(channel);
+      connection._key = channel.register(_selector, SelectionKey.OP_READ, connection);
+      _open.incrementAndGet();
+    } catch (IOException e) {
+      closeQuietly(channel);
+    }
+  }
+
+  /**
+   * Evaluation thread: collect a batch, evaluate it, hand the responses to the selector thread
+   */
+  private void evaluate() {
+    List<Request> batch = new ArrayList<Request>(_maxBatchSize);
+    try {
+      while (!_closed) {
+        Request first = _requests.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        long deadline = first._arrival + _maxDelayNanos;
+
+        while (batch.size() < _maxBatchSize) {
+          Request next = _requests.poll();
+          if (next == null) {
+            if (_busy.get() >= _open.get()) {
+              break;   // every client is waiting for an answer
+            }
+            long gap = _gapNanos;
+            long expected = _lastArrival + gap;
+            if (expected >= deadline) {
+              break;   // the next request isn't expected before the deadline
+            }
+            // wait for it with one gap of slack, if it doesn't come the load has dropped
+            long timeout = Math.min(deadline, expected + gap) - System.nanoTime();
+            next = timeout > 0 ? _requests.poll(timeout, TimeUnit.NANOSECONDS) : null;
+            if (next == null) {
+              break;
+            }
+          }
+          batch.add(next);
+        }
+
+        run(batch);
+        batch.clear();
+      }
+    } catch (InterruptedException e) {
+      // closing
+    }
+  }
+
+  /**
+   * Selector thread: one sample of the time between arrivals per read bringing requests, pipelined requests read
+   *   together are one arrival, an idle server counts as maxDelay
+   */
+  private void arrived(long arrival) {
+    _gapNanos += (Math.min(arrival - _lastArrival, _maxDelayNanos) - _gapNanos) / 16;
+    _lastArrival = arrival;
+  }
+
+  private void run(List<Request> batch) {
+    int rows = 0;
+    for (Request request : batch) {
+      if (request._values != null) {
+        _rows[rows++] = request._values;
+      }
+    }
+    evaluate(rows);
+
+    List<Connection> connections = new ArrayList<Connection>();
+    int row = 0;
+    for (Request request : batch) {
+      Connection connection = request._connection;
+      if (connection._responseSize == 0) {
+        connections.add(connection);
+      }
+      boolean answered = request._values != null && !_failed[row++];
+      connection._responseSize += Protocol.frameSize(answered ? _outputs[0].length : Protocol.ERROR);
+    }
+    for (Connection connection : connections) {
+      connection._response = ByteBuffer.allocate(connection._responseSize);
+    }
+
+    row = 0;
+    for (Request request : batch) {
+      ByteBuffer response = request._connection._response;
+      if (request._values == null || _failed[row]) {
+        Protocol.putError(response, request._id);
+      } else {
+        Protocol.putFrame(response, request._id, _outputs[row], _outputs[row].length);
+      }
+      if (request._values != null) {
+        _rows[row++] = null;
+      }
+    }
+
+    for (Request request : batch) {   // before the clients can see their answers and send more
+      request._connection.answered();
+    }
+    for (Connection connection : connections) {
+      connection._response.flip();
+      connection._outBytes.addAndGet(connection._responseSize);
+      connection._out.add(connection._response);
+      connection._response = null;
+      connection._responseSize = 0;
+      _writable.add(connection);
+    }
+    _selector.wakeup();
+
+    _batches.incrementAndGet();
+    _evaluated.addAndGet(batch.size());
+  }
+
+  /**
+   * Evaluate the first rows of _rows into _outputs, marking the rows whose evaluation throws in _failed
+   */
+  private void evaluate(int rows) {
+    try {
+      FeatureSet featureSet = _holder.current();
+      if (featureSet != _featureSet) {
+        _featureSet = null;
+        _instance = featureSet.newInstance();
+        _inputs = new Variable[_inputNames.size()];
+        for (int i = 0; i < _inputs.length; i++) {
+          _inputs[i] = _instance.getRegistry().registerVariable(_inputNames.get(i));
+        }
+        _outputs = new double[_maxBatchSize][featureSet.getNames().size()];
+        _featureSet = featureSet;
+      }
+      _instance.evaluate(_inputs, _rows, _outputs, rows);
+      Arrays.fill(_failed, 0, rows, false);
+    } catch (RuntimeException e) {
+      if (_featureSet == null) {   // the new version can't be bound, nothing can be answered
+        Arrays.fill(_failed, 0, rows, true);
+        if (_outputs == null) {
+          _outputs = new double[_maxBatchSize][0];
+        }
+        return;
+      }
+      // find the failing rows one at a time, the others are answered as usual
+      for (int row = 0; row < rows; row++) {
+        try {
+          _instance.evaluate(_inputs, _rows[row], _outputs[row]);
+          _failed[row] = false;
+        } catch (RuntimeException rowFailure) {
+          _failed[row] = true;
+        }
+      }
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      // nothing left to do
+    }
+  }
+
+  /**
+   * A request parsed by the selector thread, values null if it had the wrong number of inputs
+   */
+  private static final class Request {
+    private final Connection _connection;
+    private final long _id;
+    private final double[] _values;
+    private final long _arrival;
+
+    Request(Connection connection, long id, double[] values, long arrival) {
+      this._connection = connection;
+      this._id = id;
+      this._values = values;
+      this._arrival = arrival;
+    }
+  }
+
+  private final class Connection {
+    private final SocketChannel _channel;
+    private SelectionKey _key;
+    private ByteBuffer _in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final Queue<ByteBuffer> _out = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicLong _outBytes = new AtomicLong();   // response bytes not written yet
+    private final AtomicLong _unanswered = new AtomicLong();   // requests read but not answered yet
+    private boolean _closed;        // selector thread only
+    private ByteBuffer _pending;    // response being written, selector thread only
+    private boolean _readPaused;    // selector thread only
+    private ByteBuffer _response;   // evaluation thread only
+    private int _responseSize;      // evaluation thread only
+
+    Connection(SocketChannel channel) {
+      this._channel = channel;
+    }
+
+    /**
+     * Read what is available and queue every complete request, frames may span reads
+     */
+    void read() {
+      if (!hasRoom()) {
+        pause();
+        return;
+      }
+      try {
+        if (_channel.read(_in) < 0) {
+          close();
+          return;
+        }
+      } catch (IOException e) {
+        close();
+        return;
+      }
+
+      parse();
+    }
+
+    /**
+     * Queue the complete requests of the read buffer, until the request queue is full
+     */
+    private void parse() {
+      long arrival = System.nanoTime();
+      int parsed = 0;
+      _in.flip();
+      while (_in.remaining() >= 4) {
+        if (_requests.remainingCapacity() == 0) {
+          pause();
+          break;
+        }
+        int length = _in.getInt(_in.position());
+        if (length < Protocol.HEADER_SIZE - 4 || length > Protocol.frameSize(Protocol.MAX_VALUES) - 4) {
+          close();
+          return;
+        }
+        if (_in.remaining() < 4 + length) {
+          if (_in.capacity() < 4 + length) {
+            ByteBuffer larger = ByteBuffer.allocate(4 + length);
+            larger.put(_in);
+            larger.flip();
+            _in = larger;
+          }
+          break;
+        }
+
+        _in.getInt();
+        long id = _in.getLong();
+        int count = _in.getInt();
+        double[] values = null;
+        if (count == _inputNames.size() && length == Protocol.frameSize(count) - 4) {
+          values = new double[count];
+          for (int i = 0; i < count; i++) {
+            values[i] = _in.getDouble();
+          }
+        } else {
+          _in.position(_in.position() + length - (Protocol.HEADER_SIZE - 4));
+        }
+        if (parsed++ == 0) {
+          arrived(arrival);   // before the evaluation thread can take the request
+        }
+        if (_unanswered.getAndIncrement() == 0) {
+          _busy.incrementAndGet();
+        }
+        _requests.add(new Request(this, id, values, arrival));
+      }
+      _in.compact();
+    }
+
+    /**
+     * Evaluation thread: one of its requests is about to be answered
+     */
+    void answered() {
+      if (_unanswered.decrementAndGet() == 0) {
+        _busy.decrementAndGet();
+      }
+    }
+
+    private boolean hasRoom() {
+      return _requests.remainingCapacity() > 0 && _outBytes.get() < _maxPendingBytes;
+    }
+
+    /**
+     * Stop reading until resume() finds room for more requests and responses
+     */
+    private void pause() {
+      if (!_readPaused) {
+        _readPaused = true;
+        _paused.add(this);
+        interest();
+      }
+    }
+
+    void resume() {
+      if (!_key.isValid()) {
+        return;
+      }
+      if (!hasRoom()) {
+        _paused.add(this);
+        return;
+      }
+      _readPaused = false;
+      interest();
+      parse();
+    }
+
+    private void interest() {
+      _key.interestOps((_readPaused ? 0 : SelectionKey.OP_READ) | (_pending != null ? SelectionKey.OP_WRITE : 0));
+    }
+
+    /**
+     * Write queued responses until done or the socket is full, then wait for it to be writable again
+     */
+    void flush() {
+      if (!_key.isValid()) {
+        return;
+      }
+      try {
+        while (true) {
+          if (_pending == null) {
+            _pending = _out.poll();
+            if (_pending == null) {
+              interest();
+              return;
+            }
+          }
+          _channel.write(_pending);
+          if (_pending.hasRemaining()) {
+            interest();
+            return;
+          }
+          _outBytes.addAndGet(-_pending.limit());
+          _pending = null;
+        }
+      } catch (IOException e) {
+        close();
+      }
+    }
+
+    void close() {
+      if (_closed) {
+        return;
+      }
+      _closed = true;
+      _open.decrementAndGet();
+      _key.cancel();
+      closeQuietly(_channel);
+    }
+  }
+
+  /**
+   * Serve a definitions file (name = s-expression lines, see JavaSourceGenerator.readDefinitions) over TCP
+   *   the input names are the variables of the definitions, sorted, and printed on start
+   * @param args definitions file, port, optionally max batch size (default 64) and max delay in microseconds (200)
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.out.println("usage: ScoringServer definitions port [maxBatchSize [maxDelayMicros]]");
+      return;
+    }
+
+    Reader reader = new FileReader(args[0]);
+    FeatureSet featureSet;
+    try {
+      featureSet = FeatureSet.compile(1, JavaSourceGenerator.readDefinitions(reader));
+    } finally {
+      reader.close();
+    }
+    List<String> inputNames = new ArrayList<String>(featureSet.newInstance().getRegistry().keySet());
+    Collections.sort(inputNames);
+
+    ScoringServer server = new ScoringServer(new FeatureSetHolder(featureSet), inputNames,
+        bind(new InetSocketAddress(Integer.parseInt(args[1]))), args.length > 2 ? Integer.parseInt(args[2]) : 64,
+        args.length > 3 ? Long.parseLong(args[3]) : 200);
+    server.start();
+    System.out.println("listening on " + server.getLocalAddress());
+    System.out.println("inputs " + inputNames);
+    System.out.println("features " + featureSet.getNames());
+  }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2015 LinkedIn Corp.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License.  You may obtain a copy of
+ * the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software  
+ * distributed under the License is distributed on an "AS IS" BASIS,  WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ */
+
+package com.linkedin.featurefu.server;
+
+import com.linkedin.featurefu.expr.EvaluationMetrics;
+import com.linkedin.featurefu.expr.Expr;
+import com.linkedin.featurefu.expr.FeatureSet;
+import com.linkedin.featurefu.expr.FeatureSetHolder;
+import com.linkedin.featurefu.expr.Operator;
+import com.linkedin.featurefu.expr.OperatorsSupported;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * Unit test for the scoring server, its client and load generator over loopback TCP
+ *
+ */
+public class ScoringServerTest {
+
+    private static FeatureSet featureSet(long version, String sum, String product) {
+        Map<String, String> definitions = new LinkedHashMap<String, String>();
+        definitions.put("sum", sum);
+        definitions.put("product", product);
+        return FeatureSet.compile(version, definitions);
+    }
+
+    private static ScoringServer start(FeatureSetHolder holder, int maxBatchSize, long maxDelayMicros) throws IOException {
+        ScoringServer server = new ScoringServer(holder, Arrays.asList("x", "y"),
+            ScoringServer.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)), maxBatchSize, maxDelayMicros);
+        server.start();
+        return server;
+    }
+
+    private static InetSocketAddress address(ScoringServer server) throws IOException {
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    @Test
+    public void score() throws IOException {
+        FeatureSetHolder holder = new FeatureSetHolder(featureSet(1, "(+ x y)", "(* x y)"));
+        ScoringServer server = start(holder, 16, 100);
+        try {
+            ScoringClient client = ScoringClient.connect(address(server));
+            double[] output = new double[2];
+            Assert.assertEquals(client.score(new double[]{2, 3}, output), 2);
+            Assert.assertEquals(output[0], 5.0, 0);
+            Assert.assertEquals(output[1], 6.0, 0);
+
+            try {
+                client.score(new double[]{1}, output);
+                Assert.fail("wrong number of inputs accepted");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            client.score(new double[]{-1, 4}, output);   // the connection is still usable
+            Assert.assertEquals(output[0], 3.0, 0);
+
+            Assert.assertTrue(holder.publish(featureSet(2, "(- x y)", "(/ x y)")));
+            client.score(new double[]{8, 2}, output);
+            Assert.assertEquals(output[0], 6.0, 0);
+            Assert.assertEquals(output[1], 4.0, 0);
+            client.close();
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void pipelining() throws IOException {
+        ScoringServer server = start(new FeatureSetHolder(featureSet(1, "(+ x y)", "(* x y)")), 64, 1000);
+        try {
+            ScoringClient client = ScoringClient.connect(address(server));
+            int n = 1000;
+            for (int i = 0; i < n; i++) {
+                client.send(i, new double[]{i, 2});
+            }
+            client.flush();
+
+            double[] output = new double[2];
+            for (int i = 0; i < n; i++) {
+                Assert.assertEquals(client.receive(output), (long) i);
+                Assert.assertEquals(output[0], i + 2.0, 0);
+                Assert.assertEquals(output[1], i * 2.0, 0);
+            }
+            client.close();
+            Assert.assertEquals(server.getEvaluated(), (long) n);
+            Assert.assertTrue(server.getBatches() < n, "pipelined requests were not batched");
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void sequentialClient() throws IOException {
+        // a client waiting for each answer can't fill a batch, it mustn't wait for the 200ms deadline
+        ScoringServer server = start(new FeatureSetHolder(featureSet(1, "(+ x y)", "(* x y)")), 64, 200000);
+        try {
+            ScoringClient client = ScoringClient.connect(address(server));
+            double[] output = new double[2];
+            long start = System.nanoTime();
+            for (int i = 0; i < 20; i++) {
+                client.score(new double[]{i, 1}, output);
+                Assert.assertEquals(output[0], i + 1.0, 0);
+            }
+            long millis = (System.nanoTime() - start) / 1000000;
+            Assert.assertTrue(millis < 1000, "20 sequential requests took " + millis + "ms");
+            client.close();
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void evaluationFailures() throws IOException {
+        OperatorsSupported.registerOperator(new Operator() {
+            public double calculate(List<Expr> operands) {
+                double value = operands.get(0).evaluate();
+                if (value < 0) {
+                    throw new IllegalStateException("negative");
+                }
+                return value;
+            }
+
+            public int numberOfOperands() {
+                return 1;
+            }
+
+            public String getSymbol() {
+                return "non-negative";
+            }
+        });
+        EvaluationMetrics metrics = new EvaluationMetrics();
+        FeatureSetHolder holder = new FeatureSetHolder(featureSet(1, "(+ x y)", "(non-negative x)").withMetrics(metrics));
+        ScoringServer server = start(holder, 16, 1000);
+        try {
+            ScoringClient client = ScoringClient.connect(address(server));
+            for (int i = 0; i < 10; i++) {
+                client.send(i, new double[]{i % 3 == 0 ? -i - 1 : i, 1});
+            }
+            client.flush();
+
+            double[] output = new double[2];
+            for (int i = 0; i < 10; i++) {
+                Assert.assertEquals(client.receive(output), (long) i);
+                if (i % 3 == 0) {
+                    Assert.assertEquals(client.lastCount(), Protocol.ERROR);
+                } else {
+                    Assert.assertEquals(client.lastCount(), 2);
+                    Assert.assertEquals(output[1], (double) i, 0);
+                }
+            }
+            client.close();
+            Assert.assertTrue(metrics.getEvaluations() >= 6, "served traffic not recorded");
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void backpressure() throws Exception {
+        FeatureSetHolder holder = new FeatureSetHolder(featureSet(1, "(+ x y)", "(* x y)"));
+        ScoringServer server = new ScoringServer(holder, Arrays.asList("x", "y"),
+            ScoringServer.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)), 8, 100, 16, 1024);
+        server.start();
+        try {
+            final int n = 20000;
+            final ScoringClient client = ScoringClient.connect(address(server));
+            Thread sender = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < n; i++) {
+                            client.send(i, new double[]{i, 1});
+                        }
+                        client.flush();
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+            sender.start();
+            Thread.sleep(200);   // let the responses pile up
+
+            double[] output = new double[2];
+            for (int i = 0; i < n; i++) {
+                Assert.assertEquals(client.receive(output), (long) i);
+                Assert.assertEquals(output[0], i + 1.0, 0);
+            }
+            sender.join();
+            client.close();
+            Assert.assertEquals(server.getEvaluated(), (long) n);
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void loadGenerator() throws IOException, InterruptedException {
+        ScoringServer server = start(new FeatureSetHolder(featureSet(1, "(+ x y)", "(* x y)")), 32, 200);
+        try {
+            LoadGenerator.Result result = LoadGenerator.run(address(server), 2, 2, 4, 200);
+            Assert.assertTrue(result.getRequests() > 0);
+            Assert.assertEquals(result.getErrors(), 0L);
+            Assert.assertEquals(server.getEvaluated(), result.getRequests());
+            Assert.assertTrue(result.getLatency(0.5) <= result.getLatency(1));
+        } finally {
+            server.close();
+        }
+    }
+}